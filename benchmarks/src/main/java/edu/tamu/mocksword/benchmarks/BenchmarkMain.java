@@ -0,0 +1,44 @@
+package edu.tamu.mocksword.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with allocation profiling, recording the results as
+ * JSON so runs on different commits can be compared:
+ *
+ * <pre>
+ * java -Dlabel=$(git rev-parse --short HEAD) -jar target/benchmarks.jar
+ * </pre>
+ *
+ * writes results/&lt;label&gt;.json. Every benchmark fixes its own forks,
+ * warmup and measurement iterations, so two result files differ only by the
+ * code under test and the machine they were run on. Any of JMH's own command
+ * line options may be given as well, i.e. a regular expression to run only
+ * some benchmarks.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		String label = System.getProperty("label", "latest");
+		File results = new File("results");
+		results.mkdirs();
+
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(new File(results, label + ".json").getPath());
+		if (commandLine.getIncludes().isEmpty()) {
+			options.include(BenchmarkMain.class.getPackage().getName() + ".*Benchmark");
+		}
+		new Runner(options.build()).run();
+	}
+}
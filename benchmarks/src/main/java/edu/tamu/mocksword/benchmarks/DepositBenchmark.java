@@ -0,0 +1,154 @@
+package edu.tamu.mocksword.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.purl.sword.base.SWORDErrorException;
+import org.purl.sword.base.SWORDException;
+
+import edu.tamu.mocksword.server.DepositSpool;
+import edu.tamu.mocksword.server.MockSwordDeposit;
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Benchmarks MockSwordServer.doDeposit on the bundled packages and on
+ * synthetic packages made of the valid manifest and a number of megabytes of
+ * incompressible files. Each deposit is spooled in memory beforehand, as the
+ * deposit servlet does, so only the server's own processing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx1g")
+public class DepositBenchmark {
+
+	/** The package deposited: a bundled package, or "synthetic-" and a size in MB **/
+	@Param({ "validDeposit.zip", "invalidDeposit.zip", "synthetic-16", "synthetic-128" })
+	public String pkg;
+
+	/** The mock under test **/
+	private MockSwordServer.Handle server;
+
+	/** Spools each deposit in memory **/
+	private DepositSpool spool;
+
+	/** The package's bytes **/
+	private byte[] content;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = MockSwordServer.builder().start();
+		if (pkg.startsWith("synthetic-")) {
+			content = syntheticPackage(Integer.parseInt(pkg.substring("synthetic-".length())));
+		} else {
+			InputStream in = DepositBenchmark.class.getResourceAsStream("/" + pkg);
+			try {
+				content = read(in);
+			} finally {
+				in.close();
+			}
+		}
+		spool = new DepositSpool(content.length, 1);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	@Benchmark
+	public void doDeposit(Blackhole blackhole) throws Exception {
+		DepositSpool.SpooledBody body = spool.spool(new ByteArrayInputStream(content), new File(System.getProperty("java.io.tmpdir")));
+		try {
+			MockSwordDeposit deposit = new MockSwordDeposit();
+			deposit.setUsername("testUser");
+			deposit.setPassword("testPassword");
+			deposit.setLocation(server.getBaseUrl() + "/deposit/c");
+			deposit.setContentType("application/zip");
+			deposit.setPackaging("http://purl.org/net/sword-types/METSDSpaceSIP");
+			deposit.setContentDisposition("filename=" + pkg);
+			deposit.setNoOp(true);
+			deposit.setBody(body);
+			deposit.setFile(body.openStream());
+			blackhole.consume(server.getRepository().doDeposit(deposit));
+		} catch (SWORDErrorException see) {
+			blackhole.consume(see);
+		} catch (SWORDException se) {
+			// The invalid package is rejected, which is the path measured
+			blackhole.consume(se);
+		} finally {
+			body.release();
+		}
+	}
+
+	/**
+	 * Build a package of the valid manifest and stored, random files totalling
+	 * the given size.
+	 */
+	static byte[] syntheticPackage(int megabytes) throws IOException {
+		byte[] manifest = null;
+		ZipInputStream zip = new ZipInputStream(DepositBenchmark.class.getResourceAsStream("/validDeposit.zip"));
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (entry.getName().equals("mets.xml")) {
+					manifest = read(zip);
+					break;
+				}
+			}
+		} finally {
+			zip.close();
+		}
+
+		Random random = new Random(megabytes);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(megabytes * 1024 * 1024 + 64 * 1024);
+		ZipOutputStream out = new ZipOutputStream(bytes);
+		out.putNextEntry(new ZipEntry("mets.xml"));
+		out.write(manifest);
+		out.closeEntry();
+		byte[] file = new byte[1024 * 1024];
+		for (int i = 0; i < megabytes; i++) {
+			random.nextBytes(file);
+			out.putNextEntry(new ZipEntry("file" + i + ".bin"));
+			out.write(file);
+			out.closeEntry();
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read the stream to the end, without closing it.
+	 */
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,63 @@
+package edu.tamu.mocksword.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.purl.sword.base.ServiceDocument;
+import org.purl.sword.base.ServiceDocumentRequest;
+
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Benchmarks building the service document, and building and marshalling it
+ * as the service document servlet does for every request it cannot answer
+ * from its cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ServiceDocumentBenchmark {
+
+	/** The mock under test **/
+	private MockSwordServer.Handle server;
+
+	/** The request answered **/
+	private ServiceDocumentRequest request;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = MockSwordServer.builder().start();
+		request = new ServiceDocumentRequest();
+		request.setUsername("testUser");
+		request.setPassword("testPassword");
+		request.setLocation(server.getBaseUrl() + "/servicedocument");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.stop();
+	}
+
+	@Benchmark
+	public ServiceDocument doServiceDocument() throws Exception {
+		return server.getRepository().doServiceDocument(request);
+	}
+
+	@Benchmark
+	public String doServiceDocumentAndMarshall() throws Exception {
+		return server.getRepository().doServiceDocument(request).marshall();
+	}
+}
@@ -0,0 +1,102 @@
+package edu.tamu.mocksword.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of latencies in microseconds. Values are counted in
+ * log-linear buckets, 32 to each power of two, so any percentile is reported
+ * to within about 3% of the true value in constant memory, and recording is a
+ * single atomic increment.
+ */
+public class LatencyHistogram {
+
+	/** Values below this are counted exactly **/
+	private static final int LINEAR = 64;
+
+	/** The number of buckets in each power of two above the linear range **/
+	private static final int SUB_BUCKETS = 32;
+
+	/** log2 of the sub bucket count **/
+	private static final int SUB_BITS = 5;
+
+	/** The count of values in each bucket **/
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 6) * SUB_BUCKETS);
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param micros
+	 *            The latency in microseconds, negative values are counted as
+	 *            zero.
+	 */
+	public void record(long micros) {
+		counts.incrementAndGet(index(Math.max(0, micros)));
+	}
+
+	/**
+	 * @return The number of latencies recorded.
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The latency in microseconds which the percentile of recorded
+	 *         values did not exceed, or zero if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		rank = Math.max(1, rank);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return highestValue(i);
+		}
+		return highestValue(snapshot.length - 1);
+	}
+
+	/**
+	 * @return The largest latency recorded, to within the bucket precision.
+	 */
+	public long getMax() {
+		for (int i = counts.length() - 1; i >= 0; i--) {
+			if (counts.get(i) > 0)
+				return highestValue(i);
+		}
+		return 0;
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+		return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The largest value counted in the bucket.
+	 */
+	private static long highestValue(int index) {
+		if (index < LINEAR)
+			return index;
+		int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,543 @@
+package edu.tamu.mocksword.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.log4j.Logger;
+
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Drives load against a running mock sword server, and reports the
+ * throughput and latency percentiles of each kind of request. A number of
+ * clients request service documents and deposit packages in a weighted mix.
+ *
+ * With a rate the load is open loop: requests are scheduled at fixed
+ * intervals whether or not earlier ones have been answered, and each latency
+ * is measured from when its request was scheduled rather than when a client
+ * got round to sending it. A server which falls behind therefore shows up in
+ * the percentiles instead of silently lowering the offered load. Without a
+ * rate each client sends its next request as soon as the last is answered.
+ *
+ * From the command line:
+ *
+ * <pre>
+ * java edu.tamu.mocksword.load.LoadDriver --url http://localhost:8080 \
+ *     --clients 16 --rate 200 --duration 60 --warmup 10 \
+ *     --mix servicedocument=3,deposit=1 --collection c --no-op
+ * </pre>
+ *
+ * Use --embedded in place of --url to start a mock in the same process.
+ */
+public class LoadDriver {
+
+	/** Logger **/
+	private static Logger log = Logger.getLogger(LoadDriver.class);
+
+	/** The packaging format of the bundled packages **/
+	private static final String PACKAGING = "http://purl.org/net/sword-types/METSDSpaceSIP";
+
+	/** How long requests still queued at the end of a run may take to be sent, in ms **/
+	private static final long DRAIN_MILLIS = 10000;
+
+	/** The kinds of request sent **/
+	public enum Operation {
+		SERVICE_DOCUMENT("servicedocument"), DEPOSIT("deposit");
+
+		/** The operation's name in the mix and report **/
+		private final String label;
+
+		Operation(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		static Operation forLabel(String label) {
+			for (Operation operation : values()) {
+				if (operation.label.equals(label))
+					return operation;
+			}
+			throw new IllegalArgumentException("Unknown operation: " + label);
+		}
+	}
+
+	/** The base url of the server, without a trailing slash **/
+	private final String baseUrl;
+
+	/** Credentials **/
+	private String username = "testUser";
+	private String password = "testPassword";
+
+	/** The collection deposits are made to **/
+	private String collection = "c";
+
+	/** The number of concurrent clients **/
+	private int clients = 8;
+
+	/** Requests per second across all clients, or zero for closed loop **/
+	private double rate = 0;
+
+	/** How long to run for, and how much of that to leave out of the report, in ms **/
+	private long durationMillis = 10000;
+	private long warmupMillis = 0;
+
+	/** The weight of each operation in the mix **/
+	private final Map<Operation, Double> mix = new EnumMap<Operation, Double>(Operation.class);
+
+	/** The packages deposited, chosen at random for each deposit **/
+	private final List<Package> packages = new ArrayList<Package>();
+
+	/** Whether deposits are sent as no-ops **/
+	private boolean noOp = false;
+
+	/**
+	 * @param baseUrl
+	 *            The base url of the server, i.e. "http://localhost:8080".
+	 */
+	public LoadDriver(String baseUrl) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+	}
+
+	public LoadDriver credentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+		return this;
+	}
+
+	public LoadDriver collection(String collection) {
+		this.collection = collection;
+		return this;
+	}
+
+	public LoadDriver clients(int clients) {
+		this.clients = Math.max(1, clients);
+		return this;
+	}
+
+	/**
+	 * @param rate
+	 *            Requests per second across all clients, or zero for each
+	 *            client to send requests back to back.
+	 */
+	public LoadDriver rate(double rate) {
+		this.rate = Math.max(0, rate);
+		return this;
+	}
+
+	public LoadDriver duration(long duration, TimeUnit unit) {
+		this.durationMillis = unit.toMillis(duration);
+		return this;
+	}
+
+	/**
+	 * @param warmup
+	 *            The time at the start of the run whose requests are sent but
+	 *            left out of the report.
+	 */
+	public LoadDriver warmup(long warmup, TimeUnit unit) {
+		this.warmupMillis = unit.toMillis(warmup);
+		return this;
+	}
+
+	/**
+	 * Set the weight of an operation in the mix. By default only service
+	 * documents are requested.
+	 */
+	public LoadDriver mix(Operation operation, double weight) {
+		if (weight > 0)
+			mix.put(operation, Double.valueOf(weight));
+		else
+			mix.remove(operation);
+		return this;
+	}
+
+	/**
+	 * Add a package to deposit. By default the bundled valid package is used.
+	 */
+	public LoadDriver deposit(String filename, byte[] content) {
+		packages.add(new Package(filename, content));
+		return this;
+	}
+
+	public LoadDriver noOp(boolean noOp) {
+		this.noOp = noOp;
+		return this;
+	}
+
+	/**
+	 * Run the load, blocking until it is done.
+	 *
+	 * @return The report of the run.
+	 */
+	public Report run() throws IOException, InterruptedException {
+		if (mix.isEmpty())
+			mix.put(Operation.SERVICE_DOCUMENT, Double.valueOf(1));
+		if (mix.containsKey(Operation.DEPOSIT) && packages.isEmpty())
+			deposit("validDeposit.zip", readResource("validDeposit.zip"));
+
+		final Operation[] operations = mix.keySet().toArray(new Operation[mix.size()]);
+		final double[] thresholds = new double[operations.length];
+		double total = 0;
+		for (int i = 0; i < operations.length; i++) {
+			total += mix.get(operations[i]).doubleValue();
+			thresholds[i] = total;
+		}
+
+		MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+		connections.getParams().setDefaultMaxConnectionsPerHost(clients);
+		connections.getParams().setMaxTotalConnections(clients);
+		final HttpClient http = new HttpClient(connections);
+		http.getParams().setAuthenticationPreemptive(true);
+		http.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+
+		final Report report = new Report();
+		final long start = System.nanoTime();
+		final long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		final long drainUntil = end + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+		final BlockingQueue<Long> scheduled = new LinkedBlockingQueue<Long>();
+		final Long stop = Long.valueOf(Long.MIN_VALUE);
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread("mock-sword-load-" + (i + 1)) {
+				public void run() {
+					try {
+						while (true) {
+							long intended;
+							if (rate > 0) {
+								Long next = scheduled.take();
+								if (next == stop)
+									return;
+								intended = next.longValue();
+								if (System.nanoTime() > drainUntil) {
+									report.dropped.incrementAndGet();
+									continue;
+								}
+							} else {
+								intended = System.nanoTime();
+								if (intended >= end)
+									return;
+							}
+							Operation operation = choose(operations, thresholds);
+							boolean ok = send(http, operation);
+							if (intended >= measureFrom)
+								report.record(operation, ok, System.nanoTime() - intended);
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		if (rate > 0) {
+			// Schedule each request at its own time, however far behind the clients are
+			long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			for (long n = 0;; n++) {
+				long intended = start + n * interval;
+				if (intended >= end)
+					break;
+				long wait = intended - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+				scheduled.put(Long.valueOf(intended));
+			}
+			for (int i = 0; i < clients; i++)
+				scheduled.put(stop);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		connections.shutdown();
+
+		report.elapsedNanos = end - measureFrom;
+		return report;
+	}
+
+	private static Operation choose(Operation[] operations, double[] thresholds) {
+		if (operations.length == 1)
+			return operations[0];
+		double r = ThreadLocalRandom.current().nextDouble() * thresholds[thresholds.length - 1];
+		for (int i = 0; i < thresholds.length; i++) {
+			if (r < thresholds[i])
+				return operations[i];
+		}
+		return operations[operations.length - 1];
+	}
+
+	/**
+	 * Send one request, reading the whole response.
+	 *
+	 * @return True if the server answered with a success status.
+	 */
+	private boolean send(HttpClient http, Operation operation) {
+		HttpMethodBase method;
+		if (operation == Operation.DEPOSIT) {
+			Package deposit = packages.get(ThreadLocalRandom.current().nextInt(packages.size()));
+			PostMethod post = new PostMethod(baseUrl + "/deposit/" + collection);
+			post.setRequestEntity(new ByteArrayRequestEntity(deposit.content, "application/zip"));
+			post.setRequestHeader("X-Packaging", PACKAGING);
+			post.setRequestHeader("Content-Disposition", "filename=" + deposit.filename);
+			if (noOp)
+				post.setRequestHeader("X-No-Op", "true");
+			method = post;
+		} else {
+			method = new GetMethod(baseUrl + "/servicedocument");
+		}
+
+		try {
+			int status = http.executeMethod(method);
+			InputStream in = method.getResponseBodyAsStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) != -1) {
+					// Discard the response
+				}
+			}
+			return status < 400;
+		} catch (IOException ioe) {
+			log.debug("Request failed: " + ioe.getMessage());
+			return false;
+		} finally {
+			method.releaseConnection();
+		}
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		InputStream in = LoadDriver.class.getResourceAsStream("/" + name);
+		if (in == null)
+			throw new IOException("No bundled package named " + name);
+		return read(in);
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A package to deposit.
+	 */
+	private static class Package {
+
+		final String filename;
+
+		final byte[] content;
+
+		Package(String filename, byte[] content) {
+			this.filename = filename;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The counts and latencies of each operation over the measured part of a
+	 * run. Latencies are only kept for requests which succeeded.
+	 */
+	public static class Report {
+
+		/** Latencies of successful requests **/
+		private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+
+		/** Failed requests **/
+		private final Map<Operation, AtomicLong> errors = new EnumMap<Operation, AtomicLong>(Operation.class);
+
+		/** Scheduled requests never sent because the clients fell too far behind **/
+		final AtomicLong dropped = new AtomicLong();
+
+		/** The length of the measured part of the run **/
+		long elapsedNanos;
+
+		Report() {
+			for (Operation operation : Operation.values()) {
+				latencies.put(operation, new LatencyHistogram());
+				errors.put(operation, new AtomicLong());
+			}
+		}
+
+		void record(Operation operation, boolean ok, long nanos) {
+			if (ok)
+				latencies.get(operation).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+			else
+				errors.get(operation).incrementAndGet();
+		}
+
+		/**
+		 * @return The latencies in microseconds of the operation's successful
+		 *         requests.
+		 */
+		public LatencyHistogram getLatencies(Operation operation) {
+			return latencies.get(operation);
+		}
+
+		public long getErrors(Operation operation) {
+			return errors.get(operation).get();
+		}
+
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * @return Successful requests of the operation per second.
+		 */
+		public double getThroughput(Operation operation) {
+			if (elapsedNanos <= 0)
+				return 0;
+			return latencies.get(operation).getCount() * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * Print a table of each operation's throughput and latencies in
+		 * milliseconds.
+		 */
+		public void print(PrintStream out) {
+			out.println(String.format("%-16s %8s %8s %10s %9s %9s %9s %9s", "operation", "count", "errors",
+					"ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+			for (Operation operation : Operation.values()) {
+				LatencyHistogram histogram = latencies.get(operation);
+				long count = histogram.getCount();
+				if (count == 0 && getErrors(operation) == 0)
+					continue;
+				out.println(String.format("%-16s %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f", operation.getLabel(),
+						count, getErrors(operation), getThroughput(operation),
+						histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+						histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+			}
+			if (getDropped() > 0)
+				out.println("dropped " + getDropped() + " scheduled requests the clients could not keep up with");
+		}
+	}
+
+	/**
+	 * Run the driver from the command line, printing the report when done.
+	 */
+	public static void main(String[] args) throws Exception {
+		String url = null;
+		boolean embedded = false;
+		List<String> files = new ArrayList<String>();
+		String username = null, password = null, collection = null, mix = null;
+		int clients = 0;
+		double rate = 0;
+		long duration = 0, warmup = 0;
+		boolean noOp = false;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--embedded")) {
+				embedded = true;
+			} else if (arg.equals("--no-op")) {
+				noOp = true;
+			} else if (i + 1 < args.length) {
+				String value = args[++i];
+				if (arg.equals("--url"))
+					url = value;
+				else if (arg.equals("--user"))
+					username = value;
+				else if (arg.equals("--password"))
+					password = value;
+				else if (arg.equals("--collection"))
+					collection = value;
+				else if (arg.equals("--clients"))
+					clients = Integer.parseInt(value);
+				else if (arg.equals("--rate"))
+					rate = Double.parseDouble(value);
+				else if (arg.equals("--duration"))
+					duration = Long.parseLong(value);
+				else if (arg.equals("--warmup"))
+					warmup = Long.parseLong(value);
+				else if (arg.equals("--mix"))
+					mix = value;
+				else if (arg.equals("--package"))
+					files.add(value);
+				else
+					usage("Unknown option: " + arg);
+			} else {
+				usage("Missing value for " + arg);
+			}
+		}
+		if (url == null && !embedded)
+			usage("Either --url or --embedded is required");
+
+		MockSwordServer.Handle server = null;
+		if (embedded) {
+			server = MockSwordServer.builder().start();
+			url = server.getBaseUrl();
+		}
+		try {
+			LoadDriver driver = new LoadDriver(url);
+			if (username != null)
+				driver.credentials(username, password);
+			if (collection != null)
+				driver.collection(collection);
+			if (clients > 0)
+				driver.clients(clients);
+			driver.rate(rate);
+			if (duration > 0)
+				driver.duration(duration, TimeUnit.SECONDS);
+			driver.warmup(warmup, TimeUnit.SECONDS);
+			driver.noOp(noOp);
+			if (mix != null) {
+				for (String part : mix.split(",")) {
+					String[] pair = part.trim().split("=");
+					driver.mix(Operation.forLabel(pair[0].trim()),
+							pair.length > 1 ? Double.parseDouble(pair[1].trim()) : 1);
+				}
+			}
+			for (String name : files) {
+				File file = new File(name);
+				byte[] content = file.exists() ? read(new FileInputStream(file)) : readResource(name);
+				driver.deposit(file.getName(), content);
+			}
+
+			driver.run().print(System.out);
+		} finally {
+			if (server != null)
+				server.stop();
+		}
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: LoadDriver (--url URL | --embedded) [--clients N] [--rate PER_SECOND]");
+		System.err.println("         [--duration SECONDS] [--warmup SECONDS] [--mix servicedocument=W,deposit=W]");
+		System.err.println("         [--collection NAME] [--user NAME --password PASSWORD] [--no-op]");
+		System.err.println("         [--package FILE_OR_BUNDLED_NAME ...]");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,450 @@
+package edu.tamu.mocksword.load;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.log4j.Logger;
+
+import edu.tamu.mocksword.load.LoadDriver.Operation;
+import edu.tamu.mocksword.server.CaptureLog;
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Replays the traffic captured in a {@link CaptureLog} against a running mock
+ * sword server, and reports the latency of each kind of request. Requests are
+ * sent at the intervals they were captured at, divided by the speed, so a
+ * burst seen in production can be sent again as it was or several times
+ * faster. Like the {@link LoadDriver} with a rate, the replay is open loop
+ * and each latency is measured from when its request was due.
+ *
+ * The log is written as requests are answered, so a long request is logged
+ * after shorter ones which arrived later. Requests are replayed in the order
+ * they arrived instead: a first pass reads when each arrived, and the records
+ * are then held back only until no later record in the log arrived earlier.
+ *
+ * A request counts as an error if it is not answered with the status it was
+ * answered with when it was captured. The log does not hold passwords, each
+ * request is sent as its captured user with the password from a users file
+ * in the format the mock reads, or with the given credentials.
+ *
+ * From the command line:
+ *
+ * <pre>
+ * java edu.tamu.mocksword.load.ReplayDriver --url http://localhost:8080 \
+ *     --log capture.log --speed 10 --clients 32 --users users.properties
+ * </pre>
+ */
+public class ReplayDriver {
+
+	/** Logger **/
+	private static Logger log = Logger.getLogger(ReplayDriver.class);
+
+	/** Headers which belong to the connection rather than the request **/
+	private static final Set<String> SKIPPED = new HashSet<String>();
+	static {
+		for (String header : new String[] { "host", "content-length", "connection", "keep-alive",
+				"transfer-encoding", "te", "trailer", "upgrade", "expect", "proxy-authorization" })
+			SKIPPED.add(header);
+	}
+
+	/** How long requests still queued at the end of a replay may take to be sent, in ms **/
+	private static final long DRAIN_MILLIS = 10000;
+
+	/** The base url of the server, without a trailing slash **/
+	private final String baseUrl;
+
+	/** The capture log **/
+	private final File captureLog;
+
+	/** The credentials of requests whose user has no password **/
+	private String username = "testUser";
+	private String password = "testPassword";
+
+	/** The passwords of captured users **/
+	private final Properties passwords = new Properties();
+
+	/** The number of concurrent clients **/
+	private int clients = 16;
+
+	/** How many times faster than captured to send requests, zero for back to back **/
+	private double speed = 1;
+
+	/**
+	 * @param baseUrl
+	 *            The base url of the server, i.e. "http://localhost:8080".
+	 * @param captureLog
+	 *            The log to replay.
+	 */
+	public ReplayDriver(String baseUrl, File captureLog) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.captureLog = captureLog;
+	}
+
+	/**
+	 * Set the credentials of requests whose captured user has no password.
+	 */
+	public ReplayDriver credentials(String username, String password) {
+		this.username = username;
+		this.password = password;
+		return this;
+	}
+
+	/**
+	 * Read the passwords of captured users from a users file, with lines of
+	 * "user: password,role".
+	 */
+	public ReplayDriver users(File users) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(users);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		for (String user : properties.stringPropertyNames()) {
+			String value = properties.getProperty(user).trim();
+			int comma = value.indexOf(',');
+			passwords.setProperty(user, (comma == -1 ? value : value.substring(0, comma)).trim());
+		}
+		return this;
+	}
+
+	public ReplayDriver clients(int clients) {
+		this.clients = Math.max(1, clients);
+		return this;
+	}
+
+	/**
+	 * @param speed
+	 *            How many times faster than they were captured to send
+	 *            requests, or zero to send them back to back.
+	 */
+	public ReplayDriver speed(double speed) {
+		this.speed = Math.max(0, speed);
+		return this;
+	}
+
+	/**
+	 * Replay the log, blocking until every request has been answered.
+	 *
+	 * @return The report of the replay.
+	 */
+	public LoadDriver.Report run() throws IOException, InterruptedException {
+		MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+		connections.getParams().setDefaultMaxConnectionsPerHost(clients);
+		connections.getParams().setMaxTotalConnections(clients);
+		final HttpClient http = new HttpClient(connections);
+
+		final LoadDriver.Report report = new LoadDriver.Report();
+		final BlockingQueue<Scheduled> scheduled = new LinkedBlockingQueue<Scheduled>();
+		final Scheduled stop = new Scheduled(null, 0);
+		final AtomicLong drainUntil = new AtomicLong(Long.MAX_VALUE);
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread("mock-sword-replay-" + (i + 1)) {
+				public void run() {
+					try {
+						while (true) {
+							Scheduled next = scheduled.take();
+							if (next == stop)
+								return;
+							if (System.nanoTime() > drainUntil.get()) {
+								report.dropped.incrementAndGet();
+								continue;
+							}
+							CaptureLog.Record record = next.record;
+							int status = send(http, record);
+							report.record(getOperation(record), status == record.getStatus(),
+									System.nanoTime() - next.intended);
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+
+		// The earliest arrival of the records after each one in the log
+		long[] later = readArrivals();
+
+		long start = System.nanoTime();
+		long end = start;
+		PriorityQueue<Arrival> arrivals = new PriorityQueue<Arrival>();
+		CaptureLog.Reader reader = CaptureLog.read(captureLog);
+		try {
+			// The first record released arrived before all the others
+			Long first = null;
+			CaptureLog.Record record;
+			for (int n = 0; (record = reader.next()) != null; n++) {
+				arrivals.add(new Arrival(record, n));
+				long next = (n < later.length) ? later[n] : Long.MAX_VALUE;
+				while (!arrivals.isEmpty() && arrivals.peek().record.getTime() <= next) {
+					CaptureLog.Record due = arrivals.poll().record;
+					if (first == null)
+						first = due.getTime();
+					end = Math.max(end, schedule(due, first, start, scheduled));
+				}
+			}
+		} finally {
+			reader.close();
+			drainUntil.set(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS));
+			for (int i = 0; i < clients; i++)
+				scheduled.put(stop);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		connections.shutdown();
+
+		report.elapsedNanos = Math.max(System.nanoTime(), end) - start;
+		return report;
+	}
+
+	/**
+	 * Read when every request in the log arrived.
+	 *
+	 * @return For each record, the earliest time any record after it in the
+	 *         log arrived, or Long.MAX_VALUE for the last.
+	 */
+	private long[] readArrivals() throws IOException {
+		long[] times = new long[1024];
+		int count = 0;
+		CaptureLog.Reader reader = CaptureLog.read(captureLog);
+		try {
+			CaptureLog.Record record;
+			while ((record = reader.next()) != null) {
+				if (count == times.length)
+					times = Arrays.copyOf(times, count * 2);
+				times[count++] = record.getTime();
+			}
+		} finally {
+			reader.close();
+		}
+
+		long[] later = new long[count];
+		long earliest = Long.MAX_VALUE;
+		for (int i = count - 1; i >= 0; i--) {
+			later[i] = earliest;
+			earliest = Math.min(earliest, times[i]);
+		}
+		return later;
+	}
+
+	/**
+	 * Queue a request for the clients once it is due.
+	 *
+	 * @return When the request was due.
+	 */
+	private long schedule(CaptureLog.Record record, long first, long start, BlockingQueue<Scheduled> scheduled)
+			throws InterruptedException {
+		long intended = start;
+		if (speed > 0) {
+			intended = start + (long) ((record.getTime() - first) / speed);
+			long wait = intended - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+		}
+		scheduled.put(new Scheduled(record, intended));
+		return intended;
+	}
+
+	/**
+	 * @return The kind of request a record is.
+	 */
+	private static Operation getOperation(CaptureLog.Record record) {
+		return record.getUri().contains("/servicedocument") ? Operation.SERVICE_DOCUMENT : Operation.DEPOSIT;
+	}
+
+	/**
+	 * Send a captured request, reading the whole response.
+	 *
+	 * @return The status it was answered with, or -1 if it failed.
+	 */
+	private int send(HttpClient http, CaptureLog.Record record) {
+		HttpMethodBase method;
+		String url = baseUrl + record.getUri();
+		if (record.getMethod().equals("POST")) {
+			method = new PostMethod(url);
+		} else if (record.getMethod().equals("PUT")) {
+			method = new PutMethod(url);
+		} else {
+			method = new GetMethod(url);
+		}
+		if (method instanceof EntityEnclosingMethod) {
+			String contentType = null;
+			List<String> headers = record.getHeaders();
+			for (int i = 0; i < headers.size(); i += 2) {
+				if (headers.get(i).equalsIgnoreCase("Content-Type"))
+					contentType = headers.get(i + 1);
+			}
+			EntityEnclosingMethod entity = (EntityEnclosingMethod) method;
+			if (record.getBody() != null)
+				entity.setRequestEntity(new ByteArrayRequestEntity(record.getBody(), contentType));
+			else if (record.getBodyFile() != null)
+				entity.setRequestEntity(new FileRequestEntity(record.getBodyFile(), contentType));
+		}
+
+		List<String> headers = record.getHeaders();
+		for (int i = 0; i < headers.size(); i += 2) {
+			if (!SKIPPED.contains(headers.get(i).toLowerCase()))
+				method.addRequestHeader(headers.get(i), headers.get(i + 1));
+		}
+		String user = record.getUser();
+		String secret = (user != null) ? passwords.getProperty(user) : null;
+		if (secret == null) {
+			user = username;
+			secret = password;
+		}
+		method.setRequestHeader("Authorization",
+				"Basic " + new String(Base64.encodeBase64((user + ":" + secret).getBytes())));
+
+		try {
+			int status = http.executeMethod(method);
+			InputStream in = method.getResponseBodyAsStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) != -1) {
+					// Discard the response
+				}
+			}
+			return status;
+		} catch (IOException ioe) {
+			log.debug("Request failed: " + ioe.getMessage());
+			return -1;
+		} finally {
+			method.releaseConnection();
+		}
+	}
+
+	/**
+	 * A captured request, and when it is due to be sent.
+	 */
+	private static class Scheduled {
+
+		final CaptureLog.Record record;
+
+		final long intended;
+
+		Scheduled(CaptureLog.Record record, long intended) {
+			this.record = record;
+			this.intended = intended;
+		}
+	}
+
+	/**
+	 * A record waiting to be scheduled, ordered by when it arrived and then
+	 * by its place in the log.
+	 */
+	private static class Arrival implements Comparable<Arrival> {
+
+		final CaptureLog.Record record;
+
+		final int index;
+
+		Arrival(CaptureLog.Record record, int index) {
+			this.record = record;
+			this.index = index;
+		}
+
+		public int compareTo(Arrival other) {
+			if (record.getTime() != other.record.getTime())
+				return (record.getTime() < other.record.getTime()) ? -1 : 1;
+			return (index < other.index) ? -1 : ((index == other.index) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Run the replay from the command line, printing the report when done.
+	 */
+	public static void main(String[] args) throws Exception {
+		String url = null, logFile = null, users = null, username = null, password = null;
+		boolean embedded = false;
+		int clients = 0;
+		double speed = 1;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--embedded")) {
+				embedded = true;
+			} else if (i + 1 < args.length) {
+				String value = args[++i];
+				if (arg.equals("--url"))
+					url = value;
+				else if (arg.equals("--log"))
+					logFile = value;
+				else if (arg.equals("--users"))
+					users = value;
+				else if (arg.equals("--user"))
+					username = value;
+				else if (arg.equals("--password"))
+					password = value;
+				else if (arg.equals("--clients"))
+					clients = Integer.parseInt(value);
+				else if (arg.equals("--speed"))
+					speed = Double.parseDouble(value);
+				else
+					usage("Unknown option: " + arg);
+			} else {
+				usage("Missing value for " + arg);
+			}
+		}
+		if (logFile == null)
+			usage("--log is required");
+		if (url == null && !embedded)
+			usage("Either --url or --embedded is required");
+
+		MockSwordServer.Handle server = null;
+		if (embedded) {
+			server = MockSwordServer.builder().start();
+			url = server.getBaseUrl();
+		}
+		try {
+			ReplayDriver driver = new ReplayDriver(url, new File(logFile));
+			if (username != null)
+				driver.credentials(username, password);
+			if (users != null)
+				driver.users(new File(users));
+			if (clients > 0)
+				driver.clients(clients);
+			driver.speed(speed);
+
+			driver.run().print(System.out);
+		} finally {
+			if (server != null)
+				server.stop();
+		}
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: ReplayDriver (--url URL | --embedded) --log FILE [--speed TIMES]");
+		System.err.println("         [--clients N] [--users USERS_FILE] [--user NAME --password PASSWORD]");
+		System.err.println("Speed 1 replays at the captured pace, 10 ten times faster, 0 back to back.");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,325 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import org.purl.sword.atom.Author;
+import org.purl.sword.atom.Content;
+import org.purl.sword.atom.ContentType;
+import org.purl.sword.atom.Contributor;
+import org.purl.sword.atom.Generator;
+import org.purl.sword.atom.TextConstruct;
+import org.purl.sword.base.DepositResponse;
+import org.purl.sword.base.SWORDEntry;
+
+/**
+ * Writes the entries of deposit responses without building an XML document.
+ * Every entry the mock returns has the same shape, so the markup between its
+ * fields is rendered once, and only the fields which vary from deposit to
+ * deposit are escaped and encoded as UTF-8 for each response.
+ *
+ * The bytes written are exactly those DepositResponse.marshall() serializes.
+ * An entry which is not shaped like the mock's own, or whose text would be
+ * rewritten by the serializer (empty values, line breaks, tabs, control
+ * characters and the like), is serialized as marshall() does.
+ */
+public class AtomEntryWriter {
+
+	/** The namespace of sword's extension elements **/
+	private static final String SWORD = "http://purl.org/net/sword/";
+
+	/** The namespace of Atom's elements **/
+	private static final String ATOM = "http://www.w3.org/2005/Atom";
+
+	/** The line separator used by the serializer **/
+	private static final String EOL = "\r\n";
+
+	/** The generator of every entry the mock returns **/
+	private static final String GENERATOR_URI = "http://localhost/";
+	private static final String GENERATOR_VERSION = "1.3";
+	private static final String GENERATOR = "Mock SWORD Server";
+
+	/** The category of every entry the mock returns **/
+	private static final String CATEGORY = "Category";
+
+	/** The media type of every package the mock accepts **/
+	private static final String CONTENT_TYPE = "application/zip";
+
+	/** The treatment of every deposit the mock accepts **/
+	private static final String TREATMENT = "The mock submission was treated with all the respect and dignity befitting its status.";
+
+	private static final byte[] START = utf8("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + EOL
+			+ "<atom:entry xmlns:sword=\"" + SWORD + "\" xmlns:atom=\"" + ATOM + "\">" + EOL
+			+ "   <atom:id>");
+	private static final byte[] AUTHOR = utf8("</atom:id>" + EOL
+			+ "   <atom:author>" + EOL
+			+ "      <atom:name>");
+	private static final byte[] CONTENT = utf8("</atom:name>" + EOL
+			+ "   </atom:author>" + EOL
+			+ "   <atom:content type=\"" + CONTENT_TYPE + "\" src=\"");
+	private static final byte[] GENERATOR_ELEMENT = utf8("\"/>" + EOL
+			+ "   <atom:generator uri=\"" + GENERATOR_URI + "\" version=\"" + GENERATOR_VERSION + "\">"
+			+ GENERATOR + "</atom:generator>" + EOL);
+	private static final byte[] CONTRIBUTOR = utf8("   <atom:contributor>" + EOL
+			+ "      <atom:name>");
+	private static final byte[] CONTRIBUTOR_EMAIL = utf8("</atom:name>" + EOL
+			+ "      <atom:email>");
+	private static final byte[] CONTRIBUTOR_END = utf8("</atom:email>" + EOL
+			+ "   </atom:contributor>" + EOL);
+	private static final byte[] SUMMARY = utf8("   <atom:summary type=\"text\">");
+	private static final byte[] TITLE = utf8("</atom:summary>" + EOL
+			+ "   <atom:title type=\"text\">");
+	private static final byte[] UPDATED = utf8("</atom:title>" + EOL
+			+ "   <atom:updated>");
+	private static final byte[] TREATMENT_ELEMENT = utf8("</atom:updated>" + EOL
+			+ "   <atom:category>" + CATEGORY + "</atom:category>" + EOL
+			+ "   <sword:treatment>" + TREATMENT + "</sword:treatment>" + EOL);
+	private static final byte[] VERBOSE = utf8("   <sword:verboseDescription>");
+	private static final byte[] VERBOSE_END = utf8("</sword:verboseDescription>" + EOL);
+	private static final byte[] NO_OP_TRUE = utf8("   <sword:noOp>true</sword:noOp>" + EOL);
+	private static final byte[] NO_OP_FALSE = utf8("   <sword:noOp>false</sword:noOp>" + EOL);
+	private static final byte[] USER_AGENT = utf8("   <sword:userAgent>");
+	private static final byte[] USER_AGENT_END = utf8("</sword:userAgent>" + EOL);
+	private static final byte[] PACKAGING = utf8("   <sword:packaging>");
+	private static final byte[] PACKAGING_END = utf8("</sword:packaging>" + EOL);
+	private static final byte[] CHECKSUM = utf8("   <" + MockSwordEntry.PREFIX + ":checksum algorithm=\"SHA-256\" xmlns:"
+			+ MockSwordEntry.PREFIX + "=\"" + MockSwordEntry.NAMESPACE + "\">");
+	private static final byte[] CHECKSUM_END = utf8("</" + MockSwordEntry.PREFIX + ":checksum>" + EOL);
+	private static final byte[] END = utf8("</atom:entry>" + EOL);
+
+	/**
+	 * Render a deposit response's entry.
+	 *
+	 * @return The entry, as UTF-8.
+	 */
+	public static byte[] toBytes(DepositResponse dr) {
+		SWORDEntry entry = dr.getEntry();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1536);
+		try {
+			if (isTemplated(entry)) {
+				write((MockSwordEntry) entry, out);
+			} else {
+				marshall(entry, out);
+			}
+		} catch (IOException ioe) {
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(ioe);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Serialize an entry as DepositResponse.marshall() does, keeping the
+	 * serializer's UTF-8 rather than decoding it with the platform's charset.
+	 */
+	static void marshall(SWORDEntry entry, OutputStream out) throws IOException {
+		Serializer serializer = new Serializer(out, "UTF-8");
+		serializer.setIndent(3);
+		serializer.write(new Document(entry.marshall()));
+	}
+
+	/**
+	 * Decide whether an entry is shaped like the mock's own, and its text will
+	 * be serialized as it is.
+	 */
+	// getSource() is deprecated, but marshall() still writes any source set
+	@SuppressWarnings("deprecation")
+	static boolean isTemplated(SWORDEntry entry) {
+		if (!(entry instanceof MockSwordEntry)) {
+			return false;
+		}
+		if (entry.getLinks().hasNext() || entry.getPublished() != null || entry.getRights() != null
+				|| entry.getSource() != null || !entry.isNoOpSet()) {
+			return false;
+		}
+		if (!isPlain(entry.getId()) || !isPlain(entry.getUpdated())) {
+			return false;
+		}
+
+		Iterator<Author> authors = entry.getAuthors();
+		if (!authors.hasNext() || !isName(authors.next(), false) || authors.hasNext()) {
+			return false;
+		}
+		Iterator<Contributor> contributors = entry.getContributors();
+		if (contributors.hasNext() && (!isName(contributors.next(), true) || contributors.hasNext())) {
+			return false;
+		}
+		Iterator<String> categories = entry.getCategories();
+		if (!categories.hasNext() || !CATEGORY.equals(categories.next()) || categories.hasNext()) {
+			return false;
+		}
+
+		Content content = entry.getContent();
+		if (content == null || !CONTENT_TYPE.equals(content.getType()) || !isPlain(content.getSource())) {
+			return false;
+		}
+		Generator generator = entry.getGenerator();
+		if (generator == null || !GENERATOR_URI.equals(generator.getUri())
+				|| !GENERATOR_VERSION.equals(generator.getVersion()) || !GENERATOR.equals(generator.getContent())) {
+			return false;
+		}
+		if (!isText(entry.getSummary()) || !isText(entry.getTitle()) || !TREATMENT.equals(entry.getTreatment())) {
+			return false;
+		}
+
+		return isOptional(entry.getVerboseDescription()) && isOptional(entry.getUserAgent())
+				&& isOptional(entry.getPackaging()) && isOptional(((MockSwordEntry) entry).getSha256());
+	}
+
+	/**
+	 * Write an entry accepted by isTemplated.
+	 */
+	static void write(MockSwordEntry entry, OutputStream out) throws IOException {
+		out.write(START);
+		escape(entry.getId(), false, out);
+		out.write(AUTHOR);
+		escape(entry.getAuthors().next().getName(), false, out);
+		out.write(CONTENT);
+		escape(entry.getContent().getSource(), true, out);
+		out.write(GENERATOR_ELEMENT);
+
+		Iterator<Contributor> contributors = entry.getContributors();
+		if (contributors.hasNext()) {
+			Contributor contributor = contributors.next();
+			out.write(CONTRIBUTOR);
+			escape(contributor.getName(), false, out);
+			out.write(CONTRIBUTOR_EMAIL);
+			escape(contributor.getEmail(), false, out);
+			out.write(CONTRIBUTOR_END);
+		}
+
+		out.write(SUMMARY);
+		escape(entry.getSummary().getContent(), false, out);
+		out.write(TITLE);
+		escape(entry.getTitle().getContent(), false, out);
+		out.write(UPDATED);
+		escape(entry.getUpdated(), false, out);
+		out.write(TREATMENT_ELEMENT);
+
+		element(VERBOSE, entry.getVerboseDescription(), VERBOSE_END, out);
+		out.write(entry.isNoOp() ? NO_OP_TRUE : NO_OP_FALSE);
+		element(USER_AGENT, entry.getUserAgent(), USER_AGENT_END, out);
+		element(PACKAGING, entry.getPackaging(), PACKAGING_END, out);
+		element(CHECKSUM, entry.getSha256(), CHECKSUM_END, out);
+		out.write(END);
+	}
+
+	/**
+	 * Write an optional element, if it has a value.
+	 */
+	private static void element(byte[] start, String value, byte[] end, OutputStream out) throws IOException {
+		if (value != null) {
+			out.write(start);
+			escape(value, false, out);
+			out.write(end);
+		}
+	}
+
+	/**
+	 * Write text as UTF-8, escaping it as the serializer does. Only text
+	 * accepted by isPlain is written.
+	 *
+	 * @param attribute
+	 *            Whether the text is an attribute value, whose quotes are
+	 *            escaped too.
+	 */
+	static void escape(String text, boolean attribute, OutputStream out) throws IOException {
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == ' ' && i > 0 && text.charAt(i - 1) == ' ') {
+				// The serializer collapses runs of spaces
+				continue;
+			}
+			if (c < 0x80) {
+				switch (c) {
+				case '&':
+					out.write('&'); out.write('a'); out.write('m'); out.write('p'); out.write(';');
+					break;
+				case '<':
+					out.write('&'); out.write('l'); out.write('t'); out.write(';');
+					break;
+				case '>':
+					out.write('&'); out.write('g'); out.write('t'); out.write(';');
+					break;
+				case '"':
+					if (attribute) {
+						out.write('&'); out.write('q'); out.write('u'); out.write('o'); out.write('t'); out.write(';');
+					} else {
+						out.write(c);
+					}
+					break;
+				default:
+					out.write(c);
+				}
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Decide whether the serializer writes a value as it is, apart from
+	 * escaping and collapsing runs of spaces. It drops empty elements' text,
+	 * breaks lines, turns other white space into spaces and refuses control
+	 * characters, so any value it might rewrite otherwise is left to it.
+	 */
+	static boolean isPlain(String text) {
+		if (text == null || text.trim().length() == 0) {
+			return false;
+		}
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < 0x20 || (c >= 0x7F && c <= 0x9F) || c == 0x2028 || c == 0x2029
+					|| c == 0xFFFE || c == 0xFFFF || Character.isLowSurrogate(c)) {
+				return false;
+			}
+			if (Character.isHighSurrogate(c)) {
+				if (i + 1 == length || !Character.isLowSurrogate(text.charAt(i + 1))) {
+					return false;
+				}
+				i++;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isOptional(String text) {
+		return text == null || isPlain(text);
+	}
+
+	private static boolean isText(TextConstruct text) {
+		return text != null && text.getType() == ContentType.TEXT && isPlain(text.getContent());
+	}
+
+	private static boolean isName(Author author, boolean email) {
+		return isPlain(author.getName()) && author.getUri() == null
+				&& (email ? isPlain(author.getEmail()) : author.getEmail() == null);
+	}
+
+	private static byte[] utf8(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package edu.tamu.mocksword.server;
+
+import java.security.Principal;
+import java.util.StringTokenizer;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Remembers recently seen Basic "Authorization" headers, so a client sending
+ * the same credentials on every request has them decoded and checked against
+ * the user realm only once. Each header is kept with its decoded
+ * "username:password" and, once the realm has accepted it, the principal it
+ * authenticated as.
+ *
+ * Headers are forgotten after a while, so changes to the users file are
+ * noticed, and only the most recently used are kept, so clients inventing
+ * credentials can not fill the heap. A header the realm rejected is never
+ * remembered as authenticated.
+ */
+public class BasicCredentialCache {
+
+	/** The remembered headers **/
+	private final LruCache<String, Credentials> headers;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of headers to remember.
+	 * @param ttlMillis
+	 *            How long a header is remembered for.
+	 */
+	public BasicCredentialCache(int maxEntries, long ttlMillis) {
+		headers = new LruCache<String, Credentials>(maxEntries, ttlMillis);
+	}
+
+	/**
+	 * Decode a Basic "Authorization" header.
+	 *
+	 * @param authHeader
+	 *            The header, or null.
+	 * @return The username and password separated by a colon, or null if the
+	 *         header does not hold Basic credentials.
+	 */
+	public String getUsernamePassword(String authHeader) {
+		Credentials credentials = lookup(authHeader);
+		return (credentials == null) ? null : credentials.usernamePassword;
+	}
+
+	/**
+	 * @param authHeader
+	 *            A Basic "Authorization" header, or null.
+	 * @return The principal the header has authenticated as, or null if it has
+	 *         not been accepted recently.
+	 */
+	public Principal getPrincipal(String authHeader) {
+		if (authHeader == null) {
+			return null;
+		}
+		Credentials credentials = headers.get(authHeader);
+		return (credentials == null) ? null : credentials.principal;
+	}
+
+	/**
+	 * Remember the principal a header was accepted as.
+	 */
+	public void setPrincipal(String authHeader, Principal principal) {
+		Credentials credentials = lookup(authHeader);
+		if (credentials != null) {
+			credentials.principal = principal;
+		}
+	}
+
+	/**
+	 * Find a header's credentials, decoding and remembering them if it has not
+	 * been seen recently.
+	 */
+	private Credentials lookup(String authHeader) {
+		if (authHeader == null) {
+			return null;
+		}
+		Credentials credentials = headers.get(authHeader);
+		if (credentials == null) {
+			String usernamePassword = decode(authHeader);
+			if (usernamePassword == null) {
+				return null;
+			}
+			credentials = new Credentials(usernamePassword);
+			headers.put(authHeader, credentials);
+		}
+		return credentials;
+	}
+
+	/**
+	 * Decode the username and password of a Basic "Authorization" header.
+	 *
+	 * @return The username and password separated by a colon, or null.
+	 */
+	static String decode(String authHeader) {
+		StringTokenizer st = new StringTokenizer(authHeader);
+		if (st.hasMoreTokens() && st.nextToken().equalsIgnoreCase("Basic") && st.hasMoreTokens()) {
+			return new String(Base64.decodeBase64(st.nextToken().getBytes()));
+		}
+		return null;
+	}
+
+	/**
+	 * A header's decoded credentials, and the principal they were accepted as.
+	 */
+	private static class Credentials {
+
+		/** The username and password separated by a colon **/
+		final String usernamePassword;
+
+		/** The principal accepted by the realm, or null **/
+		volatile Principal principal;
+
+		Credentials(String usernamePassword) {
+			this.usernamePassword = usernamePassword;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package edu.tamu.mocksword.server;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads directly from a byte buffer. The stream works on
+ * its own duplicate of the buffer so several streams may be opened over the
+ * same spooled content without copying it, and without disturbing the
+ * position of the original buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	/** The private view of the buffer this stream reads from **/
+	private final ByteBuffer buffer;
+
+	/** The position of the last mark **/
+	private int mark;
+
+	/**
+	 * Create a new stream over the remaining content of the buffer.
+	 *
+	 * @param buffer
+	 *            The buffer to read, it's position and limit are not modified.
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.mark = this.buffer.position();
+	}
+
+	public int read() {
+		if (!buffer.hasRemaining())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!buffer.hasRemaining())
+			return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	public long skip(long n) {
+		if (n <= 0)
+			return 0;
+		int skipped = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	public int available() {
+		return buffer.remaining();
+	}
+
+	public boolean markSupported() {
+		return true;
+	}
+
+	public synchronized void mark(int readlimit) {
+		mark = buffer.position();
+	}
+
+	public synchronized void reset() {
+		buffer.position(mark);
+	}
+}
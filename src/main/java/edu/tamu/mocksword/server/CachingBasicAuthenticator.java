@@ -0,0 +1,50 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import org.mortbay.jetty.HttpHeaders;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Response;
+import org.mortbay.jetty.security.BasicAuthenticator;
+import org.mortbay.jetty.security.Constraint;
+import org.mortbay.jetty.security.UserRealm;
+
+/**
+ * Basic authentication which remembers the principal each "Authorization"
+ * header authenticated as, so a repeated header is accepted without being
+ * decoded or looked up in the user realm again. Headers which have not been
+ * accepted recently are authenticated by Jetty as usual.
+ */
+public class CachingBasicAuthenticator extends BasicAuthenticator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The headers recently accepted **/
+	private final transient BasicCredentialCache credentials;
+
+	/**
+	 * @param credentials
+	 *            The cache accepted headers are remembered in.
+	 */
+	public CachingBasicAuthenticator(BasicCredentialCache credentials) {
+		this.credentials = credentials;
+	}
+
+	public Principal authenticate(UserRealm realm, String pathInContext, Request request, Response response)
+			throws IOException {
+		String authHeader = request.getHeader(HttpHeaders.AUTHORIZATION);
+		Principal user = credentials.getPrincipal(authHeader);
+		if (user != null) {
+			request.setAuthType(Constraint.__BASIC_AUTH);
+			request.setUserPrincipal(user);
+			return user;
+		}
+
+		user = super.authenticate(realm, pathInContext, request, response);
+		if (user != null) {
+			credentials.setPrincipal(authHeader, user);
+		}
+		return user;
+	}
+}
@@ -0,0 +1,382 @@
+package edu.tamu.mocksword.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of the requests a mock received, so the traffic can be
+ * replayed later. The log is written through a memory-mapped region of the
+ * file, mapping the next region once one is full, so appending a record is a
+ * copy into memory rather than a write call.
+ *
+ * The log starts with an eight byte magic number, followed by the records.
+ * Each record is its length as an int, then its time, duration, status,
+ * method, URI, user, headers and body, in that order. Bodies up to a limit
+ * are kept in the record; larger ones are written to a directory beside the
+ * log, named by their SHA-256 digest, and the record refers to them. A
+ * length of zero, where the mapped region has not been written to, ends the
+ * log.
+ */
+public class CaptureLog implements Closeable {
+
+	private static Logger log = Logger.getLogger(CaptureLog.class);
+
+	/** The magic number the log starts with **/
+	private static final byte[] MAGIC = { 'M', 'S', 'W', 'C', 'A', 'P', '0', '1' };
+
+	/** Kinds of record body **/
+	static final byte NO_BODY = 0, INLINE_BODY = 1, REFERENCED_BODY = 2;
+
+	/** The file **/
+	private final RandomAccessFile file;
+
+	/** The size of each mapped region **/
+	private final int regionSize;
+
+	/** The directory large bodies are written to **/
+	private final File bodies;
+
+	/** The region being written **/
+	private MappedByteBuffer region;
+
+	/** The position in the file the region starts at **/
+	private long regionStart;
+
+	/** The clock's reading and the time when the log was opened **/
+	private final long originNanos = System.nanoTime();
+	private final long originEpochNanos = System.currentTimeMillis() * 1000000L;
+
+	/**
+	 * Create a new log, replacing any which is at the path.
+	 *
+	 * @param path
+	 *            The log file.
+	 * @param regionSize
+	 *            The bytes mapped at a time.
+	 */
+	public CaptureLog(File path, int regionSize) throws IOException {
+		this.regionSize = Math.max(regionSize, 4096);
+		this.bodies = getBodies(path);
+		this.file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		regionStart = 0;
+		region = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.regionSize);
+		region.put(MAGIC);
+	}
+
+	/**
+	 * @return The directory large bodies of a log are kept in.
+	 */
+	public static File getBodies(File path) {
+		return new File(path.getPath() + ".bodies");
+	}
+
+	/**
+	 * @return The directory large bodies are written to, created if needed.
+	 */
+	public File getBodies() throws IOException {
+		if (!bodies.isDirectory() && !bodies.mkdirs())
+			throw new IOException("Unable to create the capture body directory: " + bodies);
+		return bodies;
+	}
+
+	/**
+	 * @return The time now, in nanoseconds since the epoch.
+	 */
+	public long now() {
+		return originEpochNanos + (System.nanoTime() - originNanos);
+	}
+
+	/**
+	 * Append a record to the log.
+	 */
+	public void append(Record record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (record.body != null ? record.body.length : 0));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeLong(record.time);
+		out.writeLong(record.durationNanos);
+		out.writeShort(record.status);
+		out.writeUTF(record.method);
+		out.writeUTF(record.uri);
+		out.writeUTF(record.user != null ? record.user : "");
+		out.writeShort(record.headers.size() / 2);
+		for (String header : record.headers)
+			out.writeUTF(header);
+		if (record.sha256 == null) {
+			out.writeByte(NO_BODY);
+		} else {
+			out.writeByte(record.body != null ? INLINE_BODY : REFERENCED_BODY);
+			out.writeLong(record.bodyLength);
+			out.writeUTF(record.sha256);
+			if (record.body != null)
+				out.write(record.body);
+		}
+		out.flush();
+		byte[] encoded = bytes.toByteArray();
+		int length = encoded.length - 4;
+		encoded[0] = (byte) (length >>> 24);
+		encoded[1] = (byte) (length >>> 16);
+		encoded[2] = (byte) (length >>> 8);
+		encoded[3] = (byte) length;
+		write(encoded);
+	}
+
+	/**
+	 * Copy bytes into the mapped regions, mapping more as they fill up.
+	 */
+	private synchronized void write(byte[] bytes) throws IOException {
+		if (region == null)
+			throw new IOException("The capture log is closed");
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!region.hasRemaining()) {
+				regionStart += regionSize;
+				region = file.getChannel().map(FileChannel.MapMode.READ_WRITE, regionStart, regionSize);
+			}
+			int n = Math.min(region.remaining(), bytes.length - offset);
+			region.put(bytes, offset, n);
+			offset += n;
+		}
+	}
+
+	/**
+	 * Flush the log, and trim the unused end of its last region.
+	 */
+	public synchronized void close() throws IOException {
+		if (region == null)
+			return;
+		long end = regionStart + region.position();
+		region.force();
+		region = null;
+		try {
+			file.setLength(end);
+		} catch (IOException ioe) {
+			// Still mapped on some platforms, the zeroed end reads as the end
+			log.debug("Unable to trim the capture log: " + ioe.getMessage());
+		}
+		file.close();
+	}
+
+	/**
+	 * Open a log to read its records.
+	 */
+	public static Reader read(File path) throws IOException {
+		return new Reader(path);
+	}
+
+	/**
+	 * Reads the records of a log in order.
+	 */
+	public static class Reader implements Closeable {
+
+		private final DataInputStream in;
+
+		private final File bodies;
+
+		Reader(File path) throws IOException {
+			this.bodies = getBodies(path);
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.readFully(magic);
+			} catch (EOFException eofe) {
+				magic = null;
+			}
+			if (!Arrays.equals(MAGIC, magic)) {
+				in.close();
+				throw new IOException("Not a capture log: " + path);
+			}
+		}
+
+		/**
+		 * @return The next record, or null at the end of the log.
+		 */
+		public Record next() throws IOException {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException eofe) {
+				return null;
+			}
+			if (length <= 0)
+				return null;
+
+			Record record = new Record();
+			record.time = in.readLong();
+			record.durationNanos = in.readLong();
+			record.status = in.readShort();
+			record.method = in.readUTF();
+			record.uri = in.readUTF();
+			record.user = in.readUTF();
+			if (record.user.length() == 0)
+				record.user = null;
+			int headers = in.readShort();
+			List<String> list = new ArrayList<String>(headers * 2);
+			for (int i = 0; i < headers * 2; i++)
+				list.add(in.readUTF());
+			record.headers = list;
+			byte kind = in.readByte();
+			if (kind != NO_BODY) {
+				record.bodyLength = in.readLong();
+				record.sha256 = in.readUTF();
+				if (kind == INLINE_BODY) {
+					record.body = new byte[(int) record.bodyLength];
+					in.readFully(record.body);
+				} else {
+					record.bodyFile = new File(bodies, record.sha256);
+				}
+			}
+			return record;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * A request as it was received, and how it was answered.
+	 */
+	public static class Record {
+
+		private long time;
+		private long durationNanos;
+		private int status;
+		private String method;
+		private String uri;
+		private String user;
+		private List<String> headers = Collections.emptyList();
+		private String sha256;
+		private long bodyLength;
+		private byte[] body;
+		private File bodyFile;
+
+		Record() {
+		}
+
+		/**
+		 * @param time
+		 *            When the request arrived, in nanoseconds since the epoch.
+		 * @param uri
+		 *            The request's path and query.
+		 * @param user
+		 *            The authenticated user, or null.
+		 * @param headers
+		 *            The header names and values, alternately.
+		 */
+		public Record(long time, String method, String uri, String user, List<String> headers) {
+			this.time = time;
+			this.method = method;
+			this.uri = uri;
+			this.user = user;
+			this.headers = headers;
+		}
+
+		/**
+		 * Set how the request was answered.
+		 */
+		public void setResponse(int status, long durationNanos) {
+			this.status = status;
+			this.durationNanos = durationNanos;
+		}
+
+		/**
+		 * Set the request's body.
+		 *
+		 * @param body
+		 *            The body, or null if it was written to the log's body
+		 *            directory.
+		 */
+		public void setBody(String sha256, long length, byte[] body) {
+			this.sha256 = sha256;
+			this.bodyLength = length;
+			this.body = body;
+		}
+
+		/**
+		 * @return When the request arrived, in nanoseconds since the epoch.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return How long the request took to answer, in nanoseconds.
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return The request's path and query.
+		 */
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return The authenticated user, or null.
+		 */
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * @return The header names and values, alternately.
+		 */
+		public List<String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return The hex SHA-256 digest of the body, or null if there was no
+		 *         body.
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+
+		public long getBodyLength() {
+			return bodyLength;
+		}
+
+		/**
+		 * @return The body, or null if there was none or it is in a file.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return The file holding the body, or null if it is in the record.
+		 */
+		public File getBodyFile() {
+			return bodyFile;
+		}
+	}
+}
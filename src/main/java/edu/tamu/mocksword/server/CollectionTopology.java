@@ -0,0 +1,458 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * The workspaces and collections the mock advertises in its service
+ * documents. The topology is read from properties:
+ *
+ * <pre>
+ * workspaces = theses, journals
+ * workspace.theses.title = Theses and Dissertations
+ * workspace.theses.collections = etd, honors
+ * workspace.journals.generate = 5000
+ * collection.etd.title = Electronic Theses
+ * collection.etd.mediation = false
+ * default.packaging = http://purl.org/net/sword-types/METSDSpaceSIP 1.0
+ * </pre>
+ *
+ * Workspaces are listed in order, and each lists its collections in order or
+ * has a number of collections generated, named after the workspace, i.e.
+ * "journals-1" to "journals-5000". Collections are deposited to at
+ * /deposit/ and their name. A collection's settings are "title", "accept"
+ * and "packaging" (comma separated lists, a package format may be followed by
+ * its quality), "policy", "abstract", "mediation", "treatment" and "service",
+ * the URI of a sub-service document, which is resolved against the server's
+ * base URL if it starts with a slash. Settings not given for a collection are
+ * taken from the "default" scope, and failing that from the mock's own
+ * collections. A setting given as empty is left out.
+ *
+ * Service documents requested on behalf of a user can be personalized. A
+ * collection with a "users" setting is only listed for those on-behalf-of
+ * users, and "mediation" may list the users mediated deposits are offered
+ * for rather than be true or false:
+ *
+ * <pre>
+ * collection.etd.users = alice, bob
+ * collection.etd.mediation = alice
+ * </pre>
+ *
+ * Values are trimmed, and each run of white space within them, line breaks
+ * included, is read as a single space. The serializer of sword-common's
+ * service documents collapses white space much the same way, but unevenly, so
+ * normalizing it here means every path renders a value identically.
+ *
+ * Without any properties the topology is the mock's original one: collections
+ * "a" and "b" in Workspace 1 and "c" in Workspace 2.
+ */
+public class CollectionTopology {
+
+	/** The settings every collection has unless configured otherwise **/
+	private static final Map<String, String> BUILT_IN = new HashMap<String, String>();
+	static {
+		BUILT_IN.put("accept", "application/zip");
+		BUILT_IN.put("packaging", "http://purl.org/net/sword-types/METSDSpaceSIP 1.0");
+		BUILT_IN.put("policy", "This collection does not actually exist and will not receive deposits. ");
+		BUILT_IN.put("abstract", "This is test collection.");
+		BUILT_IN.put("mediation", "true");
+	}
+
+	/** The settings a collection may have **/
+	private static final Set<String> SETTINGS = new HashSet<String>();
+	static {
+		Collections.addAll(SETTINGS, "title", "accept", "packaging", "policy", "abstract", "mediation",
+				"treatment", "service", "users");
+	}
+
+	/** The workspaces, in order **/
+	private final List<WorkspaceSpec> workspaces;
+
+	/** The number of collections in every workspace **/
+	private final int collectionCount;
+
+	/** Whether any collection is listed or mediated for some users only **/
+	private final boolean personalized;
+
+	CollectionTopology(List<WorkspaceSpec> workspaces) {
+		this.workspaces = Collections.unmodifiableList(workspaces);
+		int count = 0;
+		boolean personalized = false;
+		for (WorkspaceSpec workspace : workspaces) {
+			count += workspace.getCollections().size();
+			for (CollectionSpec collection : workspace.getCollections()) {
+				personalized |= collection.isPersonalized();
+			}
+		}
+		this.collectionCount = count;
+		this.personalized = personalized;
+	}
+
+	/**
+	 * @return The mock's original topology.
+	 */
+	public static CollectionTopology defaults() {
+		Properties properties = new Properties();
+		properties.setProperty("workspaces", "1, 2");
+		properties.setProperty("workspace.1.title", "Workspace 1");
+		properties.setProperty("workspace.1.collections", "a, b");
+		properties.setProperty("workspace.2.title", "Workspace 2");
+		properties.setProperty("workspace.2.collections", "c");
+		properties.setProperty("collection.a.title", "Collection A");
+		properties.setProperty("collection.b.title", "Collection B");
+		properties.setProperty("collection.c.title", "Collection C");
+		return parse(properties);
+	}
+
+	/**
+	 * Load a topology from a properties file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the topology is not valid.
+	 */
+	public static CollectionTopology load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+		return parse(properties);
+	}
+
+	/**
+	 * Build a topology from its properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the topology is not valid.
+	 */
+	static CollectionTopology parse(Properties properties) {
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("default.") || key.startsWith("collection.")) {
+				String setting = key.substring(key.lastIndexOf('.') + 1);
+				if (!SETTINGS.contains(setting))
+					throw new IllegalArgumentException("Unknown collection setting: " + key);
+			} else if (!key.equals("workspaces") && !key.startsWith("workspace.")) {
+				throw new IllegalArgumentException("Unknown topology key: " + key);
+			}
+		}
+
+		List<String> workspaceIds = split(properties.getProperty("workspaces"));
+		if (workspaceIds.isEmpty())
+			throw new IllegalArgumentException("No workspaces are listed");
+
+		Set<String> seen = new HashSet<String>();
+		List<WorkspaceSpec> workspaces = new ArrayList<WorkspaceSpec>(workspaceIds.size());
+		for (String workspaceId : workspaceIds) {
+			String prefix = "workspace." + workspaceId + ".";
+			String title = normalize(properties.getProperty(prefix + "title", workspaceId));
+
+			List<String> collectionIds = split(properties.getProperty(prefix + "collections"));
+			String generate = properties.getProperty(prefix + "generate");
+			if (generate != null) {
+				int count;
+				try {
+					count = Integer.parseInt(generate.trim());
+				} catch (NumberFormatException nfe) {
+					throw new IllegalArgumentException("Invalid " + prefix + "generate: " + generate);
+				}
+				for (int i = 1; i <= count; i++)
+					collectionIds.add(workspaceId + "-" + i);
+			}
+			if (collectionIds.isEmpty())
+				throw new IllegalArgumentException("Workspace " + workspaceId + " has no collections");
+
+			List<CollectionSpec> collections = new ArrayList<CollectionSpec>(collectionIds.size());
+			for (String collectionId : collectionIds) {
+				if (!seen.add(collectionId))
+					throw new IllegalArgumentException("Collection " + collectionId + " is listed twice");
+				collections.add(collection(properties, collectionId));
+			}
+			workspaces.add(new WorkspaceSpec(workspaceId, title, collections));
+		}
+		return new CollectionTopology(workspaces);
+	}
+
+	/**
+	 * Build a collection from its own settings and the defaults.
+	 */
+	private static CollectionSpec collection(Properties properties, String id) {
+		String title = setting(properties, id, "title");
+		List<String> packaging = split(setting(properties, id, "packaging"));
+		String[] formats = new String[packaging.size()];
+		float[] qualities = new float[packaging.size()];
+		for (int i = 0; i < formats.length; i++) {
+			String format = packaging.get(i);
+			int p = format.lastIndexOf(' ');
+			qualities[i] = 1.0f;
+			if (p != -1) {
+				try {
+					qualities[i] = Float.parseFloat(format.substring(p + 1));
+					format = format.substring(0, p).trim();
+				} catch (NumberFormatException nfe) {
+					throw new IllegalArgumentException("Invalid packaging quality for collection " + id + ": " + format);
+				}
+			}
+			formats[i] = format;
+		}
+
+		// Mediation is true, false or the users it is offered for
+		String mediation = setting(properties, id, "mediation");
+		Set<String> mediators = null;
+		if ((mediation != null) && !mediation.equalsIgnoreCase("true") && !mediation.equalsIgnoreCase("false")) {
+			mediators = new HashSet<String>(split(mediation));
+		}
+		String users = setting(properties, id, "users");
+
+		return new CollectionSpec(id, (title == null) ? "Collection " + id : title,
+				split(setting(properties, id, "accept")), formats, qualities,
+				setting(properties, id, "policy"), setting(properties, id, "abstract"),
+				(mediators != null) || Boolean.valueOf(mediation).booleanValue(), mediators,
+				setting(properties, id, "treatment"), setting(properties, id, "service"),
+				(users == null) ? null : new HashSet<String>(split(users)));
+	}
+
+	/**
+	 * Find a collection's setting, from its own scope, the default scope or
+	 * the built in settings. A setting configured as empty has no value.
+	 */
+	private static String setting(Properties properties, String id, String name) {
+		String value = properties.getProperty("collection." + id + "." + name);
+		if (value == null)
+			value = properties.getProperty("default." + name);
+		if (value == null)
+			return BUILT_IN.get(name);
+		value = normalize(value);
+		return (value.length() == 0) ? null : value;
+	}
+
+	/**
+	 * Trim a value, and collapse each run of white space within it to a single
+	 * space.
+	 */
+	private static String normalize(String value) {
+		return value.trim().replaceAll("[ \\t\\n\\r]+", " ");
+	}
+
+	/**
+	 * Split a comma separated list, ignoring empty items.
+	 */
+	private static List<String> split(String list) {
+		List<String> items = new ArrayList<String>();
+		if (list != null) {
+			StringTokenizer st = new StringTokenizer(list, ",");
+			while (st.hasMoreTokens()) {
+				String item = normalize(st.nextToken());
+				if (item.length() > 0)
+					items.add(item);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * @return The workspaces, in order.
+	 */
+	public List<WorkspaceSpec> getWorkspaces() {
+		return workspaces;
+	}
+
+	/**
+	 * @return The workspace with the id, or null.
+	 */
+	public WorkspaceSpec getWorkspace(String id) {
+		for (WorkspaceSpec workspace : workspaces) {
+			if (workspace.getId().equals(id))
+				return workspace;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of collections in every workspace.
+	 */
+	public int getCollectionCount() {
+		return collectionCount;
+	}
+
+	/**
+	 * @return True if the collections listed, or their mediation, depend on
+	 *         the user a service document is requested on behalf of.
+	 */
+	public boolean isPersonalized() {
+		return personalized;
+	}
+
+	/**
+	 * A workspace and its collections.
+	 */
+	public static class WorkspaceSpec {
+
+		/** The workspace's name in the topology **/
+		private final String id;
+
+		/** The workspace's title **/
+		private final String title;
+
+		/** The workspace's collections, in order **/
+		private final List<CollectionSpec> collections;
+
+		WorkspaceSpec(String id, String title, List<CollectionSpec> collections) {
+			this.id = id;
+			this.title = title;
+			this.collections = Collections.unmodifiableList(collections);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public List<CollectionSpec> getCollections() {
+			return collections;
+		}
+	}
+
+	/**
+	 * A collection and the deposits it accepts.
+	 */
+	public static class CollectionSpec {
+
+		private final String id;
+		private final String title;
+		private final List<String> accepts;
+		private final String[] packaging;
+		private final float[] qualities;
+		private final String policy;
+		private final String abstractText;
+		private final boolean mediation;
+		private final Set<String> mediators;
+		private final String treatment;
+		private final String service;
+		private final Set<String> users;
+
+		CollectionSpec(String id, String title, List<String> accepts, String[] packaging, float[] qualities,
+				String policy, String abstractText, boolean mediation, Set<String> mediators, String treatment,
+				String service, Set<String> users) {
+			this.id = id;
+			this.title = title;
+			this.accepts = Collections.unmodifiableList(accepts);
+			this.packaging = packaging;
+			this.qualities = qualities;
+			this.policy = policy;
+			this.abstractText = abstractText;
+			this.mediation = mediation;
+			this.mediators = mediators;
+			this.treatment = treatment;
+			this.service = service;
+			this.users = users;
+		}
+
+		/**
+		 * @return The collection's name, deposits are made to /deposit/ and
+		 *         the name.
+		 */
+		public String getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return The media types accepted.
+		 */
+		public List<String> getAccepts() {
+			return accepts;
+		}
+
+		/**
+		 * @return The number of package formats accepted.
+		 */
+		public int getPackagingCount() {
+			return packaging.length;
+		}
+
+		public String getPackaging(int i) {
+			return packaging[i];
+		}
+
+		public float getPackagingQuality(int i) {
+			return qualities[i];
+		}
+
+		/**
+		 * @return The collection policy, or null.
+		 */
+		public String getPolicy() {
+			return policy;
+		}
+
+		/**
+		 * @return The collection's abstract, or null.
+		 */
+		public String getAbstract() {
+			return abstractText;
+		}
+
+		/**
+		 * @return Whether the collection takes mediated deposits from anyone.
+		 */
+		public boolean getMediation() {
+			return mediation;
+		}
+
+		/**
+		 * @param onBehalfOf
+		 *            The user a service document is requested on behalf of,
+		 *            or null.
+		 * @return Whether mediated deposits are offered to that user.
+		 */
+		public boolean getMediation(String onBehalfOf) {
+			if ((mediators == null) || (onBehalfOf == null))
+				return mediation;
+			return mediators.contains(onBehalfOf);
+		}
+
+		/**
+		 * @param onBehalfOf
+		 *            The user a service document is requested on behalf of,
+		 *            or null.
+		 * @return Whether the collection is listed for that user.
+		 */
+		public boolean isVisibleTo(String onBehalfOf) {
+			return (users == null) || ((onBehalfOf != null) && users.contains(onBehalfOf));
+		}
+
+		/**
+		 * @return True if the collection is listed or mediated for some users
+		 *         only.
+		 */
+		boolean isPersonalized() {
+			return (users != null) || (mediators != null);
+		}
+
+		/**
+		 * @return The treatment deposits receive, or null.
+		 */
+		public String getTreatment() {
+			return treatment;
+		}
+
+		/**
+		 * @return The URI of the collection's sub-service document, or null.
+		 */
+		public String getService() {
+			return service;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package edu.tamu.mocksword.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates the ids of deposits. Ids are taken from an atomic counter, so
+ * allocation never blocks while ids remain in the current block.
+ *
+ * When a file is given the allocator is safe across restarts. Before any id
+ * in a new block is handed out, the block's last id is written to the file as
+ * the high-water mark. On restart counting resumes after the mark. Ids
+ * reserved but never used are skipped, and no id is ever handed out twice.
+ *
+ * Several mock servers can run side by side by giving each a different node
+ * prefix, which is prepended to every id it allocates.
+ */
+public class DepositIdAllocator {
+
+	/** The last id handed out **/
+	private final AtomicLong last;
+
+	/** The highest id which may be handed out without reserving a new block **/
+	private volatile long reserved;
+
+	/** The file the high-water mark is kept in, or null **/
+	private final File file;
+
+	/** The number of ids reserved at a time **/
+	private final int blockSize;
+
+	/** Prefix of every id, or null **/
+	private final String prefix;
+
+	/**
+	 * Create an allocator which counts from one, and forgets where it was when
+	 * the server stops.
+	 */
+	public DepositIdAllocator() {
+		this(null);
+	}
+
+	/**
+	 * Create an allocator which counts from one with a node prefix, and
+	 * forgets where it was when the server stops.
+	 *
+	 * @param prefix
+	 *            The node prefix, or null for none.
+	 */
+	public DepositIdAllocator(String prefix) {
+		this.last = new AtomicLong(0);
+		this.reserved = Long.MAX_VALUE;
+		this.file = null;
+		this.blockSize = 1;
+		this.prefix = (prefix == null || prefix.equals("")) ? null : prefix;
+	}
+
+	/**
+	 * Create an allocator, resuming from the high-water mark in the file if
+	 * there is one.
+	 *
+	 * @param prefix
+	 *            The node prefix, or null for none.
+	 * @param file
+	 *            The file to keep the high-water mark in.
+	 * @param blockSize
+	 *            The number of ids to reserve each time the mark is written.
+	 */
+	public DepositIdAllocator(String prefix, File file, int blockSize) throws IOException {
+		long mark = file.exists() ? readMark(file) : 0;
+		this.last = new AtomicLong(mark);
+		this.reserved = mark;
+		this.file = file;
+		this.blockSize = Math.max(1, blockSize);
+		this.prefix = (prefix == null || prefix.equals("")) ? null : prefix;
+	}
+
+	/**
+	 * Allocate a new id.
+	 *
+	 * @throws IOException
+	 *             If a new block was needed but could not be reserved.
+	 */
+	public String next() throws IOException {
+		long id = last.incrementAndGet();
+		if (id > reserved) {
+			reserve(id);
+		}
+		return format(id);
+	}
+
+	/**
+	 * @return The last id allocated, without allocating a new one.
+	 */
+	public String current() {
+		return format(last.get());
+	}
+
+	/**
+	 * Write a new high-water mark covering the id. Only threads which run off
+	 * the end of the current block wait here.
+	 */
+	private synchronized void reserve(long id) throws IOException {
+		if (id <= reserved) {
+			return;
+		}
+		long mark = id + blockSize - 1;
+		writeMark(file, mark);
+		reserved = mark;
+	}
+
+	private String format(long id) {
+		return prefix == null ? Long.toString(id) : prefix + "-" + id;
+	}
+
+	private static long readMark(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			return Long.parseLong(line.trim());
+		} catch (RuntimeException re) {
+			throw new IOException("Invalid deposit id high-water mark in " + file);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Replace the mark, syncing it to disk before it is relied upon.
+	 */
+	private static void writeMark(File file, long mark) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write((Long.toString(mark) + "\n").getBytes("US-ASCII"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Renaming over an existing file fails on some platforms
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to write the deposit id high-water mark to " + file);
+			}
+		}
+	}
+}
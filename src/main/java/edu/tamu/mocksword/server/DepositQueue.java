@@ -0,0 +1,251 @@
+package edu.tamu.mocksword.server;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.DepositResponse;
+
+/**
+ * Processes deposits in the background. Deposits are queued for a fixed number
+ * of worker threads, the queue is bounded so a burst of uploads larger than
+ * the queue is refused rather than piling up. Each deposit is given a status
+ * id which can be polled until its response, or the failure which ended it,
+ * is available.
+ *
+ * Only a limited number of finished deposits are remembered, once that many
+ * have finished the oldest are forgotten.
+ *
+ * A deposit may be queued with a cleanup, run once it has been processed or,
+ * if the queue is shut down first, once it has been abandoned, so the spooled
+ * package it holds is always released.
+ */
+public class DepositQueue {
+
+	private static Logger log = Logger.getLogger(DepositQueue.class);
+
+	/** The workers deposits are processed by **/
+	private final ThreadPoolExecutor executor;
+
+	/** The status of every queued, running or remembered deposit **/
+	private final ConcurrentHashMap<String, DepositStatus> statuses = new ConcurrentHashMap<String, DepositStatus>();
+
+	/** Ids of finished deposits, oldest first **/
+	private final ConcurrentLinkedQueue<String> finished = new ConcurrentLinkedQueue<String>();
+
+	/** Number of ids in the finished queue **/
+	private final AtomicInteger finishedCount = new AtomicInteger(0);
+
+	/** The number of finished deposits to remember **/
+	private final int retain;
+
+	/** Source of status ids **/
+	private final AtomicLong ids = new AtomicLong(0);
+
+	/**
+	 * Create a new deposit queue.
+	 *
+	 * @param workers
+	 *            The number of worker threads.
+	 * @param capacity
+	 *            The number of deposits which may wait for a worker.
+	 * @param retain
+	 *            The number of finished deposits to remember.
+	 */
+	public DepositQueue(int workers, int capacity, int retain) {
+		this.retain = Math.max(1, retain);
+		executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, capacity)), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mock-sword-deposit-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queue a deposit for processing.
+	 *
+	 * @param task
+	 *            The task which processes the deposit.
+	 * @return The id to poll the deposit's status with.
+	 * @throws RejectedExecutionException
+	 *             If the queue is full, the task will not be run.
+	 */
+	public String submit(Callable<DepositResponse> task) {
+		return submit(task, null);
+	}
+
+	/**
+	 * Queue a deposit for processing, with a cleanup which is run whether or
+	 * not the deposit is processed.
+	 *
+	 * @param task
+	 *            The task which processes the deposit.
+	 * @param cleanup
+	 *            Run once the task has finished, or once it has been abandoned
+	 *            by a shut down, or null. It is not run if the deposit is
+	 *            refused.
+	 * @return The id to poll the deposit's status with.
+	 * @throws RejectedExecutionException
+	 *             If the queue is full, the task will not be run.
+	 */
+	public String submit(Callable<DepositResponse> task, Runnable cleanup) {
+		String id = Long.toString(ids.incrementAndGet());
+		DepositStatus status = new DepositStatus();
+		statuses.put(id, status);
+		try {
+			executor.execute(new QueuedDeposit(id, status, task, cleanup));
+		} catch (RejectedExecutionException ree) {
+			statuses.remove(id);
+			throw ree;
+		}
+		return id;
+	}
+
+	/**
+	 * @param id
+	 *            The deposit's status id.
+	 * @return The status of the deposit, or null if it is not known.
+	 */
+	public DepositStatus getStatus(String id) {
+		return statuses.get(id);
+	}
+
+	/**
+	 * Record that a deposit has finished, forgetting the oldest finished
+	 * deposits if too many are remembered.
+	 */
+	private void forgetOldest(String id) {
+		finished.add(id);
+		if (finishedCount.incrementAndGet() > retain) {
+			String oldest = finished.poll();
+			if (oldest != null) {
+				finishedCount.decrementAndGet();
+				statuses.remove(oldest);
+			}
+		}
+	}
+
+	/**
+	 * Stop the workers, abandoning any deposits still waiting in the queue.
+	 * The cleanup of each abandoned deposit is run, and its status fails.
+	 */
+	public void shutdown() {
+		List<Runnable> abandoned = executor.shutdownNow();
+		for (Runnable deposit : abandoned) {
+			((QueuedDeposit) deposit).abandon();
+		}
+		if (abandoned.size() > 0) {
+			log.warn("Abandoned " + abandoned.size() + " queued deposits on shutdown.");
+		}
+	}
+
+	/**
+	 * A deposit waiting for, or being processed by, a worker.
+	 */
+	private class QueuedDeposit implements Runnable {
+
+		private final String id;
+		private final DepositStatus status;
+		private final Callable<DepositResponse> task;
+		private final Runnable cleanup;
+
+		QueuedDeposit(String id, DepositStatus status, Callable<DepositResponse> task, Runnable cleanup) {
+			this.id = id;
+			this.status = status;
+			this.task = task;
+			this.cleanup = cleanup;
+		}
+
+		public void run() {
+			DepositResponse response = null;
+			Exception failure = null;
+			try {
+				response = task.call();
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				cleanUp();
+			}
+			// Make room before publishing, so a client which sees the
+			// deposit finish also sees the oldest forgotten.
+			forgetOldest(id);
+			status.complete(response, failure);
+		}
+
+		/**
+		 * Give up on a deposit which will never be run.
+		 */
+		void abandon() {
+			try {
+				cleanUp();
+			} finally {
+				status.complete(null, new RejectedExecutionException("The deposit was abandoned on shutdown"));
+			}
+		}
+
+		private void cleanUp() {
+			if (cleanup != null) {
+				try {
+					cleanup.run();
+				} catch (RuntimeException re) {
+					log.warn("Unable to clean up deposit " + id, re);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The status of a single deposit.
+	 */
+	public static class DepositStatus {
+
+		/** The deposit's response, once it has been processed **/
+		private volatile DepositResponse response;
+
+		/** The exception the deposit failed with **/
+		private volatile Exception failure;
+
+		/** Whether processing has finished **/
+		private volatile boolean done;
+
+		void complete(DepositResponse response, Exception failure) {
+			this.response = response;
+			this.failure = failure;
+			this.done = true;
+		}
+
+		/**
+		 * @return True once the deposit has been processed, successfully or not.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * @return The deposit's response, or null if it failed or is not done.
+		 */
+		public DepositResponse getResponse() {
+			return response;
+		}
+
+		/**
+		 * @return The exception the deposit failed with, or null.
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+	}
+}
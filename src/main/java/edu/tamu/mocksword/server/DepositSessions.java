@@ -0,0 +1,441 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.purl.sword.base.ErrorCodes;
+import org.purl.sword.base.SWORDErrorException;
+
+/**
+ * The sessions of packages being deposited in segments. A client opens a
+ * session with the headers of the deposit and the number of segments, then
+ * uploads each segment to the session in any order, retrying any which fail,
+ * and the segments are joined back into the package once the last of them
+ * has arrived.
+ *
+ * Each segment is kept in its own file until the package is assembled, and a
+ * session which has not been sent a segment for a while is expired, deleting
+ * its files.
+ */
+public class DepositSessions {
+
+	/** The headers of the request opening a session which describe its deposit **/
+	private static final String[] DEPOSIT_HEADERS = { "Content-Type", "Content-Disposition", "Content-MD5",
+			"Digest", "Content-Encoding", "X-Packaging", "X-On-Behalf-Of", "X-No-Op", "X-Verbose", "Slug",
+			"Idempotency-Key", "User-Agent" };
+
+	/** The directory segments are written to **/
+	private final File directory;
+
+	/** The most sessions open at once **/
+	private final int maxSessions;
+
+	/** The most segments in a package **/
+	private final int maxSegments;
+
+	/** How long a session is kept after its last segment **/
+	private final long ttlMillis;
+
+	/** The open sessions, by id **/
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	/**
+	 * @param directory
+	 *            The directory segments are written to.
+	 * @param maxSessions
+	 *            The most sessions open at once.
+	 * @param maxSegments
+	 *            The most segments a package may be sent in.
+	 * @param ttlMillis
+	 *            How long a session is kept after its last segment.
+	 */
+	public DepositSessions(File directory, int maxSessions, int maxSegments, long ttlMillis) {
+		this.directory = directory;
+		this.maxSessions = maxSessions;
+		this.maxSegments = maxSegments;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Open a session for a request asking to deposit a package in segments.
+	 *
+	 * @param owner
+	 *            The user opening the session, or null.
+	 * @param segments
+	 *            The number of segments, from the request's header.
+	 * @return The session, or null if too many are open already.
+	 * @throws SWORDErrorException
+	 *             If the number of segments is not allowed.
+	 */
+	public Session open(String owner, String segments, HttpServletRequest request) throws SWORDErrorException {
+		int count;
+		try {
+			count = Integer.parseInt(segments.trim());
+		} catch (NumberFormatException nfe) {
+			count = -1;
+		}
+		if ((count < 1) || (count > maxSegments)) {
+			throw new SWORDErrorException(ErrorCodes.ERROR_BAD_REQUEST,
+					"A package may be sent in between 1 and " + maxSegments + " segments, not " + segments);
+		}
+
+		if (sessions.size() >= maxSessions) {
+			expire(System.currentTimeMillis());
+			if (sessions.size() >= maxSessions) {
+				return null;
+			}
+		}
+		Session session = new Session(UUID.randomUUID().toString(), owner, count, request);
+		sessions.put(session.id, session);
+		return session;
+	}
+
+	/**
+	 * @return The session, or null if there is no such session or it has
+	 *         expired.
+	 */
+	public Session get(String id) {
+		Session session = sessions.get(id);
+		if ((session != null) && session.isExpired(System.currentTimeMillis())) {
+			remove(session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Close a session, deleting its segments.
+	 */
+	public void remove(Session session) {
+		sessions.remove(session.id, session);
+		session.delete();
+	}
+
+	/**
+	 * Abandon a session, deleting its segments, unless its package is being
+	 * assembled.
+	 *
+	 * @return False if the package is being assembled.
+	 */
+	public boolean abort(Session session) {
+		synchronized (session) {
+			if (session.assembling) {
+				return false;
+			}
+			remove(session);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of open sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Close the sessions which have expired.
+	 */
+	void expire(long now) {
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+			if (session.isExpired(now)) {
+				it.remove();
+				session.delete();
+			}
+		}
+	}
+
+	/**
+	 * Close every session, deleting their segments.
+	 */
+	public void destroy() {
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+			it.remove();
+			session.delete();
+		}
+	}
+
+	/**
+	 * A package being deposited in segments.
+	 */
+	public class Session {
+
+		/** The session's id **/
+		private final String id;
+
+		/** The user who opened the session, or null **/
+		private final String owner;
+
+		/** The deposit's URL, path and query **/
+		private final String url;
+		private final String uri;
+		private final String query;
+
+		/** The deposit's headers, by lower case name **/
+		private final Map<String, String> headers = new HashMap<String, String>();
+
+		/** The segments received, or null for those which have not been **/
+		private final File[] segments;
+
+		/** The lengths of the segments received **/
+		private final long[] lengths;
+
+		/** When a segment was last sent **/
+		private long touched = System.currentTimeMillis();
+
+		/** Whether the package is being assembled **/
+		private boolean assembling;
+
+		/** Whether the session has been closed and its segments deleted **/
+		private boolean closed;
+
+		Session(String id, String owner, int count, HttpServletRequest request) {
+			this.id = id;
+			this.owner = owner;
+			this.url = request.getRequestURL().toString();
+			this.uri = request.getRequestURI();
+			this.query = request.getQueryString();
+			for (String name : DEPOSIT_HEADERS) {
+				String value = request.getHeader(name);
+				if (value != null) {
+					headers.put(name.toLowerCase(), value);
+				}
+			}
+			this.segments = new File[count];
+			this.lengths = new long[count];
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return True if the user may send segments to the session.
+		 */
+		public boolean isOwnedBy(String user) {
+			return (owner == null) ? (user == null) : owner.equals(user);
+		}
+
+		/**
+		 * @return The URL the package is deposited at, without its query.
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return The path the package is deposited at.
+		 */
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return The query of the URL the package is deposited at, or null.
+		 */
+		public String getQuery() {
+			return query;
+		}
+
+		/**
+		 * @return True if the header describes the deposit rather than the
+		 *         request it is sent on.
+		 */
+		public boolean isDepositHeader(String name) {
+			for (String header : DEPOSIT_HEADERS) {
+				if (header.equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return The value of one of the deposit's headers, or null.
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * @return The number of segments the package is sent in.
+		 */
+		public int getCount() {
+			return segments.length;
+		}
+
+		/**
+		 * @return The total length of the segments received.
+		 */
+		public synchronized long getLength() {
+			long length = 0;
+			for (int i = 0; i < segments.length; i++) {
+				if (segments[i] != null) {
+					length += lengths[i];
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * @return The length of the segments received other than one.
+		 */
+		public synchronized long getLengthWithout(int number) {
+			return getLength() - ((segments[number - 1] != null) ? lengths[number - 1] : 0);
+		}
+
+		/**
+		 * @return The numbers of the segments received, as ranges such as
+		 *         "1-3,5", or "" if none have been.
+		 */
+		public synchronized String getReceived() {
+			StringBuilder received = new StringBuilder();
+			int i = 0;
+			while (i < segments.length) {
+				if (segments[i] == null) {
+					i++;
+					continue;
+				}
+				int first = i;
+				while ((i + 1 < segments.length) && (segments[i + 1] != null)) {
+					i++;
+				}
+				if (received.length() > 0) {
+					received.append(',');
+				}
+				received.append(first + 1);
+				if (i > first) {
+					received.append('-').append(i + 1);
+				}
+				i++;
+			}
+			return received.toString();
+		}
+
+		/**
+		 * @return A new file to write a segment to before it is stored.
+		 */
+		public File createSegmentFile() throws IOException {
+			return File.createTempFile("SWORD-segment-", ".part", directory);
+		}
+
+		/**
+		 * Store a segment, replacing any sent before. If it is the last
+		 * segment needed the session is marked as being assembled, and no
+		 * segments may be sent until {@link #assembled()} is called.
+		 *
+		 * @param number
+		 *            The segment's number, from one.
+		 * @param file
+		 *            The file the segment has been written to, which the
+		 *            session now owns.
+		 * @return True if every segment has now been received, and the
+		 *         package should be assembled.
+		 * @throws SWORDErrorException
+		 *             If the package is being assembled, or the session has
+		 *             been closed.
+		 */
+		public synchronized boolean store(int number, File file, long length) throws SWORDErrorException {
+			if (closed) {
+				file.delete();
+				SWORDErrorException see = new SWORDErrorException(ErrorCodes.ERROR_BAD_REQUEST,
+						"The deposit session has been closed");
+				see.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				throw see;
+			}
+			if (assembling) {
+				file.delete();
+				SWORDErrorException see = new SWORDErrorException(ErrorCodes.ERROR_BAD_REQUEST,
+						"The package is being assembled from its segments");
+				see.setStatus(HttpServletResponse.SC_CONFLICT);
+				throw see;
+			}
+			if (segments[number - 1] != null) {
+				segments[number - 1].delete();
+			}
+			segments[number - 1] = file;
+			lengths[number - 1] = length;
+			touched = System.currentTimeMillis();
+
+			for (File segment : segments) {
+				if (segment == null) {
+					return false;
+				}
+			}
+			assembling = true;
+			return true;
+		}
+
+		/**
+		 * Mark the package as no longer being assembled, so segments may be
+		 * sent again.
+		 */
+		public synchronized void assembled() {
+			assembling = false;
+			touched = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return The package, read from each segment in turn. Only valid
+		 *         while it is being assembled.
+		 */
+		public InputStream openStream() {
+			final File[] files;
+			synchronized (this) {
+				files = segments.clone();
+			}
+			return new SequenceInputStream(new Enumeration<InputStream>() {
+				private int next = 0;
+
+				public boolean hasMoreElements() {
+					return next < files.length;
+				}
+
+				public InputStream nextElement() {
+					if (next >= files.length) {
+						throw new NoSuchElementException();
+					}
+					try {
+						return new FileInputStream(files[next++]);
+					} catch (IOException ioe) {
+						// Deleted while being assembled, i.e. the session expired
+						throw new IllegalStateException(ioe);
+					}
+				}
+			});
+		}
+
+		synchronized boolean isExpired(long now) {
+			return !assembling && (now - touched > ttlMillis);
+		}
+
+		synchronized void delete() {
+			closed = true;
+			for (int i = 0; i < segments.length; i++) {
+				if (segments[i] != null) {
+					segments[i].delete();
+					segments[i] = null;
+				}
+			}
+		}
+	}
+}
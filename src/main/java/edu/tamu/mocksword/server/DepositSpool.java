@@ -0,0 +1,302 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Spools deposit bodies as they are received from the client. Bodies which fit
+ * under the configured threshold are held in off-heap buffers taken from a
+ * small pool, only larger bodies are spilled out to a temporary file. When the
+ * pool is exhausted the body is written to a file just as if it were too
+ * large, so the amount of direct memory used is always bounded by the pool
+ * size times the threshold.
+ *
+ * A threshold of zero disables the memory spool completely, every body will be
+ * written to a temporary file.
+ */
+public class DepositSpool {
+
+	private static Logger log = Logger.getLogger(DepositSpool.class);
+
+	/** Size of the chunks copied from the client's stream **/
+	private static final int CHUNK_SIZE = 8192;
+
+	/** Largest body, in bytes, which will be held in memory **/
+	private final int threshold;
+
+	/** Maximum number of direct buffers that will ever be allocated **/
+	private final int poolSize;
+
+	/** Buffers which are currently free for reuse **/
+	private final BlockingQueue<ByteBuffer> pool;
+
+	/** Number of direct buffers allocated so far **/
+	private final AtomicInteger allocated = new AtomicInteger(0);
+
+	/** Number of bodies currently spilled to temporary files **/
+	private final AtomicInteger files = new AtomicInteger(0);
+
+	/** Bytes of the bodies currently spilled to temporary files **/
+	private final AtomicLong fileBytes = new AtomicLong(0);
+
+	/**
+	 * Create a new spool.
+	 *
+	 * @param threshold
+	 *            The largest body in bytes to keep in memory, zero to always
+	 *            use a file.
+	 * @param poolSize
+	 *            The maximum number of buffers to keep in the pool.
+	 */
+	public DepositSpool(int threshold, int poolSize) {
+		this.threshold = Math.max(0, threshold);
+		this.poolSize = Math.max(0, poolSize);
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, this.poolSize));
+	}
+
+	/**
+	 * Read the complete stream into the spool. The stream is closed once it has
+	 * been read.
+	 *
+	 * @param in
+	 *            The stream to read, typically the request's body.
+	 * @param directory
+	 *            The directory to create a temporary file in if the body must
+	 *            be spilled to disk.
+	 * @return The spooled body, which must be released by the caller.
+	 */
+	public SpooledBody spool(InputStream in, File directory) throws IOException {
+		ByteBuffer buffer = acquire();
+		File file = null;
+		FileOutputStream out = null;
+		long length = 0;
+		try {
+			byte[] buf = new byte[CHUNK_SIZE];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				if (out == null && buffer != null && buffer.remaining() >= len) {
+					buffer.put(buf, 0, len);
+				} else {
+					if (out == null) {
+						// Spill whatever we have so far out to disk.
+						file = createFile(directory);
+						out = new FileOutputStream(file);
+						if (buffer != null) {
+							buffer.flip();
+							out.getChannel().write(buffer);
+							release(buffer);
+							buffer = null;
+						}
+					}
+					out.write(buf, 0, len);
+				}
+				length += len;
+			}
+		} catch (IOException ioe) {
+			if (buffer != null)
+				release(buffer);
+			if (out != null)
+				out.close();
+			if (file != null)
+				file.delete();
+			throw ioe;
+		} finally {
+			in.close();
+		}
+
+		if (out != null) {
+			out.close();
+			return spilled(file, length);
+		}
+		if (buffer == null) {
+			// Nothing was read, and no buffer was available either.
+			return spilled(createFile(directory), length);
+		}
+		buffer.flip();
+		return new SpooledBody(this, buffer, null, length);
+	}
+
+	/**
+	 * Create a new, empty file to spill a body to.
+	 */
+	private static File createFile(File directory) throws IOException {
+		return File.createTempFile("SWORD-", ".spool", directory);
+	}
+
+	/**
+	 * Account for a body spilled to a temporary file.
+	 */
+	private SpooledBody spilled(File file, long length) {
+		files.incrementAndGet();
+		fileBytes.addAndGet(length);
+		return new SpooledBody(this, null, file, length);
+	}
+
+	/**
+	 * @return The number of memory buffers holding bodies.
+	 */
+	public int getBuffersInUse() {
+		return Math.max(0, allocated.get() - pool.size());
+	}
+
+	/**
+	 * @return The direct memory allocated for buffers, in use or not.
+	 */
+	public long getBufferBytes() {
+		return (long) allocated.get() * threshold;
+	}
+
+	/**
+	 * @return The number of bodies spilled to temporary files and not yet
+	 *         released.
+	 */
+	public int getFilesInUse() {
+		return files.get();
+	}
+
+	/**
+	 * @return The bytes of the bodies spilled to temporary files and not yet
+	 *         released.
+	 */
+	public long getFileBytesInUse() {
+		return fileBytes.get();
+	}
+
+	/**
+	 * @return A free buffer from the pool, or null if none are available.
+	 */
+	private ByteBuffer acquire() {
+		if (threshold == 0)
+			return null;
+		ByteBuffer buffer = pool.poll();
+		if (buffer != null)
+			return buffer;
+		if (allocated.incrementAndGet() <= poolSize)
+			return ByteBuffer.allocateDirect(threshold);
+		allocated.decrementAndGet();
+		log.debug("Deposit spool buffers exhausted, spooling to disk.");
+		return null;
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 */
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (!pool.offer(buffer))
+			allocated.decrementAndGet();
+	}
+
+	/**
+	 * The body of a single deposit, held either in a pooled buffer or in a
+	 * temporary file.
+	 */
+	public static class SpooledBody {
+
+		/** The spool which owns our buffer **/
+		private final DepositSpool spool;
+
+		/** The content when held in memory **/
+		private ByteBuffer buffer;
+
+		/** The content when spilled to disk **/
+		private final File file;
+
+		/** Whether the temporary file has been released **/
+		private boolean fileReleased;
+
+		/** The number of bytes spooled **/
+		private final long length;
+
+		SpooledBody(DepositSpool spool, ByteBuffer buffer, File file, long length) {
+			this.spool = spool;
+			this.buffer = buffer;
+			this.file = file;
+			this.length = length;
+		}
+
+		/**
+		 * @return The number of bytes in the body.
+		 */
+		public long length() {
+			return length;
+		}
+
+		/**
+		 * @return True if the body is held in memory.
+		 */
+		public boolean isInMemory() {
+			return file == null;
+		}
+
+		/**
+		 * @return The file the body was spilled to, or null if it is in memory.
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Open a new stream over the body. For memory spooled bodies the stream
+		 * reads directly from the pooled buffer without copying.
+		 */
+		public InputStream openStream() throws IOException {
+			if (file != null)
+				return new FileInputStream(file);
+			if (buffer == null)
+				throw new IOException("The spooled body has already been released.");
+			return new ByteBufferInputStream(buffer);
+		}
+
+		/**
+		 * Return a read only view of the whole body. Memory spooled bodies
+		 * share the pooled buffer, bodies spilled to disk are memory mapped.
+		 * 
+		 * @return The body, or null if it is too large to map.
+		 */
+		public ByteBuffer asByteBuffer() throws IOException {
+			if (file == null) {
+				if (buffer == null)
+					throw new IOException("The spooled body has already been released.");
+				return buffer.asReadOnlyBuffer();
+			}
+			if (length > Integer.MAX_VALUE)
+				return null;
+			FileInputStream in = new FileInputStream(file);
+			try {
+				// The mapping remains valid after the channel is closed
+				return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Return any buffer to the pool and delete any temporary file. Streams
+		 * opened over the body must not be used afterwards.
+		 */
+		public void release() {
+			if (buffer != null) {
+				spool.release(buffer);
+				buffer = null;
+			}
+			if (file != null && !fileReleased) {
+				fileReleased = true;
+				file.delete();
+				spool.files.decrementAndGet();
+				spool.fileBytes.addAndGet(-length);
+			}
+		}
+	}
+}
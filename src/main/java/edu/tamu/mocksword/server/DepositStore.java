@@ -0,0 +1,194 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps accepted packages on disk, addressed by the SHA-256 digest of their
+ * content. Depositing the same bytes twice, as a retrying client does, stores
+ * them only once.
+ *
+ * The total size of the store is bounded. When a new package would not fit
+ * the least recently stored or fetched packages are evicted until it does, a
+ * package larger than the whole store is not kept at all.
+ */
+public class DepositStore {
+
+	private static Logger log = Logger.getLogger(DepositStore.class);
+
+	/** Suffix of every stored package **/
+	private static final String SUFFIX = ".zip";
+
+	/** The directory packages are stored in **/
+	private final File directory;
+
+	/** The maximum total size of the stored packages in bytes **/
+	private final long maxBytes;
+
+	/** The size of each stored package keyed by digest, least recently used first **/
+	private final LinkedHashMap<String, Long> packages = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/** The total size of the stored packages **/
+	private long totalBytes = 0;
+
+	/**
+	 * Open a store, adopting any packages already in the directory.
+	 *
+	 * @param directory
+	 *            The directory to keep packages in, created if necessary.
+	 * @param maxBytes
+	 *            The maximum total size of the stored packages.
+	 */
+	public DepositStore(File directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create deposit store directory: " + directory);
+		}
+
+		File[] existing = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.endsWith(SUFFIX)
+						&& isKey(name.substring(0, name.length() - SUFFIX.length()));
+			}
+		});
+		Arrays.sort(existing, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.valueOf(a.lastModified()).compareTo(Long.valueOf(b.lastModified()));
+			}
+		});
+		for (File file : existing) {
+			String key = file.getName().substring(0, file.getName().length() - SUFFIX.length());
+			packages.put(key, Long.valueOf(file.length()));
+			totalBytes += file.length();
+		}
+		evict(0);
+		log.info("Opened deposit store with " + packages.size() + " packages (" + totalBytes + " bytes): " + directory);
+	}
+
+	/**
+	 * Store a package, unless identical content is already stored.
+	 *
+	 * @param body
+	 *            The package's content.
+	 * @param sha256
+	 *            The hex SHA-256 digest of the content.
+	 * @return The key the package is stored under, or null if it is too large
+	 *         to store.
+	 */
+	public String store(DepositSpool.SpooledBody body, String sha256) throws IOException {
+		String key = sha256.toLowerCase();
+		if (!isKey(key)) {
+			throw new IllegalArgumentException("Not a SHA-256 digest: " + sha256);
+		}
+		long length = body.length();
+		if (length > maxBytes) {
+			log.info("Package " + key + " is larger than the deposit store, not storing it.");
+			return null;
+		}
+		synchronized (this) {
+			if (packages.get(key) != null) {
+				return key;
+			}
+		}
+
+		// Copy outside the lock, the rename makes the package appear whole
+		File temp = File.createTempFile("store-", ".tmp", directory);
+		try {
+			InputStream in = body.openStream();
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buf = new byte[8192];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+
+			synchronized (this) {
+				if (packages.get(key) != null) {
+					return key;
+				}
+				evict(length);
+				if (!temp.renameTo(getFile(key))) {
+					throw new IOException("Unable to move package into the deposit store: " + key);
+				}
+				packages.put(key, Long.valueOf(length));
+				totalBytes += length;
+			}
+			return key;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Find a stored package, marking it as recently used.
+	 *
+	 * @param key
+	 *            The package's key.
+	 * @return The package's file, or null if it is not stored.
+	 */
+	public synchronized File get(String key) {
+		if (key == null || packages.get(key) == null) {
+			return null;
+		}
+		return getFile(key);
+	}
+
+	/**
+	 * @return The total size of the stored packages in bytes.
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Evict the least recently used packages until there is room for the
+	 * given number of bytes. Must be called holding the lock.
+	 */
+	private void evict(long needed) {
+		Iterator<Map.Entry<String, Long>> it = packages.entrySet().iterator();
+		while (totalBytes + needed > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			it.remove();
+			totalBytes -= eldest.getValue().longValue();
+			getFile(eldest.getKey()).delete();
+			log.debug("Evicted package from the deposit store: " + eldest.getKey());
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	/**
+	 * @return True if the name is a lower case hex SHA-256 digest.
+	 */
+	static boolean isKey(String name) {
+		if (name == null || name.length() != 64) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,127 @@
+package edu.tamu.mocksword.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An input stream which feeds every byte read through one or more message
+ * digests, so that a body can be checksummed with several algorithms in the
+ * same pass that reads it. Once the underlying stream has been exhausted the
+ * digests may be retrieved with {@link #getDigest(String)}.
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+	/** The algorithms being calculated, in the same order as digests **/
+	private final String[] algorithms;
+
+	/** The digests being updated as the stream is read **/
+	private final MessageDigest[] digests;
+
+	/** The completed digests, calculated when first requested **/
+	private byte[][] results;
+
+	/**
+	 * Create a new digesting stream.
+	 *
+	 * @param in
+	 *            The stream to read.
+	 * @param algorithms
+	 *            The digest algorithms to calculate, i.e. "MD5" or "SHA-256".
+	 */
+	public DigestingInputStream(InputStream in, String... algorithms)
+			throws NoSuchAlgorithmException {
+		super(in);
+		this.algorithms = algorithms;
+		this.digests = new MessageDigest[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++) {
+			digests[i] = MessageDigest.getInstance(algorithms[i]);
+		}
+	}
+
+	public int read() throws IOException {
+		int b = in.read();
+		if (b != -1) {
+			for (MessageDigest digest : digests)
+				digest.update((byte) b);
+		}
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			for (MessageDigest digest : digests)
+				digest.update(b, off, read);
+		}
+		return read;
+	}
+
+	public long skip(long n) throws IOException {
+		// Skipped bytes must still be digested.
+		byte[] buf = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if (read <= 0)
+				break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public synchronized void mark(int readlimit) {
+		// Not supported, digests can not be rewound.
+	}
+
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Return the digest of everything read so far. After the first call the
+	 * digests are complete and reading more will not change them.
+	 *
+	 * @param algorithm
+	 *            One of the algorithms this stream was created with.
+	 * @return The raw digest value.
+	 */
+	public synchronized byte[] getDigest(String algorithm) {
+		if (results == null) {
+			results = new byte[digests.length][];
+			for (int i = 0; i < digests.length; i++)
+				results[i] = digests[i].digest();
+		}
+		for (int i = 0; i < algorithms.length; i++) {
+			if (algorithms[i].equalsIgnoreCase(algorithm))
+				return results[i];
+		}
+		throw new IllegalArgumentException("Digest was not calculated: " + algorithm);
+	}
+
+	/**
+	 * Return the digest of everything read so far as a lower case hex string,
+	 * the same format produced by ChecksumUtils.
+	 */
+	public String getHexDigest(String algorithm) {
+		return toHex(getDigest(algorithm));
+	}
+
+	/**
+	 * Encode the bytes as a lower case hex string.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,147 @@
+package edu.tamu.mocksword.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool backed by a java.util.concurrent executor. This allows
+ * the server to run with a pool whose size and queue are both bounded, so
+ * that under an upload burst requests wait in a queue of known size and
+ * beyond that are refused, or to run every request on its own virtual thread
+ * when the JDK supports them.
+ *
+ * Remember that Jetty runs its connector's acceptors as jobs on the pool, so a
+ * bounded pool must have more threads than the connector has acceptors.
+ */
+public class ExecutorThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+	/** The executor jobs are dispatched to **/
+	private final ExecutorService executor;
+
+	/** Number of jobs currently running **/
+	private final AtomicInteger running = new AtomicInteger(0);
+
+	/**
+	 * Create a thread pool dispatching to an executor. The executor is shut
+	 * down when the pool is stopped.
+	 */
+	public ExecutorThreadPool(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a pool of at most maxThreads threads, with a bounded queue of
+	 * jobs waiting for a thread. Threads are created up to the maximum before
+	 * any job is queued, and idle threads exit after the idle time.
+	 *
+	 * @param maxThreads
+	 *            The maximum number of threads.
+	 * @param maxQueued
+	 *            The maximum number of queued jobs, zero for no queue or -1
+	 *            for an unbounded queue.
+	 * @param maxIdleTimeMs
+	 *            How long an idle thread is kept.
+	 */
+	public static ExecutorThreadPool bounded(int maxThreads, int maxQueued, int maxIdleTimeMs) {
+		BlockingQueue<Runnable> queue;
+		if (maxQueued < 0)
+			queue = new LinkedBlockingQueue<Runnable>();
+		else if (maxQueued == 0)
+			queue = new SynchronousQueue<Runnable>();
+		else
+			queue = new ArrayBlockingQueue<Runnable>(maxQueued);
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+				maxIdleTimeMs, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mock-sword-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return new ExecutorThreadPool(executor);
+	}
+
+	/**
+	 * Create a pool which runs every job on a new virtual thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             If the JDK does not support virtual threads.
+	 */
+	public static ExecutorThreadPool virtual() {
+		try {
+			// Looked up reflectively, so the server still builds and runs on
+			// JDKs without virtual threads.
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new ExecutorThreadPool((ExecutorService) factory.invoke(null));
+		} catch (NoSuchMethodException nsme) {
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later, running on "
+					+ System.getProperty("java.version"));
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Unable to create a virtual thread executor", e);
+		}
+	}
+
+	public boolean dispatch(final Runnable job) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					running.incrementAndGet();
+					try {
+						job.run();
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ree) {
+			return false;
+		}
+	}
+
+	public void join() throws InterruptedException {
+		while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			// keep waiting
+		}
+	}
+
+	public int getThreads() {
+		if (executor instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) executor).getPoolSize();
+		return running.get();
+	}
+
+	public int getIdleThreads() {
+		if (executor instanceof ThreadPoolExecutor)
+			return Math.max(0, ((ThreadPoolExecutor) executor).getPoolSize() - running.get());
+		return 0;
+	}
+
+	public boolean isLowOnThreads() {
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			return running.get() >= pool.getMaximumPoolSize() && pool.getQueue().remainingCapacity() == 0;
+		}
+		return false;
+	}
+
+	protected void doStop() throws Exception {
+		executor.shutdownNow();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,464 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.purl.sword.base.SWORDErrorException;
+
+/**
+ * Scenarios of latency and faults injected into the mock's responses, so that
+ * clients can be tested against a slow or unreliable repository. Scenarios are
+ * read from properties keyed by a scope and a setting:
+ *
+ * <pre>
+ * default.latency = uniform 10 50
+ * collection.c.errors = 0.05 ErrorContent; 0.01 ErrorChecksumMismatch
+ * user.slowUser.bandwidth = 64
+ * </pre>
+ *
+ * The scope is "default", "collection." and a collection name, or "user." and
+ * a user name. Each setting is taken from the user's scope if it has it, then
+ * from the collection's and finally from the default scope.
+ *
+ * All sampling is done with thread local random numbers from distributions
+ * prepared when the scenarios are loaded, so the cost of injection itself
+ * stays negligible next to the delays it adds.
+ */
+public class FaultScenarios {
+
+	/** The prefix of the short error names **/
+	private static final String ERROR_PREFIX = "http://purl.org/net/sword/error/";
+
+	/** The scope every request falls into **/
+	public static final String DEFAULT = "default";
+
+	/** The maximum number of resolved scenarios to remember **/
+	private static final int MAX_RESOLVED = 10000;
+
+	/** The default scenario **/
+	private final Scenario defaults;
+
+	/** The scenarios of each collection **/
+	private final Map<String, Scenario> collections;
+
+	/** The scenarios of each user **/
+	private final Map<String, Scenario> users;
+
+	/** Scenarios already resolved for a user and collection **/
+	private final ConcurrentMap<String, Scenario> resolved = new ConcurrentHashMap<String, Scenario>();
+
+	FaultScenarios(Scenario defaults, Map<String, Scenario> collections, Map<String, Scenario> users) {
+		this.defaults = defaults;
+		this.collections = collections;
+		this.users = users;
+	}
+
+	/**
+	 * Load scenarios from a properties file.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a scenario is not valid.
+	 */
+	public static FaultScenarios load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+
+		Map<String, Scenario> scopes = new HashMap<String, Scenario>();
+		for (String key : properties.stringPropertyNames()) {
+			int p = key.lastIndexOf('.');
+			if (p == -1)
+				throw new IllegalArgumentException("Scenario key has no setting: " + key);
+			String scope = key.substring(0, p);
+			if (!scope.equals(DEFAULT) && !scope.startsWith("collection.") && !scope.startsWith("user."))
+				throw new IllegalArgumentException("Unknown scenario scope: " + key);
+			Scenario scenario = scopes.get(scope);
+			if (scenario == null) {
+				scenario = new Scenario();
+				scopes.put(scope, scenario);
+			}
+			scenario.set(key.substring(p + 1), properties.getProperty(key).trim());
+		}
+
+		Scenario defaults = scopes.remove(DEFAULT);
+		Map<String, Scenario> collections = new HashMap<String, Scenario>();
+		Map<String, Scenario> users = new HashMap<String, Scenario>();
+		for (Map.Entry<String, Scenario> entry : scopes.entrySet()) {
+			if (entry.getKey().startsWith("collection."))
+				collections.put(entry.getKey().substring("collection.".length()), entry.getValue());
+			else
+				users.put(entry.getKey().substring("user.".length()), entry.getValue());
+		}
+		return new FaultScenarios(defaults == null ? new Scenario() : defaults, collections, users);
+	}
+
+	/**
+	 * Find the scenario for a request.
+	 *
+	 * @param user
+	 *            The authenticated user, or null.
+	 * @param collection
+	 *            The collection, or null if the request is not for one.
+	 * @return The scenario, or null if nothing is injected into the request.
+	 */
+	public Scenario select(String user, String collection) {
+		String key = user + "\n" + collection;
+		Scenario scenario = resolved.get(key);
+		if (scenario == null) {
+			scenario = defaults.overriddenBy(collection == null ? null : collections.get(collection))
+					.overriddenBy(user == null ? null : users.get(user));
+			if (resolved.size() < MAX_RESOLVED)
+				resolved.putIfAbsent(key, scenario);
+		}
+		return scenario.isEmpty() ? null : scenario;
+	}
+
+	/**
+	 * Parse a duration in milliseconds, with an optional "ms", "s" or "m"
+	 * suffix.
+	 */
+	static long parseDuration(String value) {
+		String v = value.trim();
+		long scale = 1;
+		if (v.endsWith("ms")) {
+			v = v.substring(0, v.length() - 2);
+		} else if (v.endsWith("s")) {
+			v = v.substring(0, v.length() - 1);
+			scale = 1000;
+		} else if (v.endsWith("m")) {
+			v = v.substring(0, v.length() - 1);
+			scale = 60000;
+		}
+		try {
+			return (long) (Double.parseDouble(v) * scale);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid duration: " + value);
+		}
+	}
+
+	/**
+	 * The latency, errors, bandwidth and outages injected into one kind of
+	 * request. Any of them may be absent.
+	 */
+	public static class Scenario {
+
+		/** The latency added to each request, or null **/
+		private Latency latency;
+
+		/** The cumulative probability of each error, or null **/
+		private double[] errorThresholds;
+
+		/** The URI of each error **/
+		private String[] errorCodes;
+
+		/** The rate uploads are read at in bytes per second, or zero **/
+		private long bandwidth;
+
+		/** The period outages recur with in ms, or zero for no outages **/
+		private long outageEvery;
+
+		/** How long each outage lasts in ms **/
+		private long outageFor;
+
+		/** Where in the period the outage starts, in ms **/
+		private long outageOffset;
+
+		/**
+		 * @return True if nothing is injected.
+		 */
+		public boolean isEmpty() {
+			return latency == null && (errorThresholds == null || errorThresholds.length == 0) && bandwidth == 0 && outageEvery == 0;
+		}
+
+		/**
+		 * @param now
+		 *            The current time.
+		 * @return The time in ms until the current outage ends, or zero if the
+		 *         repository is not in an outage.
+		 */
+		public long outageRemaining(long now) {
+			if (outageEvery == 0)
+				return 0;
+			long into = ((now - outageOffset) % outageEvery + outageEvery) % outageEvery;
+			return into < outageFor ? outageFor - into : 0;
+		}
+
+		/**
+		 * Sleep for a latency sampled from the scenario's distribution.
+		 */
+		public void delay() throws InterruptedIOException {
+			if (latency == null)
+				return;
+			long ms = latency.sample(ThreadLocalRandom.current());
+			if (ms <= 0)
+				return;
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while injecting latency");
+			}
+		}
+
+		/**
+		 * Delay the request, then fail it if an error is sampled.
+		 *
+		 * @throws SWORDErrorException
+		 *             The injected error.
+		 */
+		public void inject() throws InterruptedIOException, SWORDErrorException {
+			delay();
+			String error = sampleError();
+			if (error != null)
+				throw new SWORDErrorException(error, "Injected fault: " + error.substring(error.lastIndexOf('/') + 1));
+		}
+
+		/**
+		 * @return The URI of an error to fail the request with, or null if it
+		 *         should succeed.
+		 */
+		public String sampleError() {
+			if (errorThresholds == null)
+				return null;
+			double r = ThreadLocalRandom.current().nextDouble();
+			for (int i = 0; i < errorThresholds.length; i++) {
+				if (r < errorThresholds[i])
+					return errorCodes[i];
+			}
+			return null;
+		}
+
+		/**
+		 * @return The stream, throttled to the scenario's bandwidth if it has
+		 *         one.
+		 */
+		public InputStream throttle(InputStream in) {
+			return bandwidth > 0 ? new ThrottledInputStream(in, bandwidth) : in;
+		}
+
+		/**
+		 * @return A scenario with the other scenario's settings taking
+		 *         precedence over this one's.
+		 */
+		Scenario overriddenBy(Scenario other) {
+			if (other == null)
+				return this;
+			Scenario merged = new Scenario();
+			merged.latency = other.latency != null ? other.latency : latency;
+			if (other.errorThresholds != null) {
+				merged.errorThresholds = other.errorThresholds;
+				merged.errorCodes = other.errorCodes;
+			} else {
+				merged.errorThresholds = errorThresholds;
+				merged.errorCodes = errorCodes;
+			}
+			merged.bandwidth = other.bandwidth != 0 ? other.bandwidth : bandwidth;
+			if (other.outageEvery != 0) {
+				merged.outageEvery = other.outageEvery;
+				merged.outageFor = other.outageFor;
+				merged.outageOffset = other.outageOffset;
+			} else {
+				merged.outageEvery = outageEvery;
+				merged.outageFor = outageFor;
+				merged.outageOffset = outageOffset;
+			}
+			return merged;
+		}
+
+		/**
+		 * Set one of the scenario's settings from its configured value.
+		 */
+		void set(String setting, String value) {
+			if (setting.equals("latency")) {
+				latency = Latency.parse(value);
+			} else if (setting.equals("errors")) {
+				parseErrors(value);
+			} else if (setting.equals("bandwidth")) {
+				// Configured in kB per second
+				bandwidth = Math.max(1, (long) (Double.parseDouble(value) * 1024));
+			} else if (setting.equals("outage")) {
+				parseOutage(value);
+			} else {
+				throw new IllegalArgumentException("Unknown scenario setting: " + setting);
+			}
+		}
+
+		/**
+		 * Parse a list of error probabilities, i.e.
+		 * "0.05 ErrorContent; 0.01 ErrorChecksumMismatch", or "none" to
+		 * inject no errors in spite of a wider scope.
+		 */
+		private void parseErrors(String value) {
+			if (value.trim().equals("none")) {
+				errorThresholds = new double[0];
+				errorCodes = new String[0];
+				return;
+			}
+			List<Double> thresholds = new ArrayList<Double>();
+			List<String> codes = new ArrayList<String>();
+			double total = 0;
+			StringTokenizer st = new StringTokenizer(value, ";");
+			while (st.hasMoreTokens()) {
+				String[] parts = st.nextToken().trim().split("\\s+");
+				if (parts.length != 2)
+					throw new IllegalArgumentException("Invalid error rate: " + value);
+				total += Double.parseDouble(parts[0]);
+				thresholds.add(Double.valueOf(total));
+				codes.add(parts[1].startsWith("http") ? parts[1] : ERROR_PREFIX + parts[1]);
+			}
+			if (total > 1)
+				throw new IllegalArgumentException("Error rates add up to more than 1: " + value);
+			errorThresholds = new double[thresholds.size()];
+			for (int i = 0; i < errorThresholds.length; i++)
+				errorThresholds[i] = thresholds.get(i).doubleValue();
+			errorCodes = codes.toArray(new String[codes.size()]);
+		}
+
+		/**
+		 * Parse an outage window, i.e. "every 60s for 10s offset 5s".
+		 */
+		private void parseOutage(String value) {
+			String[] parts = value.split("\\s+");
+			if (parts.length % 2 != 0)
+				throw new IllegalArgumentException("Invalid outage: " + value);
+			for (int i = 0; i < parts.length; i += 2) {
+				long duration = parseDuration(parts[i + 1]);
+				if (parts[i].equals("every"))
+					outageEvery = duration;
+				else if (parts[i].equals("for"))
+					outageFor = duration;
+				else if (parts[i].equals("offset"))
+					outageOffset = duration;
+				else
+					throw new IllegalArgumentException("Invalid outage: " + value);
+			}
+			if (outageEvery <= 0 || outageFor <= 0 || outageFor > outageEvery)
+				throw new IllegalArgumentException("Invalid outage: " + value);
+		}
+	}
+
+	/**
+	 * A distribution of latencies in milliseconds.
+	 */
+	abstract static class Latency {
+
+		abstract long sample(ThreadLocalRandom random);
+
+		/**
+		 * Parse a distribution, one of "fixed MS", "uniform MIN MAX",
+		 * "lognormal MEDIAN SIGMA" or "percentiles P:MS P:MS ...".
+		 */
+		static Latency parse(String value) {
+			String[] parts = value.split("\\s+");
+			String type = parts[0];
+			try {
+				if (type.equals("fixed") && parts.length == 2) {
+					return new Fixed(parseDuration(parts[1]));
+				} else if (type.equals("uniform") && parts.length == 3) {
+					return new Uniform(parseDuration(parts[1]), parseDuration(parts[2]));
+				} else if (type.equals("lognormal") && parts.length == 3) {
+					return new LogNormal(parseDuration(parts[1]), Double.parseDouble(parts[2]));
+				} else if (type.equals("percentiles") && parts.length > 1) {
+					TreeMap<Double, Long> points = new TreeMap<Double, Long>();
+					for (int i = 1; i < parts.length; i++) {
+						int p = parts[i].indexOf(':');
+						points.put(Double.valueOf(parts[i].substring(0, p)), Long.valueOf(parseDuration(parts[i].substring(p + 1))));
+					}
+					return new Percentiles(points);
+				}
+			} catch (RuntimeException re) {
+				// Reported below
+			}
+			throw new IllegalArgumentException("Invalid latency: " + value);
+		}
+	}
+
+	private static class Fixed extends Latency {
+		private final long ms;
+
+		Fixed(long ms) {
+			this.ms = ms;
+		}
+
+		long sample(ThreadLocalRandom random) {
+			return ms;
+		}
+	}
+
+	private static class Uniform extends Latency {
+		private final long min;
+		private final long max;
+
+		Uniform(long min, long max) {
+			if (max < min)
+				throw new IllegalArgumentException();
+			this.min = min;
+			this.max = max;
+		}
+
+		long sample(ThreadLocalRandom random) {
+			return min + (long) (random.nextDouble() * (max - min));
+		}
+	}
+
+	private static class LogNormal extends Latency {
+		private final double mu;
+		private final double sigma;
+
+		LogNormal(long median, double sigma) {
+			this.mu = Math.log(Math.max(1, median));
+			this.sigma = sigma;
+		}
+
+		long sample(ThreadLocalRandom random) {
+			return (long) Math.exp(mu + sigma * random.nextGaussian());
+		}
+	}
+
+	/**
+	 * Latencies interpolated between given percentiles, starting from zero at
+	 * the 0th percentile unless it is given.
+	 */
+	private static class Percentiles extends Latency {
+		private final double[] percentiles;
+		private final long[] values;
+
+		Percentiles(TreeMap<Double, Long> points) {
+			if (!points.containsKey(Double.valueOf(0)))
+				points.put(Double.valueOf(0), Long.valueOf(0));
+			percentiles = new double[points.size()];
+			values = new long[points.size()];
+			int i = 0;
+			for (Map.Entry<Double, Long> point : points.entrySet()) {
+				if (point.getKey().doubleValue() < 0 || point.getKey().doubleValue() > 100)
+					throw new IllegalArgumentException();
+				if (i > 0 && point.getValue().longValue() < values[i - 1])
+					throw new IllegalArgumentException();
+				percentiles[i] = point.getKey().doubleValue();
+				values[i] = point.getValue().longValue();
+				i++;
+			}
+		}
+
+		long sample(ThreadLocalRandom random) {
+			double p = random.nextDouble() * 100;
+			for (int i = 1; i < percentiles.length; i++) {
+				if (p < percentiles[i]) {
+					double fraction = (p - percentiles[i - 1]) / (percentiles[i] - percentiles[i - 1]);
+					return values[i - 1] + (long) (fraction * (values[i] - values[i - 1]));
+				}
+			}
+			return values[values.length - 1];
+		}
+	}
+}
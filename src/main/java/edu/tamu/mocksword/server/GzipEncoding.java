@@ -0,0 +1,165 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.purl.sword.base.ErrorCodes;
+import org.purl.sword.base.SWORDErrorException;
+
+/**
+ * The gzip content coding of request and response bodies. Responses are
+ * compressed for clients which accept gzip, once they are large enough for
+ * it to be worthwhile, and request bodies sent with "Content-Encoding: gzip"
+ * are decompressed as they are read.
+ */
+public class GzipEncoding {
+
+	/** The media type of service documents **/
+	public static final String SERVICE_DOCUMENT = "application/atomsvc+xml; charset=UTF-8";
+
+	/** The media type of deposit receipts and error documents **/
+	public static final String ATOM_ENTRY = "application/atom+xml; charset=UTF-8";
+
+	/** The smallest response compressed, in bytes, or -1 to never compress **/
+	private final int minSize;
+
+	/**
+	 * @param minSize
+	 *            The smallest response compressed, in bytes, or -1 to never
+	 *            compress responses.
+	 */
+	public GzipEncoding(int minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @return True if responses may be compressed at all.
+	 */
+	public boolean isEnabled() {
+		return minSize >= 0;
+	}
+
+	/**
+	 * @return True if the response to the request may be compressed.
+	 */
+	public boolean accepted(HttpServletRequest request) {
+		return isEnabled() && acceptsGzip(request.getHeader("Accept-Encoding"));
+	}
+
+	/**
+	 * @return True if the response to a request is compressed, it is accepted
+	 *         and the body is large enough.
+	 */
+	public boolean compresses(HttpServletRequest request, int length) {
+		return (length >= minSize) && accepted(request);
+	}
+
+	/**
+	 * Write a response body, compressed if the client accepts it.
+	 */
+	public void write(HttpServletRequest request, HttpServletResponse response, String contentType, byte[] body)
+			throws IOException {
+		if (isEnabled()) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (compresses(request, body.length)) {
+			body = gzip(body);
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		response.setContentType(contentType);
+		response.setContentLength(body.length);
+		OutputStream out = response.getOutputStream();
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * Check if an Accept-Encoding header allows gzip.
+	 *
+	 * @param acceptEncoding
+	 *            The header's value, may be null.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return false;
+		float gzip = -1;
+		float any = -1;
+		StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+		while (st.hasMoreTokens()) {
+			String coding = st.nextToken().trim();
+			float q = 1;
+			int p = coding.indexOf(';');
+			if (p != -1) {
+				String parameter = coding.substring(p + 1).trim();
+				coding = coding.substring(0, p).trim();
+				if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+					try {
+						q = Float.parseFloat(parameter.substring(2).trim());
+					} catch (NumberFormatException nfe) {
+						q = 0;
+					}
+				}
+			}
+			if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip"))
+				gzip = Math.max(gzip, q);
+			else if (coding.equals("*"))
+				any = q;
+		}
+		return (gzip != -1) ? gzip > 0 : any > 0;
+	}
+
+	/**
+	 * @return The body compressed with gzip.
+	 */
+	public static byte[] gzip(byte[] body) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(bytes, 8192);
+			out.write(body);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * @return True if the request's body is content coded.
+	 */
+	public static boolean isEncoded(HttpServletRequest request) {
+		String encoding = request.getHeader("Content-Encoding");
+		return (encoding != null) && !encoding.trim().equalsIgnoreCase("identity") && !encoding.trim().equals("");
+	}
+
+	/**
+	 * Decode a request body as it is read.
+	 *
+	 * @param in
+	 *            The body as it was sent.
+	 * @return The decoded body.
+	 * @throws SWORDErrorException
+	 *             If the body is in a content coding other than gzip.
+	 * @throws IOException
+	 *             If the body is not in the gzip format.
+	 */
+	public static InputStream decode(HttpServletRequest request, InputStream in) throws SWORDErrorException,
+			IOException {
+		if (!isEncoded(request))
+			return in;
+		String encoding = request.getHeader("Content-Encoding").trim();
+		if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip"))
+			return new GZIPInputStream(in, 8192);
+		SWORDErrorException see = new SWORDErrorException(ErrorCodes.ERROR_CONTENT,
+				"Deposits may only be sent with the gzip content encoding, not " + encoding);
+		see.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+		throw see;
+	}
+}
@@ -0,0 +1,103 @@
+package edu.tamu.mocksword.server;
+
+/**
+ * Remembers the responses sent to recent deposits, so a client which retries
+ * a deposit after a timeout receives the response to its first attempt rather
+ * than creating a second item.
+ *
+ * A deposit is identified by the user, the deposit location, the
+ * on-behalf-of user and no-op flag, the key the client gave the request (its
+ * Idempotency-Key header, or failing that its Slug) and the SHA-256 digest of
+ * the package. Deposits without a request key are never treated as retries.
+ */
+public class IdempotencyCache {
+
+	/** The remembered responses **/
+	private final LruCache<String, CachedResponse> responses;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of responses to remember.
+	 * @param ttlMillis
+	 *            How long a response is remembered for.
+	 */
+	public IdempotencyCache(int maxEntries, long ttlMillis) {
+		responses = new LruCache<String, CachedResponse>(maxEntries, ttlMillis);
+	}
+
+	/**
+	 * Build the part of a deposit's identity which is known from its headers,
+	 * before the package has been read.
+	 *
+	 * @return The identity, or null if the client gave no request key.
+	 */
+	public static String identity(String username, String location, String onBehalfOf,
+			String noOp, String requestKey) {
+		if (requestKey == null || requestKey.equals("")) {
+			return null;
+		}
+		return username + "\n" + location + "\n" + onBehalfOf + "\n" + noOp + "\n" + requestKey;
+	}
+
+	/**
+	 * @param identity
+	 *            The deposit's identity from its headers.
+	 * @param sha256
+	 *            The hex SHA-256 digest of the package.
+	 * @return The response sent to an earlier identical deposit, or null.
+	 */
+	public CachedResponse get(String identity, String sha256) {
+		return responses.get(identity + "\n" + sha256.toLowerCase());
+	}
+
+	/**
+	 * Remember the response sent to a deposit.
+	 */
+	public void put(String identity, String sha256, CachedResponse response) {
+		responses.put(identity + "\n" + sha256.toLowerCase(), response);
+	}
+
+	/**
+	 * A response sent to a deposit.
+	 */
+	public static class CachedResponse {
+
+		/** The HTTP status **/
+		private final int status;
+
+		/** The Location header, may be null **/
+		private final String location;
+
+		/** The UTF-8 encoded Atom entry, may be empty **/
+		private final byte[] body;
+
+		public CachedResponse(int status, String location, byte[] body) {
+			this.status = status;
+			this.location = location;
+			this.body = body;
+		}
+
+		/**
+		 * @return The HTTP status.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return The Location header, or null.
+		 */
+		public String getLocation() {
+			return location;
+		}
+
+		/**
+		 * @return The UTF-8 encoded body, which must not be modified.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+	}
+}
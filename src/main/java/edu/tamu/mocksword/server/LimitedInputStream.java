@@ -0,0 +1,84 @@
+package edu.tamu.mocksword.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which fails as soon as more than a fixed number of bytes
+ * have been read from it. Reading a body through one bounds how much of it
+ * is ever spooled, however far a compressed body expands.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+	/** The most bytes which may be read **/
+	private final long limit;
+
+	/** The number of bytes read so far **/
+	private long count;
+
+	/**
+	 * @param in
+	 *            The stream to read.
+	 * @param limit
+	 *            The most bytes which may be read.
+	 */
+	public LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1)
+			count(1);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0)
+			count(n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		if (skipped > 0)
+			count(skipped);
+		return skipped;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void count(long n) throws LimitExceededException {
+		count += n;
+		if (count > limit)
+			throw new LimitExceededException(count);
+	}
+
+	/**
+	 * Thrown once more bytes than the limit have been read.
+	 */
+	public static class LimitExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The number of bytes read when the limit was passed **/
+		private final long length;
+
+		LimitExceededException(long length) {
+			super("More than the limit of bytes were read, " + length + " so far");
+			this.length = length;
+		}
+
+		/**
+		 * @return The number of bytes read when the limit was passed.
+		 */
+		public long getLength() {
+			return length;
+		}
+	}
+}
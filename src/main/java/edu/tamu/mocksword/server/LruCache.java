@@ -0,0 +1,126 @@
+package edu.tamu.mocksword.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread safe cache holding a bounded number of entries, each for a
+ * limited time. When the cache is full the least recently used entry is
+ * evicted, expired entries are dropped as they are found.
+ */
+public class LruCache<K, V> {
+
+	/** The entries, least recently used first **/
+	private final LinkedHashMap<K, Expiring<V>> entries;
+
+	/** How long an entry is kept, in milliseconds, zero to keep it forever **/
+	private final long ttlMillis;
+
+	/** The number of entries evicted to make room for others **/
+	private long evictions;
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of entries to hold.
+	 * @param ttlMillis
+	 *            How long each entry is kept after it is put, zero or less to
+	 *            keep entries until they are evicted.
+	 */
+	public LruCache(final int maxEntries, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<K, Expiring<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, Expiring<V>> eldest) {
+				if (size() > maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return The value cached for the key, or null if there is none or it
+	 *         has expired.
+	 */
+	public synchronized V get(K key) {
+		Expiring<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires != 0 && entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Cache a value, replacing any value already cached for the key.
+	 */
+	public synchronized void put(K key, V value) {
+		long expires = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+		entries.put(key, new Expiring<V>(value, expires));
+	}
+
+	/**
+	 * Cache a value unless one is already cached for the key.
+	 *
+	 * @return The value already cached, or null if the value was cached.
+	 */
+	public synchronized V putIfAbsent(K key, V value) {
+		V existing = get(key);
+		if (existing == null) {
+			put(key, value);
+		}
+		return existing;
+	}
+
+	/**
+	 * Remove the value cached for the key.
+	 */
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Remove every cached value.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of entries held, including any which have expired but
+	 *         not yet been dropped.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of entries evicted because the cache was full.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * A cached value and the time it expires at.
+	 */
+	private static class Expiring<V> {
+
+		final V value;
+
+		final long expires;
+
+		Expiring(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package edu.tamu.mocksword.server;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A single requirement placed on the DIM metadata of a deposited METS
+ * manifest. A rule selects fields by schema, element and optionally qualifier,
+ * and may require a number of occurrences, non-empty values, or values
+ * matching a regular expression.
+ *
+ * Rules are written as a field name followed by a list of options separated
+ * by semicolons, for example:
+ *
+ * <pre>
+ *   dc.title = required; nonempty
+ *   dc.date.issued = min=1; max=1; pattern=\d{4}(-\d{2}(-\d{2})?)?
+ * </pre>
+ *
+ * Because a regular expression may itself contain semicolons, the pattern
+ * option must always come last. A rule without a qualifier matches fields
+ * with any qualifier, or none.
+ */
+public class MetadataRule {
+
+	/** The metadata schema, i.e. "dc" **/
+	private final String schema;
+
+	/** The metadata element, i.e. "title" **/
+	private final String element;
+
+	/** The metadata qualifier, or null to match any qualifier **/
+	private final String qualifier;
+
+	/** Minimum number of occurrences **/
+	private final int minOccurs;
+
+	/** Maximum number of occurrences, -1 for unbounded **/
+	private final int maxOccurs;
+
+	/** Whether empty values are ignored when counting occurrences **/
+	private final boolean nonEmpty;
+
+	/** Pattern every value must match, or null **/
+	private final Pattern pattern;
+
+	/**
+	 * Create a new rule.
+	 */
+	public MetadataRule(String schema, String element, String qualifier,
+			int minOccurs, int maxOccurs, boolean nonEmpty, Pattern pattern) {
+		if (schema == null || element == null)
+			throw new IllegalArgumentException("A metadata rule requires both a schema and element.");
+		this.schema = schema;
+		this.element = element;
+		this.qualifier = qualifier;
+		this.minOccurs = minOccurs;
+		this.maxOccurs = maxOccurs;
+		this.nonEmpty = nonEmpty;
+		this.pattern = pattern;
+	}
+
+	/**
+	 * Parse a rule from its configuration.
+	 *
+	 * @param field
+	 *            The field, i.e. "dc.title" or "dc.date.issued".
+	 * @param options
+	 *            The options, i.e. "required; nonempty". An empty string is
+	 *            the same as "required".
+	 * @throws IllegalArgumentException
+	 *             If the rule is not valid.
+	 */
+	public static MetadataRule parse(String field, String options) {
+		String[] parts = field.trim().split("\\.");
+		if (parts.length < 2 || parts.length > 3)
+			throw new IllegalArgumentException("Invalid metadata field: " + field);
+
+		int min = 1;
+		int max = -1;
+		boolean nonEmpty = false;
+		Pattern pattern = null;
+
+		String remaining = options == null ? "" : options.trim();
+		while (remaining.length() > 0) {
+			String option;
+			if (remaining.startsWith("pattern=")) {
+				option = remaining;
+				remaining = "";
+			} else {
+				int p = remaining.indexOf(';');
+				option = (p == -1 ? remaining : remaining.substring(0, p)).trim();
+				remaining = (p == -1 ? "" : remaining.substring(p + 1)).trim();
+			}
+
+			try {
+				if (option.length() == 0) {
+					continue;
+				} else if (option.equals("required")) {
+					min = Math.max(min, 1);
+				} else if (option.equals("optional")) {
+					min = 0;
+				} else if (option.equals("nonempty")) {
+					nonEmpty = true;
+				} else if (option.startsWith("min=")) {
+					min = Integer.parseInt(option.substring(4).trim());
+				} else if (option.startsWith("max=")) {
+					max = Integer.parseInt(option.substring(4).trim());
+				} else if (option.startsWith("pattern=")) {
+					pattern = Pattern.compile(option.substring(8).trim());
+				} else {
+					throw new IllegalArgumentException("Unknown option '" + option + "' for metadata rule " + field);
+				}
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Invalid option '" + option + "' for metadata rule " + field);
+			} catch (PatternSyntaxException pse) {
+				throw new IllegalArgumentException("Invalid pattern for metadata rule " + field + ": " + pse.getDescription());
+			}
+		}
+
+		if (max != -1 && max < min)
+			throw new IllegalArgumentException("Maximum is less than the minimum for metadata rule " + field);
+
+		return new MetadataRule(parts[0], parts[1], parts.length == 3 ? parts[2] : null,
+				min, max, nonEmpty, pattern);
+	}
+
+	/**
+	 * @return The rule's field name, i.e. "dc.title".
+	 */
+	public String getName() {
+		return qualifier == null ? schema + "." + element : schema + "." + element + "." + qualifier;
+	}
+
+	public String getSchema() {
+		return schema;
+	}
+
+	public String getElement() {
+		return element;
+	}
+
+	public String getQualifier() {
+		return qualifier;
+	}
+
+	public int getMinOccurs() {
+		return minOccurs;
+	}
+
+	public int getMaxOccurs() {
+		return maxOccurs;
+	}
+
+	public boolean isNonEmpty() {
+		return nonEmpty;
+	}
+
+	public Pattern getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * A rule is closed once its minimum has been met if no further field can
+	 * cause it to fail, i.e. it has no maximum and places no constraint on
+	 * values.
+	 *
+	 * @return True if later fields can never break this rule.
+	 */
+	boolean isClosedOnceSatisfied() {
+		return maxOccurs == -1 && pattern == null;
+	}
+
+	/**
+	 * @return True if the value counts as an occurrence of this rule.
+	 */
+	boolean counts(String value) {
+		return !nonEmpty || (value != null && value.trim().length() > 0);
+	}
+
+	/**
+	 * @return True if the value is acceptable for this rule.
+	 */
+	boolean accepts(String value) {
+		return pattern == null || (value != null && pattern.matcher(value.trim()).matches());
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder(getName());
+		sb.append(" (min=").append(minOccurs);
+		if (maxOccurs != -1)
+			sb.append(", max=").append(maxOccurs);
+		if (nonEmpty)
+			sb.append(", nonempty");
+		if (pattern != null)
+			sb.append(", pattern=").append(pattern.pattern());
+		return sb.append(")").toString();
+	}
+}
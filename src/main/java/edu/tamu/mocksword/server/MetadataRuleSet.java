@@ -0,0 +1,224 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * A set of metadata rules compiled into a single matcher. Rules are indexed by
+ * the field they select, so every DIM field of a manifest is checked against
+ * all rules with one lookup, and the whole set is evaluated in a single pass
+ * over the fields.
+ *
+ * Rule sets are configured per collection in a properties file, each key
+ * naming the collection followed by the field, and each value giving the
+ * rule's options (see {@link MetadataRule}):
+ *
+ * <pre>
+ *   default.dc.title = required
+ *   c.dc.creator = required; nonempty
+ * </pre>
+ *
+ * The "default" rules apply to every collection, a collection's own rules are
+ * added to them, replacing any default rule for the same field.
+ */
+public class MetadataRuleSet {
+
+	/** The name of the rules that apply to every collection **/
+	public static final String DEFAULT = "default";
+
+	/** The rules in this set **/
+	private final MetadataRule[] rules;
+
+	/** Indexes of rules that match a field regardless of qualifier, keyed by "schema.element" **/
+	private final Map<String, int[]> unqualified = new HashMap<String, int[]>();
+
+	/** Indexes of rules that match a qualified field, keyed by "schema.element.qualifier" **/
+	private final Map<String, int[]> qualified = new HashMap<String, int[]>();
+
+	/**
+	 * Compile a new rule set.
+	 */
+	public MetadataRuleSet(List<MetadataRule> rules) {
+		this.rules = rules.toArray(new MetadataRule[rules.size()]);
+
+		Map<String, List<Integer>> unqualifiedIndex = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> qualifiedIndex = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < this.rules.length; i++) {
+			MetadataRule rule = this.rules[i];
+			Map<String, List<Integer>> index = rule.getQualifier() == null ? unqualifiedIndex : qualifiedIndex;
+			List<Integer> indexes = index.get(rule.getName());
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				index.put(rule.getName(), indexes);
+			}
+			indexes.add(i);
+		}
+		compile(unqualifiedIndex, unqualified);
+		compile(qualifiedIndex, qualified);
+	}
+
+	private static void compile(Map<String, List<Integer>> from, Map<String, int[]> to) {
+		for (Map.Entry<String, List<Integer>> entry : from.entrySet()) {
+			int[] indexes = new int[entry.getValue().size()];
+			for (int i = 0; i < indexes.length; i++)
+				indexes[i] = entry.getValue().get(i);
+			to.put(entry.getKey(), indexes);
+		}
+	}
+
+	/**
+	 * @return The rules in this set.
+	 */
+	public List<MetadataRule> getRules() {
+		List<MetadataRule> list = new ArrayList<MetadataRule>(rules.length);
+		Collections.addAll(list, rules);
+		return list;
+	}
+
+	/**
+	 * Start evaluating the rules against a new manifest.
+	 */
+	public Evaluation evaluate() {
+		return new Evaluation();
+	}
+
+	/**
+	 * Load the rule sets for every configured collection.
+	 *
+	 * @param in
+	 *            The rules in properties format.
+	 * @return The compiled rule sets keyed by collection name, there is always
+	 *         a "default" set.
+	 * @throws IllegalArgumentException
+	 *             If any rule is invalid.
+	 */
+	public static Map<String, MetadataRuleSet> load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+
+		// Group the rules by collection, keyed by field name
+		Map<String, Map<String, MetadataRule>> collections = new HashMap<String, Map<String, MetadataRule>>();
+		collections.put(DEFAULT, new LinkedHashMap<String, MetadataRule>());
+		for (String key : new TreeSet<String>(properties.stringPropertyNames())) {
+			int p = key.indexOf('.');
+			if (p == -1)
+				throw new IllegalArgumentException("Invalid metadata rule, no collection given: " + key);
+			String collection = key.substring(0, p);
+			MetadataRule rule = MetadataRule.parse(key.substring(p + 1), properties.getProperty(key));
+
+			Map<String, MetadataRule> rules = collections.get(collection);
+			if (rules == null) {
+				rules = new LinkedHashMap<String, MetadataRule>();
+				collections.put(collection, rules);
+			}
+			rules.put(rule.getName(), rule);
+		}
+
+		// Compile each collection's rules on top of the defaults
+		Map<String, MetadataRuleSet> sets = new HashMap<String, MetadataRuleSet>();
+		Map<String, MetadataRule> defaults = collections.get(DEFAULT);
+		for (Map.Entry<String, Map<String, MetadataRule>> entry : collections.entrySet()) {
+			Map<String, MetadataRule> rules = new LinkedHashMap<String, MetadataRule>(defaults);
+			rules.putAll(entry.getValue());
+			sets.put(entry.getKey(), new MetadataRuleSet(new ArrayList<MetadataRule>(rules.values())));
+		}
+		return sets;
+	}
+
+	/**
+	 * The state of evaluating the rule set against one manifest. Fields are
+	 * fed in as they are found and the verdict is available once they have all
+	 * been seen, or earlier once the outcome can no longer change.
+	 */
+	public class Evaluation {
+
+		/** Occurrences counted for each rule **/
+		private final int[] counts = new int[rules.length];
+
+		/** Number of rules which could still fail **/
+		private int open = rules.length;
+
+		/** Failures found so far **/
+		private final List<String> failures = new ArrayList<String>();
+
+		Evaluation() {
+			for (int i = 0; i < rules.length; i++) {
+				if (rules[i].getMinOccurs() <= 0 && rules[i].isClosedOnceSatisfied())
+					open--;
+			}
+		}
+
+		/**
+		 * Check a single DIM field against the rules.
+		 *
+		 * @param schema
+		 *            The field's mdschema attribute.
+		 * @param element
+		 *            The field's element attribute.
+		 * @param qualifier
+		 *            The field's qualifier attribute, may be null.
+		 * @param value
+		 *            The field's text.
+		 */
+		public void field(String schema, String element, String qualifier, String value) {
+			if (schema == null || element == null)
+				return;
+			String name = schema + "." + element;
+			check(unqualified.get(name), value);
+			if (qualifier != null)
+				check(qualified.get(name + "." + qualifier), value);
+		}
+
+		private void check(int[] indexes, String value) {
+			if (indexes == null)
+				return;
+			for (int i : indexes) {
+				MetadataRule rule = rules[i];
+				if (!rule.counts(value))
+					continue;
+				if (!rule.accepts(value)) {
+					failures.add("Value of " + rule.getName() + " does not match the required pattern: " + value);
+					continue;
+				}
+				counts[i]++;
+				if (rule.getMaxOccurs() != -1 && counts[i] == rule.getMaxOccurs() + 1) {
+					failures.add("Too many values for " + rule.getName() + ", at most " + rule.getMaxOccurs() + " are allowed");
+				} else if (counts[i] == rule.getMinOccurs() && rule.isClosedOnceSatisfied()) {
+					open--;
+				}
+			}
+		}
+
+		/**
+		 * @return True if the verdict is known regardless of any fields not
+		 *         yet seen, either a rule has already failed or every rule is
+		 *         satisfied and can not fail.
+		 */
+		public boolean isDecided() {
+			return !failures.isEmpty() || open == 0;
+		}
+
+		/**
+		 * Finish the evaluation once every field has been seen.
+		 *
+		 * @return A description of each failed rule, empty if the manifest
+		 *         satisfies every rule.
+		 */
+		public List<String> finish() {
+			List<String> result = new ArrayList<String>(failures);
+			for (int i = 0; i < rules.length; i++) {
+				if (counts[i] < rules[i].getMinOccurs())
+					result.add("Required field is missing or empty: " + rules[i].getName());
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests handled by a mock sword server, and exposes them in
+ * the Prometheus text format. Requests are counted by endpoint, collection
+ * and status, their latencies are kept in a histogram per endpoint, and the
+ * bytes ingested, uploads in flight, the deposit spool's usage and the
+ * service document cache's hits, misses and evictions are reported too.
+ *
+ * Every counter is a LongAdder, so the threads handling requests update
+ * their own cells rather than contending for one, and a scrape only sums
+ * them. Collection names come from request paths, so only the first
+ * thousand distinct request counters are kept apart, requests to
+ * collections seen after that are counted as collection "other".
+ */
+public class Metrics {
+
+	/** The upper bounds of the latency buckets, in seconds **/
+	private static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	/** The upper bounds of the latency buckets, in nanoseconds **/
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++)
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+	}
+
+	/** The most request counters kept **/
+	private static final int MAX_SERIES = 1000;
+
+	/** Requests by endpoint, collection and status **/
+	private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+
+	/** Latencies by endpoint **/
+	private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+
+	/** Bytes of deposited packages received **/
+	private final LongAdder bytesIngested = new LongAdder();
+
+	/** Deposits currently being received or processed **/
+	private final LongAdder uploadsInFlight = new LongAdder();
+
+	/** The spool deposits are received into, or null **/
+	private volatile DepositSpool spool;
+
+	/** The cache of service documents, or null **/
+	private volatile ServiceDocumentCache serviceDocumentCache;
+
+	/**
+	 * Count a request which has been answered.
+	 *
+	 * @param endpoint
+	 *            The endpoint, i.e. "deposit".
+	 * @param collection
+	 *            The collection the request was for, or null.
+	 * @param status
+	 *            The HTTP status it was answered with.
+	 * @param nanos
+	 *            How long it took to answer.
+	 */
+	public void recordRequest(String endpoint, String collection, int status, long nanos) {
+		String key = endpoint + "\n" + (collection == null ? "" : collection) + "\n" + status;
+		LongAdder count = requests.get(key);
+		if (count == null) {
+			if (requests.size() >= MAX_SERIES)
+				key = endpoint + "\nother\n" + status;
+			count = requests.get(key);
+			if (count == null) {
+				LongAdder added = new LongAdder();
+				count = requests.putIfAbsent(key, added);
+				if (count == null)
+					count = added;
+			}
+		}
+		count.increment();
+
+		Histogram histogram = latencies.get(endpoint);
+		if (histogram == null) {
+			Histogram added = new Histogram();
+			histogram = latencies.putIfAbsent(endpoint, added);
+			if (histogram == null)
+				histogram = added;
+		}
+		histogram.observe(nanos);
+	}
+
+	/**
+	 * Count the bytes of a deposited package.
+	 */
+	public void addBytesIngested(long bytes) {
+		bytesIngested.add(bytes);
+	}
+
+	/**
+	 * Note that a deposit has started to be received.
+	 */
+	public void uploadStarted() {
+		uploadsInFlight.increment();
+	}
+
+	/**
+	 * Note that a deposit has been answered.
+	 */
+	public void uploadFinished() {
+		uploadsInFlight.decrement();
+	}
+
+	/**
+	 * @param spool
+	 *            The spool deposits are received into, whose usage is
+	 *            reported.
+	 */
+	public void setSpool(DepositSpool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * @param serviceDocumentCache
+	 *            The cache of service documents, whose hits, misses and
+	 *            evictions are reported.
+	 */
+	public void setServiceDocumentCache(ServiceDocumentCache serviceDocumentCache) {
+		this.serviceDocumentCache = serviceDocumentCache;
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format.
+	 */
+	public void write(Writer out) throws IOException {
+		StringBuilder text = new StringBuilder(4096);
+
+		header(text, "mock_sword_requests_total", "counter", "Requests answered, by endpoint, collection and status.");
+		List<String> keys = new ArrayList<String>(requests.keySet());
+		Collections.sort(keys);
+		for (String key : keys) {
+			String[] labels = key.split("\n", -1);
+			text.append("mock_sword_requests_total{endpoint=\"").append(escape(labels[0]))
+					.append("\",collection=\"").append(escape(labels[1]))
+					.append("\",status=\"").append(labels[2]).append("\"} ")
+					.append(requests.get(key).sum()).append('\n');
+		}
+
+		header(text, "mock_sword_request_duration_seconds", "histogram", "Time taken to answer requests, by endpoint.");
+		List<String> endpoints = new ArrayList<String>(latencies.keySet());
+		Collections.sort(endpoints);
+		for (String endpoint : endpoints) {
+			latencies.get(endpoint).write(text, "mock_sword_request_duration_seconds", escape(endpoint));
+		}
+
+		header(text, "mock_sword_ingested_bytes_total", "counter", "Bytes of deposited packages received.");
+		text.append("mock_sword_ingested_bytes_total ").append(bytesIngested.sum()).append('\n');
+
+		header(text, "mock_sword_uploads_in_flight", "gauge", "Deposits being received or processed.");
+		text.append("mock_sword_uploads_in_flight ").append(uploadsInFlight.sum()).append('\n');
+
+		DepositSpool spool = this.spool;
+		if (spool != null) {
+			header(text, "mock_sword_spool_buffers_in_use", "gauge", "Memory buffers holding deposits being processed.");
+			text.append("mock_sword_spool_buffers_in_use ").append(spool.getBuffersInUse()).append('\n');
+			header(text, "mock_sword_spool_buffer_bytes", "gauge", "Direct memory allocated for spool buffers.");
+			text.append("mock_sword_spool_buffer_bytes ").append(spool.getBufferBytes()).append('\n');
+			header(text, "mock_sword_spool_files", "gauge", "Deposits spilled to temporary files.");
+			text.append("mock_sword_spool_files ").append(spool.getFilesInUse()).append('\n');
+			header(text, "mock_sword_spool_file_bytes", "gauge", "Bytes of deposits spilled to temporary files.");
+			text.append("mock_sword_spool_file_bytes ").append(spool.getFileBytesInUse()).append('\n');
+		}
+
+		ServiceDocumentCache cache = this.serviceDocumentCache;
+		if (cache != null) {
+			header(text, "mock_sword_service_document_cache_hits_total", "counter", "Service documents served from the cache.");
+			text.append("mock_sword_service_document_cache_hits_total ").append(cache.getHits()).append('\n');
+			header(text, "mock_sword_service_document_cache_misses_total", "counter", "Service documents not found in the cache.");
+			text.append("mock_sword_service_document_cache_misses_total ").append(cache.getMisses()).append('\n');
+			header(text, "mock_sword_service_document_cache_evictions_total", "counter", "Service documents evicted from the full cache.");
+			text.append("mock_sword_service_document_cache_evictions_total ").append(cache.getEvictions()).append('\n');
+			header(text, "mock_sword_service_document_cache_entries", "gauge", "Service documents held in the cache.");
+			text.append("mock_sword_service_document_cache_entries ").append(cache.size()).append('\n');
+		}
+
+		out.write(text.toString());
+	}
+
+	private static void header(StringBuilder text, String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Escape a label value.
+	 */
+	static String escape(String value) {
+		if (value.indexOf('\\') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1)
+			return value;
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * A histogram of latencies, counting each latency only in its own bucket
+	 * and accumulating the buckets when written.
+	 */
+	static class Histogram {
+
+		/** The count in each bucket, the last is for latencies over every bound **/
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+		/** The total of every latency, in nanoseconds **/
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		void observe(long nanos) {
+			int i = 0;
+			while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i])
+				i++;
+			buckets[i].increment();
+			sum.add(nanos);
+		}
+
+		void write(StringBuilder text, String name, String endpoint) {
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i].sum();
+				text.append(name).append("_bucket{endpoint=\"").append(endpoint).append("\",le=\"")
+						.append(i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf").append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			text.append(name).append("_sum{endpoint=\"").append(endpoint).append("\"} ")
+					.append(sum.sum() / 1e9).append('\n');
+			text.append(name).append("_count{endpoint=\"").append(endpoint).append("\"} ")
+					.append(cumulative).append('\n');
+		}
+	}
+}
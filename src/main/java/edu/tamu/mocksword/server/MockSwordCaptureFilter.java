@@ -0,0 +1,270 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * CaptureFilter
+ *
+ * Records every service document and deposit request in the server's
+ * {@link CaptureLog}, with its headers, body and how it was answered, so the
+ * traffic can be replayed. The body is captured as the servlet reads it, and
+ * whatever the servlet left unread is read once it has answered. The
+ * Authorization header is left out, the authenticated user is recorded in
+ * its place.
+ */
+public class MockSwordCaptureFilter implements Filter {
+
+	private static Logger log = Logger.getLogger(MockSwordCaptureFilter.class);
+
+	/** The filter's configuration **/
+	private FilterConfig config;
+
+	/** The log requests are recorded in, or null if there is none **/
+	private volatile CaptureLog captureLog;
+
+	/** Whether the log has been looked up **/
+	private volatile boolean looked;
+
+	/** The largest body kept in the log itself, in bytes **/
+	private int inlineSize;
+
+	public void init(FilterConfig config) throws ServletException {
+		this.config = config;
+		this.inlineSize = getIntInitParameter("capture-inline-size", 64) * 1024;
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+			throws IOException, ServletException {
+		// Filters may be initialised before the repository which opens the
+		// log, so it is looked up on first use.
+		if (!looked) {
+			captureLog = (CaptureLog) config.getServletContext().getAttribute(CaptureLog.class.getName());
+			looked = true;
+		}
+		CaptureLog captureLog = this.captureLog;
+		if ((captureLog == null) || !(req instanceof HttpServletRequest) || !isCaptured((HttpServletRequest) req)) {
+			chain.doFilter(req, resp);
+			return;
+		}
+
+		HttpServletRequest request = (HttpServletRequest) req;
+		long start = System.nanoTime();
+		String uri = request.getRequestURI();
+		if (request.getQueryString() != null)
+			uri += "?" + request.getQueryString();
+		CaptureLog.Record record = new CaptureLog.Record(captureLog.now(), request.getMethod(), uri,
+				request.getRemoteUser(), getHeaders(request));
+
+		CapturingRequest capturing = new CapturingRequest(request, captureLog, inlineSize);
+		MockSwordMetricsFilter.StatusRecorder response = new MockSwordMetricsFilter.StatusRecorder(
+				(HttpServletResponse) resp);
+		boolean answered = false;
+		try {
+			chain.doFilter(capturing, response);
+			answered = true;
+		} finally {
+			record.setResponse(answered ? response.getStatus() : HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					System.nanoTime() - start);
+			try {
+				capturing.finish(record);
+				captureLog.append(record);
+			} catch (IOException ioe) {
+				log.warn("Unable to capture the request for " + uri + ": " + ioe.getMessage());
+			}
+		}
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * @return True for service document and deposit requests.
+	 */
+	private static boolean isCaptured(HttpServletRequest request) {
+		String servletPath = request.getServletPath();
+		if ("/servicedocument".equals(servletPath)) {
+			return true;
+		}
+		if ("/deposit".equals(servletPath)) {
+			String path = request.getPathInfo();
+			return (path == null) || !path.startsWith("/status/");
+		}
+		return false;
+	}
+
+	/**
+	 * @return The request's headers, names and values alternately.
+	 */
+	private static List<String> getHeaders(HttpServletRequest request) {
+		List<String> headers = new ArrayList<String>();
+		Enumeration<?> names = request.getHeaderNames();
+		while (names.hasMoreElements()) {
+			String name = (String) names.nextElement();
+			if (name.equalsIgnoreCase("Authorization"))
+				continue;
+			Enumeration<?> values = request.getHeaders(name);
+			while (values.hasMoreElements()) {
+				headers.add(name);
+				headers.add((String) values.nextElement());
+			}
+		}
+		return headers;
+	}
+
+	private int getIntInitParameter(String name, int defaultValue) {
+		String value = config.getServletContext().getInitParameter(name);
+		if ((value == null) || (value.equals(""))) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * A request whose body is copied as it is read.
+	 */
+	static class CapturingRequest extends HttpServletRequestWrapper {
+
+		private final CaptureLog captureLog;
+
+		private final int inlineSize;
+
+		/** The body as it is read, or null until it is asked for **/
+		private CapturingInputStream body;
+
+		CapturingRequest(HttpServletRequest request, CaptureLog captureLog, int inlineSize) {
+			super(request);
+			this.captureLog = captureLog;
+			this.inlineSize = inlineSize;
+		}
+
+		public ServletInputStream getInputStream() throws IOException {
+			if (body == null)
+				body = new CapturingInputStream(super.getInputStream(), captureLog, inlineSize);
+			return body;
+		}
+
+		/**
+		 * Read whatever of the body is left, and add it to the record.
+		 */
+		void finish(CaptureLog.Record record) throws IOException {
+			if ((body == null) && (getContentLength() <= 0) && (getHeader("Transfer-Encoding") == null))
+				return;
+			((CapturingInputStream) getInputStream()).finish(record);
+		}
+	}
+
+	/**
+	 * A body which is digested and copied as it is read, in memory until it
+	 * grows too large and then to a file in the log's body directory.
+	 */
+	static class CapturingInputStream extends ServletInputStream {
+
+		private final InputStream in;
+
+		private final CaptureLog captureLog;
+
+		private final int inlineSize;
+
+		private final MessageDigest digest;
+
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+		private File file;
+
+		private OutputStream out;
+
+		private long length;
+
+		CapturingInputStream(InputStream in, CaptureLog captureLog, int inlineSize) {
+			this.in = in;
+			this.captureLog = captureLog;
+			this.inlineSize = inlineSize;
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException(nsae);
+			}
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				copy(new byte[] { (byte) b }, 0, 1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				copy(b, off, n);
+			return n;
+		}
+
+		private void copy(byte[] b, int off, int len) throws IOException {
+			digest.update(b, off, len);
+			length += len;
+			if ((out == null) && (length > inlineSize)) {
+				file = File.createTempFile("capture", ".part", captureLog.getBodies());
+				out = new FileOutputStream(file);
+				memory.writeTo(out);
+				memory = null;
+			}
+			if (out != null)
+				out.write(b, off, len);
+			else
+				memory.write(b, off, len);
+		}
+
+		/**
+		 * Read the rest of the body, and add it to the record.
+		 */
+		void finish(CaptureLog.Record record) throws IOException {
+			byte[] buffer = new byte[8192];
+			try {
+				while (read(buffer, 0, buffer.length) != -1) {
+					// Captured as it is read
+				}
+			} catch (IOException ioe) {
+				// The client went away, keep what was sent
+				log.debug("Capturing a partial body: " + ioe.getMessage());
+			}
+			String sha256 = DigestingInputStream.toHex(digest.digest());
+			if (out == null) {
+				record.setBody(sha256, length, memory.toByteArray());
+				return;
+			}
+			out.close();
+			File target = new File(captureLog.getBodies(), sha256);
+			if (target.exists() || !file.renameTo(target))
+				file.delete();
+			record.setBody(sha256, length, null);
+		}
+	}
+}
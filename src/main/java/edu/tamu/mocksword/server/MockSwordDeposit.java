@@ -0,0 +1,49 @@
+package edu.tamu.mocksword.server;
+
+import org.purl.sword.base.Deposit;
+
+/**
+ * A deposit as received by the mock deposit servlet. In addition to the
+ * standard deposit properties it carries the details the servlet calculated
+ * while receiving the body, so the mock server does not need to read the
+ * package again to obtain them.
+ */
+public class MockSwordDeposit extends Deposit {
+
+	/** The SHA-256 checksum of the deposited file, as a hex string **/
+	private String sha256;
+
+	/** The spooled body the deposited file is read from **/
+	private DepositSpool.SpooledBody body;
+
+	/**
+	 * @return The SHA-256 checksum of the deposited file.
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * @param sha256
+	 *            The SHA-256 checksum of the deposited file, as a hex string.
+	 */
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
+	/**
+	 * @return The spooled body of the deposit, which allows the package to be
+	 *         accessed randomly rather than only as a stream.
+	 */
+	public DepositSpool.SpooledBody getBody() {
+		return body;
+	}
+
+	/**
+	 * @param body
+	 *            The spooled body of the deposit.
+	 */
+	public void setBody(DepositSpool.SpooledBody body) {
+		this.body = body;
+	}
+}
@@ -1,22 +1,24 @@
 package edu.tamu.mocksword.server;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.StringTokenizer;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.codec.binary.Base64;
@@ -24,8 +26,8 @@ import org.apache.log4j.Logger;
 //import org.apache.log4j.Logger;
 import org.purl.sword.atom.Summary;
 import org.purl.sword.atom.Title;
-import org.purl.sword.base.ChecksumUtils;
-import org.purl.sword.base.Deposit;
+import org.purl.sword.base.AtomDocumentRequest;
+import org.purl.sword.base.AtomDocumentResponse;
 import org.purl.sword.base.DepositResponse;
 import org.purl.sword.base.ErrorCodes;
 import org.purl.sword.base.HttpHeaders;
@@ -47,6 +49,12 @@ public class MockSwordDepositServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
 
+	/** The header asking for a session to upload a package to in segments */
+	private static final String X_SEGMENT_COUNT = "X-Segment-Count";
+
+	/** The path of deposit sessions, below the servlet */
+	private static final String SESSIONS = "/sessions/";
+
 	/** Sword repository */
 	protected SWORDServer myRepository;
 
@@ -59,8 +67,29 @@ public class MockSwordDepositServlet extends HttpServlet {
 	/** Temp directory */
 	private String tempDirectory;
 
-	/** Counter */
-	private static AtomicInteger counter = new AtomicInteger(0);
+	/** Spool for received deposit bodies */
+	private DepositSpool spool;
+
+	/** Responses to recent deposits, for answering retries, or null */
+	private IdempotencyCache idempotencyCache;
+
+	/** Whether this servlet created the repository, and must destroy it */
+	private boolean ownRepository;
+
+	/** Metrics the deposits are counted in, or null */
+	private Metrics metrics;
+
+	/** Decoded Authorization headers */
+	private BasicCredentialCache credentials;
+
+	/** Compression of responses for clients which accept it */
+	private GzipEncoding gzip;
+
+	/** Per user and collection rate limits, or null if there are none */
+	private RateLimiter rateLimiter;
+
+	/** Packages being uploaded in segments, or null if they may not be */
+	private DepositSessions sessions;
 
 	/** Logger */
 //	private static Logger log = Logger.getLogger(MockSwordDepositServlet.class);
@@ -71,9 +100,13 @@ public class MockSwordDepositServlet extends HttpServlet {
 	 * @throws ServletException
 	 */
 	public void init() throws ServletException {
-		// Instantiate the correct SWORD Server class
+		// Use the repository shared by the embedded server, or instantiate
+		// the correct SWORD Server class
 		String className = getServletContext().getInitParameter("sword-server-class");
-		if (className == null) {
+		Object shared = getServletContext().getAttribute(MockSwordServer.class.getName());
+		if (shared instanceof SWORDServer) {
+			myRepository = (SWORDServer) shared;
+		} else if (className == null) {
 			log.fatal("Unable to read value of 'sword-server-class' from Servlet context");
 		} else {
 			try {
@@ -86,6 +119,10 @@ public class MockSwordDepositServlet extends HttpServlet {
 						"Unable to instantiate class from 'sword-server-class': "
 								+ className);
 			}
+			if (myRepository instanceof MockSwordServer) {
+				((MockSwordServer) myRepository).init(getServletContext());
+				ownRepository = true;
+			}
 		}
 
 		authN = getServletContext().getInitParameter("authentication-method");
@@ -93,6 +130,18 @@ public class MockSwordDepositServlet extends HttpServlet {
 			authN = "None";
 		}
 
+		// Share the embedded server's decoded credentials, or keep our own
+		Object sharedCredentials = getServletContext().getAttribute(BasicCredentialCache.class.getName());
+		if (sharedCredentials instanceof BasicCredentialCache) {
+			credentials = (BasicCredentialCache) sharedCredentials;
+		} else {
+			credentials = new BasicCredentialCache(Math.max(getIntInitParameter("credential-cache-size", 10000), 1),
+					getIntInitParameter("credential-cache-ttl", 300) * 1000L);
+		}
+
+		// Responses of at least "gzip-min-size" bytes are compressed, -1 never
+		gzip = new GzipEncoding(getIntInitParameter("gzip-min-size", 512));
+
 		String maxUploadSizeStr = getServletContext().getInitParameter("maxUploadSize");
 		if ((maxUploadSizeStr == null) || 
 		    (maxUploadSizeStr.equals("")) || 
@@ -135,33 +184,131 @@ public class MockSwordDepositServlet extends HttpServlet {
 					"Upload temporary directory cannot be written to: "
 							+ tempDir);
 		}
+
+		// Bodies under the spool threshold (in kB) are held in pooled memory
+		// buffers instead of being written to the temp directory.
+		int spoolThreshold = getIntInitParameter("spool-threshold", 1024);
+		int spoolBuffers = getIntInitParameter("spool-buffers", 16);
+		if (spoolThreshold < 0 || spoolBuffers <= 0) {
+			spoolThreshold = 0;
+		}
+		// Each buffer holds a whole body, so can be no larger than an array
+		long spoolBytes = spoolThreshold * 1024L;
+		if (spoolBytes > Integer.MAX_VALUE) {
+			log.warn("The 'spool-threshold' of " + spoolThreshold + "kB is too large, using "
+					+ (Integer.MAX_VALUE / 1024) + "kB");
+			spoolBytes = (Integer.MAX_VALUE / 1024) * 1024;
+		}
+		spool = new DepositSpool((int) spoolBytes, spoolBuffers);
+		metrics = (Metrics) getServletContext().getAttribute(Metrics.class.getName());
+		if (metrics != null) {
+			metrics.setSpool(spool);
+		}
+
+		// Deposits may be limited per user and per collection, in requests
+		// and kB per second, with "rate-limit-burst" seconds of either at once.
+		RateLimiter limiter = new RateLimiter(getIntInitParameter("rate-limit-user-requests", 0),
+				getIntInitParameter("rate-limit-user-kbytes", 0) * 1024.0,
+				getIntInitParameter("rate-limit-collection-requests", 0),
+				getIntInitParameter("rate-limit-collection-kbytes", 0) * 1024.0,
+				getIntInitParameter("rate-limit-burst", 1));
+		if (limiter.isEnabled()) {
+			rateLimiter = limiter;
+		}
+
+		// Responses are remembered for "idempotency-ttl" seconds so that
+		// retried deposits are answered without being processed again.
+		int idempotencyCacheSize = getIntInitParameter("idempotency-cache-size", 1000);
+		if (idempotencyCacheSize > 0) {
+			int idempotencyTtl = getIntInitParameter("idempotency-ttl", 300);
+			idempotencyCache = new IdempotencyCache(idempotencyCacheSize, idempotencyTtl * 1000L);
+		}
+
+		// Packages may be uploaded in up to "segment-max-count" segments to a
+		// session, with up to "segment-sessions" open at once, each kept for
+		// "segment-session-ttl" seconds after its last segment was sent.
+		int maxSessions = getIntInitParameter("segment-sessions", 100);
+		if (maxSessions > 0) {
+			sessions = new DepositSessions(tempDir, maxSessions, getIntInitParameter("segment-max-count", 10000),
+					getIntInitParameter("segment-session-ttl", 3600) * 1000L);
+		}
 	}
 
 	/**
-	 * Process the Get request. This will return an unimplemented response.
+	 * Utility method to read an integer parameter from the servlet context.
+	 * 
+	 * @param name The name of the context parameter
+	 * @param defaultValue The value to use if the parameter is missing or invalid
+	 * @return The parameter's value
 	 */
-	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// Send a '501 Not Implemented'
-		response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+	private int getIntInitParameter(String name, int defaultValue) {
+		String value = getServletContext().getInitParameter(name);
+		if ((value == null) || (value.equals(""))) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid value for '" + name + "', using default: " + value);
+			return defaultValue;
+		}
 	}
 
 	/**
-	 * Process a post request.
+	 * Stop processing any queued deposits.
 	 */
-	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// Create the Deposit request
-		Deposit d = new Deposit();
-		Date date = new Date();
-//		System.out.println("Starting deposit processing at " + date.toString() + " by "
-//				+ request.getRemoteAddr());
+	public void destroy() {
+		if (sessions != null) {
+			sessions.destroy();
+		}
+		if (ownRepository) {
+			((MockSwordServer) myRepository).destroy();
+		}
+	}
 
-		// Are there any authentication details?
+	/**
+	 * @return The queue to process deposits on in the background, or null if
+	 *         they are processed while the client waits.
+	 */
+	private DepositQueue getDepositQueue() {
+		if (myRepository instanceof MockSwordServer) {
+			return ((MockSwordServer) myRepository).getDepositQueue();
+		}
+		return null;
+	}
+
+	/**
+	 * Process the Get request. Requests for the status URI of a deposit being
+	 * processed in the background are answered with the deposit's status, and
+	 * requests for a deposit session with the segments it has received.
+	 * Anything else will return an unimplemented response.
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		if ((sessions != null) && (path != null) && (path.startsWith(SESSIONS))) {
+			MockSwordDeposit d = new MockSwordDeposit();
+			if (!setCredentials(d, request, response)) {
+				return;
+			}
+			DepositSessions.Session session = findSession(path.substring(SESSIONS.length()), d, response);
+			if (session != null) {
+				writeSession(session, HttpServletResponse.SC_NO_CONTENT, response);
+			}
+			return;
+		}
+		if ((getDepositQueue() == null) || (path == null) || (!path.startsWith("/status/"))) {
+			// Send a '501 Not Implemented'
+			response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+			return;
+		}
+
+		AtomDocumentRequest adr = new AtomDocumentRequest();
 		String usernamePassword = getUsernamePassword(request);
 		if ((usernamePassword != null) && (!usernamePassword.equals(""))) {
 			int p = usernamePassword.indexOf(":");
 			if (p != -1) {
-				d.setUsername(usernamePassword.substring(0, p));
-				d.setPassword(usernamePassword.substring(p + 1));
+				adr.setUsername(usernamePassword.substring(0, p));
+				adr.setPassword(usernamePassword.substring(p + 1));
 			}
 		} else if (authenticateWithBasic()) {
 			String s = "Basic realm=\"SWORD\"";
@@ -169,50 +316,164 @@ public class MockSwordDepositServlet extends HttpServlet {
 			response.setStatus(401);
 			return;
 		}
+		adr.setIPAddress(request.getRemoteAddr());
+		adr.setLocation(getUrl(request));
+
+		try {
+			AtomDocumentResponse dr = myRepository.doAtomDocument(adr);
+			response.setStatus(dr.getHttpResponse());
+			if ((dr.getLocation() != null) && (!dr.getLocation().equals(""))) {
+				response.setHeader("Location", dr.getLocation());
+			}
+			if (dr.getHttpResponse() == HttpServletResponse.SC_ACCEPTED) {
+				// Still being processed, ask the client to poll again shortly
+				response.setHeader("Retry-After", "1");
+				response.setContentLength(0);
+				return;
+			}
+			gzip.write(request, response, GzipEncoding.ATOM_ENTRY, AtomEntryWriter.toBytes(dr));
+		} catch (SWORDAuthenticationException sae) {
+			if (authN.equals("Basic")) {
+				String s = "Basic realm=\"SWORD\"";
+				response.setHeader("WWW-Authenticate", s);
+				response.setStatus(401);
+			}
+		} catch (SWORDErrorException see) {
+			this.makeErrorDocument(see.getErrorURI(), 
+		               			   see.getStatus(),
+		               			   see.getDescription(),
+		                           request,
+		                           response);
+		} catch (SWORDException se) {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Process a post request.
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		// Create the Deposit request
+		MockSwordDeposit d = new MockSwordDeposit();
+		Date date = new Date();
+//		System.out.println("Starting deposit processing at " + date.toString() + " by "
+//				+ request.getRemoteAddr());
+
+		// Are there any authentication details?
+		if (!setCredentials(d, request, response)) {
+			return;
+		}
+
+		// Find any latency or faults to inject
+		String collection = MockSwordServer.getCollection(getUrl(request));
+		FaultScenarios.Scenario scenario = getScenario(d.getUsername(), collection);
+		if ((scenario != null) && refuseDuringOutage(scenario, response)) {
+			return;
+		}
+
+		// Admit the deposit against the rate limits before its body is read
+		String limitedUser = (d.getUsername() != null) ? d.getUsername() : request.getRemoteAddr();
+		if ((rateLimiter != null) && refuseOverLimit(limitedUser, collection, request, response)) {
+			return;
+		}
+
+		// A package sent in segments is uploaded to a session opened first
+		String segments = request.getHeader(X_SEGMENT_COUNT);
+		if (segments != null) {
+			openSession(d.getUsername(), segments, request, response);
+			return;
+		}
+
+		InputStream in = request.getInputStream();
+		if (scenario != null) {
+			in = scenario.throttle(in);
+		}
+		deposit(d, in, scenario, limitedUser, request, response);
+	}
+
+	/**
+	 * Process a deposit, whose package is read from a stream.
+	 * 
+	 * @param in The package, as it was sent
+	 * @param scenario The latency and faults to inject, or null
+	 * @param limitedUser The user the package is charged to once it has been
+	 *        read, if its length was not known, or null if it has been already
+	 */
+	private void deposit(MockSwordDeposit d, InputStream in, FaultScenarios.Scenario scenario, String limitedUser,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		// A retried deposit is answered with the response to its first attempt
+		String identity = null;
+		if (idempotencyCache != null) {
+			String requestKey = request.getHeader("Idempotency-Key");
+			if (requestKey == null) {
+				requestKey = request.getHeader(HttpHeaders.SLUG);
+			}
+			identity = IdempotencyCache.identity(d.getUsername(), getUrl(request),
+					request.getHeader(HttpHeaders.X_ON_BEHALF_OF.toString()),
+					request.getHeader(HttpHeaders.X_NO_OP), requestKey);
+
+			// If the client told us the package's digest it need not even be read
+			String declaredSHA256 = getInstanceDigest(request, "SHA-256");
+			if ((identity != null) && (declaredSHA256 != null) && replay(identity, declaredSHA256, request, response)) {
+				return;
+			}
+		}
 		
 		// Set up some variables
-		String filename = null;
-		File f = null;
-		FileInputStream fis = null;
+		DepositSpool.SpooledBody body = null;
+		InputStream fis = null;
 
 		// Do the processing
 		try {
-			// Write the file to the temp directory
-			filename = tempDirectory + "SWORD-"
-					+ request.getRemoteAddr() + "-" + counter.addAndGet(1);
-			InputStream fin = request.getInputStream();
-			OutputStream fout = new FileOutputStream(new File(filename));
-			try
-			{
-			    byte[] buf = new byte[1024];
-			    int len;
-			    while ((len = fin.read(buf)) > 0)
-			    {
-			        fout.write(buf, 0, len);
-			    }
-			}
-			finally
-			{
-			    fin.close();
-			    fout.close();
+			// Spool the body, only spilling it to a new file in the temp
+			// directory if it is large. Both checksums are calculated as the body is received, so the
+			// package never has to be read back just to verify it. A gzip
+			// encoded body is decompressed first, so the package itself is
+			// spooled and digested, and no more than the largest package
+			// allowed is ever decompressed.
+			DigestingInputStream digester;
+			try {
+				InputStream decoded = GzipEncoding.decode(request, in);
+				if (maxUploadSize != -1) {
+					decoded = new LimitedInputStream(decoded, (maxUploadSize + 1) * 1024L - 1);
+				}
+				digester = new DigestingInputStream(decoded, "MD5", "SHA-256");
+				body = spool.spool(digester, new File(tempDirectory));
+			} catch (LimitedInputStream.LimitExceededException lee) {
+				refuseOverMaxUploadSize(lee.getLength(), request, response);
+				return;
+			} catch (IOException ioe) {
+				if (!GzipEncoding.isEncoded(request) || !((ioe instanceof ZipException) || (ioe instanceof EOFException))) {
+					throw ioe;
+				}
+				this.makeErrorDocument(ErrorCodes.ERROR_CONTENT,
+						               HttpServletResponse.SC_BAD_REQUEST,
+						               "The gzip encoded deposit could not be decompressed: " + ioe.getMessage(),
+						               request,
+						               response);
+				return;
+			}
+			if ((metrics != null) && !(request instanceof AssembledRequest)) {
+				// An assembled package's segments were counted as they arrived
+				metrics.addBytesIngested(body.length());
+			}
+			if ((rateLimiter != null) && (limitedUser != null) && (request.getContentLength() < 0)) {
+				// Sent without a length, so only charged now it has been read
+				rateLimiter.charge(limitedUser, MockSwordServer.getCollection(getUrl(request)), body.length());
 			}
 			
 			// Check the size is OK
-			File file = new File(filename);
-		    long fLength = file.length() / 1024;
-		    if ((maxUploadSize != -1) && (fLength > maxUploadSize)) {
-		    	this.makeErrorDocument(ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED, 
-		    			               HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 
-		    			               "The uploaded file exceeded the maximum file size this server will accept (the file is " + 
-		    			               fLength + "kB but the server will only accept files as large as " + 
-		    			               maxUploadSize + "kB)",
-		    			               request,
-		    			               response);
+		    if (refuseOverMaxUploadSize(body.length(), request, response)) {
 		    	return;
 		    }
+
+		    // Injected latency and faults, once the upload has been received
+		    if (scenario != null) {
+		    	scenario.inject();
+		    }
 		    
 			// Check the MD5 hash
-			String receivedMD5 = ChecksumUtils.generateMD5(filename);
+			String receivedMD5 = digester.getHexDigest("MD5");
 //			System.out.println("Received filechecksum: " + receivedMD5);
 			d.setMd5(receivedMD5);
 			String md5 = request.getHeader("Content-MD5");
@@ -226,11 +487,26 @@ public class MockSwordDepositServlet extends HttpServlet {
 						               response);
 //				System.out.println("Bad MD5 for file. Aborting with appropriate error message");
 				return;
+			}
+
+			// Check the SHA-256 hash, sent by newer clients as an RFC 3230 digest
+			String receivedSHA256 = digester.getHexDigest("SHA-256");
+			d.setSha256(receivedSHA256);
+			String sha256 = getInstanceDigest(request, "SHA-256");
+			if ((sha256 != null) && (!sha256.equals(receivedSHA256))) {
+				this.makeErrorDocument(ErrorCodes.ERROR_CHECKSUM_MISMATCH, 
+						               HttpServletResponse.SC_PRECONDITION_FAILED,
+						               "The received SHA-256 checksum for the deposited file did not match the checksum sent by the deposit client",
+						               request,
+						               response);
+				return;
+			} else if ((identity != null) && replay(identity, receivedSHA256, request, response)) {
+				return;
 			} else {
 				// Set the file
-				f = new File(filename);
-				fis = new FileInputStream(f);
+				fis = body.openStream();
 				d.setFile(fis);
+				d.setBody(body);
 
 				// Set the X-On-Behalf-Of header
                 String onBehalfOf = request.getHeader(HttpHeaders.X_ON_BEHALF_OF.toString());
@@ -287,35 +563,43 @@ public class MockSwordDepositServlet extends HttpServlet {
 				// Set the content type
 				d.setContentType(request.getContentType());
 
-				// Set the content length
+				// Set the content length, of the package rather than its encoding
+				// which for a package of 2GB or more is clamped to fit
 				String cl = request.getHeader(HttpHeaders.CONTENT_LENGTH);
-				if ((cl != null) && (!cl.equals(""))) {
-					d.setContentLength(Integer.parseInt(cl));
+				if (GzipEncoding.isEncoded(request)) {
+					d.setContentLength((int) Math.min(body.length(), Integer.MAX_VALUE));
+				} else if ((cl != null) && (!cl.equals(""))) {
+					d.setContentLength((int) Math.min(Long.parseLong(cl.trim()), Integer.MAX_VALUE));
+				}
+
+				// Hand the deposit to the background workers, if there are any
+				DepositQueue queue = getDepositQueue();
+				if (queue != null) {
+					String status = depositLater(queue, d, fis, body, request, response);
+					if (status != null) {
+						// The queued task now owns the body
+						fis = null;
+						body = null;
+						if (identity != null) {
+							idempotencyCache.put(identity, receivedSHA256, new IdempotencyCache.CachedResponse(
+									HttpServletResponse.SC_ACCEPTED, status, new byte[0]));
+						}
+					}
+					return;
 				}
 
 				// Get the DepositResponse
 				DepositResponse dr = myRepository.doDeposit(d);
+				echoHeaders(dr, request.getHeader(HttpHeaders.USER_AGENT.toString()),
+						request.getHeader(HttpHeaders.X_PACKAGING.toString()));
 				
-				// Echo back the user agent
-				if (request.getHeader(HttpHeaders.USER_AGENT.toString()) != null) {
-					dr.getEntry().setUserAgent(request.getHeader(HttpHeaders.USER_AGENT.toString()));
-				}
-				
-				// Echo back the packaging format
-				if (request.getHeader(HttpHeaders.X_PACKAGING.toString()) != null) {
-					dr.getEntry().setPackaging(request.getHeader(HttpHeaders.X_PACKAGING.toString()));
+				// Print out the Deposit Response, remembering it in case of a retry
+				IdempotencyCache.CachedResponse sent = new IdempotencyCache.CachedResponse(
+						dr.getHttpResponse(), dr.getLocation(), AtomEntryWriter.toBytes(dr));
+				if (identity != null) {
+					idempotencyCache.put(identity, receivedSHA256, sent);
 				}
-				
-				// Print out the Deposit Response
-				response.setStatus(dr.getHttpResponse());
-				if ((dr.getLocation() != null) && (!dr.getLocation().equals("")))
-				{
-					response.setHeader("Location", dr.getLocation());
-				}
-				response.setContentType("application/atom+xml; charset=UTF-8");
-				PrintWriter out = response.getWriter();
-				out.write(dr.marshall());
-				out.flush();
+				writeDepositResponse(sent, request, response);
 			}
 		} catch (SWORDAuthenticationException sae) {
 			// Ask for credentials again
@@ -347,14 +631,307 @@ public class MockSwordDepositServlet extends HttpServlet {
 				fis.close();
 			}
 
-			// Try deleting the temp file
-			if (filename != null) {
-				f = new File(filename);
-				f.delete();
+			// Release the spooled body, deleting any temp file
+			if (body != null) {
+				body.release();
 			}
 		}
 	}
 	
+	/**
+	 * Process a put request, storing a segment of a package sent to a deposit
+	 * session at /sessions/{id}/{number}. Segments may be sent in any order
+	 * and resent if they fail. Once every segment has been received the
+	 * package is assembled from them and deposited, and the response to the
+	 * last segment is the deposit's response.
+	 */
+	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		int slash = (path == null) ? -1 : path.lastIndexOf('/');
+		if ((sessions == null) || (path == null) || (!path.startsWith(SESSIONS)) || (slash < SESSIONS.length())) {
+			response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+			return;
+		}
+
+		MockSwordDeposit d = new MockSwordDeposit();
+		if (!setCredentials(d, request, response)) {
+			return;
+		}
+		DepositSessions.Session session = findSession(path.substring(SESSIONS.length(), slash), d, response);
+		if (session == null) {
+			return;
+		}
+		int number;
+		try {
+			number = Integer.parseInt(path.substring(slash + 1));
+		} catch (NumberFormatException nfe) {
+			number = 0;
+		}
+		if ((number < 1) || (number > session.getCount())) {
+			this.makeErrorDocument(ErrorCodes.ERROR_BAD_REQUEST,
+					               HttpServletResponse.SC_BAD_REQUEST,
+					               "The package was to be sent in segments numbered from 1 to " + session.getCount(),
+					               request,
+					               response);
+			return;
+		}
+
+		// Each segment is subject to the faults and rate limits of a deposit
+		String collection = MockSwordServer.getCollection(session.getUrl());
+		FaultScenarios.Scenario scenario = getScenario(d.getUsername(), collection);
+		if ((scenario != null) && refuseDuringOutage(scenario, response)) {
+			return;
+		}
+		String limitedUser = (d.getUsername() != null) ? d.getUsername() : request.getRemoteAddr();
+		if ((rateLimiter != null) && refuseOverLimit(limitedUser, collection, request, response)) {
+			return;
+		}
+		long others = session.getLengthWithout(number);
+		if (refuseOverMaxUploadSize(others + Math.max(request.getContentLength(), 0), request, response)) {
+			return;
+		}
+
+		// Write the segment to a file of its own, only replacing any sent
+		// before once it has all been received
+		File file = session.createSegmentFile();
+		boolean complete;
+		try {
+			InputStream in = request.getInputStream();
+			if (scenario != null) {
+				in = scenario.throttle(in);
+			}
+			DigestingInputStream digester = new DigestingInputStream(in, "MD5", "SHA-256");
+			long length = copy(digester, file);
+			if (metrics != null) {
+				metrics.addBytesIngested(length);
+			}
+			if ((rateLimiter != null) && (request.getContentLength() < 0)) {
+				rateLimiter.charge(limitedUser, collection, length);
+			}
+			if (refuseOverMaxUploadSize(others + length, request, response)) {
+				file.delete();
+				return;
+			}
+
+			// A segment may carry its own checksums, so a corrupt one can be resent alone
+			String md5 = request.getHeader("Content-MD5");
+			String sha256 = getInstanceDigest(request, "SHA-256");
+			if (((md5 != null) && (!md5.equals(digester.getHexDigest("MD5"))))
+					|| ((sha256 != null) && (!sha256.equals(digester.getHexDigest("SHA-256"))))) {
+				file.delete();
+				this.makeErrorDocument(ErrorCodes.ERROR_CHECKSUM_MISMATCH, 
+						               HttpServletResponse.SC_PRECONDITION_FAILED,
+						               "The received checksum for segment " + number + " did not match the checksum sent by the deposit client",
+						               request,
+						               response);
+				return;
+			}
+			complete = session.store(number, file, length);
+		} catch (SWORDErrorException see) {
+			// The session was closed, or is being assembled
+			this.makeErrorDocument(see.getErrorURI(), 
+           			               see.getStatus(),
+           			               see.getDescription(),
+                                   request,
+                                   response);
+			return;
+		} catch (NoSuchAlgorithmException nsae) {
+			file.delete();
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return;
+		} catch (IOException ioe) {
+			// The client went away, the segment can be sent again
+			file.delete();
+			throw ioe;
+		}
+		if (!complete) {
+			writeSession(session, HttpServletResponse.SC_NO_CONTENT, response);
+			return;
+		}
+
+		// Deposit the package from its segments, closing the session once it
+		// has been accepted. If it is refused the segments are kept, so any
+		// which were wrong can be resent.
+		MockSwordMetricsFilter.StatusRecorder recorder = new MockSwordMetricsFilter.StatusRecorder(response);
+		boolean deposited = false;
+		InputStream in = session.openStream();
+		try {
+			deposit(d, in, scenario, null, new AssembledRequest(request, session), recorder);
+			deposited = (recorder.getStatus() < 300);
+		} finally {
+			in.close();
+			session.assembled();
+			if (deposited) {
+				sessions.remove(session);
+			}
+		}
+	}
+
+	/**
+	 * Process a delete request, abandoning the deposit session at
+	 * /sessions/{id} and deleting its segments.
+	 */
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		if ((sessions == null) || (path == null) || (!path.startsWith(SESSIONS))) {
+			response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+			return;
+		}
+
+		MockSwordDeposit d = new MockSwordDeposit();
+		if (!setCredentials(d, request, response)) {
+			return;
+		}
+		DepositSessions.Session session = findSession(path.substring(SESSIONS.length()), d, response);
+		if (session == null) {
+			return;
+		}
+		if (!sessions.abort(session)) {
+			this.makeErrorDocument(ErrorCodes.ERROR_BAD_REQUEST,
+					               HttpServletResponse.SC_CONFLICT,
+					               "The package is being assembled from its segments",
+					               request,
+					               response);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	/**
+	 * Open a session to upload a package to in segments, and answer with
+	 * '201 Created' and the session's URI. The segments are then put to the
+	 * session's URI followed by their number, i.e. /sessions/{id}/1.
+	 * 
+	 * @param username The user opening the session, or null
+	 * @param segments The number of segments the client asked for
+	 */
+	private void openSession(String username, String segments, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (sessions == null) {
+			this.makeErrorDocument(ErrorCodes.ERROR_BAD_REQUEST,
+					               HttpServletResponse.SC_NOT_IMPLEMENTED,
+					               "Packages may not be deposited in segments",
+					               request,
+					               response);
+			return;
+		}
+		DepositSessions.Session session;
+		try {
+			session = sessions.open(username, segments, request);
+		} catch (SWORDErrorException see) {
+			this.makeErrorDocument(see.getErrorURI(), 
+		               			   see.getStatus(),
+		               			   see.getDescription(),
+		                           request,
+		                           response);
+			return;
+		}
+		if (session == null) {
+			log.info("Too many deposit sessions are open, refusing a segmented deposit from " + request.getRemoteAddr());
+			response.setHeader("Retry-After", "60");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many packages are being sent in segments");
+			return;
+		}
+		response.setHeader("Location", getServletUrl(request) + SESSIONS + session.getId());
+		writeSession(session, HttpServletResponse.SC_CREATED, response);
+	}
+
+	/**
+	 * Queue a deposit to be processed in the background, and acknowledge it
+	 * with '202 Accepted' and the URI its status can be polled at. Once the
+	 * deposit has been processed, or abandoned when the queue is shut down,
+	 * its stream is closed and its body released.
+	 * 
+	 * @return The status URI if the deposit was queued, null if the queue was
+	 *         full and the client has been asked to try again later.
+	 */
+	private String depositLater(DepositQueue queue, final MockSwordDeposit d, 
+			final InputStream fis, final DepositSpool.SpooledBody body,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		final String userAgent = request.getHeader(HttpHeaders.USER_AGENT.toString());
+		final String packaging = request.getHeader(HttpHeaders.X_PACKAGING.toString());
+		String id;
+		try {
+			id = queue.submit(new Callable<DepositResponse>() {
+				public DepositResponse call() throws Exception {
+					DepositResponse dr = myRepository.doDeposit(d);
+					echoHeaders(dr, userAgent, packaging);
+					return dr;
+				}
+			}, new Runnable() {
+				public void run() {
+					try {
+						fis.close();
+					} catch (IOException ioe) {
+						log.warn("Unable to close a queued deposit's stream", ioe);
+					} finally {
+						body.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			log.info("Deposit queue is full, refusing deposit from " + request.getRemoteAddr());
+			response.setHeader("Retry-After", "1");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many deposits are waiting to be processed");
+			return null;
+		}
+
+		StringBuffer status = getServletUrl(request);
+		status.append("/status/").append(id);
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setHeader("Location", status.toString());
+		response.setContentLength(0);
+		return status.toString();
+	}
+
+	/**
+	 * Answer a retried deposit with the response sent to its first attempt.
+	 * 
+	 * @param identity The deposit's identity from its headers
+	 * @param sha256 The digest of the deposited package
+	 * @return True if the deposit was a retry and has been answered.
+	 */
+	private boolean replay(String identity, String sha256, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		IdempotencyCache.CachedResponse sent = idempotencyCache.get(identity, sha256);
+		if (sent == null) {
+			return false;
+		}
+		log.info("Answering a retried deposit with its original response: " + sent.getLocation());
+		writeDepositResponse(sent, request, response);
+		return true;
+	}
+
+	/**
+	 * Write a deposit's response, compressed if the client accepts it.
+	 */
+	private void writeDepositResponse(IdempotencyCache.CachedResponse sent, 
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setStatus(sent.getStatus());
+		if ((sent.getLocation() != null) && (!sent.getLocation().equals(""))) {
+			response.setHeader("Location", sent.getLocation());
+		}
+		byte[] body = sent.getBody();
+		if (body.length == 0) {
+			response.setContentLength(0);
+			return;
+		}
+		gzip.write(request, response, GzipEncoding.ATOM_ENTRY, body);
+	}
+
+	/**
+	 * Echo the client's user agent and packaging format back in the deposit's
+	 * entry.
+	 */
+	private static void echoHeaders(DepositResponse dr, String userAgent, String packaging) {
+		if (userAgent != null) {
+			dr.getEntry().setUserAgent(userAgent);
+		}
+		if (packaging != null) {
+			dr.getEntry().setPackaging(packaging);
+		}
+	}
+
 	/**
 	 * Utility method to construct a SWORDErrorDocumentTest
 	 * 
@@ -384,10 +961,154 @@ public class MockSwordDepositServlet extends HttpServlet {
 			sed.setUserAgent(request.getHeader(HttpHeaders.USER_AGENT.toString()));
 		}
 		response.setStatus(status);
-    	response.setContentType("application/atom+xml; charset=UTF-8");
-		PrintWriter out = response.getWriter();
-    	out.write(sed.marshall().toXML());
-		out.flush();
+		gzip.write(request, response, GzipEncoding.ATOM_ENTRY, sed.marshall().toXML().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Utility method to find the latency and faults to inject into a request
+	 * 
+	 * @param username The authenticated user, or null
+	 * @param collection The collection the request is for, or null
+	 * @return The scenario, or null if nothing is injected
+	 */
+	private FaultScenarios.Scenario getScenario(String username, String collection) {
+		if (myRepository instanceof MockSwordServer) {
+			FaultScenarios scenarios = ((MockSwordServer) myRepository).getFaultScenarios();
+			if (scenarios != null) {
+				return scenarios.select(username, collection);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Utility method to refuse a request with '503 Service Unavailable' during
+	 * an injected outage
+	 * 
+	 * @return True if the request was refused
+	 */
+	private boolean refuseDuringOutage(FaultScenarios.Scenario scenario, HttpServletResponse response) throws IOException {
+		long remaining = scenario.outageRemaining(System.currentTimeMillis());
+		if (remaining <= 0) {
+			return false;
+		}
+		response.setHeader("Retry-After", Long.toString((remaining + 999) / 1000));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The repository is unavailable (injected outage)");
+		return true;
+	}
+
+	/**
+	 * Utility method to refuse a request with '503 Service Unavailable' when
+	 * the user or the collection is over its rate limit
+	 * 
+	 * @return True if the request was refused
+	 */
+	private boolean refuseOverLimit(String user, String collection, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		long wait = rateLimiter.admit(user, collection, request.getContentLength());
+		if (wait == 0) {
+			return false;
+		}
+		log.info("Deposit from " + user + " to " + collection + " is over the rate limit");
+		response.setHeader("Retry-After", Long.toString(Math.max((wait + 999999999L) / 1000000000L, 1)));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many deposits, try again later");
+		return true;
+	}
+
+	/**
+	 * Utility method to refuse a deposit with '413 Request Entity Too Large'
+	 * once it is larger than the maximum upload size
+	 * 
+	 * @param length The length of the deposit in bytes
+	 * @return True if the deposit was refused
+	 */
+	private boolean refuseOverMaxUploadSize(long length, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		long fLength = length / 1024;
+		if ((maxUploadSize == -1) || (fLength <= maxUploadSize)) {
+			return false;
+		}
+		this.makeErrorDocument(ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED, 
+				               HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, 
+				               "The uploaded file exceeded the maximum file size this server will accept (the file is " + 
+				               fLength + "kB but the server will only accept files as large as " + 
+				               maxUploadSize + "kB)",
+				               request,
+				               response);
+		return true;
+	}
+
+	/**
+	 * Utility method to find a deposit session, answering '404 Not Found' if
+	 * there is no such session or it belongs to another user
+	 * 
+	 * @param id The session's id
+	 * @param d The deposit holding the user's credentials
+	 * @return The session, or null if it was not found
+	 */
+	private DepositSessions.Session findSession(String id, MockSwordDeposit d, HttpServletResponse response)
+			throws IOException {
+		DepositSessions.Session session = sessions.get(id);
+		if ((session == null) || (!session.isOwnedBy(d.getUsername()))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Utility method to answer with the segments a deposit session has
+	 * received, in the "X-Segment-Count" and "X-Segments-Received" headers
+	 */
+	private static void writeSession(DepositSessions.Session session, int status, HttpServletResponse response) {
+		response.setStatus(status);
+		response.setHeader(X_SEGMENT_COUNT, Integer.toString(session.getCount()));
+		response.setHeader("X-Segments-Received", session.getReceived());
+		response.setContentLength(0);
+	}
+
+	/**
+	 * Utility method to copy a stream to a file
+	 * 
+	 * @return The number of bytes copied
+	 */
+	private static long copy(InputStream in, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			long length = 0;
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+				length += len;
+			}
+			return length;
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Utility method to fill in the username and password of a request, or
+	 * ask for them if they are required and were not sent
+	 * 
+	 * @return False if the client has been asked for credentials
+	 */
+	private boolean setCredentials(MockSwordDeposit d, HttpServletRequest request, HttpServletResponse response) {
+		String usernamePassword = getUsernamePassword(request);
+		if ((usernamePassword != null) && (!usernamePassword.equals(""))) {
+			int p = usernamePassword.indexOf(":");
+			if (p != -1) {
+				d.setUsername(usernamePassword.substring(0, p));
+				d.setPassword(usernamePassword.substring(p + 1));
+			}
+		} else if (authenticateWithBasic()) {
+			String s = "Basic realm=\"SWORD\"";
+			response.setHeader("WWW-Authenticate", s);
+			response.setStatus(401);
+			return false;
+		}
+		return true;
 	}
 
 	/**
@@ -398,22 +1119,29 @@ public class MockSwordDepositServlet extends HttpServlet {
 	 * @return The username and password combination
 	 */
 	protected String getUsernamePassword(HttpServletRequest request) {
-		try {
-			String authHeader = request.getHeader("Authorization");
-			if (authHeader != null) {
-				StringTokenizer st = new StringTokenizer(authHeader);
-				if (st.hasMoreTokens()) {
-					String basic = st.nextToken();
-					if (basic.equalsIgnoreCase("Basic")) {
-						String credentials = st.nextToken();
-						String userPass = new String(Base64
-								.decodeBase64(credentials.getBytes()));
-						return userPass;
-					}
+		return credentials.getUsernamePassword(request.getHeader("Authorization"));
+	}
+
+	/**
+	 * Utility method to return a checksum sent in the RFC 3230 "Digest"
+	 * header, i.e. "Digest: SHA-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE="
+	 * 
+	 * @param request
+	 * @param algorithm The digest algorithm to look for
+	 * @return The digest as a lower case hex string, or null if none was sent
+	 */
+	protected String getInstanceDigest(HttpServletRequest request, String algorithm) {
+		String digestHeader = request.getHeader("Digest");
+		if (digestHeader != null) {
+			StringTokenizer st = new StringTokenizer(digestHeader, ",");
+			while (st.hasMoreTokens()) {
+				String instance = st.nextToken().trim();
+				int p = instance.indexOf("=");
+				if ((p != -1) && (instance.substring(0, p).trim().equalsIgnoreCase(algorithm))) {
+					byte[] digest = Base64.decodeBase64(instance.substring(p + 1).trim().getBytes());
+					return DigestingInputStream.toHex(digest);
 				}
 			}
-		} catch (Exception e) {
-//			System.out.println(e.toString());
 		}
 		return null;
 	}
@@ -445,4 +1173,70 @@ public class MockSwordDepositServlet extends HttpServlet {
 		}
 		return reqUrl;
 	}
+
+	/**
+	 * Utility method to construct the URL of this Servlet, without a trailing
+	 * slash
+	 * 
+	 * @param req The request object
+	 * @return The URL
+	 */
+	private static StringBuffer getServletUrl(HttpServletRequest req) {
+		StringBuffer url = req.getRequestURL();
+		url.setLength(url.length() - req.getRequestURI().length());
+		return url.append(req.getContextPath()).append(req.getServletPath());
+	}
+
+	/**
+	 * The request whose segment completed a package, as the deposit of the
+	 * whole package to the URL and with the headers the session was opened
+	 * with.
+	 */
+	private static class AssembledRequest extends HttpServletRequestWrapper {
+
+		private final DepositSessions.Session session;
+
+		/** The length of the package **/
+		private final long length;
+
+		AssembledRequest(HttpServletRequest request, DepositSessions.Session session) {
+			super(request);
+			this.session = session;
+			this.length = session.getLength();
+		}
+
+		public String getMethod() {
+			return "POST";
+		}
+
+		public StringBuffer getRequestURL() {
+			return new StringBuffer(session.getUrl());
+		}
+
+		public String getRequestURI() {
+			return session.getUri();
+		}
+
+		public String getQueryString() {
+			return session.getQuery();
+		}
+
+		public String getContentType() {
+			return session.getHeader("Content-Type");
+		}
+
+		public int getContentLength() {
+			return (length <= Integer.MAX_VALUE) ? (int) length : -1;
+		}
+
+		public String getHeader(String name) {
+			if (name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
+				return (length <= Integer.MAX_VALUE) ? Long.toString(length) : null;
+			}
+			if (session.isDepositHeader(name)) {
+				return session.getHeader(name);
+			}
+			return super.getHeader(name);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+package edu.tamu.mocksword.server;
+
+import nu.xom.Attribute;
+import nu.xom.Element;
+
+import org.purl.sword.base.SWORDEntry;
+
+/**
+ * A SWORD entry which also reports the checksum the mock server calculated for
+ * the deposited package. The checksum is written as an extension element at
+ * the end of the entry, clients which do not understand it will ignore it.
+ */
+public class MockSwordEntry extends SWORDEntry {
+
+	/** The namespace of the mock server's extension elements **/
+	public static final String NAMESPACE = "http://www.library.tamu.edu/mocksword/";
+
+	/** The prefix used for the mock server's extension elements **/
+	public static final String PREFIX = "mock";
+
+	/** The SHA-256 checksum of the deposited package **/
+	private String sha256;
+
+	/**
+	 * @return The SHA-256 checksum of the deposited package.
+	 */
+	public String getSha256() {
+		return sha256;
+	}
+
+	/**
+	 * @param sha256
+	 *            The SHA-256 checksum of the deposited package, as a hex string.
+	 */
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
+	protected void marshallElements(Element entry) {
+		super.marshallElements(entry);
+
+		if (sha256 != null) {
+			Element checksum = new Element(PREFIX + ":checksum", NAMESPACE);
+			checksum.addAttribute(new Attribute("algorithm", "SHA-256"));
+			checksum.appendChild(sha256);
+			entry.appendChild(checksum);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * MetricsFilter
+ *
+ * Times every request to the SWORD servlets and counts it in the server's
+ * {@link Metrics} by endpoint, collection and the status it was answered
+ * with. Deposits are counted as in flight until they have been answered.
+ */
+public class MockSwordMetricsFilter implements Filter {
+
+	/** The filter's configuration **/
+	private FilterConfig config;
+
+	/** The metrics requests are counted in, or null if there are none **/
+	private volatile Metrics metrics;
+
+	public void init(FilterConfig config) throws ServletException {
+		this.config = config;
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+			throws IOException, ServletException {
+		// Filters may be initialised before the repository which publishes
+		// the metrics, so they are looked up on first use.
+		Metrics metrics = this.metrics;
+		if (metrics == null) {
+			metrics = (Metrics) config.getServletContext().getAttribute(Metrics.class.getName());
+			this.metrics = metrics;
+		}
+		if ((metrics == null) || !(req instanceof HttpServletRequest)) {
+			chain.doFilter(req, resp);
+			return;
+		}
+		HttpServletRequest request = (HttpServletRequest) req;
+		String endpoint = getEndpoint(request);
+		if (endpoint == null) {
+			chain.doFilter(req, resp);
+			return;
+		}
+
+		boolean upload = endpoint.equals("deposit");
+		String collection = upload ? MockSwordServer.getCollection(request.getRequestURI()) : null;
+		StatusRecorder response = new StatusRecorder((HttpServletResponse) resp);
+		long start = System.nanoTime();
+		boolean answered = false;
+		if (upload) {
+			metrics.uploadStarted();
+		}
+		try {
+			chain.doFilter(request, response);
+			answered = true;
+		} finally {
+			if (upload) {
+				metrics.uploadFinished();
+			}
+			metrics.recordRequest(endpoint, collection,
+					answered ? response.getStatus() : HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					System.nanoTime() - start);
+		}
+	}
+
+	public void destroy() {
+	}
+
+	/**
+	 * @return The endpoint the request is for, or null if it is not counted.
+	 */
+	private static String getEndpoint(HttpServletRequest request) {
+		String servletPath = request.getServletPath();
+		if ("/deposit".equals(servletPath)) {
+			String path = request.getPathInfo();
+			if ((path != null) && path.startsWith("/status/")) {
+				return "status";
+			}
+			if ((path != null) && path.startsWith("/sessions/")) {
+				return "segment";
+			}
+			return "POST".equals(request.getMethod()) ? "deposit" : "other";
+		} else if ("/servicedocument".equals(servletPath)) {
+			return "servicedocument";
+		} else if ("/uploads".equals(servletPath)) {
+			return "uploads";
+		} else if ("/metrics".equals(servletPath)) {
+			return null;
+		}
+		return "other";
+	}
+
+	/**
+	 * A response which remembers the status it was given, as the servlet API
+	 * offers no way to ask for it.
+	 */
+	static class StatusRecorder extends HttpServletResponseWrapper {
+
+		/** The status set, 200 unless one was **/
+		private int status = HttpServletResponse.SC_OK;
+
+		StatusRecorder(HttpServletResponse response) {
+			super(response);
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@SuppressWarnings("deprecation")
+		public void setStatus(int sc, String sm) {
+			status = sc;
+			super.setStatus(sc, sm);
+		}
+
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+
+		public void sendRedirect(String location) throws IOException {
+			status = HttpServletResponse.SC_FOUND;
+			super.sendRedirect(location);
+		}
+	}
+}
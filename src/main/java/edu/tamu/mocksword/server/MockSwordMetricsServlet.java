@@ -0,0 +1,36 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * MetricsServlet
+ *
+ * Exposes the server's request counts, latencies, bytes ingested, spool
+ * usage and service document cache statistics at /metrics, in the
+ * Prometheus text format.
+ */
+public class MockSwordMetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Process the get request.
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		Metrics metrics = (Metrics) getServletContext().getAttribute(Metrics.class.getName());
+		if (metrics == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		metrics.write(out);
+		out.flush();
+	}
+}
@@ -2,34 +2,54 @@ package edu.tamu.mocksword.server;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.log4j.Logger;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
+import org.jdom.Namespace;
 import org.jdom.input.SAXBuilder;
-import org.jdom.xpath.XPath;
+import org.mortbay.jetty.AbstractConnector;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.Server;
+import org.mortbay.jetty.bio.SocketConnector;
+import org.mortbay.jetty.nio.BlockingChannelConnector;
+import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.security.Constraint;
 import org.mortbay.jetty.security.ConstraintMapping;
 import org.mortbay.jetty.security.HashUserRealm;
 import org.mortbay.jetty.security.SecurityHandler;
+import org.mortbay.jetty.security.UserRealm;
 import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.ThreadPool;
 import org.purl.sword.atom.Author;
 import org.purl.sword.atom.Content;
 import org.purl.sword.atom.Contributor;
@@ -39,28 +59,27 @@ import org.purl.sword.atom.Summary;
 import org.purl.sword.atom.Title;
 import org.purl.sword.base.AtomDocumentRequest;
 import org.purl.sword.base.AtomDocumentResponse;
-import org.purl.sword.base.Collection;
 import org.purl.sword.base.Deposit;
 import org.purl.sword.base.DepositResponse;
 import org.purl.sword.base.ErrorCodes;
 import org.purl.sword.base.SWORDAuthenticationException;
-import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDErrorException;
 import org.purl.sword.base.SWORDException;
-import org.purl.sword.base.Service;
 import org.purl.sword.base.ServiceDocument;
 import org.purl.sword.base.ServiceDocumentRequest;
-import org.purl.sword.base.Workspace;
 import org.purl.sword.server.SWORDServer;
 
 /**
  * This is a simple (aka very dumb) mock sword server. It will respond to
  * service document requests and deposit requests correctly but will not
  * actually depost the requests into anything. Instead they will just be dropped
- * on the floor.
+ * on the floor, unless a deposit store is configured in which case the
+ * packages are kept so they can be fetched back from their content source.
  * 
- * The workspaces and collections are hard coded in the application, providing
- * three deposit collections (a,b,c) across two workspaces. For authentication
+ * The workspaces and collections advertised are described by a
+ * CollectionTopology. By default this is the mock's own three deposit
+ * collections (a,b,c) across two workspaces, but the "collections" parameter
+ * may name a properties file describing any other topology. For authentication
  * any username and password pair are accepted as long as they are the same
  * value. Also if no username or password is supplied then the credentials are
  * not checked.
@@ -74,15 +93,346 @@ public class MockSwordServer implements SWORDServer {
 
 
 	/**
-	 * A counter to count submissions, so the response to a deposit can
+	 * Allocates the ids of submissions, so the response to a deposit can
 	 * increment
 	 */
-	private static int counter = 0;
+	private DepositIdAllocator ids = new DepositIdAllocator();
+
+	/** The METS namespace **/
+	private static final Namespace METS = Namespace.getNamespace("mets", "http://www.loc.gov/METS/");
+
+	/** The DSpace intermediate metadata namespace **/
+	private static final Namespace DIM = Namespace.getNamespace("dim", "http://www.dspace.org/xmlns/dspace/dim");
+
+	/** Formats each deposit's updated time, one formatter per thread as they are not thread safe **/
+	private static final ThreadLocal<SimpleDateFormat> UPDATED = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return sdf;
+		}
+	};
+
+	/** The workspaces and collections advertised **/
+	private CollectionTopology topology = CollectionTopology.defaults();
+
+	/** Renders the topology's service documents **/
+	private ServiceDocumentWriter serviceDocuments = new ServiceDocumentWriter(topology, 0);
+
+	/** The compiled metadata rules, keyed by collection **/
+	private Map<String, MetadataRuleSet> metadataRules;
+
+	/** Validator for streaming mode, or null to build a JDOM document **/
+	private StreamingMetsValidator streamingValidator = new StreamingMetsValidator();
+
+	/** Whether spooled packages are read through their central directory **/
+	private boolean randomAccess = true;
+
+	/** Verifier for package contents, or null if contents are not checked **/
+	private PackageVerifier packageVerifier;
+
+	/** The threads packages are verified on, or null **/
+	private ExecutorService verifyExecutor;
+
+	/** Queue for deposits processed in the background, or null **/
+	private DepositQueue depositQueue;
+
+	/** Store accepted packages are kept in, or null to drop them **/
+	private DepositStore depositStore;
+
+	/** Latency and faults injected into responses, or null **/
+	private FaultScenarios faultScenarios;
+
+	/** Counts of the requests handled **/
+	private final Metrics metrics = new Metrics();
+
+	/** Log the requests received are captured in, or null **/
+	private CaptureLog captureLog;
+
+	/**
+	 * Create a new mock sword server, checking deposits against the bundled
+	 * metadata rules.
+	 */
+	public MockSwordServer() {
+		InputStream in = MockSwordServer.class.getResourceAsStream("/metadata-rules.properties");
+		try {
+			metadataRules = MetadataRuleSet.load(in);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Unable to load the default metadata rules", ioe);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ioe) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Configure the mock server from the servlet context it has been loaded
+	 * by. If the "metadata-rules" init parameter names a file, the metadata
+	 * rules are loaded from it instead of the bundled defaults. If
+	 * "collections" names a file, the workspaces and collections advertised
+	 * are read from it, see {@link CollectionTopology}, and if
+	 * "service-document-page-size" is set each workspace lists at most that
+	 * many collections per document, the rest on sub-service documents. The
+	 * "mets-validation" parameter selects how manifests are validated,
+	 * either "stream" (the default) or "dom". The "zip-access" parameter
+	 * selects how packages are read, either "directory" (the default) to seek
+	 * straight to the manifest through the zip's central directory, or
+	 * "stream" to scan every entry in turn. Setting "verify-package-contents"
+	 * to true checks the package's files against the manifest's file section,
+	 * on a fork-join pool of "verify-threads" threads (by default one per
+	 * processor). A package whose central directory can not be read, such as
+	 * a Zip64 archive, can not be verified and is refused.
+	 * 
+	 * Setting "deposit-processing" to "async" processes deposits in the
+	 * background on "async-workers" threads (by default one per processor),
+	 * with up to "async-queue" deposits (default 100) waiting for a worker.
+	 * The status of the last "async-retain" finished deposits (default 1000)
+	 * can be polled.
+	 * 
+	 * Deposit ids count from one unless "deposit-id-file" names a file, in
+	 * which case they are reserved in blocks of "deposit-id-block" (default
+	 * 100) and recorded there, so a restarted server never reuses an id. If
+	 * "node-id" is set it prefixes every id, so several servers can run side
+	 * by side.
+	 * 
+	 * If "scenarios" names a file, the latency and fault scenarios in it are
+	 * injected into deposits and service document requests, see
+	 * {@link FaultScenarios}.
+	 * 
+	 * If "deposit-store" names a directory, accepted packages are kept there
+	 * so they can be fetched from /uploads, up to a total of
+	 * "deposit-store-size" MB (default 1024).
+	 * 
+	 * If "capture-log" names a file, every service document and deposit
+	 * request is captured there so it can be replayed, see
+	 * {@link CaptureLog}. Bodies over "capture-inline-size" kB (default 64)
+	 * are kept beside the log rather than in it.
+	 * 
+	 * The server's {@link Metrics} are shared through the context, so that
+	 * requests can be counted and served at /metrics.
+	 * 
+	 * @param context
+	 *            The servlet context.
+	 * @throws ServletException
+	 *             If the configuration is not valid.
+	 */
+	public void init(ServletContext context) throws ServletException {
+		String rulesFile = context.getInitParameter("metadata-rules");
+		if ((rulesFile != null) && (!rulesFile.equals(""))) {
+			try {
+				InputStream in = new FileInputStream(rulesFile);
+				try {
+					metadataRules = MetadataRuleSet.load(in);
+				} finally {
+					in.close();
+				}
+				log.info("Loaded metadata rules from: " + rulesFile);
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to read metadata rules: " + rulesFile, ioe);
+			} catch (IllegalArgumentException iae) {
+				throw new ServletException("Invalid metadata rules in " + rulesFile + ": " + iae.getMessage(), iae);
+			}
+		}
+
+		String collectionsFile = context.getInitParameter("collections");
+		if ((collectionsFile != null) && (!collectionsFile.equals(""))) {
+			try {
+				InputStream in = new FileInputStream(collectionsFile);
+				try {
+					topology = CollectionTopology.load(in);
+				} finally {
+					in.close();
+				}
+				log.info("Loaded " + topology.getCollectionCount() + " collections from: " + collectionsFile);
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to read collections: " + collectionsFile, ioe);
+			} catch (IllegalArgumentException iae) {
+				throw new ServletException("Invalid collections in " + collectionsFile + ": " + iae.getMessage(), iae);
+			}
+		}
+		serviceDocuments = new ServiceDocumentWriter(topology,
+				getIntInitParameter(context, "service-document-page-size", 0));
+
+		String validation = context.getInitParameter("mets-validation");
+		if ("dom".equals(validation)) {
+			streamingValidator = null;
+		} else if ((validation != null) && (!validation.equals("")) && (!validation.equals("stream"))) {
+			throw new ServletException("Unknown mets-validation mode: " + validation);
+		}
+
+		String zipAccess = context.getInitParameter("zip-access");
+		if ("stream".equals(zipAccess)) {
+			randomAccess = false;
+		} else if ((zipAccess != null) && (!zipAccess.equals("")) && (!zipAccess.equals("directory"))) {
+			throw new ServletException("Unknown zip-access mode: " + zipAccess);
+		}
+
+		if ("true".equals(context.getInitParameter("verify-package-contents"))) {
+			if (!randomAccess) {
+				throw new ServletException("verify-package-contents requires zip-access to be 'directory'");
+			}
+			int threads = getIntInitParameter(context, "verify-threads", Runtime.getRuntime().availableProcessors());
+			verifyExecutor = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("mock-sword-verify-" + thread.getPoolIndex());
+					return thread;
+				}
+			}, null, false);
+			packageVerifier = new PackageVerifier(verifyExecutor);
+		}
+
+		String processing = context.getInitParameter("deposit-processing");
+		if ("async".equals(processing)) {
+			depositQueue = new DepositQueue(
+					getIntInitParameter(context, "async-workers", Runtime.getRuntime().availableProcessors()),
+					getIntInitParameter(context, "async-queue", 100),
+					getIntInitParameter(context, "async-retain", 1000));
+		} else if ((processing != null) && (!processing.equals("")) && (!processing.equals("sync"))) {
+			throw new ServletException("Unknown deposit-processing mode: " + processing);
+		}
+
+		String nodeId = context.getInitParameter("node-id");
+		String idFile = context.getInitParameter("deposit-id-file");
+		if ((idFile != null) && (!idFile.equals(""))) {
+			try {
+				ids = new DepositIdAllocator(nodeId, new File(idFile),
+						getIntInitParameter(context, "deposit-id-block", 100));
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to read the deposit id file: " + idFile, ioe);
+			}
+		} else {
+			ids = new DepositIdAllocator(nodeId);
+		}
+
+		String scenariosFile = context.getInitParameter("scenarios");
+		if ((scenariosFile != null) && (!scenariosFile.equals(""))) {
+			try {
+				InputStream in = new FileInputStream(scenariosFile);
+				try {
+					faultScenarios = FaultScenarios.load(in);
+				} finally {
+					in.close();
+				}
+				log.info("Loaded fault scenarios from: " + scenariosFile);
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to read fault scenarios: " + scenariosFile, ioe);
+			} catch (IllegalArgumentException iae) {
+				throw new ServletException("Invalid fault scenarios in " + scenariosFile + ": " + iae.getMessage(), iae);
+			}
+		}
+
+		String storeDirectory = context.getInitParameter("deposit-store");
+		if ((storeDirectory != null) && (!storeDirectory.equals(""))) {
+			long storeSize = getIntInitParameter(context, "deposit-store-size", 1024) * 1024L * 1024L;
+			try {
+				depositStore = new DepositStore(new File(storeDirectory), storeSize);
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to open the deposit store: " + storeDirectory, ioe);
+			}
+			// Shared with the servlet which serves the stored packages
+			context.setAttribute(DepositStore.class.getName(), depositStore);
+		}
+
+		String captureFile = context.getInitParameter("capture-log");
+		if ((captureFile != null) && (!captureFile.equals(""))) {
+			int regionSize = getIntInitParameter(context, "capture-region-size", 16) * 1024 * 1024;
+			try {
+				captureLog = new CaptureLog(new File(captureFile), regionSize);
+			} catch (IOException ioe) {
+				throw new ServletException("Unable to open the capture log: " + captureFile, ioe);
+			}
+			log.info("Capturing requests to: " + captureFile);
+			context.setAttribute(CaptureLog.class.getName(), captureLog);
+		}
+
+		context.setAttribute(Metrics.class.getName(), metrics);
+	}
+
+	/**
+	 * Read an integer init parameter from the servlet context.
+	 * 
+	 * @throws ServletException If the value is not a number
+	 */
+	private static int getIntInitParameter(ServletContext context, String name, int defaultValue)
+			throws ServletException {
+		String value = context.getInitParameter(name);
+		if ((value == null) || (value.equals(""))) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new ServletException("Invalid " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * @return The queue deposits are processed on in the background, or null
+	 *         if deposits are processed as they are received.
+	 */
+	public DepositQueue getDepositQueue() {
+		return depositQueue;
+	}
+
+	/**
+	 * @return The store accepted packages are kept in, or null if they are
+	 *         dropped.
+	 */
+	public DepositStore getDepositStore() {
+		return depositStore;
+	}
+
+	/**
+	 * @return The latency and faults to inject into responses, or null if
+	 *         none are.
+	 */
+	public FaultScenarios getFaultScenarios() {
+		return faultScenarios;
+	}
 
 	/**
-	 * Provides a dumb but plausible service document - it contains two
-	 * workspaces with three collections split between them, and one
-	 * personalized for the onBehalfOf user.
+	 * @return The log requests are captured in, or null if they are not.
+	 */
+	public CaptureLog getCaptureLog() {
+		return captureLog;
+	}
+
+	/**
+	 * @return The counts of the requests this server has handled.
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Stop any background processing, and close the capture log.
+	 */
+	public void destroy() {
+		if (depositQueue != null) {
+			depositQueue.shutdown();
+		}
+		if (verifyExecutor != null) {
+			verifyExecutor.shutdownNow();
+		}
+		if (captureLog != null) {
+			try {
+				captureLog.close();
+			} catch (IOException ioe) {
+				log.warn("Unable to close the capture log", ioe);
+			}
+		}
+	}
+
+	/**
+	 * Provides a dumb but plausible service document - by default it contains
+	 * two workspaces with three collections split between them, or the
+	 * configured topology. A location below /servicedocument asks for a page
+	 * of a workspace's collections. Only the collections visible to the
+	 * onBehalfOf user are listed, with that user's mediation flags.
 	 * 
 	 * @param onBehalfOf
 	 *            The user that the client is acting on behalf of
@@ -91,70 +441,69 @@ public class MockSwordServer implements SWORDServer {
 			throws SWORDAuthenticationException, SWORDErrorException,
 			SWORDException {
 
-		// Allow users to force the throwing of a SWORD error exception by
-		// setting the OBO user to 'error'
+		checkOnBehalfOf(sdr);
+
+		// Build the requested page of the topology
+		ServiceDocument document = serviceDocuments.build(serviceDocuments.page(sdr.getLocation(), sdr.getOnBehalfOf()));
+		log.info("Generated mock service document for " + sdr.getLocation());
+		return document;
+	}
+
+	/**
+	 * Write the service document for a request as it is produced, rather than
+	 * building it first as doServiceDocument does, so documents listing many
+	 * thousands of collections are cheap to serve. The request is checked
+	 * before anything is written.
+	 * 
+	 * @param maxUploadSize
+	 *            The largest deposit accepted in kB, or -1 if unlimited.
+	 * @param out
+	 *            The writer the UTF-8 document is written to.
+	 * @throws SWORDErrorException
+	 *             If the document is unknown or the on-behalf-of user is
+	 *             "error".
+	 */
+	public void writeServiceDocument(ServiceDocumentRequest sdr, int maxUploadSize, Writer out)
+			throws SWORDErrorException, IOException {
+		writeServiceDocument(getServiceDocumentPage(sdr), maxUploadSize, out);
+	}
+
+	/**
+	 * Check a service document request, and find the document it asks for.
+	 * 
+	 * @throws SWORDErrorException
+	 *             If the document is unknown or the on-behalf-of user is
+	 *             "error".
+	 */
+	public ServiceDocumentWriter.Page getServiceDocumentPage(ServiceDocumentRequest sdr) throws SWORDErrorException {
+		checkOnBehalfOf(sdr);
+		return serviceDocuments.page(sdr.getLocation(), sdr.getOnBehalfOf());
+	}
+
+	/**
+	 * Write a service document found by getServiceDocumentPage.
+	 * 
+	 * @param maxUploadSize
+	 *            The largest deposit accepted in kB, or -1 if unlimited.
+	 * @param out
+	 *            The writer the UTF-8 document is written to.
+	 */
+	public void writeServiceDocument(ServiceDocumentWriter.Page page, int maxUploadSize, Writer out)
+			throws IOException {
+		serviceDocuments.write(page, maxUploadSize, out);
+	}
+
+	/**
+	 * Allow users to force the throwing of a SWORD error exception by setting
+	 * the OBO user to 'error'.
+	 */
+	private static void checkOnBehalfOf(ServiceDocumentRequest sdr) throws SWORDErrorException {
 		if ((sdr.getOnBehalfOf() != null)
 				&& (sdr.getOnBehalfOf().equals("error"))) {
 			// Throw the error exception
 			log.info("OnBehalfOf user set to 'error', throwing a meaningless exception.");
 			throw new SWORDErrorException(ErrorCodes.MEDIATION_NOT_ALLOWED, "Mediated deposits not allowed");
 		}
-
-		// Create and return a dummy ServiceDocument
-		ServiceDocument document = new ServiceDocument();
-		Service service = new Service("1.3", true, true);
-		document.setService(service);
-
-		String location = sdr.getLocation().substring(0,
-				sdr.getLocation().length() - 16);
-
-		// Workspace 1
-		Workspace workspace = new Workspace();
-		workspace.setTitle("Workspace 1");
-		service.addWorkspace(workspace);
-
-		// Collection A
-		Collection collection = new Collection();
-		collection.setLocation(location + "/deposit/a");
-		collection.setTitle("Collection A");
-		collection.addAccepts("application/zip");
-		collection.addAcceptPackaging(
-				"http://purl.org/net/sword-types/METSDSpaceSIP", (float) 1.0);
-		collection
-		.setCollectionPolicy("This collection does not actually exist and will not receive deposits. ");
-		collection.setAbstract("This is test collection.");
-		collection.setMediation(true);
-		workspace.addCollection(collection);
-
-		// Collection B
-		collection = new Collection();
-		collection.setLocation(location + "/deposit/b");
-		collection.setTitle("Collection B");
-		collection.addAccepts("application/zip");
-		collection.addAcceptPackaging("http://purl.org/net/sword-types/METSDSpaceSIP", (float) 1.0);
-		collection.setCollectionPolicy("This collection does not actually exist and will not receive deposits. ");
-		collection.setAbstract("This is test collection.");
-		collection.setMediation(true);
-		workspace.addCollection(collection);
-
-		// Workspace 1
-		workspace = new Workspace();
-		workspace.setTitle("Workspace 2");
-		service.addWorkspace(workspace);
-
-		// Collection C
-		collection = new Collection();
-		collection.setLocation(location + "/deposit/c");
-		collection.setTitle("Collection C");
-		collection.addAccepts("application/zip");
-		collection.addAcceptPackaging("http://purl.org/net/sword-types/METSDSpaceSIP", (float) 1.0);
-		collection.setCollectionPolicy("This collection does not actually exist and will not receive deposits. ");
-		collection.setAbstract("This is test collection.");
-		collection.setMediation(true);
-		workspace.addCollection(collection);
-
-		log.info("Generated mock service document with three collections across two workspaces.");
-		return document;
 	}
 
 	/**
@@ -191,47 +540,45 @@ public class MockSwordServer implements SWORDServer {
 		if (deposit.getSlug() != null) {
 			filenames.append("(slug = " + deposit.getSlug() + ") ");
 		}
+		MetadataRuleSet rules = getMetadataRules(deposit.getLocation());
 		try {
-			ZipInputStream zip = new ZipInputStream(deposit.getFile());
-			ZipEntry ze;
-			while ((ze = zip.getNextEntry()) != null) {
-
-				filenames.append(" " + ze.toString());
-
-				/* Build the mets.xml file as a string */
-				String rawMets = "";
-				StringBuilder sb = new StringBuilder();
-				if ("mets.xml".equals(ze.getName())) {
+			ZipDirectory directory = openDirectory(deposit);
+			if (directory != null) {
+				// Jump straight to the manifest, the other entries are only
+				// listed from the directory and never decompressed.
+				for (ZipDirectory.Entry entry : directory.getEntries()) {
+					filenames.append(" " + entry.toString());
+				}
+				ZipDirectory.Entry manifest = directory.getEntry("mets.xml");
+				if (manifest != null) {
 					metsFound = true;
-					byte[] buf = new byte[1024];
-					int len;
-
-					while ((len = zip.read(buf)) > 0) {
-						sb.append(new String(buf, 0, len));
+					InputStream in = directory.openStream(manifest);
+					try {
+						verifyManifest(in, rules);
+					} finally {
+						in.close();
 					}
+					if (packageVerifier != null) {
+						verifyContents(directory, manifest);
+					}
+				}
+			} else {
+				if (packageVerifier != null) {
+					// Contents are only verified through the directory, and
+					// turning verification on must never let a package skip it
+					log.info("Refusing a package whose contents can not be verified");
+					throw new SWORDErrorException(ErrorCodes.ERROR_CONTENT,
+							"The package's contents can not be verified, as its zip central directory can not be read");
+				}
+				ZipInputStream zip = new ZipInputStream(deposit.getFile());
+				ZipEntry ze;
+				while ((ze = zip.getNextEntry()) != null) {
 
-					rawMets = sb.toString();
-
-					SAXBuilder builder = new SAXBuilder();
-					Document doc = builder.build(new StringReader(rawMets));
-					Map<String, Element> tests = new HashMap<String, Element>();
-
-					// Three required metadata fields
-					tests.put("dc.title", getField(doc, "dc", "title"));
-					//tests.put("dc.creator", getField(doc, "dc", "creator"));
-					//tests.put("dc.date", getField(doc, "dc", "date"));
+					filenames.append(" " + ze.toString());
 
-					// If any of the fields come back empty, we are missing
-					// metadata. Something is wrong.
-					if (tests.containsValue(null) || tests.containsValue("")) {
-						for (String key : tests.keySet()) {
-							if(tests.get(key) == null|| "".equals(tests.get(key))){
-								log.info("Required field is missing or empty: "+ key);
-							}
-						}
-						throw new SWORDException(
-								"Missing or empty required fields", null,
-								ErrorCodes.ERROR_CONTENT);
+					if ("mets.xml".equals(ze.getName())) {
+						metsFound = true;
+						verifyManifest(new EntryInputStream(zip), rules);
 					}
 				}
 			}
@@ -243,6 +590,10 @@ public class MockSwordServer implements SWORDServer {
 			log.error("Encountered a JDOM exception while procesing the metadata",e);
 			throw new SWORDException("Encountered a JDOM exception while procesing the metadata", null,
 					ErrorCodes.ERROR_CONTENT);
+		} catch (XMLStreamException e) {
+			log.error("Encountered an XML stream exception while procesing the metadata",e);
+			throw new SWORDException("Encountered an XML stream exception while procesing the metadata", null,
+					ErrorCodes.ERROR_CONTENT);
 		} catch (RuntimeException re) {
 			log.error("Encountered a Runtime Exception while procesing the metadata",re);
 			throw new SWORDException("Encountered a Runtime Exception while procesing the metadata", null,
@@ -256,11 +607,15 @@ public class MockSwordServer implements SWORDServer {
 
 
 		// Handle the deposit
-		if (!deposit.isNoOp()) {
-			counter++;
+		String counter;
+		try {
+			counter = deposit.isNoOp() ? ids.current() : ids.next();
+		} catch (IOException ioe) {
+			log.error("Unable to allocate a deposit id", ioe);
+			throw new SWORDException("Unable to allocate a deposit id", ioe);
 		}
 		DepositResponse dr = new DepositResponse(Deposit.CREATED);
-		SWORDEntry se = new SWORDEntry();
+		MockSwordEntry se = new MockSwordEntry();
 
 		Title t = new Title();
 		t.setContent("DummyServer Deposit: #" + counter);
@@ -274,10 +629,7 @@ public class MockSwordServer implements SWORDServer {
 			se.setId("http://localhost/sword/deposit/" + counter);
 		}
 
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-		TimeZone utc = TimeZone.getTimeZone("UTC");
-		sdf.setTimeZone(utc);
-		String milliFormat = sdf.format(new Date());
+		String milliFormat = UPDATED.get().format(new Date());
 		se.setUpdated(milliFormat);
 
 		Summary s = new Summary();
@@ -311,8 +663,13 @@ public class MockSwordServer implements SWORDServer {
 		} catch (InvalidMediaTypeException ex) {
 			ex.printStackTrace();
 		}
-		content.setSource("http://localhost/uploads/upload-" + counter
-				+ ".zip");
+		String stored = storePackage(deposit);
+		if (stored != null) {
+			content.setSource(stored);
+		} else {
+			content.setSource("http://localhost/uploads/upload-" + counter
+					+ ".zip");
+		}
 		se.setContent(content);
 
 		// A required human-readable field
@@ -324,6 +681,11 @@ public class MockSwordServer implements SWORDServer {
 
 		se.setNoOp(deposit.isNoOp());
 
+		// Report the stronger checksum calculated while receiving the package
+		if (deposit instanceof MockSwordDeposit) {
+			se.setSha256(((MockSwordDeposit) deposit).getSha256());
+		}
+
 		dr.setEntry(se);
 
 		dr.setLocation("http://localhost/" + counter);
@@ -332,113 +694,582 @@ public class MockSwordServer implements SWORDServer {
 	}
 
 	/**
-	 * Parse the included JDOM element and pull out the specified dc value from
-	 * its descriptive metadata section
+	 * Read the central directory of the deposited package, if random access
+	 * is enabled and the servlet spooled the package for us.
+	 * 
+	 * @param deposit The deposit
+	 * @return The package's directory, or null if it must be read as a stream.
+	 */
+	private ZipDirectory openDirectory(Deposit deposit) throws IOException {
+		if (!randomAccess || !(deposit instanceof MockSwordDeposit)) {
+			return null;
+		}
+		DepositSpool.SpooledBody body = ((MockSwordDeposit) deposit).getBody();
+		if (body == null) {
+			return null;
+		}
+		ByteBuffer buffer = body.asByteBuffer();
+		if (buffer == null) {
+			return null;
+		}
+		try {
+			return new ZipDirectory(buffer);
+		} catch (ZipException ze) {
+			log.info("Unable to read the package's central directory, scanning it instead: " + ze.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Keep an accepted package in the deposit store, if there is one.
 	 * 
-	 * @param doc
-	 * @param schema
-	 * @param element
-	 * @param qualifier
-	 * @return
-	 * @throws JDOMException
+	 * @param deposit The deposit
+	 * @return The URI the package can be fetched from, or null if it was not
+	 *         stored.
 	 */
-	private Element getField(Document doc, String schema, String element,
-			String qualifier) throws JDOMException {
-		if (qualifier == null)
-			return getField(doc, schema, element);
+	private String storePackage(Deposit deposit) throws SWORDException {
+		if ((depositStore == null) || deposit.isNoOp() || !(deposit instanceof MockSwordDeposit)) {
+			return null;
+		}
+		MockSwordDeposit mock = (MockSwordDeposit) deposit;
+		if ((mock.getBody() == null) || (mock.getSha256() == null)) {
+			return null;
+		}
+		String key;
+		try {
+			key = depositStore.store(mock.getBody(), mock.getSha256());
+		} catch (IOException ioe) {
+			log.error("Failed to store the deposited package", ioe);
+			throw new SWORDException("Failed to store the deposited package", ioe);
+		}
+		if (key == null) {
+			return null;
+		}
 
-		XPath x = XPath
-				.newInstance("/mets:mets/mets:dmdSec/mets:mdWrap/mets:xmlData/dim:dim/dim:field"
-						+ "[@mdschema='"
-						+ schema
-						+ "'][@element='"
-						+ element
-						+ "'][@qualifier='" + qualifier + "']");
-		x.addNamespace("mets", "http://www.loc.gov/METS/");
-		x.addNamespace("dim", "http://www.dspace.org/xmlns/dspace/dim");
+		// The uploads live alongside the deposit servlet
+		String location = deposit.getLocation();
+		int p = location.indexOf("/deposit");
+		String base = (p == -1) ? "http://localhost" : location.substring(0, p);
+		return base + "/uploads/" + key + ".zip";
+	}
 
-		Element test = (Element) x.selectSingleNode(doc);
+	/**
+	 * Check that every file referenced by the manifest is present in the
+	 * package with the checksum the manifest gives, and that no entry in the
+	 * package is corrupt.
+	 * 
+	 * @param directory The package
+	 * @param manifest The package's manifest entry
+	 * @throws SWORDErrorException If the package's contents are not correct
+	 */
+	private void verifyContents(ZipDirectory directory, ZipDirectory.Entry manifest)
+			throws IOException, XMLStreamException, SWORDErrorException {
+		List<String> problems = packageVerifier.verify(directory, manifest);
+		if (!problems.isEmpty()) {
+			for (String problem : problems) {
+				log.info(problem);
+			}
+			String description = problems.get(0);
+			if (problems.size() > 1) {
+				description += " (and " + (problems.size() - 1) + " more problems)";
+			}
+			throw new SWORDErrorException(ErrorCodes.ERROR_CONTENT, description);
+		}
+	}
 
-		return test;
+	/**
+	 * Check the collection's metadata rules against every descriptive metadata
+	 * field of the manifest. If any fail, we are missing metadata. Something
+	 * is wrong.
+	 * 
+	 * @param manifest The manifest, which is left open
+	 * @param rules The rules to evaluate
+	 * @throws SWORDException If any rule failed
+	 */
+	private void verifyManifest(InputStream manifest, MetadataRuleSet rules)
+			throws IOException, JDOMException, XMLStreamException, SWORDException {
+		List<String> failures = checkManifest(manifest, rules);
+		if (!failures.isEmpty()) {
+			for (String failure : failures) {
+				log.info(failure);
+			}
+			throw new SWORDException(
+					"Missing or empty required fields", null,
+					ErrorCodes.ERROR_CONTENT);
+		}
 	}
 
 	/**
-	 * Parse the included JDOM element and pull out the specified dc value from
-	 * its descriptive metadata section
+	 * Check the metadata of a mets manifest against the rules. In streaming
+	 * mode the manifest is pulled straight from the stream and only read as
+	 * far as needed, otherwise it is parsed into a JDOM document first.
 	 * 
-	 * @param doc
-	 * @param schema
-	 * @param element
-	 * @return
-	 * @throws JDOMException
+	 * @param manifest The manifest, which is left open
+	 * @param rules The rules to evaluate
+	 * @return A description of each failed rule, empty if all passed.
 	 */
-	private Element getField(Document doc, String schema, String element)
-			throws JDOMException {
-		XPath x = XPath
-				.newInstance("/mets:mets/mets:dmdSec/mets:mdWrap/mets:xmlData/dim:dim/dim:field"
-						+ "[@mdschema='"
-						+ schema
-						+ "'][@element='"
-						+ element
-						+ "']");
-		x.addNamespace("mets", "http://www.loc.gov/METS/");
-		x.addNamespace("dim", "http://www.dspace.org/xmlns/dspace/dim");
+	private List<String> checkManifest(InputStream manifest, MetadataRuleSet rules)
+			throws IOException, JDOMException, XMLStreamException {
+		if (streamingValidator != null) {
+			return streamingValidator.validate(manifest, rules);
+		}
 
-		Element test = (Element) x.selectSingleNode(doc);
+		SAXBuilder builder = new SAXBuilder();
+		Document doc = builder.build(manifest);
+		return checkFields(doc, rules);
+	}
 
-		return test;
+	/**
+	 * Evaluate the metadata rules against every DIM field in the document's
+	 * descriptive metadata sections, in a single pass over the fields.
+	 * 
+	 * @param doc The parsed METS manifest
+	 * @param rules The rules to evaluate
+	 * @return A description of each failed rule, empty if all passed.
+	 */
+	private List<String> checkFields(Document doc, MetadataRuleSet rules) {
+		MetadataRuleSet.Evaluation evaluation = rules.evaluate();
+		Element mets = doc.getRootElement();
+		if (!"mets".equals(mets.getName()) || !METS.equals(mets.getNamespace())) {
+			return evaluation.finish();
+		}
+		for (Object dmdSec : mets.getChildren("dmdSec", METS)) {
+			for (Object mdWrap : ((Element) dmdSec).getChildren("mdWrap", METS)) {
+				for (Object xmlData : ((Element) mdWrap).getChildren("xmlData", METS)) {
+					for (Object dim : ((Element) xmlData).getChildren("dim", DIM)) {
+						for (Object f : ((Element) dim).getChildren("field", DIM)) {
+							Element field = (Element) f;
+							evaluation.field(field.getAttributeValue("mdschema"),
+									field.getAttributeValue("element"),
+									field.getAttributeValue("qualifier"),
+									field.getText());
+						}
+					}
+				}
+			}
+		}
+		return evaluation.finish();
 	}
 
+	/**
+	 * Find the metadata rules for the collection being deposited to. The
+	 * collection is the last path segment of the deposit location, i.e. "c"
+	 * for http://localhost/deposit/c.
+	 * 
+	 * @param location The deposit location
+	 * @return The collection's rules, or the default rules.
+	 */
+	private MetadataRuleSet getMetadataRules(String location) {
+		MetadataRuleSet rules = metadataRules.get(getCollection(location));
+		if (rules == null) {
+			rules = metadataRules.get(MetadataRuleSet.DEFAULT);
+		}
+		return rules;
+	}
+
+	/**
+	 * @param location The deposit location
+	 * @return The name of the collection being deposited to, or null.
+	 */
+	static String getCollection(String location) {
+		if (location == null) {
+			return null;
+		}
+		int end = location.indexOf('?');
+		String path = end == -1 ? location : location.substring(0, end);
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		int start = path.indexOf("/deposit/");
+		if (start == -1) {
+			return null;
+		}
+		return path.substring(start + "/deposit/".length());
+	}
+
+	/**
+	 * Report the status of a deposit being processed in the background. The
+	 * location is the status URI the deposit was acknowledged with, ending
+	 * in "/status/" and the deposit's status id. While the deposit is still
+	 * waiting or being processed the response is 202 Accepted with an empty
+	 * entry, once it is finished the response carries the deposit's entry,
+	 * or the exception it failed with is thrown.
+	 * 
+	 * @throws SWORDErrorException
+	 *             If the deposit is unknown, or failed with an error.
+	 */
 	public AtomDocumentResponse doAtomDocument(AtomDocumentRequest adr)
 			throws SWORDAuthenticationException, SWORDErrorException,
 			SWORDException {
-		return new AtomDocumentResponse(HttpServletResponse.SC_OK);
+		String location = adr.getLocation();
+		int p = (location == null) ? -1 : location.lastIndexOf("/status/");
+		DepositQueue.DepositStatus status = null;
+		if ((depositQueue != null) && (p != -1)) {
+			status = depositQueue.getStatus(location.substring(p + "/status/".length()));
+		}
+		if (status == null) {
+			SWORDErrorException see = new SWORDErrorException(ErrorCodes.ERROR_BAD_REQUEST,
+					"No deposit is known at " + location);
+			see.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			throw see;
+		}
+
+		if (!status.isDone()) {
+			AtomDocumentResponse response = new AtomDocumentResponse(HttpServletResponse.SC_ACCEPTED);
+			response.setLocation(location);
+			return response;
+		}
+
+		Exception failure = status.getFailure();
+		if (failure instanceof SWORDAuthenticationException) {
+			throw (SWORDAuthenticationException) failure;
+		} else if (failure instanceof SWORDErrorException) {
+			throw (SWORDErrorException) failure;
+		} else if (failure instanceof SWORDException) {
+			throw (SWORDException) failure;
+		} else if (failure != null) {
+			throw new SWORDException("Deposit failed while being processed", failure);
+		}
+
+		DepositResponse dr = status.getResponse();
+		AtomDocumentResponse response = new AtomDocumentResponse(HttpServletResponse.SC_OK);
+		response.setEntry(dr.getEntry());
+		response.setLocation(dr.getLocation());
+		return response;
 	}
 
 
-	/** private field for the running Jetty service **/
-	private static Server server;
+	/** The server started through the static start and stop methods **/
+	private static Handle server;
 
 	/**
 	 * Start the mock sword server running on the local host at the provided port number.
 	 */
 	public static void start(int port) throws Exception {
+		start(port, new HashMap<String,String>());
+	}
+
+	/**
+	 * Start the mock sword server running on the local host at the provided
+	 * port number, see {@link Builder} for the parameters. Only one server
+	 * can be started this way at a time, use {@link #builder()} to run
+	 * several.
+	 */
+	public static void start(int port, Map<String,String> params) throws Exception {
+		server = builder().port(port).params(params).start();
+	}
+
+	/**
+	 * @return A builder for a new, independent, mock sword server.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builds and starts a mock sword server. Every server started has its
+	 * own Jetty instance, its own repository state and its own deposit ids,
+	 * so any number can run side by side in one JVM.
+	 * 
+	 * The supplied parameters are installed as servlet context init
+	 * parameters, i.e. "maxUploadSize", "upload-temp-directory",
+	 * "spool-threshold" (in kB) and "spool-buffers", see also
+	 * {@link MockSwordServer#init(ServletContext)}.
+	 * 
+	 * The parameters also configure the server engine itself:
+	 * 
+	 * connector - "socket" (the default), "nio" or "blocking-nio".
+	 * acceptors - The number of acceptor threads for the connector.
+	 * accept-queue - The connector's accept backlog.
+	 * max-threads - The size of a bounded request thread pool.
+	 * max-queued - The number of requests allowed to wait for a thread in the
+	 *     bounded pool, -1 for unbounded (the default).
+	 * max-idle-time - How long in ms an idle pool thread is kept.
+	 * virtual-threads - "true" to run every request on its own virtual thread,
+	 *     this requires JDK 21 or later.
+	 * 
+	 * If no thread pool options are given Jetty's default pool is used.
+	 * 
+	 * Requests are authenticated with Basic authentication against:
+	 * 
+	 * users - A Jetty users file, one "username: password,role,..." line per
+	 *     user. Users need the "user" role. Without one the only user is
+	 *     testUser with the password testPassword.
+	 * credential-cache-size - The number of recently accepted Authorization
+	 *     headers remembered, so repeated requests skip decoding and the
+	 *     realm (10000 by default, 0 to disable).
+	 * credential-cache-ttl - How long in seconds a header is remembered.
+	 * 
+	 * or against the realm given to {@link #userRealm(UserRealm)}.
+	 */
+	public static class Builder {
+
+		/** The port to listen on, zero for any free port **/
+		private int port = 0;
+
+		/** The init parameters **/
+		private final Map<String,String> params = new HashMap<String,String>();
 
-		server = new Server(port);
-		Context root = new Context(server,"/",Context.SESSIONS);
-		Map<String,String> initParams = new HashMap<String,String>();
-
-		// Configure our SWORD Server
-		String swordServer = new MockSwordServer().getClass().getCanonicalName();
-		initParams.put("sword-server-class", swordServer);
-		root.setInitParams(initParams);
-		
-		// Add basic authentication
-		Constraint constraint = new Constraint();
-		constraint.setName(Constraint.__BASIC_AUTH);
-		constraint.setRoles(new String[]{"user"});
-		constraint.setAuthenticate(true);
-		
-		ConstraintMapping cm = new ConstraintMapping();
-		cm.setConstraint(constraint);
-		cm.setPathSpec("/*");
-		
-		File file = File.createTempFile("jetty-users", ".properties");
-		setContents(file,"testUser = testPassword,user");
-		
-		
-		SecurityHandler sh = new SecurityHandler();
-		sh.setUserRealm(new HashUserRealm("MyRealm",file.getAbsolutePath()));
-		sh.setConstraintMappings(new ConstraintMapping[]{cm});
-
-		// Install the two SWORD Servlets
-		root.addServlet(new ServletHolder(new MockSwordDepositServlet()),"/deposit/*");
-		root.addServlet(new ServletHolder(new MockSwordServiceDocumentServlet()),"/servicedocument/*");
-		root.addHandler(sh);
-
-		// Start the server
-		server.start();
-	}  
+		/** The realm users are authenticated against, or null to read the users file **/
+		private UserRealm userRealm;
+
+		/**
+		 * @param port The port to listen on, zero (the default) for any free port.
+		 */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Set an init parameter.
+		 */
+		public Builder param(String name, String value) {
+			params.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Set several init parameters.
+		 */
+		public Builder params(Map<String,String> params) {
+			this.params.putAll(params);
+			return this;
+		}
+
+		/**
+		 * @param userRealm The realm users are authenticated against, in place
+		 * of the users file. Users need the "user" role.
+		 */
+		public Builder userRealm(UserRealm userRealm) {
+			this.userRealm = userRealm;
+			return this;
+		}
+
+		/**
+		 * Start the server.
+		 * 
+		 * @return The running server.
+		 */
+		public Handle start() throws Exception {
+			Server jetty = new Server();
+			Connector connector = createConnector(port, params);
+			jetty.addConnector(connector);
+			ThreadPool threadPool = createThreadPool(params);
+			if (threadPool != null) {
+				jetty.setThreadPool(threadPool);
+			}
+			Context root = new Context(jetty,"/",Context.SESSIONS);
+			Map<String,String> initParams = new HashMap<String,String>(params);
+
+			// Configure our SWORD Server, one instance shared by every servlet
+			MockSwordServer repository = new MockSwordServer();
+			initParams.put("sword-server-class", MockSwordServer.class.getCanonicalName());
+			root.setInitParams(initParams);
+			repository.init(root.getServletContext());
+
+			// The servlet context drops attributes set before it has started,
+			// so share the repository, its metrics and its store as the
+			// context's own attributes instead.
+			root.setAttribute(MockSwordServer.class.getName(), repository);
+			root.setAttribute(Metrics.class.getName(), repository.getMetrics());
+			if (repository.getDepositStore() != null) {
+				root.setAttribute(DepositStore.class.getName(), repository.getDepositStore());
+			}
+			if (repository.getCaptureLog() != null) {
+				root.setAttribute(CaptureLog.class.getName(), repository.getCaptureLog());
+			}
+			
+			// Add basic authentication
+			Constraint constraint = new Constraint();
+			constraint.setName(Constraint.__BASIC_AUTH);
+			constraint.setRoles(new String[]{"user"});
+			constraint.setAuthenticate(true);
+			
+			ConstraintMapping cm = new ConstraintMapping();
+			cm.setConstraint(constraint);
+			cm.setPathSpec("/*");
+			
+			// Authenticate against the given realm, the given users file, or
+			// a temporary file holding the test user
+			File file = null;
+			UserRealm realm = userRealm;
+			if (realm == null) {
+				String users = params.get("users");
+				if ((users == null) || (users.equals(""))) {
+					file = File.createTempFile("jetty-users", ".properties");
+					file.deleteOnExit();
+					setContents(file,"testUser = testPassword,user");
+					users = file.getAbsolutePath();
+				}
+				realm = new HashUserRealm("MyRealm",users);
+			}
+			
+			SecurityHandler sh = new SecurityHandler();
+			sh.setUserRealm(realm);
+			sh.setConstraintMappings(new ConstraintMapping[]{cm});
+
+			// Remember accepted credentials, sharing them with the servlets
+			// which decode the same headers
+			int credentialCacheSize = getIntParameter(params, "credential-cache-size", 10000);
+			BasicCredentialCache credentials = null;
+			if (credentialCacheSize > 0) {
+				int credentialTtl = getIntParameter(params, "credential-cache-ttl", 300);
+				credentials = new BasicCredentialCache(credentialCacheSize, credentialTtl * 1000L);
+				sh.setAuthenticator(new CachingBasicAuthenticator(credentials));
+				root.setAttribute(BasicCredentialCache.class.getName(), credentials);
+			}
+
+			// Install the SWORD Servlets, the servlet serving stored uploads,
+			// the capture of requests and the metrics every request is
+			// counted in
+			root.addServlet(new ServletHolder(new MockSwordDepositServlet()),"/deposit/*");
+			root.addServlet(new ServletHolder(new MockSwordServiceDocumentServlet()),"/servicedocument/*");
+			root.addServlet(new ServletHolder(new MockSwordUploadServlet()),"/uploads/*");
+			root.addServlet(new ServletHolder(new MockSwordMetricsServlet()),"/metrics");
+			root.addFilter(new FilterHolder(new MockSwordCaptureFilter()),"/*",Handler.REQUEST);
+			root.addFilter(new FilterHolder(new MockSwordMetricsFilter()),"/*",Handler.REQUEST);
+			root.addHandler(sh);
+
+			// Start the server
+			try {
+				jetty.start();
+			} catch (Exception e) {
+				repository.destroy();
+				if (file != null) {
+					file.delete();
+				}
+				throw e;
+			}
+			return new Handle(jetty, connector.getLocalPort(), repository, file);
+		}
+	}
+
+	/**
+	 * A running mock sword server.
+	 */
+	public static class Handle {
+
+		/** The Jetty server **/
+		private final Server jetty;
+
+		/** The port the server is listening on **/
+		private final int port;
+
+		/** The repository behind the server's servlets **/
+		private final MockSwordServer repository;
+
+		/** The server's temporary users file, or null **/
+		private final File usersFile;
+
+		Handle(Server jetty, int port, MockSwordServer repository, File usersFile) {
+			this.jetty = jetty;
+			this.port = port;
+			this.repository = repository;
+			this.usersFile = usersFile;
+		}
+
+		/**
+		 * @return The port the server is listening on.
+		 */
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * @return The server's base URL, i.e. http://localhost:8080
+		 */
+		public String getBaseUrl() {
+			return "http://localhost:" + port;
+		}
+
+		/**
+		 * @return The repository behind the server's servlets.
+		 */
+		public MockSwordServer getRepository() {
+			return repository;
+		}
+
+		/**
+		 * Stop the server.
+		 */
+		public void stop() throws Exception {
+			try {
+				jetty.stop();
+			} finally {
+				repository.destroy();
+				if (usersFile != null) {
+					usersFile.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create the connector described by the startup parameters.
+	 */
+	private static Connector createConnector(int port, Map<String,String> params) {
+		String type = params.get("connector");
+		AbstractConnector connector;
+		if ((type == null) || (type.equals("")) || (type.equals("socket"))) {
+			connector = new SocketConnector();
+		} else if (type.equals("nio")) {
+			connector = new SelectChannelConnector();
+		} else if (type.equals("blocking-nio")) {
+			connector = new BlockingChannelConnector();
+		} else {
+			throw new IllegalArgumentException("Unknown connector type: " + type);
+		}
+		connector.setPort(port);
+
+		int acceptors = getIntParameter(params, "acceptors", 0);
+		if (acceptors > 0) {
+			connector.setAcceptors(acceptors);
+		}
+		int acceptQueue = getIntParameter(params, "accept-queue", 0);
+		if (acceptQueue > 0) {
+			connector.setAcceptQueueSize(acceptQueue);
+		}
+		return connector;
+	}
+
+	/**
+	 * Create the thread pool described by the startup parameters.
+	 * 
+	 * @return The thread pool, or null to use Jetty's default pool.
+	 */
+	private static ThreadPool createThreadPool(Map<String,String> params) {
+		if ("true".equals(params.get("virtual-threads"))) {
+			try {
+				return ExecutorThreadPool.virtual();
+			} catch (UnsupportedOperationException uoe) {
+				log.warn(uoe.getMessage() + ", using a bounded thread pool instead.");
+			}
+		}
+
+		int maxThreads = getIntParameter(params, "max-threads", 0);
+		if (maxThreads <= 0) {
+			return null;
+		}
+		int maxQueued = getIntParameter(params, "max-queued", -1);
+		int maxIdleTime = getIntParameter(params, "max-idle-time", 60000);
+		return ExecutorThreadPool.bounded(maxThreads, maxQueued, maxIdleTime);
+	}
+
+	/**
+	 * Read an integer startup parameter.
+	 */
+	private static int getIntParameter(Map<String,String> params, String name, int defaultValue) {
+		String value = params.get(name);
+		if ((value == null) || (value.equals(""))) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid value for '" + name + "': " + value);
+		}
+	}
 
 	/**
 	 * Stop the mock sword server running on the local host.
@@ -452,6 +1283,22 @@ public class MockSwordServer implements SWORDServer {
 	
 	
 	
+	/**
+	 * Shields the current entry of a zip stream from being closed by a parser
+	 * which has finished reading it, so the following entries can still be
+	 * read.
+	 */
+	private static class EntryInputStream extends FilterInputStream {
+
+		EntryInputStream(InputStream in) {
+			super(in);
+		}
+
+		public void close() {
+			// Leave the zip stream open
+		}
+	}
+
 	/**
 	  * Change the contents of text file in its entirety, overwriting any
 	  * existing text.
@@ -1,15 +1,18 @@
 package edu.tamu.mocksword.server;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.StringTokenizer;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 //import org.apache.log4j.Logger;
 import org.purl.sword.base.HttpHeaders;
@@ -41,15 +44,28 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 	/** Maximum file upload size in kB **/
 	private int maxUploadSize;
 
+	/** Cache of marshalled service documents, null if disabled **/
+	private ServiceDocumentCache cache;
+
+	/** Decoded Authorization headers **/
+	private BasicCredentialCache credentials;
+
+	/** Compression of documents for clients which accept it **/
+	private GzipEncoding gzip;
+
 	/**
 	 * Initialise the servlet.
 	 * 
 	 * @throws ServletException
 	 */
 	public void init() throws ServletException {
-		// Instantiate the correct SWORD Server class
+		// Use the repository shared by the embedded server, or instantiate
+		// the correct SWORD Server class
 		String className = getServletContext().getInitParameter("sword-server-class");
-		if (className == null) {
+		Object shared = getServletContext().getAttribute(MockSwordServer.class.getName());
+		if (shared instanceof SWORDServer) {
+			myRepository = (SWORDServer) shared;
+		} else if (className == null) {
 			log.fatal("Unable to read value of 'sword-server-class' from Servlet context");
 		} else {
 			try {
@@ -69,6 +85,18 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 		if ((authN == null) || ("".equals(authN))) {
 			authN = "None";
 		}
+
+		// Share the embedded server's decoded credentials, or keep our own
+		Object sharedCredentials = getServletContext().getAttribute(BasicCredentialCache.class.getName());
+		if (sharedCredentials instanceof BasicCredentialCache) {
+			credentials = (BasicCredentialCache) sharedCredentials;
+		} else {
+			credentials = new BasicCredentialCache(Math.max(getIntInitParameter("credential-cache-size", 10000), 1),
+					getIntInitParameter("credential-cache-ttl", 300) * 1000L);
+		}
+		
+		// Documents of at least "gzip-min-size" bytes are compressed, -1 never
+		gzip = new GzipEncoding(getIntInitParameter("gzip-min-size", 512));
 		
 		String maxUploadSizeStr = getServletContext().getInitParameter("maxUploadSize");
 		if ((maxUploadSizeStr == null) || 
@@ -82,6 +110,47 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 				maxUploadSize = -1;
 			}
 		}
+
+		// Service documents are cached unless explicitly disabled
+		String cacheStr = getServletContext().getInitParameter("service-document-cache");
+		if (!"false".equals(cacheStr)) {
+			int cacheSize = 1000;
+			String cacheSizeStr = getServletContext().getInitParameter("service-document-cache-size");
+			if ((cacheSizeStr != null) && (!cacheSizeStr.equals(""))) {
+				try {
+					cacheSize = Integer.parseInt(cacheSizeStr);
+				} catch (NumberFormatException nfe) {
+					log.warn("Invalid service document cache size: " + cacheSizeStr);
+				}
+			}
+			cache = new ServiceDocumentCache(cacheSize);
+
+			// Report the cache's statistics with the server's metrics
+			Object metrics = getServletContext().getAttribute(Metrics.class.getName());
+			if (metrics instanceof Metrics) {
+				((Metrics) metrics).setServiceDocumentCache(cache);
+			}
+		}
+	}
+
+	/**
+	 * Utility method to read an integer parameter from the servlet context.
+	 * 
+	 * @param name The name of the context parameter
+	 * @param defaultValue The value to use if the parameter is missing or invalid
+	 * @return The parameter's value
+	 */
+	private int getIntInitParameter(String name, int defaultValue) {
+		String value = getServletContext().getInitParameter(name);
+		if ((value == null) || (value.equals(""))) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid value for '" + name + "', using default: " + value);
+			return defaultValue;
+		}
 	}
 
 	/**
@@ -117,18 +186,46 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 		// Set the deposit location
 		sdr.setLocation(getUrl(request));
 
+		// Find any latency or faults to inject
+		FaultScenarios.Scenario scenario = getScenario(sdr.getUsername());
+		if ((scenario != null) && refuseDuringOutage(scenario, response)) {
+			return;
+		}
+
 		// Get the ServiceDocument
 		try {
+			if (scenario != null) {
+				scenario.inject();
+			}
+
+			// Serve a previously rendered document if we have one
+			if (cache != null) {
+				ServiceDocumentCache.CachedDocument cached = cache.get(sdr.getLocation(), sdr.getOnBehalfOf());
+				if (cached != null) {
+					writeCachedDocument(cached, request, response);
+					return;
+				}
+			}
+
+			// The mock's own documents are written as they are produced
+			if (myRepository instanceof MockSwordServer) {
+				writeServiceDocument((MockSwordServer) myRepository, sdr, request, response);
+				return;
+			}
+
 			ServiceDocument sd = myRepository.doServiceDocument(sdr);
 			if ((sd.getService().getMaxUploadSize() == -1) && (maxUploadSize != -1)) {
 				sd.getService().setMaxUploadSize(maxUploadSize);
 			}
 		
+			if (cache != null) {
+				ServiceDocumentCache.CachedDocument cached = cache.put(sdr.getLocation(), sdr.getOnBehalfOf(), sd.marshall());
+				writeCachedDocument(cached, request, response);
+				return;
+			}
+
 			// Print out the Service Document
-			response.setContentType("application/atomsvc+xml; charset=UTF-8");
-			PrintWriter out = response.getWriter();
-			out.write(sd.marshall());
-			out.flush();
+			gzip.write(request, response, GzipEncoding.SERVICE_DOCUMENT, sd.marshall().getBytes("UTF-8"));
 		} catch (SWORDAuthenticationException sae) {
 			if (authN.equals("Basic")) {
 				String s = "Basic realm=\"SWORD\"";
@@ -145,6 +242,80 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Write the mock server's service document straight to the response,
+	 * compressing it on the way if the client accepts gzip, or into the cache
+	 * and from there to the response if documents are cached.
+	 * 
+	 * @param mock The mock server
+	 * @param sdr The service document request
+	 * @param request The request object
+	 * @param response The response object
+	 */
+	private void writeServiceDocument(MockSwordServer mock, ServiceDocumentRequest sdr,
+			HttpServletRequest request, HttpServletResponse response) throws IOException, SWORDErrorException {
+		if (cache != null) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+			Writer out = new OutputStreamWriter(body, "UTF-8");
+			mock.writeServiceDocument(sdr, maxUploadSize, out);
+			out.flush();
+			writeCachedDocument(cache.put(sdr.getLocation(), sdr.getOnBehalfOf(), body.toByteArray()), request, response);
+			return;
+		}
+
+		// Check the request before any headers are set
+		ServiceDocumentWriter.Page page = mock.getServiceDocumentPage(sdr);
+		OutputStream stream = response.getOutputStream();
+		GZIPOutputStream compressed = null;
+		if (gzip.isEnabled()) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (gzip.accepted(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			stream = compressed = new GZIPOutputStream(stream, 8192);
+		}
+		response.setContentType(GzipEncoding.SERVICE_DOCUMENT);
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 8192);
+		mock.writeServiceDocument(page, maxUploadSize, out);
+		out.flush();
+		if (compressed != null) {
+			compressed.finish();
+		}
+	}
+
+	/**
+	 * Write a cached service document to the response, compressed if the
+	 * client accepts gzip, or just a '304 Not Modified' if the client already
+	 * holds the same document.
+	 * 
+	 * @param cached The cached document
+	 * @param request The request object
+	 * @param response The response object
+	 */
+	private void writeCachedDocument(ServiceDocumentCache.CachedDocument cached,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean compressed = gzip.compresses(request, cached.getBody().length);
+		if (gzip.isEnabled()) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		response.setHeader("ETag", cached.getETag(compressed));
+		if (cached.matches(request.getHeader("If-None-Match"), compressed)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		byte[] body = cached.getBody();
+		if (compressed) {
+			body = cached.getGzippedBody();
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		response.setContentType(GzipEncoding.SERVICE_DOCUMENT);
+		response.setContentLength(body.length);
+		OutputStream out = response.getOutputStream();
+		out.write(body);
+		out.flush();
+	}
+
 	/**
 	 * Process the post request. This will return an unimplemented response.
 	 */
@@ -154,6 +325,38 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 		response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
 	}
 
+	/**
+	 * Utility method to find the latency and faults to inject into a request
+	 * 
+	 * @param username The authenticated user, or null
+	 * @return The scenario, or null if nothing is injected
+	 */
+	private FaultScenarios.Scenario getScenario(String username) {
+		if (myRepository instanceof MockSwordServer) {
+			FaultScenarios scenarios = ((MockSwordServer) myRepository).getFaultScenarios();
+			if (scenarios != null) {
+				return scenarios.select(username, null);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Utility method to refuse a request with '503 Service Unavailable' during
+	 * an injected outage
+	 * 
+	 * @return True if the request was refused
+	 */
+	private boolean refuseDuringOutage(FaultScenarios.Scenario scenario, HttpServletResponse response) throws IOException {
+		long remaining = scenario.outageRemaining(System.currentTimeMillis());
+		if (remaining <= 0) {
+			return false;
+		}
+		response.setHeader("Retry-After", Long.toString((remaining + 999) / 1000));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The repository is unavailable (injected outage)");
+		return true;
+	}
+
 	/**
 	 * Utiliy method to return the username and password (separated by a colon
 	 * ':')
@@ -162,24 +365,7 @@ public class MockSwordServiceDocumentServlet extends HttpServlet {
 	 * @return The username and password combination
 	 */
 	private String getUsernamePassword(HttpServletRequest request) {
-		try {
-			String authHeader = request.getHeader("Authorization");
-			if (authHeader != null) {
-				StringTokenizer st = new StringTokenizer(authHeader);
-				if (st.hasMoreTokens()) {
-					String basic = st.nextToken();
-					if (basic.equalsIgnoreCase("Basic")) {
-						String credentials = st.nextToken();
-						String userPass = new String(Base64
-								.decodeBase64(credentials.getBytes()));
-						return userPass;
-					}
-				}
-			}
-		} catch (Exception e) {
-			log.error(e.getMessage(),e);
-		}
-		return null;
+		return credentials.getUsernamePassword(request.getHeader("Authorization"));
 	}
 
 	/**
@@ -0,0 +1,70 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * UploadServlet
+ *
+ * Serves the packages kept by the deposit store, at the content source URI
+ * advertised in each deposit's entry, i.e. /uploads/{sha256}.zip
+ */
+public class MockSwordUploadServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Process the get request.
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		DepositStore store = (DepositStore) getServletContext().getAttribute(DepositStore.class.getName());
+		String path = request.getPathInfo();
+		if ((store == null) || (path == null) || (!path.startsWith("/")) || (!path.endsWith(".zip"))) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		String key = path.substring(1, path.length() - ".zip".length());
+		File file = store.get(key);
+		InputStream in;
+		try {
+			in = (file == null) ? null : new FileInputStream(file);
+		} catch (IOException ioe) {
+			// Evicted since we looked it up
+			in = null;
+		}
+		if (in == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		try {
+			// The content can never change, it is addressed by its digest
+			String etag = "\"" + key + "\"";
+			response.setHeader("ETag", etag);
+			if (etag.equals(request.getHeader("If-None-Match"))) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			response.setContentType("application/zip");
+			response.setHeader("Content-Length", Long.toString(file.length()));
+			OutputStream out = response.getOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Verifies that a package actually contains the files its METS manifest
+ * describes. Every file referenced from the manifest's file section must be
+ * present in the zip, and where the manifest gives a CHECKSUM the entry's
+ * content must match it. In addition the CRC of every entry in the package is
+ * checked against the zip's central directory.
+ *
+ * Each entry is decompressed and digested as a separate task on the supplied
+ * executor, normally a fork-join pool, so the work for large packages is
+ * spread across all of its threads.
+ */
+public class PackageVerifier {
+
+	/** The METS namespace **/
+	private static final String METS = "http://www.loc.gov/METS/";
+
+	/** The XLink namespace **/
+	private static final String XLINK = "http://www.w3.org/1999/xlink";
+
+	/** METS CHECKSUMTYPE values mapped to Java digest algorithms **/
+	private static final Map<String, String> ALGORITHMS = new HashMap<String, String>();
+	static {
+		ALGORITHMS.put("MD5", "MD5");
+		ALGORITHMS.put("SHA-1", "SHA-1");
+		ALGORITHMS.put("SHA-256", "SHA-256");
+		ALGORITHMS.put("SHA-384", "SHA-384");
+		ALGORITHMS.put("SHA-512", "SHA-512");
+	}
+
+	/** Parser factory for reading file sections **/
+	private final XMLInputFactory factory;
+
+	/** The executor the verification tasks run on **/
+	private final ExecutorService executor;
+
+	/**
+	 * Create a new verifier.
+	 *
+	 * @param executor
+	 *            The executor to run verification tasks on.
+	 */
+	public PackageVerifier(ExecutorService executor) {
+		this.executor = executor;
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	/**
+	 * Verify the contents of a package against its manifest.
+	 *
+	 * @param directory
+	 *            The package.
+	 * @param manifest
+	 *            The package's manifest entry.
+	 * @return A description of every problem found, empty if the package is
+	 *         correct.
+	 */
+	public List<String> verify(ZipDirectory directory, ZipDirectory.Entry manifest)
+			throws IOException, XMLStreamException {
+		Map<String, FileReference> references;
+		InputStream in = directory.openStream(manifest);
+		try {
+			references = readFileSection(in);
+		} finally {
+			in.close();
+		}
+
+		List<String> problems = new ArrayList<String>();
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (ZipDirectory.Entry entry : directory.getEntries()) {
+			if (entry.isDirectory())
+				continue;
+			FileReference reference = references.remove(entry.getName());
+			results.add(executor.submit(new EntryCheck(directory, entry, reference)));
+		}
+		for (FileReference reference : references.values()) {
+			problems.add("File referenced by the manifest is missing from the package: " + reference.href);
+		}
+
+		for (Future<String> result : results) {
+			try {
+				String problem = result.get();
+				if (problem != null)
+					problems.add(problem);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while verifying the package");
+			} catch (ExecutionException ee) {
+				problems.add("Unable to verify the package: " + ee.getCause());
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Read every file reference from the manifest's file section.
+	 *
+	 * @return The references keyed by the zip entry name they refer to.
+	 */
+	Map<String, FileReference> readFileSection(InputStream manifest) throws XMLStreamException {
+		Map<String, FileReference> references = new LinkedHashMap<String, FileReference>();
+		XMLStreamReader reader = factory.createXMLStreamReader(manifest);
+		try {
+			String checksum = null;
+			String checksumType = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event != XMLStreamConstants.START_ELEMENT || !METS.equals(reader.getNamespaceURI()))
+					continue;
+				if ("file".equals(reader.getLocalName())) {
+					checksum = reader.getAttributeValue(null, "CHECKSUM");
+					checksumType = reader.getAttributeValue(null, "CHECKSUMTYPE");
+				} else if ("FLocat".equals(reader.getLocalName())) {
+					String href = reader.getAttributeValue(XLINK, "href");
+					if (href != null) {
+						FileReference reference = new FileReference(href, checksum, checksumType);
+						references.put(reference.getEntryName(), reference);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return references;
+	}
+
+	/**
+	 * A file referenced by a manifest.
+	 */
+	static class FileReference {
+
+		/** The FLocat's href **/
+		final String href;
+
+		/** The expected checksum as hex, or null **/
+		final String checksum;
+
+		/** The METS checksum type, or null **/
+		final String checksumType;
+
+		FileReference(String href, String checksum, String checksumType) {
+			this.href = href;
+			this.checksum = checksum;
+			this.checksumType = checksumType;
+		}
+
+		/**
+		 * @return The name of the zip entry the href refers to.
+		 */
+		String getEntryName() {
+			String name = href;
+			try {
+				name = URLDecoder.decode(name, "UTF-8");
+			} catch (Exception e) {
+				// Use the href as it is
+			}
+			while (name.startsWith("./"))
+				name = name.substring(2);
+			return name;
+		}
+	}
+
+	/**
+	 * A task to decompress one entry, checking its CRC and any checksum from
+	 * the manifest.
+	 */
+	private static class EntryCheck implements Callable<String> {
+
+		private final ZipDirectory directory;
+		private final ZipDirectory.Entry entry;
+		private final FileReference reference;
+
+		EntryCheck(ZipDirectory directory, ZipDirectory.Entry entry, FileReference reference) {
+			this.directory = directory;
+			this.entry = entry;
+			this.reference = reference;
+		}
+
+		public String call() throws IOException, NoSuchAlgorithmException {
+			MessageDigest digest = null;
+			if (reference != null && reference.checksum != null) {
+				String algorithm = reference.checksumType == null ? null
+						: ALGORITHMS.get(reference.checksumType.toUpperCase());
+				if (algorithm == null)
+					return "Unsupported checksum type for " + entry.getName() + ": " + reference.checksumType;
+				digest = MessageDigest.getInstance(algorithm);
+			}
+
+			CRC32 crc = new CRC32();
+			long size = 0;
+			InputStream in = directory.openStream(entry);
+			try {
+				byte[] buf = new byte[8192];
+				int len;
+				while ((len = in.read(buf)) > 0) {
+					crc.update(buf, 0, len);
+					if (digest != null)
+						digest.update(buf, 0, len);
+					size += len;
+				}
+			} finally {
+				in.close();
+			}
+
+			if (size != entry.getSize() || crc.getValue() != entry.getCrc())
+				return "Package entry is corrupt, its CRC or size does not match the zip directory: " + entry.getName();
+			if (digest != null) {
+				String actual = DigestingInputStream.toHex(digest.digest());
+				if (!actual.equalsIgnoreCase(reference.checksum.trim()))
+					return "Checksum of " + entry.getName() + " does not match the manifest, expected "
+							+ reference.checksum + " but was " + actual;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package edu.tamu.mocksword.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for deposits, so one client can not starve everyone
+ * else. Each user and each collection may be limited to a number of
+ * requests and of bytes per second, with a burst allowance of some seconds'
+ * worth of either.
+ *
+ * Every limit is a token bucket kept as the generic cell rate algorithm: a
+ * single timestamp per user or collection, the time at which its bucket
+ * would be full again. A request is admitted by moving that time on by the
+ * request's cost with a compare and set, so checking a limit never takes a
+ * lock and costs a few atomic operations. A request refused by a later limit
+ * is refunded to the limits which admitted it.
+ */
+public class RateLimiter {
+
+	/** The most buckets kept per limit before full ones are dropped **/
+	private static final int MAX_BUCKETS = 10000;
+
+	/** Requests per second per user, or null **/
+	private final Limit userRequests;
+
+	/** Bytes per second per user, or null **/
+	private final Limit userBytes;
+
+	/** Requests per second per collection, or null **/
+	private final Limit collectionRequests;
+
+	/** Bytes per second per collection, or null **/
+	private final Limit collectionBytes;
+
+	/**
+	 * Create a new rate limiter. A rate of zero or less is not limited.
+	 *
+	 * @param userRequests
+	 *            Requests per second per user.
+	 * @param userBytes
+	 *            Bytes per second per user.
+	 * @param collectionRequests
+	 *            Requests per second per collection.
+	 * @param collectionBytes
+	 *            Bytes per second per collection.
+	 * @param burstSeconds
+	 *            How many seconds' worth of requests or bytes may be sent at
+	 *            once.
+	 */
+	public RateLimiter(double userRequests, double userBytes, double collectionRequests, double collectionBytes,
+			double burstSeconds) {
+		this.userRequests = Limit.of(userRequests, burstSeconds);
+		this.userBytes = Limit.of(userBytes, burstSeconds);
+		this.collectionRequests = Limit.of(collectionRequests, burstSeconds);
+		this.collectionBytes = Limit.of(collectionBytes, burstSeconds);
+	}
+
+	/**
+	 * @return True if any limit is set.
+	 */
+	public boolean isEnabled() {
+		return (userRequests != null) || (userBytes != null) || (collectionRequests != null)
+				|| (collectionBytes != null);
+	}
+
+	/**
+	 * Admit a request, if every limit allows it.
+	 *
+	 * @param user
+	 *            The user making the request.
+	 * @param collection
+	 *            The collection the request is for, or null.
+	 * @param bytes
+	 *            The length of the request's body, or -1 if it is not known
+	 *            yet, in which case it should be charged once it is.
+	 * @return Zero if the request is admitted, otherwise how many
+	 *         nanoseconds until it would be.
+	 */
+	public long admit(String user, String collection, long bytes) {
+		return admit(user, collection, bytes, System.nanoTime());
+	}
+
+	long admit(String user, String collection, long bytes, long now) {
+		long cost = Math.max(bytes, 0);
+		long wait = acquire(userRequests, user, 1, now);
+		if (wait != 0)
+			return wait;
+		wait = acquire(userBytes, user, cost, now);
+		if (wait != 0) {
+			refund(userRequests, user, 1);
+			return wait;
+		}
+		if (collection != null) {
+			wait = acquire(collectionRequests, collection, 1, now);
+			if (wait == 0) {
+				wait = acquire(collectionBytes, collection, cost, now);
+				if (wait != 0)
+					refund(collectionRequests, collection, 1);
+			}
+			if (wait != 0) {
+				refund(userRequests, user, 1);
+				refund(userBytes, user, cost);
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * Charge bytes only known once a request has been read, the next requests
+	 * wait for them.
+	 */
+	public void charge(String user, String collection, long bytes) {
+		long now = System.nanoTime();
+		if (userBytes != null)
+			userBytes.bucket(user).charge(userBytes.cost(bytes), now);
+		if ((collectionBytes != null) && (collection != null))
+			collectionBytes.bucket(collection).charge(collectionBytes.cost(bytes), now);
+	}
+
+	private static long acquire(Limit limit, String key, long units, long now) {
+		if ((limit == null) || (units == 0))
+			return 0;
+		return limit.bucket(key).acquire(limit.cost(units), limit.tolerance, now);
+	}
+
+	private static void refund(Limit limit, String key, long units) {
+		if ((limit != null) && (units != 0))
+			limit.bucket(key).charge(-limit.cost(units), System.nanoTime());
+	}
+
+	/**
+	 * A rate, and the buckets of everyone it limits.
+	 */
+	static class Limit {
+
+		/** Nanoseconds each unit costs **/
+		private final double nanosPerUnit;
+
+		/** How far ahead of now a bucket may be, in nanoseconds **/
+		private final long tolerance;
+
+		/** The buckets, by user or collection **/
+		private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+		Limit(double perSecond, double burstSeconds) {
+			this.nanosPerUnit = 1e9 / perSecond;
+			this.tolerance = (long) (Math.max(burstSeconds, 0) * 1e9);
+		}
+
+		static Limit of(double perSecond, double burstSeconds) {
+			return (perSecond > 0) ? new Limit(perSecond, burstSeconds) : null;
+		}
+
+		long cost(long units) {
+			return (long) (units * nanosPerUnit);
+		}
+
+		Bucket bucket(String key) {
+			Bucket bucket = buckets.get(key);
+			if (bucket == null) {
+				if (buckets.size() >= MAX_BUCKETS)
+					dropFull(System.nanoTime());
+				Bucket added = new Bucket();
+				bucket = buckets.putIfAbsent(key, added);
+				if (bucket == null)
+					bucket = added;
+			}
+			return bucket;
+		}
+
+		/**
+		 * Drop the buckets which are full, they are no different to new ones.
+		 */
+		private void dropFull(long now) {
+			Iterator<Bucket> it = buckets.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().isFull(now))
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A token bucket, as the time it will be full again.
+	 */
+	static class Bucket {
+
+		/** The theoretical arrival time, when the bucket is full again **/
+		private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+		/**
+		 * Take a cost from the bucket.
+		 *
+		 * @return Zero if it was taken, or the nanoseconds until it could be.
+		 */
+		long acquire(long cost, long tolerance, long now) {
+			while (true) {
+				long current = full.get();
+				long start = (current == Long.MIN_VALUE || current - now < 0) ? now : current;
+				long next = start + cost;
+				if (next - now > tolerance) {
+					// A cost larger than the whole burst is only taken from a
+					// full bucket, otherwise it could never be
+					if (cost > tolerance) {
+						if (start != now)
+							return start - now;
+					} else {
+						return next - now - tolerance;
+					}
+				}
+				if (full.compareAndSet(current, next))
+					return 0;
+			}
+		}
+
+		/**
+		 * Take a cost from the bucket whatever it holds, or give a negative
+		 * cost back.
+		 */
+		void charge(long cost, long now) {
+			while (true) {
+				long current = full.get();
+				long next;
+				if (cost >= 0) {
+					next = ((current == Long.MIN_VALUE) || (current - now < 0) ? now : current) + cost;
+				} else if (current == Long.MIN_VALUE) {
+					return;
+				} else {
+					next = current + cost;
+				}
+				if (full.compareAndSet(current, next))
+					return;
+			}
+		}
+
+		boolean isFull(long now) {
+			long current = full.get();
+			return (current == Long.MIN_VALUE) || (current - now <= 0);
+		}
+	}
+}
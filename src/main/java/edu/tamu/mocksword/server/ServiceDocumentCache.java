@@ -0,0 +1,255 @@
+package edu.tamu.mocksword.server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of marshalled service documents. The mock's service documents only
+ * vary by the location they were requested from and the user the client is
+ * acting on behalf of, so once a document has been rendered for that pair the
+ * bytes can be sent again for every following request. Each cached document
+ * carries a strong entity tag so polling clients can revalidate with
+ * If-None-Match and receive a 304 instead of the whole document. The gzip
+ * compressed variant is kept with the document once it has been asked for,
+ * with its own entity tag.
+ *
+ * Mediating clients poll on behalf of thousands of users, so the cache holds
+ * a bounded number of documents and evicts the least recently used. The
+ * documents are spread over several segments, each locked on its own, so
+ * concurrent requests for different users rarely wait for each other. Hits,
+ * misses and evictions are counted for the server's metrics.
+ */
+public class ServiceDocumentCache {
+
+	/** The most segments the documents are spread over **/
+	private static final int SEGMENTS = 16;
+
+	/** The cached documents, in segments by the hash of their key **/
+	private final List<LruCache<String, CachedDocument>> segments;
+
+	/** The maximum number of documents to hold **/
+	private final int maxEntries;
+
+	/** Lookups which found a document **/
+	private final LongAdder hits = new LongAdder();
+
+	/** Lookups which found no document **/
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Create a new cache.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of documents to hold, once full the least
+	 *            recently used documents are evicted. Zero or less disables
+	 *            the cache, every document is rendered on each request.
+	 */
+	public ServiceDocumentCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		int count = Math.max(1, Math.min(SEGMENTS, maxEntries));
+		segments = new ArrayList<LruCache<String, CachedDocument>>(count);
+		for (int i = 0; i < count; i++) {
+			// Share the entries out so the segments hold maxEntries in total
+			int size = (maxEntries <= 0) ? 0 : maxEntries / count + (i < maxEntries % count ? 1 : 0);
+			segments.add(new LruCache<String, CachedDocument>(size, 0));
+		}
+	}
+
+	/**
+	 * @return The cached document for the location and on-behalf-of user, or
+	 *         null if none has been cached.
+	 */
+	public CachedDocument get(String location, String onBehalfOf) {
+		String key = key(location, onBehalfOf);
+		CachedDocument document = segment(key).get(key);
+		if (document != null)
+			hits.increment();
+		else
+			misses.increment();
+		return document;
+	}
+
+	/**
+	 * Cache a newly marshalled document.
+	 *
+	 * @return The document which is now cached, if another thread cached the
+	 *         same document first then that document is returned.
+	 */
+	public CachedDocument put(String location, String onBehalfOf, String xml) {
+		try {
+			return put(location, onBehalfOf, xml.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	/**
+	 * Cache a newly rendered document.
+	 *
+	 * @param body
+	 *            The UTF-8 encoded document, which must not be modified.
+	 * @return The document which is now cached, if another thread cached the
+	 *         same document first then that document is returned.
+	 */
+	public CachedDocument put(String location, String onBehalfOf, byte[] body) {
+		CachedDocument document = new CachedDocument(body);
+		if (maxEntries <= 0)
+			return document;
+		String key = key(location, onBehalfOf);
+		CachedDocument existing = segment(key).putIfAbsent(key, document);
+		return existing != null ? existing : document;
+	}
+
+	/**
+	 * Remove every cached document.
+	 */
+	public void clear() {
+		for (LruCache<String, CachedDocument> segment : segments)
+			segment.clear();
+	}
+
+	/**
+	 * @return The number of documents held.
+	 */
+	public int size() {
+		int size = 0;
+		for (LruCache<String, CachedDocument> segment : segments)
+			size += segment.size();
+		return size;
+	}
+
+	/**
+	 * @return The number of lookups which found a document.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups which found no document.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of documents evicted to make room for others.
+	 */
+	public long getEvictions() {
+		long evictions = 0;
+		for (LruCache<String, CachedDocument> segment : segments)
+			evictions += segment.getEvictions();
+		return evictions;
+	}
+
+	private LruCache<String, CachedDocument> segment(String key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments.get((hash & 0x7fffffff) % segments.size());
+	}
+
+	private static String key(String location, String onBehalfOf) {
+		return onBehalfOf == null ? location : location + "\n" + onBehalfOf;
+	}
+
+	/**
+	 * A marshalled service document, and its entity tag.
+	 */
+	public static class CachedDocument {
+
+		/** The UTF-8 encoded document **/
+		private final byte[] body;
+
+		/** The quoted strong entity tag **/
+		private final String etag;
+
+		/** The document compressed with gzip, once it has been asked for **/
+		private volatile byte[] gzipped;
+
+		CachedDocument(byte[] body) {
+			try {
+				this.body = body;
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				this.etag = "\"" + DigestingInputStream.toHex(digest.digest(body)) + "\"";
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException(nsae);
+			}
+		}
+
+		/**
+		 * @return The UTF-8 encoded document, which must not be modified.
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return The document compressed with gzip, which must not be
+		 *         modified. It is compressed the first time it is asked for.
+		 */
+		public byte[] getGzippedBody() {
+			byte[] gzipped = this.gzipped;
+			if (gzipped == null) {
+				// Threads racing here compress the same bytes, any may win
+				gzipped = GzipEncoding.gzip(body);
+				this.gzipped = gzipped;
+			}
+			return gzipped;
+		}
+
+		/**
+		 * @return The document's quoted entity tag.
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @param gzip
+		 *            True for the compressed variant of the document.
+		 * @return The variant's quoted entity tag.
+		 */
+		public String getETag(boolean gzip) {
+			return gzip ? etag.substring(0, etag.length() - 1) + "-gzip\"" : etag;
+		}
+
+		/**
+		 * Check if the value of an If-None-Match header matches this document.
+		 *
+		 * @param ifNoneMatch
+		 *            The header value, may be null.
+		 * @return True if the client already holds this document.
+		 */
+		public boolean matches(String ifNoneMatch) {
+			return matches(ifNoneMatch, false);
+		}
+
+		/**
+		 * Check if the value of an If-None-Match header matches a variant of
+		 * this document.
+		 *
+		 * @param ifNoneMatch
+		 *            The header value, may be null.
+		 * @param gzip
+		 *            True for the compressed variant of the document.
+		 * @return True if the client already holds the variant.
+		 */
+		public boolean matches(String ifNoneMatch, boolean gzip) {
+			if (ifNoneMatch == null)
+				return false;
+			String variant = getETag(gzip);
+			StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+			while (st.hasMoreTokens()) {
+				String tag = st.nextToken().trim();
+				if (tag.equals("*") || tag.equals(variant))
+					return true;
+			}
+			return false;
+		}
+	}
+}
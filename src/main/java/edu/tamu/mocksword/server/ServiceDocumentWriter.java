@@ -0,0 +1,388 @@
+package edu.tamu.mocksword.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.purl.sword.base.Collection;
+import org.purl.sword.base.ErrorCodes;
+import org.purl.sword.base.SWORDErrorException;
+import org.purl.sword.base.Service;
+import org.purl.sword.base.ServiceDocument;
+import org.purl.sword.base.Workspace;
+
+import edu.tamu.mocksword.server.CollectionTopology.CollectionSpec;
+import edu.tamu.mocksword.server.CollectionTopology.WorkspaceSpec;
+
+/**
+ * Renders the service documents of a collection topology. The XML is written
+ * element by element as it is produced, in the same layout as
+ * ServiceDocument.marshall(), so a topology of thousands of collections is
+ * never held as a document tree. The layout matches because the topology's
+ * values have their white space normalized already, so the text needs no
+ * reformatting.
+ *
+ * If a page size is set, each workspace lists at most that many collections.
+ * A workspace with more ends with a collection whose sub-service document,
+ * at /servicedocument/ and the workspace's name and page number, lists the
+ * next page, so clients can walk a very large topology a page at a time.
+ *
+ * Documents requested on behalf of a user list only the collections visible
+ * to that user, with the user's mediation flags, and leave out workspaces
+ * without any. Pages count the visible collections only.
+ */
+public class ServiceDocumentWriter {
+
+	/** The line separator used by the serializer **/
+	private static final String EOL = "\r\n";
+
+	/** The topology rendered **/
+	private final CollectionTopology topology;
+
+	/** The most collections listed per workspace, or 0 for all **/
+	private final int pageSize;
+
+	/**
+	 * @param topology
+	 *            The topology rendered.
+	 * @param pageSize
+	 *            The most collections listed per workspace in each document,
+	 *            or 0 to list them all in the service document.
+	 */
+	public ServiceDocumentWriter(CollectionTopology topology, int pageSize) {
+		this.topology = topology;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Find the document requested from a location, as it is listed for
+	 * everyone.
+	 *
+	 * @throws SWORDErrorException
+	 *             If there is no such document.
+	 */
+	public Page page(String location) throws SWORDErrorException {
+		return page(location, null);
+	}
+
+	/**
+	 * Find the document requested from a location: the service document at
+	 * /servicedocument, or a page of a workspace at
+	 * /servicedocument/workspace/page.
+	 *
+	 * @param onBehalfOf
+	 *            The user the document is requested on behalf of, or null.
+	 * @throws SWORDErrorException
+	 *             If there is no such document, or the user can see no
+	 *             collection on it.
+	 */
+	public Page page(String location, String onBehalfOf) throws SWORDErrorException {
+		int p = location.indexOf("/servicedocument");
+		if (p == -1) {
+			return page(location, topology.getWorkspaces(), onBehalfOf, 1);
+		}
+		String base = location.substring(0, p);
+		String path = location.substring(p + "/servicedocument".length());
+		int q = path.indexOf('?');
+		if (q != -1) {
+			path = path.substring(0, q);
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		if (path.length() == 0) {
+			return page(base, topology.getWorkspaces(), onBehalfOf, 1);
+		}
+
+		int slash = path.lastIndexOf('/');
+		Page page = null;
+		if ((pageSize > 0) && (slash != -1)) {
+			WorkspaceSpec workspace = topology.getWorkspace(path.substring(0, slash));
+			int number = 0;
+			try {
+				number = Integer.parseInt(path.substring(slash + 1));
+			} catch (NumberFormatException nfe) {
+				number = 0;
+			}
+			if ((workspace != null) && (number >= 1)) {
+				page = page(base, Collections.singletonList(workspace), onBehalfOf, number);
+			}
+		}
+		if ((page == null) || page.workspaces.isEmpty() || (page.number > pages(page.collections.get(0)))) {
+			SWORDErrorException see = new SWORDErrorException(ErrorCodes.ERROR_BAD_REQUEST,
+					"No service document is known at " + location);
+			see.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			throw see;
+		}
+		return page;
+	}
+
+	/**
+	 * Make a page of the workspaces, with the collections the user can see.
+	 */
+	private Page page(String base, List<WorkspaceSpec> candidates, String onBehalfOf, int number) {
+		List<WorkspaceSpec> workspaces = new ArrayList<WorkspaceSpec>(candidates.size());
+		List<List<CollectionSpec>> collections = new ArrayList<List<CollectionSpec>>(candidates.size());
+		for (WorkspaceSpec workspace : candidates) {
+			List<CollectionSpec> visible = workspace.getCollections();
+			if (topology.isPersonalized()) {
+				visible = new ArrayList<CollectionSpec>();
+				for (CollectionSpec collection : workspace.getCollections()) {
+					if (collection.isVisibleTo(onBehalfOf)) {
+						visible.add(collection);
+					}
+				}
+			}
+			if (!visible.isEmpty()) {
+				workspaces.add(workspace);
+				collections.add(visible);
+			}
+		}
+		return new Page(base, workspaces, collections, onBehalfOf, number);
+	}
+
+	/**
+	 * Write a document.
+	 *
+	 * @param maxUploadSize
+	 *            The largest deposit accepted in kB, or -1 if unlimited.
+	 */
+	public void write(Page page, int maxUploadSize, Writer out) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + EOL
+				+ "<app:service xmlns:app=\"http://www.w3.org/2007/app\" xmlns:sword=\"http://purl.org/net/sword/\""
+				+ " xmlns:dcterms=\"http://purl.org/dc/terms/\" xmlns:atom=\"http://www.w3.org/2005/Atom\">" + EOL
+				+ "   <sword:version>1.3</sword:version>" + EOL
+				+ "   <sword:verbose>true</sword:verbose>" + EOL
+				+ "   <sword:noOp>true</sword:noOp>" + EOL);
+		if (maxUploadSize != -1) {
+			out.write("   <sword:maxUploadSize>" + maxUploadSize + "</sword:maxUploadSize>" + EOL);
+		}
+
+		for (int w = 0; w < page.workspaces.size(); w++) {
+			WorkspaceSpec workspace = page.workspaces.get(w);
+			List<CollectionSpec> visible = page.collections.get(w);
+			out.write("   <app:workspace>" + EOL + "      <atom:title type=\"text\">");
+			text(workspace.getTitle(), false, out);
+			out.write("</atom:title>" + EOL);
+
+			List<CollectionSpec> collections = collections(visible, page.number);
+			for (int i = 0; i < collections.size(); i++) {
+				CollectionSpec collection = collections.get(i);
+				out.write("      <app:collection href=\"");
+				text(page.base + "/deposit/" + collection.getId(), true, out);
+				out.write("\">" + EOL);
+				element("atom:title type=\"text\"", "atom:title", collection.getTitle(), out);
+				for (String accept : collection.getAccepts()) {
+					element("app:accept", "app:accept", accept, out);
+				}
+				for (int j = 0; j < collection.getPackagingCount(); j++) {
+					element("sword:acceptPackaging q=\"" + collection.getPackagingQuality(j) + "\"",
+							"sword:acceptPackaging", collection.getPackaging(j), out);
+				}
+				element("sword:collectionPolicy", "sword:collectionPolicy", collection.getPolicy(), out);
+				element("dcterms:abstract", "dcterms:abstract", collection.getAbstract(), out);
+				element("sword:service", "sword:service", service(page.base, collection), out);
+				element("sword:mediation", "sword:mediation",
+						String.valueOf(collection.getMediation(page.onBehalfOf)), out);
+				element("sword:treatment", "sword:treatment", collection.getTreatment(), out);
+				out.write("      </app:collection>" + EOL);
+			}
+
+			if (page.number < pages(visible)) {
+				String next = next(page.base, workspace, page.number);
+				out.write("      <app:collection href=\"");
+				text(next, true, out);
+				out.write("\">" + EOL);
+				element("atom:title type=\"text\"", "atom:title", nextTitle(workspace, visible, page.number), out);
+				element("dcterms:abstract", "dcterms:abstract", nextAbstract(workspace), out);
+				element("sword:service", "sword:service", next, out);
+				out.write("      </app:collection>" + EOL);
+			}
+			out.write("   </app:workspace>" + EOL);
+		}
+		out.write("</app:service>" + EOL);
+	}
+
+	/**
+	 * Build a document as sword-common objects, for callers of the SWORD
+	 * server interface.
+	 */
+	public ServiceDocument build(Page page) {
+		ServiceDocument document = new ServiceDocument();
+		Service service = new Service("1.3", true, true);
+		document.setService(service);
+
+		for (int w = 0; w < page.workspaces.size(); w++) {
+			WorkspaceSpec workspaceSpec = page.workspaces.get(w);
+			List<CollectionSpec> visible = page.collections.get(w);
+			Workspace workspace = new Workspace();
+			workspace.setTitle(workspaceSpec.getTitle());
+			service.addWorkspace(workspace);
+
+			for (CollectionSpec spec : collections(visible, page.number)) {
+				Collection collection = new Collection();
+				collection.setLocation(page.base + "/deposit/" + spec.getId());
+				collection.setTitle(spec.getTitle());
+				for (String accept : spec.getAccepts()) {
+					collection.addAccepts(accept);
+				}
+				for (int j = 0; j < spec.getPackagingCount(); j++) {
+					collection.addAcceptPackaging(spec.getPackaging(j), spec.getPackagingQuality(j));
+				}
+				if (spec.getPolicy() != null) {
+					collection.setCollectionPolicy(spec.getPolicy());
+				}
+				if (spec.getAbstract() != null) {
+					collection.setAbstract(spec.getAbstract());
+				}
+				if (spec.getService() != null) {
+					collection.setService(service(page.base, spec));
+				}
+				collection.setMediation(spec.getMediation(page.onBehalfOf));
+				if (spec.getTreatment() != null) {
+					collection.setTreatment(spec.getTreatment());
+				}
+				workspace.addCollection(collection);
+			}
+
+			if (page.number < pages(visible)) {
+				String next = next(page.base, workspaceSpec, page.number);
+				Collection collection = new Collection();
+				collection.setLocation(next);
+				collection.setTitle(nextTitle(workspaceSpec, visible, page.number));
+				collection.setAbstract(nextAbstract(workspaceSpec));
+				collection.setService(next);
+				workspace.addCollection(collection);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * @return The number of pages a workspace's visible collections are
+	 *         listed on.
+	 */
+	private int pages(List<CollectionSpec> visible) {
+		int count = visible.size();
+		return (pageSize <= 0) ? 1 : (count + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * @return The visible collections of a workspace listed on a page.
+	 */
+	private List<CollectionSpec> collections(List<CollectionSpec> collections, int number) {
+		if (pageSize <= 0) {
+			return collections;
+		}
+		int from = (number - 1) * pageSize;
+		return collections.subList(from, Math.min(from + pageSize, collections.size()));
+	}
+
+	private static String next(String base, WorkspaceSpec workspace, int number) {
+		return base + "/servicedocument/" + workspace.getId() + "/" + (number + 1);
+	}
+
+	private String nextTitle(WorkspaceSpec workspace, List<CollectionSpec> visible, int number) {
+		return workspace.getTitle() + " (page " + (number + 1) + " of " + pages(visible) + ")";
+	}
+
+	private static String nextAbstract(WorkspaceSpec workspace) {
+		return "More collections in " + workspace.getTitle() + ".";
+	}
+
+	/**
+	 * @return The collection's sub-service document, resolved against the
+	 *         base URL if it is a path, or null.
+	 */
+	private static String service(String base, CollectionSpec collection) {
+		String service = collection.getService();
+		return ((service != null) && service.startsWith("/")) ? base + service : service;
+	}
+
+	/**
+	 * Write an element of the collection, if it has a value.
+	 */
+	private static void element(String start, String end, String value, Writer out) throws IOException {
+		if (value != null) {
+			out.write("         <");
+			out.write(start);
+			out.write('>');
+			text(value, false, out);
+			out.write("</");
+			out.write(end);
+			out.write('>');
+			out.write(EOL);
+		}
+	}
+
+	/**
+	 * Write escaped text.
+	 *
+	 * @param attribute
+	 *            Whether the text is an attribute value, whose quotes are
+	 *            escaped too.
+	 */
+	private static void text(String text, boolean attribute, Writer out) throws IOException {
+		int length = text.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			String entity;
+			if (c == '&') {
+				entity = "&amp;";
+			} else if (c == '<') {
+				entity = "&lt;";
+			} else if (c == '>') {
+				entity = "&gt;";
+			} else if (c == '"' && attribute) {
+				entity = "&quot;";
+			} else if (c == '\r') {
+				entity = "&#x0D;";
+			} else {
+				continue;
+			}
+			out.write(text, start, i - start);
+			out.write(entity);
+			start = i + 1;
+		}
+		out.write(text, start, length - start);
+	}
+
+	/**
+	 * A document: the workspaces listed, the collections the user can see in
+	 * them, and the page of those collections.
+	 */
+	public static class Page {
+
+		/** The server's base URL **/
+		private final String base;
+
+		/** The workspaces listed **/
+		private final List<WorkspaceSpec> workspaces;
+
+		/** The collections visible in each workspace, on every page **/
+		private final List<List<CollectionSpec>> collections;
+
+		/** The user the document is for, or null **/
+		private final String onBehalfOf;
+
+		/** The page of each workspace's collections, from 1 **/
+		private final int number;
+
+		Page(String base, List<WorkspaceSpec> workspaces, List<List<CollectionSpec>> collections,
+				String onBehalfOf, int number) {
+			this.base = base;
+			this.workspaces = workspaces;
+			this.collections = collections;
+			this.onBehalfOf = onBehalfOf;
+			this.number = number;
+		}
+	}
+}
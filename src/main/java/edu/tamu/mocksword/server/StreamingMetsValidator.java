@@ -0,0 +1,123 @@
+package edu.tamu.mocksword.server;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Validates the descriptive metadata of a METS manifest with a pull parser,
+ * without building a document in memory. The DIM fields are checked against
+ * the metadata rules as they are read, and parsing stops as soon as the
+ * verdict is known: when a rule fails, when every rule is satisfied and can no
+ * longer fail, or when the manifest moves past the descriptive metadata
+ * sections into the (often very large) file section.
+ */
+public class StreamingMetsValidator {
+
+	/** The METS namespace **/
+	private static final String METS = "http://www.loc.gov/METS/";
+
+	/** The DSpace intermediate metadata namespace **/
+	private static final String DIM = "http://www.dspace.org/xmlns/dspace/dim";
+
+	/** The path from the root to each DIM field, as namespace and local name pairs **/
+	private static final String[][] FIELD_PATH = {
+		{ METS, "mets" },
+		{ METS, "dmdSec" },
+		{ METS, "mdWrap" },
+		{ METS, "xmlData" },
+		{ DIM, "dim" },
+		{ DIM, "field" } };
+
+	/**
+	 * Sections of a METS document which the schema requires to follow every
+	 * dmdSec, once one is reached there is no more descriptive metadata.
+	 */
+	private static final Set<String> AFTER_DMDSEC = new HashSet<String>(Arrays.asList(
+			"amdSec", "fileSec", "structMap", "structLink", "behaviorSec"));
+
+	/** Shared parser factory, which is thread safe once configured **/
+	private final XMLInputFactory factory;
+
+	/**
+	 * Create a new validator.
+	 */
+	public StreamingMetsValidator() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	/**
+	 * Validate a manifest against the rules. The stream is read only as far as
+	 * needed and is not closed.
+	 *
+	 * @param manifest
+	 *            The raw manifest, its encoding is detected from the XML
+	 *            declaration.
+	 * @param rules
+	 *            The rules to evaluate.
+	 * @return A description of each failed rule, empty if all passed.
+	 * @throws XMLStreamException
+	 *             If the manifest is not well formed.
+	 */
+	public List<String> validate(InputStream manifest, MetadataRuleSet rules)
+			throws XMLStreamException {
+		MetadataRuleSet.Evaluation evaluation = rules.evaluate();
+		XMLStreamReader reader = factory.createXMLStreamReader(manifest);
+		try {
+			// The element depth, and how many elements of the field path
+			// the current element is nested within.
+			int depth = 0;
+			int matched = 0;
+
+			while (reader.hasNext() && !evaluation.isDecided()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 1 && !isElement(reader, FIELD_PATH[0])) {
+						// Not a METS document, so there is no metadata at all.
+						break;
+					}
+					if (depth == 2 && METS.equals(reader.getNamespaceURI())
+							&& AFTER_DMDSEC.contains(reader.getLocalName())) {
+						break;
+					}
+					if (matched == depth - 1 && isElement(reader, FIELD_PATH[matched])) {
+						matched++;
+						if (matched == FIELD_PATH.length) {
+							String schema = reader.getAttributeValue(null, "mdschema");
+							String element = reader.getAttributeValue(null, "element");
+							String qualifier = reader.getAttributeValue(null, "qualifier");
+							// Reads through to the field's end element
+							String value = reader.getElementText();
+							evaluation.field(schema, element, qualifier, value);
+							matched--;
+							depth--;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (matched == depth)
+						matched--;
+					depth--;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return evaluation.finish();
+	}
+
+	private static boolean isElement(XMLStreamReader reader, String[] name) {
+		return name[1].equals(reader.getLocalName()) && name[0].equals(reader.getNamespaceURI());
+	}
+}
@@ -0,0 +1,78 @@
+package edu.tamu.mocksword.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * An input stream which is read no faster than a fixed rate, to simulate a
+ * slow link. Reads are cut into chunks of a tenth of a second's worth of
+ * bytes, and the reader is held back whenever it gets ahead of the rate.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+	/** The rate to read at **/
+	private final long bytesPerSecond;
+
+	/** The largest chunk returned by a single read **/
+	private final int chunk;
+
+	/** When the first byte was read, or zero **/
+	private long started;
+
+	/** The number of bytes read so far **/
+	private long count;
+
+	/**
+	 * @param in
+	 *            The stream to read.
+	 * @param bytesPerSecond
+	 *            The rate to read at.
+	 */
+	public ThrottledInputStream(InputStream in, long bytesPerSecond) {
+		super(in);
+		this.bytesPerSecond = Math.max(1, bytesPerSecond);
+		this.chunk = (int) Math.max(1, Math.min(64 * 1024, this.bytesPerSecond / 10));
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1)
+			throttle(1);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, Math.min(len, chunk));
+		if (n > 0)
+			throttle(n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(Math.min(n, chunk));
+		if (skipped > 0)
+			throttle(skipped);
+		return skipped;
+	}
+
+	/**
+	 * Sleep until the bytes read so far are within the rate.
+	 */
+	private void throttle(long n) throws IOException {
+		long now = System.currentTimeMillis();
+		if (started == 0)
+			started = now;
+		count += n;
+		long due = started + (count * 1000) / bytesPerSecond;
+		if (due > now) {
+			try {
+				Thread.sleep(due - now);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling the stream");
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip archive held in a byte buffer, either a
+ * pooled spool buffer or a memory mapped spool file. The entries are listed
+ * from the directory alone, and any single entry can be read by seeking
+ * straight to its data, so finding one entry in a large archive costs time
+ * proportional to that entry rather than to the whole archive.
+ *
+ * Only the features used by packaging tools are supported: stored and
+ * deflated entries in a single disk archive. Zip64 archives are rejected with
+ * a ZipException so the caller can fall back to scanning the archive as a
+ * stream.
+ */
+public class ZipDirectory {
+
+	/** End of central directory record signature **/
+	private static final int END_SIGNATURE = 0x06054b50;
+
+	/** Central directory file header signature **/
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+
+	/** Local file header signature **/
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	/** Size of the end of central directory record, without its comment **/
+	private static final int END_SIZE = 22;
+
+	/** Size of a central directory header, without its variable fields **/
+	private static final int CENTRAL_SIZE = 46;
+
+	/** Size of a local file header, without its variable fields **/
+	private static final int LOCAL_SIZE = 30;
+
+	/** Marker used in place of values which are stored in a zip64 record **/
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	/** The whole archive, in little endian order **/
+	private final ByteBuffer archive;
+
+	/** The entries, in central directory order **/
+	private final List<Entry> entries;
+
+	/**
+	 * Read the central directory of an archive.
+	 *
+	 * @param buffer
+	 *            The complete archive, from its position to its limit. The
+	 *            buffer's position is not modified.
+	 * @throws ZipException
+	 *             If the archive's directory can not be read.
+	 */
+	public ZipDirectory(ByteBuffer buffer) throws ZipException {
+		archive = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int end = findEnd();
+
+		int count = archive.getShort(end + 10) & 0xFFFF;
+		long size = archive.getInt(end + 12) & ZIP64_MAGIC;
+		long offset = archive.getInt(end + 16) & ZIP64_MAGIC;
+		if (count == 0xFFFF || size == ZIP64_MAGIC || offset == ZIP64_MAGIC)
+			throw new ZipException("Zip64 archives are not supported");
+		if (offset + size > end)
+			throw new ZipException("Invalid central directory offset");
+
+		List<Entry> list = new ArrayList<Entry>(count);
+		int position = (int) offset;
+		for (int i = 0; i < count; i++) {
+			if (position + CENTRAL_SIZE > end || archive.getInt(position) != CENTRAL_SIGNATURE)
+				throw new ZipException("Invalid central directory header");
+			int method = archive.getShort(position + 10) & 0xFFFF;
+			long crc = archive.getInt(position + 16) & ZIP64_MAGIC;
+			long compressedSize = archive.getInt(position + 20) & ZIP64_MAGIC;
+			long size32 = archive.getInt(position + 24) & ZIP64_MAGIC;
+			int nameLength = archive.getShort(position + 28) & 0xFFFF;
+			int extraLength = archive.getShort(position + 30) & 0xFFFF;
+			int commentLength = archive.getShort(position + 32) & 0xFFFF;
+			long localOffset = archive.getInt(position + 42) & ZIP64_MAGIC;
+			if (compressedSize == ZIP64_MAGIC || size32 == ZIP64_MAGIC || localOffset == ZIP64_MAGIC)
+				throw new ZipException("Zip64 archives are not supported");
+			if (position + CENTRAL_SIZE + nameLength + extraLength + commentLength > end)
+				throw new ZipException("Truncated central directory header");
+
+			String name = decode(position + CENTRAL_SIZE, nameLength);
+			list.add(new Entry(name, method, crc, compressedSize, size32, localOffset));
+			position += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+		entries = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Locate the end of central directory record, which may be followed by a
+	 * comment of up to 64k.
+	 */
+	private int findEnd() throws ZipException {
+		int last = archive.limit() - END_SIZE;
+		int first = Math.max(0, last - 0xFFFF);
+		for (int position = last; position >= first; position--) {
+			if (archive.getInt(position) == END_SIGNATURE
+					&& position + END_SIZE + (archive.getShort(position + 20) & 0xFFFF) == archive.limit())
+				return position;
+		}
+		throw new ZipException("End of central directory not found");
+	}
+
+	private String decode(int position, int length) throws ZipException {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = archive.duplicate();
+		view.position(position);
+		view.get(bytes);
+		try {
+			// Like ZipInputStream, names are always read as UTF-8
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new ZipException(uee.getMessage());
+		}
+	}
+
+	/**
+	 * @return Every entry in the archive, in directory order.
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The named entry, or null if the archive does not contain it.
+	 */
+	public Entry getEntry(String name) {
+		for (Entry entry : entries) {
+			if (entry.getName().equals(name))
+				return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Open a stream over the uncompressed content of an entry. The data is
+	 * read straight from the archive's buffer, and streams over different
+	 * entries may be read concurrently.
+	 */
+	public InputStream openStream(Entry entry) throws IOException {
+		if (entry.getLocalOffset() + LOCAL_SIZE > archive.limit())
+			throw new ZipException("Invalid local header offset for " + entry.getName());
+		int local = (int) entry.getLocalOffset();
+		if (archive.getInt(local) != LOCAL_SIGNATURE)
+			throw new ZipException("Invalid local header for " + entry.getName());
+		int nameLength = archive.getShort(local + 26) & 0xFFFF;
+		int extraLength = archive.getShort(local + 28) & 0xFFFF;
+		long start = local + LOCAL_SIZE + nameLength + extraLength;
+		if (start + entry.getCompressedSize() > archive.limit())
+			throw new ZipException("Truncated data for " + entry.getName());
+
+		ByteBuffer data = archive.duplicate();
+		data.position((int) start);
+		data.limit((int) (start + entry.getCompressedSize()));
+		InputStream raw = new ByteBufferInputStream(data.slice());
+
+		switch (entry.getMethod()) {
+		case Entry.STORED:
+			return raw;
+		case Entry.DEFLATED:
+			// A raw inflater needs an extra dummy byte after the data
+			InputStream padded = new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+			return new EntryInflaterInputStream(padded, new Inflater(true));
+		default:
+			throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+		}
+	}
+
+	/**
+	 * An inflater stream which releases its inflater when closed.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean closed = false;
+
+		EntryInflaterInputStream(InputStream in, Inflater inflater) {
+			super(in, inflater, 8192);
+		}
+
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				inf.end();
+				super.close();
+			}
+		}
+	}
+
+	/**
+	 * A single entry as described by the central directory.
+	 */
+	public static class Entry {
+
+		/** Compression method for entries stored without compression **/
+		public static final int STORED = 0;
+
+		/** Compression method for deflated entries **/
+		public static final int DEFLATED = 8;
+
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localOffset;
+
+		Entry(String name, int method, long crc, long compressedSize, long size, long localOffset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localOffset = localOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLocalOffset() {
+			return localOffset;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+}
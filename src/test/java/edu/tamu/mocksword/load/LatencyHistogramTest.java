@@ -0,0 +1,49 @@
+package edu.tamu.mocksword.load;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the latency histogram
+ */
+public class LatencyHistogramTest
+{
+
+	@Test
+	public void testPercentiles() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++)
+			histogram.record(i * 100);
+
+		assertEquals(10000, histogram.getCount());
+		assertWithin(500000, histogram.getPercentile(50));
+		assertWithin(990000, histogram.getPercentile(99));
+		assertWithin(999000, histogram.getPercentile(99.9));
+		assertWithin(1000000, histogram.getMax());
+	}
+
+	@Test
+	public void testSmallValuesAreExact() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(3);
+		histogram.record(7);
+		histogram.record(-1);
+
+		assertEquals(0, histogram.getPercentile(0));
+		assertEquals(3, histogram.getPercentile(50));
+		assertEquals(7, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0, histogram.getMax());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected * 1.04);
+	}
+}
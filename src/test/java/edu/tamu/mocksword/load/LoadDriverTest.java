@@ -0,0 +1,57 @@
+package edu.tamu.mocksword.load;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Unit test for the load driver
+ */
+public class LoadDriverTest
+{
+
+	@Test
+	public void testOpenLoopMix() throws Exception {
+		MockSwordServer.Handle server = MockSwordServer.builder().start();
+		try {
+			LoadDriver.Report report = new LoadDriver(server.getBaseUrl())
+					.clients(4)
+					.rate(100)
+					.duration(1, TimeUnit.SECONDS)
+					.mix(LoadDriver.Operation.SERVICE_DOCUMENT, 1)
+					.mix(LoadDriver.Operation.DEPOSIT, 1)
+					.noOp(true)
+					.run();
+
+			long serviceDocuments = report.getLatencies(LoadDriver.Operation.SERVICE_DOCUMENT).getCount();
+			long deposits = report.getLatencies(LoadDriver.Operation.DEPOSIT).getCount();
+			assertEquals(100, serviceDocuments + deposits);
+			assertTrue(serviceDocuments > 0 && deposits > 0);
+			assertEquals(0, report.getErrors(LoadDriver.Operation.SERVICE_DOCUMENT));
+			assertEquals(0, report.getErrors(LoadDriver.Operation.DEPOSIT));
+			assertEquals(0, report.getDropped());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testFailuresAreCounted() throws Exception {
+		MockSwordServer.Handle server = MockSwordServer.builder().start();
+		try {
+			LoadDriver.Report report = new LoadDriver(server.getBaseUrl())
+					.credentials("invalidUser", "invalidPassword")
+					.clients(2)
+					.duration(200, TimeUnit.MILLISECONDS)
+					.run();
+
+			assertEquals(0, report.getLatencies(LoadDriver.Operation.SERVICE_DOCUMENT).getCount());
+			assertTrue(report.getErrors(LoadDriver.Operation.SERVICE_DOCUMENT) > 0);
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package edu.tamu.mocksword.load;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import edu.tamu.mocksword.server.CaptureLog;
+import edu.tamu.mocksword.server.MockSwordServer;
+
+/**
+ * Unit test for replaying captured traffic
+ */
+public class ReplayDriverTest
+{
+
+	@Test
+	public void testReplayCapturedTraffic() throws Exception {
+		File path = File.createTempFile("capture", ".log");
+		path.deleteOnExit();
+
+		MockSwordServer.Handle captured = MockSwordServer.builder().param("capture-log", path.getPath()).start();
+		long requests;
+		try {
+			LoadDriver.Report report = new LoadDriver(captured.getBaseUrl())
+					.clients(2)
+					.rate(50)
+					.duration(500, TimeUnit.MILLISECONDS)
+					.noOp(true)
+					.run();
+			requests = report.getLatencies(LoadDriver.Operation.SERVICE_DOCUMENT).getCount()
+					+ report.getLatencies(LoadDriver.Operation.DEPOSIT).getCount();
+			assertTrue(requests > 0);
+		} finally {
+			captured.stop();
+		}
+
+		MockSwordServer.Handle server = MockSwordServer.builder().start();
+		try {
+			LoadDriver.Report report = new ReplayDriver(server.getBaseUrl(), path)
+					.clients(4)
+					.speed(0)
+					.run();
+
+			long replayed = report.getLatencies(LoadDriver.Operation.SERVICE_DOCUMENT).getCount()
+					+ report.getLatencies(LoadDriver.Operation.DEPOSIT).getCount();
+			assertTrue(replayed >= requests);
+			assertEquals(0, report.getErrors(LoadDriver.Operation.SERVICE_DOCUMENT));
+			assertEquals(0, report.getErrors(LoadDriver.Operation.DEPOSIT));
+			assertEquals(0, report.getDropped());
+		} finally {
+			server.stop();
+			File bodies = CaptureLog.getBodies(path);
+			if (bodies.isDirectory()) {
+				for (File body : bodies.listFiles())
+					body.delete();
+				bodies.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testReplayInArrivalOrder() throws Exception {
+		File path = File.createTempFile("capture", ".log");
+		path.deleteOnExit();
+
+		// A long request is logged after a shorter one which arrived a second later
+		long arrived = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		CaptureLog captureLog = new CaptureLog(path, 4096);
+		CaptureLog.Record later = new CaptureLog.Record(arrived + TimeUnit.SECONDS.toNanos(1), "GET",
+				"/servicedocument", "testUser", Collections.<String> emptyList());
+		later.setResponse(200, TimeUnit.MILLISECONDS.toNanos(10));
+		captureLog.append(later);
+		CaptureLog.Record earlier = new CaptureLog.Record(arrived, "GET", "/servicedocument", "testUser",
+				Collections.<String> emptyList());
+		earlier.setResponse(200, TimeUnit.MILLISECONDS.toNanos(1500));
+		captureLog.append(earlier);
+		captureLog.close();
+
+		MockSwordServer.Handle server = MockSwordServer.builder().start();
+		try {
+			LoadDriver.Report report = new ReplayDriver(server.getBaseUrl(), path)
+					.clients(2)
+					.speed(1)
+					.run();
+
+			LatencyHistogram latencies = report.getLatencies(LoadDriver.Operation.SERVICE_DOCUMENT);
+			assertEquals(2, latencies.getCount());
+			assertEquals(0, report.getErrors(LoadDriver.Operation.SERVICE_DOCUMENT));
+			// Neither request should be sent a second after it was due
+			assertTrue("Max latency " + latencies.getMax() + "us", latencies.getMax() < 500000);
+		} finally {
+			server.stop();
+			File bodies = CaptureLog.getBodies(path);
+			if (bodies.isDirectory()) {
+				for (File body : bodies.listFiles())
+					body.delete();
+				bodies.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for deposits processed in the background
+ */
+public class AsyncDepositTest
+{
+
+	/** The server under test, on any free port **/
+	private static MockSwordServer.Handle server;
+
+	@BeforeClass
+	public static void startMockSwordServer() throws Exception {
+		server = MockSwordServer.builder()
+				.param("deposit-processing", "async")
+				.param("async-workers", "2")
+				.start();
+	}
+	
+	@AfterClass
+	public static void stopMockSwordServer() throws Exception {
+		server.stop();
+	}
+	
+	@Test
+	public void testDepositIsPolled() throws Exception {
+		HttpClient client = createHttpClient();
+		String status = deposit(client, "src/main/resources/validDeposit.zip");
+		
+		GetMethod get = poll(client, status);
+		try {
+			assertEquals(200, get.getStatusCode());
+			assertTrue(get.getResponseBodyAsString().contains("mets.xml"));
+		} finally {
+			get.releaseConnection();
+		}
+		
+		// The deposit was processed by the server's own repository
+		String id = status.substring(status.lastIndexOf('/') + 1);
+		assertNotNull(server.getRepository().getDepositQueue().getStatus(id));
+	}
+	
+	@Test
+	public void testFailedDepositIsPolled() throws Exception {
+		HttpClient client = createHttpClient();
+		String status = deposit(client, "src/main/resources/invalidDeposit.zip");
+		
+		GetMethod get = poll(client, status);
+		try {
+			assertEquals(500, get.getStatusCode());
+		} finally {
+			get.releaseConnection();
+		}
+	}
+	
+	@Test
+	public void testRetriedDepositIsAnsweredOnce() throws Exception {
+		HttpClient client = createHttpClient();
+		String first = deposit(client, "src/main/resources/validDeposit.zip", "retry-test");
+		String second = deposit(client, "src/main/resources/validDeposit.zip", "retry-test");
+		assertEquals(first, second);
+		
+		// A different request key is a new deposit
+		String third = deposit(client, "src/main/resources/validDeposit.zip", "another-test");
+		assertFalse(first.equals(third));
+	}
+	
+	@Test
+	public void testUnknownDeposit() throws Exception {
+		GetMethod get = new GetMethod(server.getBaseUrl() + "/deposit/status/999999");
+		try {
+			assertEquals(404, createHttpClient().executeMethod(get));
+		} finally {
+			get.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Post a no-op deposit, returning the status URI it was accepted with.
+	 */
+	private static String deposit(HttpClient client, String path) throws Exception {
+		return deposit(client, path, null);
+	}
+	
+	/**
+	 * Post a no-op deposit with a request key, returning the status URI it
+	 * was accepted with.
+	 */
+	private static String deposit(HttpClient client, String path, String requestKey) throws Exception {
+		File depositPackage = new File(path);
+		PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+		post.setRequestEntity(new FileRequestEntity(depositPackage, "application/zip"));
+		post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+		post.setRequestHeader("X-No-Op", "true");
+		if (requestKey != null) {
+			post.setRequestHeader("Idempotency-Key", requestKey);
+		}
+		try {
+			assertEquals(202, client.executeMethod(post));
+			String location = post.getResponseHeader("Location").getValue();
+			assertTrue(location, location.startsWith(server.getBaseUrl() + "/deposit/status/"));
+			return location;
+		} finally {
+			post.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Poll the status URI until the deposit has been processed.
+	 */
+	private static GetMethod poll(HttpClient client, String status) throws Exception {
+		for (int i = 0; i < 500; i++) {
+			GetMethod get = new GetMethod(status);
+			if (client.executeMethod(get) != 202) {
+				get.getResponseBody();
+				return get;
+			}
+			assertNotNull(get.getResponseHeader("Retry-After"));
+			get.releaseConnection();
+			Thread.sleep(10);
+		}
+		fail("The deposit was never processed");
+		return null;
+	}
+	
+	private static HttpClient createHttpClient() {
+		HttpClient client = new HttpClient();
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+		return client;
+	}
+}
@@ -0,0 +1,137 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import org.purl.sword.atom.Author;
+import org.purl.sword.base.DepositResponse;
+import org.purl.sword.base.SWORDEntry;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the Atom entry writer, comparing it with the marshalled entry
+ */
+public class AtomEntryWriterTest
+{
+
+	private static MockSwordServer.Handle server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		server = MockSwordServer.builder().start();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void testReferenceIsMarshall() throws Exception {
+		DepositResponse dr = server.getRepository().doDeposit(deposit());
+		assertArrayEquals(dr.marshall().getBytes("UTF-8"), marshalled(dr));
+		assertArrayEquals(dr.marshall().getBytes("UTF-8"), AtomEntryWriter.toBytes(dr));
+	}
+
+	@Test
+	public void testEveryShapeOfEntryMatchesMarshall() throws Exception {
+		for (int options = 0; options < 128; options++) {
+			MockSwordDeposit deposit = deposit();
+			if ((options & 1) != 0)
+				deposit.setSlug("my slug & <x>");
+			if ((options & 2) != 0) {
+				deposit.setOnBehalfOf("obo");
+				deposit.setLocation(server.getBaseUrl() + "/deposit?user=obo");
+			}
+			if ((options & 4) != 0)
+				deposit.setVerbose(true);
+			if ((options & 8) != 0)
+				deposit.setNoOp(false);
+			if ((options & 16) != 0)
+				deposit.setSha256("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+			DepositResponse dr = server.getRepository().doDeposit(deposit);
+			if ((options & 32) != 0)
+				dr.getEntry().setUserAgent("Client/1.0 \"quoted\" <&> \u00e9\u20ac\ud83d\ude00");
+			if ((options & 64) != 0)
+				dr.getEntry().setPackaging("http://purl.org/net/sword-types/METSDSpaceSIP");
+
+			assertTrue("options " + options, AtomEntryWriter.isTemplated(dr.getEntry()));
+			assertArrayEquals("options " + options, marshalled(dr), AtomEntryWriter.toBytes(dr));
+		}
+	}
+
+	@Test
+	public void testAttributesEscapeQuotesAndCollapseSpaces() throws Exception {
+		DepositResponse dr = server.getRepository().doDeposit(deposit());
+		dr.getEntry().getContent().setSource("http://localhost/uploads/\"a\" &  <b>.zip");
+
+		assertTrue(AtomEntryWriter.isTemplated(dr.getEntry()));
+		assertArrayEquals(marshalled(dr), AtomEntryWriter.toBytes(dr));
+	}
+
+	@Test
+	public void testRewrittenTextIsMarshalled() throws Exception {
+		String[] agents = { "", "   ", "line\nbreak", "tab\tbed", "\u0085", "\ud83d" };
+		for (String agent : agents) {
+			DepositResponse dr = server.getRepository().doDeposit(deposit());
+			dr.getEntry().setUserAgent(agent);
+
+			assertFalse(agent, AtomEntryWriter.isTemplated(dr.getEntry()));
+		}
+
+		DepositResponse dr = server.getRepository().doDeposit(deposit());
+		dr.getEntry().setUserAgent("line\nbreak");
+		assertArrayEquals(marshalled(dr), AtomEntryWriter.toBytes(dr));
+	}
+
+	@Test
+	public void testOtherEntriesAreMarshalled() throws Exception {
+		DepositResponse dr = server.getRepository().doDeposit(deposit());
+		Author author = new Author();
+		author.setName("Someone Else");
+		dr.getEntry().addAuthors(author);
+		assertFalse(AtomEntryWriter.isTemplated(dr.getEntry()));
+		assertArrayEquals(marshalled(dr), AtomEntryWriter.toBytes(dr));
+
+		SWORDEntry plain = new SWORDEntry();
+		plain.setId("http://localhost/sword/deposit/1");
+		dr.setEntry(plain);
+		assertFalse(AtomEntryWriter.isTemplated(plain));
+		assertArrayEquals(marshalled(dr), AtomEntryWriter.toBytes(dr));
+	}
+
+	/**
+	 * The bytes DepositResponse.marshall() serializes, before it decodes them
+	 * with the platform's charset.
+	 */
+	private static byte[] marshalled(DepositResponse dr) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Serializer serializer = new Serializer(out, "UTF-8");
+		serializer.setIndent(3);
+		serializer.write(new Document(dr.getEntry().marshall()));
+		return out.toByteArray();
+	}
+
+	/**
+	 * A no-op deposit of the valid package.
+	 */
+	private static MockSwordDeposit deposit() {
+		InputStream file = AtomEntryWriterTest.class.getResourceAsStream("/validDeposit.zip");
+		MockSwordDeposit deposit = new MockSwordDeposit();
+		deposit.setUsername("testUser");
+		deposit.setPassword("testPassword");
+		deposit.setLocation(server.getBaseUrl() + "/deposit/c");
+		deposit.setContentType("application/zip");
+		deposit.setContentDisposition("filename=validDeposit.zip");
+		deposit.setNoOp(true);
+		deposit.setFile(file);
+		return deposit;
+	}
+}
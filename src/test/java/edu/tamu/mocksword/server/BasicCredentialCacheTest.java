@@ -0,0 +1,91 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.security.Principal;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the credential cache and the authentication using it
+ */
+public class BasicCredentialCacheTest
+{
+
+	@Test
+	public void testDecodesBasicCredentials() throws Exception {
+		BasicCredentialCache cache = new BasicCredentialCache(10, 60000);
+		assertEquals("testUser:testPassword", cache.getUsernamePassword(basic("testUser", "testPassword")));
+		assertEquals("testUser:testPassword", cache.getUsernamePassword("basic  dGVzdFVzZXI6dGVzdFBhc3N3b3Jk"));
+		assertNull(cache.getUsernamePassword(null));
+		assertNull(cache.getUsernamePassword("Bearer abc"));
+		assertNull(cache.getUsernamePassword("Basic"));
+	}
+
+	@Test
+	public void testRemembersPrincipalOnlyOnceAccepted() throws Exception {
+		BasicCredentialCache cache = new BasicCredentialCache(1, 60000);
+		String header = basic("testUser", "testPassword");
+		Principal principal = new Principal() {
+			public String getName() {
+				return "testUser";
+			}
+		};
+
+		assertNull(cache.getPrincipal(header));
+		cache.setPrincipal(header, principal);
+		assertSame(principal, cache.getPrincipal(header));
+
+		// Bounded, so another header pushes the first out
+		cache.getUsernamePassword(basic("other", "password"));
+		assertNull(cache.getPrincipal(header));
+	}
+
+	@Test
+	public void testAuthenticatesUsersFromFile() throws Exception {
+		File users = File.createTempFile("users", ".properties");
+		Writer out = new FileWriter(users);
+		try {
+			for (int i = 0; i < 5000; i++)
+				out.write("user" + i + ": password" + i + ",user\n");
+			out.write("guest: guest,guest\n");
+		} finally {
+			out.close();
+		}
+
+		MockSwordServer.Handle server = MockSwordServer.builder().param("users", users.getAbsolutePath()).start();
+		try {
+			HttpClient client = new HttpClient();
+			String header = basic("user4321", "password4321");
+			assertEquals(200, get(client, server, header));
+			assertEquals(200, get(client, server, header));
+			assertEquals(401, get(client, server, basic("user4321", "wrong")));
+			assertEquals(401, get(client, server, basic("testUser", "testPassword")));
+			// Known, but without the "user" role
+			assertEquals(403, get(client, server, basic("guest", "guest")));
+		} finally {
+			server.stop();
+			users.delete();
+		}
+	}
+
+	private static int get(HttpClient client, MockSwordServer.Handle server, String authorization) throws Exception {
+		GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+		get.setRequestHeader("Authorization", authorization);
+		try {
+			return client.executeMethod(get);
+		} finally {
+			get.releaseConnection();
+		}
+	}
+
+	private static String basic(String username, String password) {
+		return "Basic " + new String(Base64.encodeBase64((username + ":" + password).getBytes()));
+	}
+}
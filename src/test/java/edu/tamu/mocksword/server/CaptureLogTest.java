@@ -0,0 +1,130 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for capturing requests to a log
+ */
+public class CaptureLogTest
+{
+
+	@Test
+	public void testRoundTripAcrossRegions() throws Exception {
+		File path = File.createTempFile("capture", ".log");
+		path.deleteOnExit();
+		CaptureLog captureLog = new CaptureLog(path, 4096);
+		byte[] body = new byte[1000];
+		Arrays.fill(body, (byte) 'x');
+		for (int i = 0; i < 50; i++) {
+			CaptureLog.Record record = new CaptureLog.Record(1000L + i, "POST", "/deposit/c?n=" + i,
+					(i % 2 == 0) ? "testUser" : null, Arrays.asList("X-Packaging", "mets", "X-No-Op", "true"));
+			record.setResponse(201, 5000L + i);
+			if (i % 5 != 0)
+				record.setBody("digest" + i, body.length, body);
+			captureLog.append(record);
+		}
+		captureLog.close();
+
+		CaptureLog.Reader reader = CaptureLog.read(path);
+		try {
+			for (int i = 0; i < 50; i++) {
+				CaptureLog.Record record = reader.next();
+				assertNotNull(record);
+				assertEquals(1000L + i, record.getTime());
+				assertEquals(5000L + i, record.getDurationNanos());
+				assertEquals(201, record.getStatus());
+				assertEquals("POST", record.getMethod());
+				assertEquals("/deposit/c?n=" + i, record.getUri());
+				assertEquals((i % 2 == 0) ? "testUser" : null, record.getUser());
+				assertEquals(Arrays.asList("X-Packaging", "mets", "X-No-Op", "true"), record.getHeaders());
+				if (i % 5 == 0) {
+					assertNull(record.getSha256());
+				} else {
+					assertEquals("digest" + i, record.getSha256());
+					assertTrue(Arrays.equals(body, record.getBody()));
+				}
+			}
+			assertNull(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testCapturesRequests() throws Exception {
+		File path = File.createTempFile("capture", ".log");
+		path.deleteOnExit();
+		File zip = new File("src/main/resources/validDeposit.zip");
+
+		MockSwordServer.Handle server = MockSwordServer.builder()
+				.param("capture-log", path.getPath())
+				.param("capture-inline-size", "0")
+				.start();
+		try {
+			HttpClient client = new HttpClient();
+			client.getParams().setAuthenticationPreemptive(true);
+			client.getState().setCredentials(AuthScope.ANY,
+					new UsernamePasswordCredentials("testUser", "testPassword"));
+
+			GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+			try {
+				assertEquals(200, client.executeMethod(get));
+			} finally {
+				get.releaseConnection();
+			}
+
+			PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+			post.setRequestEntity(new FileRequestEntity(zip, "application/zip"));
+			post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+			post.setRequestHeader("X-No-Op", "true");
+			try {
+				assertEquals(201, client.executeMethod(post));
+			} finally {
+				post.releaseConnection();
+			}
+		} finally {
+			server.stop();
+		}
+
+		CaptureLog.Reader reader = CaptureLog.read(path);
+		try {
+			CaptureLog.Record serviceDocument = reader.next();
+			assertEquals("GET", serviceDocument.getMethod());
+			assertEquals("/servicedocument", serviceDocument.getUri());
+			assertEquals("testUser", serviceDocument.getUser());
+			assertEquals(200, serviceDocument.getStatus());
+			assertNull(serviceDocument.getSha256());
+			for (int i = 0; i < serviceDocument.getHeaders().size(); i += 2)
+				assertFalse("Authorization".equalsIgnoreCase(serviceDocument.getHeaders().get(i)));
+
+			CaptureLog.Record deposit = reader.next();
+			assertEquals("POST", deposit.getMethod());
+			assertEquals("/deposit/c", deposit.getUri());
+			assertEquals(201, deposit.getStatus());
+			assertEquals(zip.length(), deposit.getBodyLength());
+			assertNull(deposit.getBody());
+			assertTrue(deposit.getBodyFile().isFile());
+			assertEquals(zip.length(), deposit.getBodyFile().length());
+			assertTrue(deposit.getHeaders().containsAll(Collections.singletonList("X-No-Op")));
+
+			assertNull(reader.next());
+		} finally {
+			reader.close();
+			for (File body : CaptureLog.getBodies(path).listFiles())
+				body.delete();
+			CaptureLog.getBodies(path).delete();
+		}
+	}
+}
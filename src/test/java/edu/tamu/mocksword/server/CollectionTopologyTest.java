@@ -0,0 +1,237 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.purl.sword.base.SWORDErrorException;
+import org.purl.sword.base.ServiceDocument;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the collection topology and its service documents
+ */
+public class CollectionTopologyTest
+{
+
+	private static final String BASE = "http://localhost:8080";
+
+	@Test
+	public void testDefaultTopologyIsTheOriginal() throws Exception {
+		CollectionTopology topology = CollectionTopology.defaults();
+		assertEquals(2, topology.getWorkspaces().size());
+		assertEquals(3, topology.getCollectionCount());
+		assertEquals("Collection C", topology.getWorkspace("2").getCollections().get(0).getTitle());
+
+		ServiceDocumentWriter writer = new ServiceDocumentWriter(topology, 0);
+		ServiceDocumentWriter.Page page = writer.page(BASE + "/servicedocument");
+		String xml = new String(written(writer, page, -1), "UTF-8");
+		assertTrue(xml.contains("<app:collection href=\"http://localhost:8080/deposit/a\">"));
+		assertTrue(xml.contains("<sword:collectionPolicy>This collection does not actually exist and will not receive deposits. </sword:collectionPolicy>"));
+		assertArrayEquals(marshalled(writer.build(page)), written(writer, page, -1));
+	}
+
+	@Test
+	public void testStreamedDocumentsMatchMarshalled() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("workspaces", "small, big");
+		properties.setProperty("workspace.small.title", "Small & Simple");
+		properties.setProperty("workspace.small.collections", "x, y");
+		properties.setProperty("workspace.big.title", "Big");
+		properties.setProperty("workspace.big.generate", "2500");
+		properties.setProperty("default.accept", "application/zip, application/xml");
+		properties.setProperty("default.packaging", "http://purl.org/net/sword-types/METSDSpaceSIP 1.0, http://purl.org/net/sword-types/bagit 0.5");
+		properties.setProperty("collection.x.title", "X <the first>");
+		properties.setProperty("collection.x.mediation", "false");
+		properties.setProperty("collection.x.treatment", "Kept as it is");
+		properties.setProperty("collection.x.service", "/servicedocument/small/1");
+		properties.setProperty("collection.y.policy", "");
+		CollectionTopology topology = CollectionTopology.parse(properties);
+		assertEquals(2502, topology.getCollectionCount());
+
+		ServiceDocumentWriter writer = new ServiceDocumentWriter(topology, 1000);
+		String[] locations = { "/servicedocument", "/servicedocument/", "/servicedocument/small/1",
+				"/servicedocument/big/2", "/servicedocument/big/3?page" };
+		for (String location : locations) {
+			ServiceDocumentWriter.Page page = writer.page(BASE + location);
+			ServiceDocument document = writer.build(page);
+			document.getService().setMaxUploadSize(1024);
+			assertArrayEquals(location, marshalled(document), written(writer, page, 1024));
+		}
+
+		String top = new String(written(writer, writer.page(BASE + "/servicedocument"), -1), "UTF-8");
+		assertTrue(top.contains("/deposit/big-1000\""));
+		assertFalse(top.contains("/deposit/big-1001\""));
+		assertTrue(top.contains("<sword:service>http://localhost:8080/servicedocument/big/2</sword:service>"));
+		assertTrue(top.contains("<sword:service>http://localhost:8080/servicedocument/small/1</sword:service>"));
+		assertTrue(top.contains("<atom:title type=\"text\">Big (page 2 of 3)</atom:title>"));
+
+		String last = new String(written(writer, writer.page(BASE + "/servicedocument/big/3"), -1), "UTF-8");
+		assertTrue(last.contains("/deposit/big-2500\""));
+		assertFalse(last.contains("/deposit/big-2000\""));
+		assertFalse(last.contains("<sword:service>"));
+
+		String[] unknown = { "/servicedocument/big/4", "/servicedocument/big/0", "/servicedocument/huge/1",
+				"/servicedocument/big" };
+		for (String location : unknown) {
+			try {
+				writer.page(BASE + location);
+				fail(location);
+			} catch (SWORDErrorException see) {
+				assertEquals(404, see.getStatus());
+			}
+		}
+	}
+
+	@Test
+	public void testWhiteSpaceMatchesMarshalled() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("workspaces", "w");
+		properties.setProperty("workspace.w.title", "Tabbed\tand\n\nbroken");
+		properties.setProperty("workspace.w.collections", "x");
+		properties.setProperty("collection.x.title", "Two  spaces");
+		properties.setProperty("collection.x.abstract", "multi\nline\r\nwith \r\n breaks");
+		properties.setProperty("collection.x.policy", "  lead and trail  ");
+		CollectionTopology topology = CollectionTopology.parse(properties);
+
+		ServiceDocumentWriter writer = new ServiceDocumentWriter(topology, 0);
+		ServiceDocumentWriter.Page page = writer.page(BASE + "/servicedocument");
+		byte[] written = written(writer, page, -1);
+		assertArrayEquals(marshalled(writer.build(page)), written);
+
+		String xml = new String(written, "UTF-8");
+		assertTrue(xml.contains("<atom:title type=\"text\">Tabbed and broken</atom:title>"));
+		assertTrue(xml.contains("<atom:title type=\"text\">Two spaces</atom:title>"));
+		assertTrue(xml.contains("<dcterms:abstract>multi line with breaks</dcterms:abstract>"));
+		assertTrue(xml.contains("<sword:collectionPolicy>lead and trail</sword:collectionPolicy>"));
+	}
+
+	@Test
+	public void testPersonalizedDocuments() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("workspaces", "open, private");
+		properties.setProperty("workspace.open.collections", "x, y");
+		properties.setProperty("workspace.private.collections", "z");
+		properties.setProperty("collection.x.mediation", "alice, bob");
+		properties.setProperty("collection.z.users", "alice");
+		CollectionTopology topology = CollectionTopology.parse(properties);
+		assertTrue(topology.isPersonalized());
+		assertFalse(CollectionTopology.defaults().isPersonalized());
+
+		ServiceDocumentWriter writer = new ServiceDocumentWriter(topology, 1);
+		String[] users = { null, "alice", "carol" };
+		for (String user : users) {
+			ServiceDocumentWriter.Page page = writer.page(BASE + "/servicedocument", user);
+			assertArrayEquals(user, marshalled(writer.build(page)), written(writer, page, -1));
+		}
+
+		String alice = new String(written(writer, writer.page(BASE + "/servicedocument/private/1", "alice"), -1), "UTF-8");
+		assertTrue(alice.contains("/deposit/z\""));
+		String carol = new String(written(writer, writer.page(BASE + "/servicedocument", "carol"), -1), "UTF-8");
+		assertFalse(carol.contains("/deposit/z\""));
+		assertFalse(carol.contains("<sword:mediation>true</sword:mediation>"));
+		String bob = new String(written(writer, writer.page(BASE + "/servicedocument", "bob"), -1), "UTF-8");
+		assertTrue(bob.contains("<sword:mediation>true</sword:mediation>"));
+
+		try {
+			writer.page(BASE + "/servicedocument/private/1", "carol");
+			fail();
+		} catch (SWORDErrorException see) {
+			assertEquals(404, see.getStatus());
+		}
+	}
+
+	@Test
+	public void testInvalidTopologies() throws Exception {
+		String[] invalid = {
+				"workspace.a.collections = x",
+				"workspaces = a\nworkspace.a.title = A",
+				"workspaces = a, b\nworkspace.a.collections = x\nworkspace.b.collections = x",
+				"workspaces = a\nworkspace.a.collections = x\ncollection.x.colour = blue",
+				"workspaces = a\nworkspace.a.generate = many",
+				"workspaces = a\nworkspace.a.collections = x\ndefault.packaging = http://example.org/ high" };
+		for (String text : invalid) {
+			try {
+				CollectionTopology.load(new ByteArrayInputStream(text.getBytes("ISO-8859-1")));
+				fail(text);
+			} catch (IllegalArgumentException iae) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testServesPagedTopology() throws Exception {
+		File file = File.createTempFile("collections", ".properties");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write("workspaces = big\nworkspace.big.generate = 250\n".getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+
+		MockSwordServer.Handle server = MockSwordServer.builder()
+				.param("collections", file.getAbsolutePath())
+				.param("service-document-page-size", "100")
+				.start();
+		try {
+			HttpClient client = new HttpClient();
+			client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+
+			GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument/big/3");
+			try {
+				assertEquals(200, client.executeMethod(get));
+				String body = get.getResponseBodyAsString();
+				assertTrue(body.contains(server.getBaseUrl() + "/deposit/big-250\""));
+				assertFalse(body.contains(server.getBaseUrl() + "/deposit/big-200\""));
+			} finally {
+				get.releaseConnection();
+			}
+
+			get = new GetMethod(server.getBaseUrl() + "/servicedocument/big/4");
+			try {
+				assertEquals(404, client.executeMethod(get));
+			} finally {
+				get.releaseConnection();
+			}
+		} finally {
+			server.stop();
+			file.delete();
+		}
+	}
+
+	private static byte[] written(ServiceDocumentWriter writer, ServiceDocumentWriter.Page page, int maxUploadSize)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(bytes, "UTF-8");
+		writer.write(page, maxUploadSize, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The bytes ServiceDocument.marshall() serializes, before it decodes them
+	 * with the platform's charset.
+	 */
+	private static byte[] marshalled(ServiceDocument document) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Serializer serializer = new Serializer(bytes, "UTF-8");
+		serializer.setIndent(3);
+		serializer.write(new Document(document.getService().marshall()));
+		return bytes.toByteArray();
+	}
+}
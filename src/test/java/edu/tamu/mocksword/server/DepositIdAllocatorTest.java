@@ -0,0 +1,63 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for allocating deposit ids
+ */
+public class DepositIdAllocatorTest
+{
+
+	@Test
+	public void testConcurrentIdsAreUnique() throws Exception {
+		final DepositIdAllocator ids = new DepositIdAllocator("node1", tempFile(), 10);
+		final Set<String> allocated = Collections.synchronizedSet(new HashSet<String>());
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 1000; j++)
+							allocated.add(ids.next());
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(8000, allocated.size());
+		assertTrue(allocated.contains("node1-1"));
+		assertTrue(allocated.contains("node1-8000"));
+		assertEquals("node1-8000", ids.current());
+	}
+
+	@Test
+	public void testRestartDoesNotReuseIds() throws Exception {
+		File file = tempFile();
+		DepositIdAllocator ids = new DepositIdAllocator(null, file, 5);
+		assertEquals("0", ids.current());
+		assertEquals("1", ids.next());
+		assertEquals("2", ids.next());
+
+		// The rest of the first block is skipped
+		ids = new DepositIdAllocator(null, file, 5);
+		assertEquals("6", ids.next());
+	}
+
+	private static File tempFile() throws Exception {
+		File file = File.createTempFile("deposit-ids", ".txt");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+}
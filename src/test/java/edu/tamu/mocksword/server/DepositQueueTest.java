@@ -0,0 +1,145 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.purl.sword.base.DepositResponse;
+
+/**
+ * Unit test for processing deposits in the background
+ */
+public class DepositQueueTest
+{
+
+	@Test
+	public void testStatusIsPolled() throws Exception {
+		DepositQueue queue = new DepositQueue(1, 1, 10);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			String id = queue.submit(new Callable<DepositResponse>() {
+				public DepositResponse call() throws Exception {
+					release.await();
+					return new DepositResponse(201);
+				}
+			});
+
+			DepositQueue.DepositStatus status = queue.getStatus(id);
+			assertNotNull(status);
+			assertFalse(status.isDone());
+
+			release.countDown();
+			waitUntilDone(status);
+			assertEquals(201, status.getResponse().getHttpResponse());
+			assertNull(status.getFailure());
+			assertNull(queue.getStatus("unknown"));
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testFullQueueIsRefused() throws Exception {
+		DepositQueue queue = new DepositQueue(1, 1, 10);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<DepositResponse> blocked = new Callable<DepositResponse>() {
+			public DepositResponse call() throws Exception {
+				release.await();
+				return new DepositResponse(201);
+			}
+		};
+		try {
+			// One running, one waiting, the third is refused
+			queue.submit(blocked);
+			queue.submit(blocked);
+			try {
+				queue.submit(blocked);
+				fail("The deposit should have been refused");
+			} catch (RejectedExecutionException ree) {
+				// expected
+			}
+		} finally {
+			release.countDown();
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testOldestFinishedAreForgotten() throws Exception {
+		DepositQueue queue = new DepositQueue(1, 10, 2);
+		try {
+			String[] ids = new String[3];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = queue.submit(new Callable<DepositResponse>() {
+					public DepositResponse call() throws Exception {
+						throw new IllegalStateException("failed");
+					}
+				});
+				waitUntilDone(queue.getStatus(ids[i]));
+			}
+			assertNull(queue.getStatus(ids[0]));
+			assertTrue(queue.getStatus(ids[2]).getFailure() instanceof IllegalStateException);
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdownReleasesQueuedDeposits() throws Exception {
+		File directory = File.createTempFile("queue", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		DepositSpool spool = new DepositSpool(0, 0);
+
+		DepositQueue queue = new DepositQueue(1, 10, 10);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		String[] ids = new String[3];
+		try {
+			// The worker is kept busy, so the spilled deposits stay queued
+			queue.submit(new Callable<DepositResponse>() {
+				public DepositResponse call() throws Exception {
+					started.countDown();
+					release.await();
+					return new DepositResponse(201);
+				}
+			});
+			started.await();
+			for (int i = 0; i < ids.length; i++) {
+				final DepositSpool.SpooledBody body = spool.spool(new ByteArrayInputStream(new byte[100]), directory);
+				ids[i] = queue.submit(new Callable<DepositResponse>() {
+					public DepositResponse call() throws Exception {
+						return new DepositResponse(201);
+					}
+				}, new Runnable() {
+					public void run() {
+						body.release();
+					}
+				});
+			}
+			assertEquals(ids.length, directory.list().length);
+		} finally {
+			queue.shutdown();
+			release.countDown();
+		}
+
+		assertEquals(0, directory.list().length);
+		assertEquals(0, spool.getFilesInUse());
+		for (String id : ids) {
+			assertTrue(queue.getStatus(id).isDone());
+			assertTrue(queue.getStatus(id).getFailure() instanceof RejectedExecutionException);
+		}
+	}
+
+	private static void waitUntilDone(DepositQueue.DepositStatus status) throws InterruptedException {
+		for (int i = 0; i < 500 && !status.isDone(); i++)
+			Thread.sleep(10);
+		assertTrue(status.isDone());
+	}
+}
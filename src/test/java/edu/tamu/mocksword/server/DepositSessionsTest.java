@@ -0,0 +1,295 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for packages deposited in segments
+ */
+public class DepositSessionsTest
+{
+
+	/** The server under test **/
+	private static MockSwordServer.Handle server;
+
+	@BeforeClass
+	public static void startMockSwordServer() throws Exception {
+		File users = File.createTempFile("jetty-users", ".properties");
+		users.deleteOnExit();
+		FileWriter out = new FileWriter(users);
+		out.write("testUser = testPassword,user\notherUser = testPassword,user\n");
+		out.close();
+		server = MockSwordServer.builder()
+				.param("users", users.getPath())
+				.param("segment-max-count", "100")
+				.start();
+	}
+
+	@AfterClass
+	public static void stopMockSwordServer() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void testSegmentedDeposit() throws Exception {
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		HttpClient client = createHttpClient("testUser");
+		String session = open(client, 3, hex(MessageDigest.getInstance("MD5").digest(zip)));
+
+		// Sent out of order, the first with a corrupt checksum
+		int third = zip.length / 3;
+		byte[] one = Arrays.copyOfRange(zip, 0, third);
+		byte[] two = Arrays.copyOfRange(zip, third, 2 * third);
+		byte[] three = Arrays.copyOfRange(zip, 2 * third, zip.length);
+		PutMethod put = createPut(session + "/3", three);
+		try {
+			assertEquals(204, client.executeMethod(put));
+			assertEquals("3", put.getResponseHeader("X-Segments-Received").getValue());
+		} finally {
+			put.releaseConnection();
+		}
+		put = createPut(session + "/2", two);
+		try {
+			assertEquals(204, client.executeMethod(put));
+			assertEquals("2-3", put.getResponseHeader("X-Segments-Received").getValue());
+		} finally {
+			put.releaseConnection();
+		}
+		put = createPut(session + "/1", one);
+		put.setRequestHeader("Content-MD5", hex(MessageDigest.getInstance("MD5").digest(two)));
+		try {
+			assertEquals(412, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+
+		// The session can be asked what it has, but only by its owner
+		GetMethod get = new GetMethod(session);
+		try {
+			assertEquals(204, client.executeMethod(get));
+			assertEquals("3", get.getResponseHeader("X-Segment-Count").getValue());
+			assertEquals("2-3", get.getResponseHeader("X-Segments-Received").getValue());
+		} finally {
+			get.releaseConnection();
+		}
+		get = new GetMethod(session);
+		try {
+			assertEquals(404, createHttpClient("otherUser").executeMethod(get));
+		} finally {
+			get.releaseConnection();
+		}
+
+		// The last segment deposits the package
+		put = createPut(session + "/1", one);
+		put.setRequestHeader("Content-MD5", hex(MessageDigest.getInstance("MD5").digest(one)));
+		try {
+			assertEquals(201, client.executeMethod(put));
+			String entry = put.getResponseBodyAsString();
+			assertTrue(entry.contains("mets.xml"));
+			assertTrue(entry.contains("validDeposit.zip"));
+		} finally {
+			put.releaseConnection();
+		}
+		get = new GetMethod(session);
+		try {
+			assertEquals(404, client.executeMethod(get));
+		} finally {
+			get.releaseConnection();
+		}
+	}
+
+	@Test
+	public void testSegmentsCountedOnce() throws Exception {
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		HttpClient client = createHttpClient("testUser");
+		long before = getIngestedBytes(client);
+		String session = open(client, 2, null);
+
+		int half = zip.length / 2;
+		PutMethod put = createPut(session + "/1", Arrays.copyOfRange(zip, 0, half));
+		try {
+			assertEquals(204, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+		put = createPut(session + "/2", Arrays.copyOfRange(zip, half, zip.length));
+		try {
+			assertEquals(201, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+
+		assertEquals(zip.length, getIngestedBytes(client) - before);
+	}
+
+	@Test
+	public void testRefusedPackageKeepsSegments() throws Exception {
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		HttpClient client = createHttpClient("testUser");
+		String session = open(client, 2, "0123456789abcdef0123456789abcdef");
+
+		int half = zip.length / 2;
+		PutMethod put = createPut(session + "/1", Arrays.copyOfRange(zip, 0, half));
+		try {
+			assertEquals(204, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+		put = createPut(session + "/2", Arrays.copyOfRange(zip, half, zip.length));
+		try {
+			assertEquals(412, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+
+		GetMethod get = new GetMethod(session);
+		try {
+			assertEquals(204, client.executeMethod(get));
+			assertEquals("1-2", get.getResponseHeader("X-Segments-Received").getValue());
+		} finally {
+			get.releaseConnection();
+		}
+
+		DeleteMethod delete = new DeleteMethod(session);
+		try {
+			assertEquals(204, client.executeMethod(delete));
+		} finally {
+			delete.releaseConnection();
+		}
+		put = createPut(session + "/1", Arrays.copyOfRange(zip, 0, half));
+		try {
+			assertEquals(404, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+	}
+
+	@Test
+	public void testRefusesBadSegments() throws Exception {
+		HttpClient client = createHttpClient("testUser");
+		PostMethod post = createOpen(0);
+		try {
+			assertEquals(400, client.executeMethod(post));
+		} finally {
+			post.releaseConnection();
+		}
+		post = createOpen(101);
+		try {
+			assertEquals(400, client.executeMethod(post));
+		} finally {
+			post.releaseConnection();
+		}
+
+		String session = open(client, 2, null);
+		PutMethod put = createPut(session + "/3", new byte[10]);
+		try {
+			assertEquals(400, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+		put = createPut(server.getBaseUrl() + "/deposit/sessions/unknown/1", new byte[10]);
+		try {
+			assertEquals(404, client.executeMethod(put));
+		} finally {
+			put.releaseConnection();
+		}
+	}
+
+	/**
+	 * @return The URI of a new session.
+	 */
+	private static String open(HttpClient client, int segments, String md5) throws Exception {
+		PostMethod post = createOpen(segments);
+		if (md5 != null)
+			post.setRequestHeader("Content-MD5", md5);
+		try {
+			assertEquals(201, client.executeMethod(post));
+			assertEquals(Integer.toString(segments), post.getResponseHeader("X-Segment-Count").getValue());
+			String location = post.getResponseHeader("Location").getValue();
+			assertTrue(location.startsWith(server.getBaseUrl() + "/deposit/sessions/"));
+			return location;
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
+	/**
+	 * @return The bytes ingested so far, from the server's metrics.
+	 */
+	private static long getIngestedBytes(HttpClient client) throws Exception {
+		GetMethod get = new GetMethod(server.getBaseUrl() + "/metrics");
+		try {
+			assertEquals(200, client.executeMethod(get));
+			for (String line : get.getResponseBodyAsString().split("\n")) {
+				if (line.startsWith("mock_sword_ingested_bytes_total "))
+					return Long.parseLong(line.substring(line.indexOf(' ') + 1).trim());
+			}
+			fail("No mock_sword_ingested_bytes_total metric");
+			return -1;
+		} finally {
+			get.releaseConnection();
+		}
+	}
+
+	private static PostMethod createOpen(int segments) {
+		PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+		post.setRequestEntity(new ByteArrayRequestEntity(new byte[0], "application/zip"));
+		post.setRequestHeader("X-Segment-Count", Integer.toString(segments));
+		post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+		post.setRequestHeader("Content-Disposition", "filename=validDeposit.zip");
+		return post;
+	}
+
+	private static PutMethod createPut(String uri, byte[] segment) {
+		PutMethod put = new PutMethod(uri);
+		put.setRequestEntity(new ByteArrayRequestEntity(segment, "application/octet-stream"));
+		return put;
+	}
+
+	private static HttpClient createHttpClient(String username) {
+		HttpClient client = new HttpClient();
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, "testPassword"));
+		return client;
+	}
+
+	private static byte[] read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hex(byte[] digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
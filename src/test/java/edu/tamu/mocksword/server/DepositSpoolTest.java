@@ -0,0 +1,110 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the deposit spool
+ */
+public class DepositSpoolTest
+{
+
+	@Test
+	public void testSmallBodyStaysInMemory() throws Exception {
+		DepositSpool spool = new DepositSpool(1024, 1);
+		File directory = tempDirectory();
+
+		DepositSpool.SpooledBody body = spool.spool(new ByteArrayInputStream(bytes(100)), directory);
+		assertTrue(body.isInMemory());
+		assertNull(body.getFile());
+		assertEquals(0, directory.list().length);
+		assertEquals(100, body.length());
+		assertArrayEquals(bytes(100), read(body.openStream()));
+
+		// Two streams may be opened over the same buffer
+		assertArrayEquals(bytes(100), read(body.openStream()));
+		body.release();
+	}
+
+	@Test
+	public void testLargeBodySpillsToDisk() throws Exception {
+		DepositSpool spool = new DepositSpool(1024, 1);
+		File directory = tempDirectory();
+
+		DepositSpool.SpooledBody body = spool.spool(new ByteArrayInputStream(bytes(20000)), directory);
+		assertFalse(body.isInMemory());
+		File file = body.getFile();
+		assertEquals(directory, file.getParentFile());
+		assertTrue(file.exists());
+		assertEquals(20000, body.length());
+		assertArrayEquals(bytes(20000), read(body.openStream()));
+		assertEquals(1, spool.getFilesInUse());
+		assertEquals(20000, spool.getFileBytesInUse());
+		body.release();
+		assertFalse(file.exists());
+		assertEquals(0, spool.getFilesInUse());
+		assertEquals(0, spool.getFileBytesInUse());
+
+		// Releasing twice is harmless
+		body.release();
+		assertEquals(0, spool.getFilesInUse());
+	}
+
+	@Test
+	public void testExhaustedPoolSpillsToDisk() throws Exception {
+		DepositSpool spool = new DepositSpool(1024, 1);
+
+		DepositSpool.SpooledBody first = spool.spool(new ByteArrayInputStream(bytes(10)), tempDirectory());
+		DepositSpool.SpooledBody second = spool.spool(new ByteArrayInputStream(bytes(10)), tempDirectory());
+		assertTrue(first.isInMemory());
+		assertFalse(second.isInMemory());
+		assertEquals(1, spool.getBuffersInUse());
+		second.release();
+
+		// Once released the buffer is reused
+		first.release();
+		DepositSpool.SpooledBody third = spool.spool(new ByteArrayInputStream(bytes(10)), tempDirectory());
+		assertTrue(third.isInMemory());
+		assertArrayEquals(bytes(10), read(third.openStream()));
+		third.release();
+	}
+
+	@Test
+	public void testZeroThresholdAlwaysUsesDisk() throws Exception {
+		DepositSpool spool = new DepositSpool(0, 16);
+		DepositSpool.SpooledBody body = spool.spool(new ByteArrayInputStream(bytes(10)), tempDirectory());
+		assertFalse(body.isInMemory());
+		body.release();
+	}
+
+	private static File tempDirectory() throws IOException {
+		File directory = File.createTempFile("spool-test", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) i;
+		return bytes;
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int len;
+		while ((len = in.read(buf)) > 0)
+			out.write(buf, 0, len);
+		in.close();
+		return out.toByteArray();
+	}
+}
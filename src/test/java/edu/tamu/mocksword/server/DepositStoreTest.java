@@ -0,0 +1,66 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the content addressed deposit store
+ */
+public class DepositStoreTest
+{
+
+	@Test
+	public void testIdenticalPackagesAreStoredOnce() throws Exception {
+		DepositStore store = new DepositStore(tempDirectory(), 1000);
+		byte[] content = "Some package".getBytes("UTF-8");
+
+		String first = store.store(spool(content), sha256(content));
+		String second = store.store(spool(content), sha256(content));
+		assertEquals(sha256(content), first);
+		assertEquals(first, second);
+		assertEquals(content.length, store.getTotalBytes());
+		assertEquals(content.length, store.get(first).length());
+		assertNull(store.get(sha256("Something else".getBytes("UTF-8"))));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAreEvicted() throws Exception {
+		File directory = tempDirectory();
+		DepositStore store = new DepositStore(directory, 250);
+		String a = store.store(spool(new byte[100]), sha256(new byte[100]));
+		String b = store.store(spool(new byte[101]), sha256(new byte[101]));
+
+		// Fetching a makes b the least recently used
+		assertNotNull(store.get(a));
+		String c = store.store(spool(new byte[102]), sha256(new byte[102]));
+		assertNotNull(store.get(a));
+		assertNull(store.get(b));
+		assertNotNull(store.get(c));
+		assertEquals(202, store.getTotalBytes());
+
+		// Too large to ever fit
+		assertNull(store.store(spool(new byte[251]), sha256(new byte[251])));
+
+		// Reopening the store adopts what is already there
+		assertEquals(202, new DepositStore(directory, 250).getTotalBytes());
+	}
+
+	private static DepositSpool.SpooledBody spool(byte[] content) throws Exception {
+		return new DepositSpool(0, 0).spool(new ByteArrayInputStream(content), new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	private static File tempDirectory() throws Exception {
+		File directory = File.createTempFile("store", "");
+		directory.delete();
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	private static String sha256(byte[] content) throws Exception {
+		return DigestingInputStream.toHex(MessageDigest.getInstance("SHA-256").digest(content));
+	}
+}
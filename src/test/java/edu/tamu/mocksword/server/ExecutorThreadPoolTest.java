@@ -0,0 +1,43 @@
+package edu.tamu.mocksword.server;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the executor backed Jetty thread pool
+ */
+public class ExecutorThreadPoolTest
+{
+
+	@Test
+	public void testBoundedPoolRejectsWhenQueueIsFull() throws Exception {
+		ExecutorThreadPool pool = ExecutorThreadPool.bounded(1, 1, 60000);
+		pool.start();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable job = new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		try {
+			// One job runs on the only thread, the next waits in the queue
+			assertTrue(pool.dispatch(job));
+			started.await();
+			assertTrue(pool.dispatch(job));
+			assertTrue(pool.isLowOnThreads());
+
+			assertFalse(pool.dispatch(job));
+		} finally {
+			release.countDown();
+			pool.stop();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.purl.sword.base.ErrorCodes;
+
+/**
+ * Unit test for latency and fault injection
+ */
+public class FaultScenariosTest
+{
+
+	@Test
+	public void testUserOverridesCollectionOverridesDefault() throws Exception {
+		FaultScenarios scenarios = load(
+				"default.latency = fixed 5\n" +
+				"collection.c.latency = uniform 10 20\n" +
+				"collection.c.errors = 1.0 ErrorContent\n" +
+				"user.calm.errors = none\n");
+
+		assertNull(scenarios.select("someone", "b").sampleError());
+		assertEquals(ErrorCodes.ERROR_CONTENT, scenarios.select("someone", "c").sampleError());
+		assertNull(scenarios.select("calm", "c").sampleError());
+	}
+
+	@Test
+	public void testPercentileLatency() throws Exception {
+		FaultScenarios.Latency latency = FaultScenarios.Latency.parse("percentiles 50:10 100:20");
+		for (int i = 0; i < 1000; i++) {
+			long ms = latency.sample(java.util.concurrent.ThreadLocalRandom.current());
+			assertTrue(ms >= 0 && ms <= 20);
+		}
+	}
+
+	@Test
+	public void testOutageWindow() throws Exception {
+		FaultScenarios.Scenario scenario = load("default.outage = every 60s for 10s offset 5s\n").select(null, null);
+		assertEquals(0, scenario.outageRemaining(4000));
+		assertEquals(10000, scenario.outageRemaining(5000));
+		assertEquals(1000, scenario.outageRemaining(14000));
+		assertEquals(0, scenario.outageRemaining(15000));
+		assertEquals(10000, scenario.outageRemaining(65000));
+	}
+
+	@Test
+	public void testBandwidthIsThrottled() throws Exception {
+		InputStream in = new ThrottledInputStream(new ByteArrayInputStream(new byte[10240]), 20480);
+		long start = System.currentTimeMillis();
+		byte[] buf = new byte[4096];
+		while (in.read(buf) > 0) {
+			// read it all
+		}
+		assertTrue(System.currentTimeMillis() - start >= 400);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidScenario() throws Exception {
+		load("collection.c.latency = gaussian 10\n");
+	}
+
+	@Test
+	public void testInjectedFaults() throws Exception {
+		File file = File.createTempFile("scenarios", ".properties");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(("collection.b.errors = 1.0 ErrorChecksumMismatch\n" +
+				"collection.c.outage = every 1s for 1s\n").getBytes("UTF-8"));
+		out.close();
+
+		MockSwordServer.Handle server = MockSwordServer.builder().param("scenarios", file.getAbsolutePath()).start();
+		try {
+			HttpClient client = new HttpClient();
+			client.getParams().setAuthenticationPreemptive(true);
+			client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+
+			assertEquals(412, post(client, server.getBaseUrl() + "/deposit/b"));
+			assertEquals(503, post(client, server.getBaseUrl() + "/deposit/c"));
+
+			GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+			try {
+				assertEquals(200, client.executeMethod(get));
+			} finally {
+				get.releaseConnection();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static int post(HttpClient client, String destination) throws Exception {
+		PostMethod post = new PostMethod(destination);
+		post.setRequestEntity(new FileRequestEntity(new File("src/main/resources/validDeposit.zip"), "application/zip"));
+		try {
+			return client.executeMethod(post);
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
+	private static FaultScenarios load(String properties) throws Exception {
+		return FaultScenarios.load(new ByteArrayInputStream(properties.getBytes("ISO-8859-1")));
+	}
+}
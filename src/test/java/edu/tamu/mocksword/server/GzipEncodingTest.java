@@ -0,0 +1,208 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for compressed responses and gzip encoded deposits
+ */
+public class GzipEncodingTest
+{
+
+	/** The server under test, compressing every response **/
+	private static MockSwordServer.Handle server;
+
+	@BeforeClass
+	public static void startMockSwordServer() throws Exception {
+		server = MockSwordServer.builder().param("gzip-min-size", "0").start();
+	}
+
+	@AfterClass
+	public static void stopMockSwordServer() throws Exception {
+		server.stop();
+	}
+
+	@Test
+	public void testAcceptEncoding() {
+		assertTrue(GzipEncoding.acceptsGzip("gzip"));
+		assertTrue(GzipEncoding.acceptsGzip("deflate, x-gzip;q=0.5"));
+		assertTrue(GzipEncoding.acceptsGzip("*"));
+		assertFalse(GzipEncoding.acceptsGzip(null));
+		assertFalse(GzipEncoding.acceptsGzip("identity"));
+		assertFalse(GzipEncoding.acceptsGzip("gzip;q=0"));
+		assertFalse(GzipEncoding.acceptsGzip("gzip;q=0, *"));
+	}
+
+	@Test
+	public void testCompressesServiceDocument() throws Exception {
+		HttpClient client = createHttpClient();
+		String plain;
+		String etag;
+		GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+		try {
+			assertEquals(200, client.executeMethod(get));
+			assertNull(get.getResponseHeader("Content-Encoding"));
+			plain = get.getResponseBodyAsString();
+			etag = get.getResponseHeader("ETag").getValue();
+		} finally {
+			get.releaseConnection();
+		}
+
+		get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+		get.setRequestHeader("Accept-Encoding", "gzip");
+		String gzipETag;
+		try {
+			assertEquals(200, client.executeMethod(get));
+			assertEquals("gzip", get.getResponseHeader("Content-Encoding").getValue());
+			assertEquals("Accept-Encoding", get.getResponseHeader("Vary").getValue());
+			gzipETag = get.getResponseHeader("ETag").getValue();
+			assertFalse(etag.equals(gzipETag));
+			assertEquals(plain, new String(gunzip(get.getResponseBody()), "UTF-8"));
+		} finally {
+			get.releaseConnection();
+		}
+
+		get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+		get.setRequestHeader("Accept-Encoding", "gzip");
+		get.setRequestHeader("If-None-Match", gzipETag);
+		try {
+			assertEquals(304, client.executeMethod(get));
+		} finally {
+			get.releaseConnection();
+		}
+	}
+
+	@Test
+	public void testDecompressesDeposit() throws Exception {
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		PostMethod post = createPost(GzipEncoding.gzip(zip), "gzip");
+		post.setRequestHeader("Content-MD5", hex(MessageDigest.getInstance("MD5").digest(zip)));
+		post.setRequestHeader("Accept-Encoding", "gzip");
+		try {
+			assertEquals(201, createHttpClient().executeMethod(post));
+			assertEquals("gzip", post.getResponseHeader("Content-Encoding").getValue());
+			String entry = new String(gunzip(post.getResponseBody()), "UTF-8");
+			assertTrue(entry.contains("mets.xml"));
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
+	@Test
+	public void testRefusesUndecodableDeposits() throws Exception {
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		PostMethod post = createPost(zip, "gzip");
+		try {
+			assertEquals(400, createHttpClient().executeMethod(post));
+			assertTrue(post.getResponseBodyAsString().contains("ErrorContent"));
+		} finally {
+			post.releaseConnection();
+		}
+
+		post = createPost(zip, "br");
+		post.setRequestHeader("Accept-Encoding", "gzip");
+		try {
+			assertEquals(415, createHttpClient().executeMethod(post));
+			assertEquals("gzip", post.getResponseHeader("Content-Encoding").getValue());
+			assertTrue(new String(gunzip(post.getResponseBody()), "UTF-8").contains("ErrorContent"));
+		} finally {
+			post.releaseConnection();
+		}
+	}
+
+	@Test
+	public void testRefusesDecompressionBomb() throws Exception {
+		File directory = File.createTempFile("uploads", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		MockSwordServer.Handle limited = MockSwordServer.builder()
+				.param("maxUploadSize", "100")
+				.param("spool-threshold", "0")
+				.param("upload-temp-directory", directory.getPath())
+				.start();
+		try {
+			// 20MB of zeros, sent as a few kB of gzip
+			PostMethod post = createPost(limited, GzipEncoding.gzip(new byte[20 * 1024 * 1024]), "gzip");
+			try {
+				assertEquals(413, createHttpClient().executeMethod(post));
+				Matcher matcher = Pattern.compile("the file is (\\d+)kB").matcher(post.getResponseBodyAsString());
+				assertTrue(matcher.find());
+				// Decompression stopped soon after the limit was passed
+				assertTrue(matcher.group(1), Integer.parseInt(matcher.group(1)) < 200);
+			} finally {
+				post.releaseConnection();
+			}
+			assertEquals(0, directory.list().length);
+		} finally {
+			limited.stop();
+		}
+	}
+
+	private static HttpClient createHttpClient() {
+		HttpClient client = new HttpClient();
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+		return client;
+	}
+
+	private static PostMethod createPost(byte[] body, String encoding) {
+		return createPost(server, body, encoding);
+	}
+
+	private static PostMethod createPost(MockSwordServer.Handle server, byte[] body, String encoding) {
+		PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+		post.setRequestEntity(new ByteArrayRequestEntity(body, "application/zip"));
+		post.setRequestHeader("Content-Encoding", encoding);
+		post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+		post.setRequestHeader("Content-Disposition", "filename=validDeposit.zip");
+		return post;
+	}
+
+	private static byte[] gunzip(byte[] body) throws Exception {
+		return copy(new GZIPInputStream(new ByteArrayInputStream(body)));
+	}
+
+	private static byte[] read(File file) throws Exception {
+		return copy(new FileInputStream(file));
+	}
+
+	private static byte[] copy(InputStream in) throws Exception {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hex(byte[] digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,45 @@
+package edu.tamu.mocksword.server;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the bounded, expiring cache
+ */
+public class LruCacheTest
+{
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		LruCache<String, String> cache = new LruCache<String, String>(2, 0);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		assertEquals("1", cache.get("a"));
+
+		cache.put("c", "3");
+		assertEquals(2, cache.size());
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testPutIfAbsentKeepsTheFirstValue() {
+		LruCache<String, String> cache = new LruCache<String, String>(2, 0);
+		assertNull(cache.putIfAbsent("a", "1"));
+		assertEquals("1", cache.putIfAbsent("a", "2"));
+		assertEquals("1", cache.get("a"));
+	}
+
+	@Test
+	public void testEntriesExpire() throws Exception {
+		LruCache<String, String> cache = new LruCache<String, String>(10, 50);
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+
+		Thread.sleep(100);
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+}
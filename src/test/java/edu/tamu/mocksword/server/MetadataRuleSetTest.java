@@ -0,0 +1,72 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the compiled metadata rules
+ */
+public class MetadataRuleSetTest
+{
+
+	private static final String RULES =
+		"default.dc.title = required\n" +
+		"c.dc.creator = required; nonempty\n" +
+		"c.dc.date.issued = max=1; pattern=\\\\d{4}\n";
+
+	@Test
+	public void testDefaultRules() throws Exception {
+		Map<String, MetadataRuleSet> sets = MetadataRuleSet.load(new ByteArrayInputStream(RULES.getBytes("UTF-8")));
+		assertEquals(1, sets.get(MetadataRuleSet.DEFAULT).getRules().size());
+
+		MetadataRuleSet.Evaluation evaluation = sets.get(MetadataRuleSet.DEFAULT).evaluate();
+		assertFalse(evaluation.isDecided());
+		evaluation.field("dc", "title", "alternative", "A test title");
+		assertTrue(evaluation.isDecided());
+		assertTrue(evaluation.finish().isEmpty());
+
+		evaluation = sets.get(MetadataRuleSet.DEFAULT).evaluate();
+		evaluation.field("dc", "creator", null, "Scott Phillips");
+		List<String> failures = evaluation.finish();
+		assertEquals(1, failures.size());
+		assertTrue(failures.get(0).contains("dc.title"));
+	}
+
+	@Test
+	public void testCollectionRules() throws Exception {
+		Map<String, MetadataRuleSet> sets = MetadataRuleSet.load(new ByteArrayInputStream(RULES.getBytes("UTF-8")));
+		MetadataRuleSet c = sets.get("c");
+		assertEquals(3, c.getRules().size());
+
+		// Empty values do not count
+		MetadataRuleSet.Evaluation evaluation = c.evaluate();
+		evaluation.field("dc", "title", null, "A test title");
+		evaluation.field("dc", "creator", null, " ");
+		evaluation.field("dc", "date", "issued", "2007");
+		assertEquals(1, evaluation.finish().size());
+
+		// Values must match the pattern
+		evaluation = c.evaluate();
+		evaluation.field("dc", "date", "issued", "September");
+		assertTrue(evaluation.isDecided());
+
+		// Only one date may be given
+		evaluation = c.evaluate();
+		evaluation.field("dc", "title", null, "A test title");
+		evaluation.field("dc", "creator", null, "Scott Phillips");
+		evaluation.field("dc", "date", "issued", "2007");
+		assertFalse(evaluation.isDecided());
+		assertTrue(evaluation.finish().isEmpty());
+		evaluation.field("dc", "date", "issued", "2008");
+		assertEquals(1, evaluation.finish().size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidRule() throws Exception {
+		MetadataRuleSet.load(new ByteArrayInputStream("default.dc.title = min=2; max=1".getBytes("UTF-8")));
+	}
+}
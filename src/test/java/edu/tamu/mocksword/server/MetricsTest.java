@@ -0,0 +1,106 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the metrics
+ */
+public class MetricsTest
+{
+
+	@Test
+	public void testHistogramIsCumulative() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.recordRequest("deposit", "c", 201, 1000000L);
+		metrics.recordRequest("deposit", "c", 201, 30000000L);
+		metrics.recordRequest("deposit", "c", 415, 20000000000L);
+
+		String text = write(metrics);
+		assertTrue(text.contains("mock_sword_requests_total{endpoint=\"deposit\",collection=\"c\",status=\"201\"} 2\n"));
+		assertTrue(text.contains("mock_sword_requests_total{endpoint=\"deposit\",collection=\"c\",status=\"415\"} 1\n"));
+		assertTrue(text.contains("mock_sword_request_duration_seconds_bucket{endpoint=\"deposit\",le=\"0.005\"} 1\n"));
+		assertTrue(text.contains("mock_sword_request_duration_seconds_bucket{endpoint=\"deposit\",le=\"0.05\"} 2\n"));
+		assertTrue(text.contains("mock_sword_request_duration_seconds_bucket{endpoint=\"deposit\",le=\"10.0\"} 2\n"));
+		assertTrue(text.contains("mock_sword_request_duration_seconds_bucket{endpoint=\"deposit\",le=\"+Inf\"} 3\n"));
+		assertTrue(text.contains("mock_sword_request_duration_seconds_count{endpoint=\"deposit\"} 3\n"));
+	}
+
+	@Test
+	public void testCollectionsAreBounded() throws Exception {
+		Metrics metrics = new Metrics();
+		for (int i = 0; i < 1500; i++)
+			metrics.recordRequest("deposit", "collection-" + i, 201, 0);
+
+		String text = write(metrics);
+		assertTrue(text.contains("collection=\"collection-999\""));
+		assertFalse(text.contains("collection=\"collection-1000\""));
+		assertTrue(text.contains("mock_sword_requests_total{endpoint=\"deposit\",collection=\"other\",status=\"201\"} 500\n"));
+	}
+
+	@Test
+	public void testLabelsAreEscaped() throws Exception {
+		assertEquals("a\\\"b\\\\c", Metrics.escape("a\"b\\c"));
+	}
+
+	@Test
+	public void testRequestsAreCounted() throws Exception {
+		MockSwordServer.Handle server = MockSwordServer.builder().start();
+		try {
+			HttpClient client = new HttpClient();
+			client.getParams().setAuthenticationPreemptive(true);
+			client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+
+			GetMethod get = new GetMethod(server.getBaseUrl() + "/servicedocument");
+			try {
+				assertEquals(200, client.executeMethod(get));
+			} finally {
+				get.releaseConnection();
+			}
+
+			File depositPackage = new File("src/main/resources/validDeposit.zip");
+			PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+			post.setRequestEntity(new FileRequestEntity(depositPackage, "application/zip"));
+			post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+			try {
+				assertEquals(201, client.executeMethod(post));
+			} finally {
+				post.releaseConnection();
+			}
+
+			get = new GetMethod(server.getBaseUrl() + "/metrics");
+			String text;
+			try {
+				assertEquals(200, client.executeMethod(get));
+				assertTrue(get.getResponseHeader("Content-Type").getValue().startsWith("text/plain"));
+				text = get.getResponseBodyAsString();
+			} finally {
+				get.releaseConnection();
+			}
+			assertTrue(text.contains("mock_sword_requests_total{endpoint=\"servicedocument\",collection=\"\",status=\"200\"} 1\n"));
+			assertTrue(text.contains("mock_sword_requests_total{endpoint=\"deposit\",collection=\"c\",status=\"201\"} 1\n"));
+			assertTrue(text.contains("mock_sword_request_duration_seconds_count{endpoint=\"deposit\"} 1\n"));
+			assertTrue(text.contains("mock_sword_ingested_bytes_total " + depositPackage.length() + "\n"));
+			assertTrue(text.contains("mock_sword_uploads_in_flight 0\n"));
+			assertTrue(text.contains("mock_sword_spool_files 0\n"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static String write(Metrics metrics) throws Exception {
+		StringWriter out = new StringWriter();
+		metrics.write(out);
+		return out.toString();
+	}
+}
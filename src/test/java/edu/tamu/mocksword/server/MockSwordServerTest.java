@@ -3,6 +3,13 @@ package edu.tamu.mocksword.server;
 import java.io.File;
 import java.util.List;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -24,15 +31,21 @@ import org.purl.sword.client.SWORDClientException;
 public class MockSwordServerTest
 {
 
+	/** The server under test, on any free port **/
+	private static MockSwordServer.Handle server;
+
+	/** The server's base URL **/
+	private static String base;
 	
 	@BeforeClass
 	public static void startMockSwordServer() throws Exception {
-		MockSwordServer.start(8082);
+		server = MockSwordServer.builder().start();
+		base = server.getBaseUrl();
 	}
 	
 	@AfterClass
 	public static void stopMockSwordServer() throws Exception {
-		MockSwordServer.stop();
+		server.stop();
 	}
 	
 	@Test
@@ -40,11 +53,11 @@ public class MockSwordServerTest
     {
         
         Client client = new Client();
-        client.setServer("localhost", 8082);
+        client.setServer("localhost", server.getPort());
         client.setCredentials("testUser", "testPassword");
         
         // Get the service document 
-        ServiceDocument serviceDocument = client.getServiceDocument("http://localhost:8082/servicedocument");
+        ServiceDocument serviceDocument = client.getServiceDocument(base + "/servicedocument");
         assertNotNull(serviceDocument);        
         Service service = serviceDocument.getService();
         assertNotNull(service);
@@ -61,9 +74,9 @@ public class MockSwordServerTest
         assertNotNull(collections);
         assertEquals(2,collections.size());
         assertEquals("Collection A",collections.get(0).getTitle());
-        assertEquals("http://localhost:8082/deposit/a",collections.get(0).getLocation());
+        assertEquals(base + "/deposit/a",collections.get(0).getLocation());
         assertEquals("Collection B",collections.get(1).getTitle());
-        assertEquals("http://localhost:8082/deposit/b",collections.get(1).getLocation());
+        assertEquals(base + "/deposit/b",collections.get(1).getLocation());
         
         // Verify the second workspace
         workspace = workspaces.get(1);
@@ -72,30 +85,66 @@ public class MockSwordServerTest
         assertNotNull(collections);
         assertEquals(1,collections.size());
         assertEquals("Collection C",collections.get(0).getTitle());
-        assertEquals("http://localhost:8082/deposit/c",collections.get(0).getLocation());
+        assertEquals(base + "/deposit/c",collections.get(0).getLocation());
     }
 	
 	
+	@Test
+	public void testServiceDocumentNotModified() throws Exception
+	{
+		HttpClient client = createHttpClient();
+		
+		GetMethod get = new GetMethod(base + "/servicedocument");
+		String etag;
+		try {
+			assertEquals(200, client.executeMethod(get));
+			assertNotNull(get.getResponseHeader("ETag"));
+			etag = get.getResponseHeader("ETag").getValue();
+		} finally {
+			get.releaseConnection();
+		}
+		
+		// Polling again with the same tag should not resend the document
+		get = new GetMethod(base + "/servicedocument");
+		get.setRequestHeader("If-None-Match", etag);
+		try {
+			assertEquals(304, client.executeMethod(get));
+			assertEquals(etag, get.getResponseHeader("ETag").getValue());
+		} finally {
+			get.releaseConnection();
+		}
+		
+		// A stale tag gets the whole document
+		get = new GetMethod(base + "/servicedocument");
+		get.setRequestHeader("If-None-Match", "\"stale\"");
+		try {
+			assertEquals(200, client.executeMethod(get));
+			assertTrue(get.getResponseBodyAsString().contains("Collection A"));
+		} finally {
+			get.releaseConnection();
+		}
+	}
+	
 	@Test(expected=SWORDClientException.class)
 	public void testServiceDocumentWithBadAuth() throws SWORDClientException {
 		
 		Client client = new Client();
-        client.setServer("localhost", 8082);
+        client.setServer("localhost", server.getPort());
         client.setCredentials("invalidUser", "invalidPassword");
         
         // Get the service document 
-        ServiceDocument serviceDocument = client.getServiceDocument("http://localhost:8082/servicedocument");
+        ServiceDocument serviceDocument = client.getServiceDocument(base + "/servicedocument");
 	}
 	
 	@Test(expected=SWORDClientException.class)
 	public void testServiceDocumentWithOnBehalfOfError() throws SWORDClientException {
 		
 		Client client = new Client();
-        client.setServer("localhost", 8082);
+        client.setServer("localhost", server.getPort());
         client.setCredentials("testUser", "testPassword");
         
         // Get the service document 
-        ServiceDocument serviceDocument = client.getServiceDocument("http://localhost:8082/servicedocument","error");
+        ServiceDocument serviceDocument = client.getServiceDocument(base + "/servicedocument","error");
 	}
 	
 	@Test
@@ -103,7 +152,7 @@ public class MockSwordServerTest
 	{
 		
         Client client = new Client();
-        client.setServer("localhost", 8082);
+        client.setServer("localhost", server.getPort());
         client.setCredentials("testUser", "testPassword");
         
         File depositPackage = new File("src/main/resources/validDeposit.zip");
@@ -111,7 +160,7 @@ public class MockSwordServerTest
         
         PostMessage message = new PostMessage();
         message.setFilepath(depositPackage.getAbsolutePath());
-        message.setDestination("http://localhost:8082/deposit/c");
+        message.setDestination(base + "/deposit/c");
         message.setFiletype("application/zip");
         message.setUseMD5(false);
         message.setVerbose(false);
@@ -126,12 +175,56 @@ public class MockSwordServerTest
         assertEquals("http://localhost/sword/deposit/1",response.getEntry().getId());
 	}
 	
+	@Test
+	public void testIndependentServers() throws Exception 
+	{
+		// A second server has its own port and its own deposit ids
+		MockSwordServer.Handle other = MockSwordServer.builder().start();
+		try {
+			assertTrue(other.getPort() != server.getPort());
+			
+			File depositPackage = new File("src/main/resources/validDeposit.zip");
+			PostMethod post = createPost(other.getBaseUrl() + "/deposit/c", depositPackage);
+			try {
+				assertEquals(201, createHttpClient().executeMethod(post));
+				assertTrue(post.getResponseBodyAsString().contains("http://localhost/sword/deposit/1"));
+			} finally {
+				post.releaseConnection();
+			}
+		} finally {
+			other.stop();
+		}
+	}
+	
+	@Test
+	public void testConnectorsWithBoundedPool() throws Exception 
+	{
+		File depositPackage = new File("src/main/resources/validDeposit.zip");
+		for (String connector : new String[] { "socket", "nio", "blocking-nio" }) {
+			MockSwordServer.Handle other = MockSwordServer.builder()
+					.param("connector", connector)
+					.param("max-threads", "8")
+					.param("max-queued", "4")
+					.start();
+			try {
+				PostMethod post = createPost(other.getBaseUrl() + "/deposit/c", depositPackage);
+				try {
+					assertEquals(connector, 201, createHttpClient().executeMethod(post));
+				} finally {
+					post.releaseConnection();
+				}
+			} finally {
+				other.stop();
+			}
+		}
+	}
+	
 	@Test(expected=SWORDClientException.class)
 	public void testInvalidDeposit() throws Exception 
 	{
 		
         Client client = new Client();
-        client.setServer("localhost", 8082);
+        client.setServer("localhost", server.getPort());
         client.setCredentials("testUser", "testPassword");
         
         File depositPackage = new File("src/main/resources/invalidDeposit.zip");
@@ -139,7 +232,7 @@ public class MockSwordServerTest
         
         PostMessage message = new PostMessage();
         message.setFilepath(depositPackage.getAbsolutePath());
-        message.setDestination("http://localhost:8082/deposit/c");
+        message.setDestination(base + "/deposit/c");
         message.setFiletype("application/zip");
         message.setUseMD5(false);
         message.setVerbose(false);
@@ -152,4 +245,40 @@ public class MockSwordServerTest
         client.postFile(message);
 	}
 	
+	@Test
+	public void testDepositWithBadDigest() throws Exception 
+	{
+		File depositPackage = new File("src/main/resources/validDeposit.zip");
+		
+		PostMethod post = createPost(base + "/deposit/c", depositPackage);
+		post.setRequestHeader("Digest", "SHA-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=");
+		try {
+			assertEquals(412, createHttpClient().executeMethod(post));
+			assertTrue(post.getResponseBodyAsString().contains("ErrorChecksumMismatch"));
+		} finally {
+			post.releaseConnection();
+		}
+	}
+	
+	/**
+	 * Create a raw HTTP client, for requests the SWORD client can not make.
+	 */
+	private static HttpClient createHttpClient() {
+		HttpClient client = new HttpClient();
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+		return client;
+	}
+	
+	/**
+	 * Create a raw deposit of the package, with the usual SWORD headers.
+	 */
+	private static PostMethod createPost(String destination, File depositPackage) {
+		PostMethod post = new PostMethod(destination);
+		post.setRequestEntity(new FileRequestEntity(depositPackage, "application/zip"));
+		post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+		post.setRequestHeader("Content-Disposition", "filename=" + depositPackage.getName());
+		return post;
+	}
+	
 }
@@ -0,0 +1,179 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for verifying package contents against the manifest
+ */
+public class PackageVerifierTest
+{
+
+	private static ExecutorService executor;
+
+	@BeforeClass
+	public static void startExecutor() {
+		executor = Executors.newFixedThreadPool(2);
+	}
+
+	@AfterClass
+	public static void stopExecutor() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testCorrectPackage() throws Exception {
+		byte[] pdf = "Not really a pdf".getBytes("UTF-8");
+		ZipDirectory directory = createPackage(createManifest("pdf1.pdf", md5(pdf)), "pdf1.pdf", pdf);
+
+		List<String> problems = new PackageVerifier(executor).verify(directory, directory.getEntry("mets.xml"));
+		assertTrue(problems.toString(), problems.isEmpty());
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		byte[] pdf = "Not really a pdf".getBytes("UTF-8");
+		ZipDirectory directory = createPackage(createManifest("pdf1.pdf", md5("Something else".getBytes("UTF-8"))), "pdf1.pdf", pdf);
+
+		List<String> problems = new PackageVerifier(executor).verify(directory, directory.getEntry("mets.xml"));
+		assertEquals(1, problems.size());
+		assertTrue(problems.get(0).contains("pdf1.pdf"));
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		byte[] pdf = "Not really a pdf".getBytes("UTF-8");
+		ZipDirectory directory = createPackage(createManifest("pdf2.pdf", md5(pdf)), "pdf1.pdf", pdf);
+
+		List<String> problems = new PackageVerifier(executor).verify(directory, directory.getEntry("mets.xml"));
+		assertEquals(1, problems.size());
+		assertTrue(problems.get(0).contains("missing"));
+	}
+
+	@Test
+	public void testCorruptEntry() throws Exception {
+		byte[] pdf = "Not really a pdf".getBytes("UTF-8");
+		ByteBuffer archive = ByteBuffer.wrap(createZip(createManifest("pdf1.pdf", md5(pdf)), "pdf1.pdf", pdf))
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Change the CRC the central directory records for the second entry
+		int end = archive.limit() - 22;
+		int position = archive.getInt(end + 16);
+		position += 46 + (archive.getShort(position + 28) & 0xFFFF) + (archive.getShort(position + 30) & 0xFFFF)
+				+ (archive.getShort(position + 32) & 0xFFFF);
+		archive.putInt(position + 16, archive.getInt(position + 16) ^ 1);
+		ZipDirectory directory = new ZipDirectory(archive);
+
+		List<String> problems = new PackageVerifier(executor).verify(directory, directory.getEntry("mets.xml"));
+		assertEquals(1, problems.size());
+		assertTrue(problems.get(0).contains("corrupt"));
+		assertTrue(problems.get(0).contains("pdf1.pdf"));
+	}
+
+	@Test
+	public void testUnverifiablePackageRefused() throws Exception {
+		// Trailing bytes hide the central directory, so the package can
+		// only be scanned as a stream and its contents can not be verified
+		byte[] zip = read(new File("src/main/resources/validDeposit.zip"));
+		byte[] padded = new byte[zip.length + 100];
+		System.arraycopy(zip, 0, padded, 0, zip.length);
+
+		MockSwordServer.Handle server = MockSwordServer.builder()
+				.param("verify-package-contents", "true")
+				.start();
+		try {
+			PostMethod post = createPost(server.getBaseUrl() + "/deposit/c", zip);
+			try {
+				assertEquals(201, createHttpClient().executeMethod(post));
+			} finally {
+				post.releaseConnection();
+			}
+			post = createPost(server.getBaseUrl() + "/deposit/c", padded);
+			try {
+				assertEquals(415, createHttpClient().executeMethod(post));
+				assertTrue(post.getResponseBodyAsString().contains("ErrorContent"));
+			} finally {
+				post.releaseConnection();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static String createManifest(String href, String md5) {
+		return "<mets xmlns=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">" +
+			"<fileSec><fileGrp USE=\"CONTENT\">" +
+			"<file ID=\"file-1\" CHECKSUM=\"" + md5 + "\" CHECKSUMTYPE=\"MD5\">" +
+			"<FLocat LOCTYPE=\"URL\" xlink:href=\"" + href + "\"/></file>" +
+			"</fileGrp></fileSec></mets>";
+	}
+
+	private static ZipDirectory createPackage(String manifest, String name, byte[] content) throws Exception {
+		return new ZipDirectory(ByteBuffer.wrap(createZip(manifest, name, content)));
+	}
+
+	private static byte[] createZip(String manifest, String name, byte[] content) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("mets.xml"));
+		zip.write(manifest.getBytes("UTF-8"));
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(content);
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	private static PostMethod createPost(String destination, byte[] content) {
+		PostMethod post = new PostMethod(destination);
+		post.setRequestEntity(new ByteArrayRequestEntity(content, "application/zip"));
+		post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+		post.setRequestHeader("Content-Disposition", "filename=validDeposit.zip");
+		return post;
+	}
+
+	private static HttpClient createHttpClient() {
+		HttpClient client = new HttpClient();
+		client.getParams().setAuthenticationPreemptive(true);
+		client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+		return client;
+	}
+
+	private static byte[] read(File file) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String md5(byte[] content) throws Exception {
+		return DigestingInputStream.toHex(MessageDigest.getInstance("MD5").digest(content));
+	}
+}
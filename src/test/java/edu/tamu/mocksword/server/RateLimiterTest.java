@@ -0,0 +1,94 @@
+package edu.tamu.mocksword.server;
+
+import java.io.File;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the deposit rate limits
+ */
+public class RateLimiterTest
+{
+
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void testRequestsPerUser() {
+		// Two a second, with a burst of one second's worth
+		RateLimiter limiter = new RateLimiter(2, 0, 0, 0, 1);
+		long now = 1000 * SECOND;
+		assertEquals(0, limiter.admit("alice", "a", 100, now));
+		assertEquals(0, limiter.admit("alice", "a", 100, now));
+		long wait = limiter.admit("alice", "a", 100, now);
+		assertEquals(SECOND / 2, wait);
+
+		// Others are not held up by alice
+		assertEquals(0, limiter.admit("bob", "a", 100, now));
+
+		// And alice is admitted again once she has waited
+		assertEquals(0, limiter.admit("alice", "a", 100, now + wait));
+		assertTrue(limiter.admit("alice", "a", 100, now + wait) > 0);
+	}
+
+	@Test
+	public void testBytesPerCollection() {
+		// A kB a second to each collection, without any burst
+		RateLimiter limiter = new RateLimiter(0, 0, 0, 1024, 0);
+		long now = 1000 * SECOND;
+		assertEquals(0, limiter.admit("alice", "a", 512, now));
+		assertEquals(SECOND / 2, limiter.admit("bob", "a", 512, now));
+		assertEquals(0, limiter.admit("bob", "b", 512, now));
+
+		// A deposit larger than the burst is let into an idle collection
+		assertEquals(0, limiter.admit("bob", "c", 10 * 1024, now));
+		assertEquals(10 * SECOND, limiter.admit("bob", "c", 1, now));
+	}
+
+	@Test
+	public void testRefusedRequestsAreRefunded() {
+		RateLimiter limiter = new RateLimiter(1, 0, 1, 0, 0);
+		long now = 1000 * SECOND;
+		assertEquals(0, limiter.admit("alice", "a", 0, now));
+		// Refused by the collection, so not counted against bob
+		assertTrue(limiter.admit("bob", "a", 0, now) > 0);
+		assertEquals(0, limiter.admit("bob", "b", 0, now));
+	}
+
+	@Test
+	public void testRefusesDepositsOverLimit() throws Exception {
+		MockSwordServer.Handle server = MockSwordServer.builder()
+				.param("rate-limit-user-requests", "1")
+				.param("rate-limit-burst", "1")
+				.start();
+		try {
+			HttpClient client = new HttpClient();
+			client.getParams().setAuthenticationPreemptive(true);
+			client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("testUser", "testPassword"));
+
+			int refused = 0;
+			for (int i = 0; i < 4; i++) {
+				PostMethod post = new PostMethod(server.getBaseUrl() + "/deposit/c");
+				post.setRequestEntity(new FileRequestEntity(new File("src/main/resources/validDeposit.zip"), "application/zip"));
+				post.setRequestHeader("X-Packaging", "http://purl.org/net/sword-types/METSDSpaceSIP");
+				try {
+					if (client.executeMethod(post) == 503) {
+						refused++;
+						assertEquals("1", post.getResponseHeader("Retry-After").getValue());
+					}
+				} finally {
+					post.releaseConnection();
+				}
+			}
+			assertTrue(refused >= 1);
+		} finally {
+			server.stop();
+		}
+	}
+}
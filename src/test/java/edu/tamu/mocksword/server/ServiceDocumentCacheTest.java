@@ -0,0 +1,55 @@
+package edu.tamu.mocksword.server;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the bounded cache of service documents
+ */
+public class ServiceDocumentCacheTest
+{
+
+	private static final String LOCATION = "http://localhost:8080/servicedocument";
+
+	@Test
+	public void testCachesPerUser() {
+		ServiceDocumentCache cache = new ServiceDocumentCache(100);
+		assertNull(cache.get(LOCATION, "alice"));
+		ServiceDocumentCache.CachedDocument alice = cache.put(LOCATION, "alice", "<alice/>");
+		cache.put(LOCATION, null, "<everyone/>");
+
+		assertSame(alice, cache.get(LOCATION, "alice"));
+		assertEquals("<everyone/>", new String(cache.get(LOCATION, null).getBody()));
+		assertNull(cache.get(LOCATION, "bob"));
+
+		// A document rendered again by a racing request keeps the first tag
+		assertSame(alice, cache.put(LOCATION, "alice", "<alice/>"));
+
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		ServiceDocumentCache cache = new ServiceDocumentCache(100);
+		for (int i = 0; i < 5000; i++) {
+			cache.put(LOCATION, "user" + i, "<user" + i + "/>");
+			// Keep the first user's document in use
+			assertNotNull(cache.get(LOCATION, "user0"));
+		}
+		assertEquals(100, cache.size());
+		assertEquals(4900, cache.getEvictions());
+		assertNotNull(cache.get(LOCATION, "user4999"));
+		assertNull(cache.get(LOCATION, "user1"));
+	}
+
+	@Test
+	public void testDisabledCacheHoldsNothing() {
+		ServiceDocumentCache cache = new ServiceDocumentCache(0);
+		assertNotNull(cache.put(LOCATION, "alice", "<alice/>"));
+		assertNull(cache.get(LOCATION, "alice"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getEvictions());
+	}
+}
@@ -0,0 +1,89 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for the streaming mets validator
+ */
+public class StreamingMetsValidatorTest
+{
+
+	@Test
+	public void testBundledManifests() throws Exception {
+		StreamingMetsValidator validator = new StreamingMetsValidator();
+		MetadataRuleSet rules = loadRules("default.dc.title = required\n");
+
+		InputStream in = new FileInputStream("src/main/resources/validDeposit/mets.xml");
+		try {
+			assertTrue(validator.validate(in, rules).isEmpty());
+		} finally {
+			in.close();
+		}
+
+		in = new FileInputStream("src/main/resources/invalidDeposit/mets.xml");
+		try {
+			List<String> failures = validator.validate(in, rules);
+			assertEquals(1, failures.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testMultibyteValues() throws Exception {
+		StreamingMetsValidator validator = new StreamingMetsValidator();
+		MetadataRuleSet rules = loadRules("default.dc.title = pattern=Étude.*\n");
+
+		// Pad the title so its multibyte characters straddle a 1 kB boundary
+		StringBuilder title = new StringBuilder("Étude");
+		for (int i = 0; i < 600; i++)
+			title.append("é");
+		String mets = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+			"<mets xmlns=\"http://www.loc.gov/METS/\"><dmdSec><mdWrap><xmlData>" +
+			"<dim:dim xmlns:dim=\"http://www.dspace.org/xmlns/dspace/dim\">" +
+			"<dim:field mdschema=\"dc\" element=\"title\">" + title + "</dim:field>" +
+			"</dim:dim></xmlData></mdWrap></dmdSec></mets>";
+
+		assertTrue(validator.validate(new ByteArrayInputStream(mets.getBytes("UTF-8")), rules).isEmpty());
+	}
+
+	@Test
+	public void testStopsBeforeFileSection() throws Exception {
+		StreamingMetsValidator validator = new StreamingMetsValidator();
+		MetadataRuleSet rules = loadRules("default.dc.title = required; max=1\n");
+
+		// The file section is never read, so its truncation goes unnoticed
+		String mets = "<mets xmlns=\"http://www.loc.gov/METS/\"><dmdSec><mdWrap><xmlData>" +
+			"<dim:dim xmlns:dim=\"http://www.dspace.org/xmlns/dspace/dim\">" +
+			"<dim:field mdschema=\"dc\" element=\"title\">A test title</dim:field>" +
+			"</dim:dim></xmlData></mdWrap></dmdSec><fileSec><fileGrp>";
+
+		assertTrue(validator.validate(new ByteArrayInputStream(mets.getBytes("UTF-8")), rules).isEmpty());
+	}
+
+	@Test
+	public void testStopsBeforeAdministrativeSection() throws Exception {
+		StreamingMetsValidator validator = new StreamingMetsValidator();
+		MetadataRuleSet rules = loadRules("default.dc.title = required; max=1\n");
+
+		// Nor is an administrative section, which follows the last dmdSec
+		String mets = "<mets xmlns=\"http://www.loc.gov/METS/\"><dmdSec><mdWrap><xmlData>" +
+			"<dim:dim xmlns:dim=\"http://www.dspace.org/xmlns/dspace/dim\">" +
+			"<dim:field mdschema=\"dc\" element=\"title\">A test title</dim:field>" +
+			"</dim:dim></xmlData></mdWrap></dmdSec><amdSec><techMD>";
+
+		assertTrue(validator.validate(new ByteArrayInputStream(mets.getBytes("UTF-8")), rules).isEmpty());
+	}
+
+	private static MetadataRuleSet loadRules(String rules) throws Exception {
+		Map<String, MetadataRuleSet> sets = MetadataRuleSet.load(new ByteArrayInputStream(rules.getBytes("ISO-8859-1")));
+		return sets.get(MetadataRuleSet.DEFAULT);
+	}
+}
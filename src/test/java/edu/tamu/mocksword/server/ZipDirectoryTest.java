@@ -0,0 +1,118 @@
+package edu.tamu.mocksword.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit test for reading packages through their central directory
+ */
+public class ZipDirectoryTest
+{
+
+	@Test
+	public void testBundledPackage() throws Exception {
+		ZipDirectory directory = new ZipDirectory(ByteBuffer.wrap(read(new FileInputStream("src/main/resources/validDeposit.zip"))));
+
+		List<String> names = new ArrayList<String>();
+		for (ZipDirectory.Entry entry : directory.getEntries())
+			names.add(entry.getName());
+		assertTrue(names.contains("mets.xml"));
+		assertTrue(names.contains("pdf1.pdf"));
+		assertEquals(4, names.size());
+
+		byte[] mets = read(directory.openStream(directory.getEntry("mets.xml")));
+		byte[] expected = read(new FileInputStream(new File("src/main/resources/validDeposit/mets.xml")));
+		assertArrayEquals(expected, mets);
+		assertNull(directory.getEntry("missing.xml"));
+	}
+
+	@Test
+	public void testStoredAndDeflatedEntries() throws Exception {
+		byte[] content = "Some content, some content, some content.".getBytes("UTF-8");
+		CRC32 crc = new CRC32();
+		crc.update(content);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		ZipEntry stored = new ZipEntry("stored.txt");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(content.length);
+		stored.setCrc(crc.getValue());
+		zip.putNextEntry(stored);
+		zip.write(content);
+		zip.putNextEntry(new ZipEntry("deflated.txt"));
+		zip.write(content);
+		zip.setComment("A trailing comment");
+		zip.close();
+
+		ZipDirectory directory = new ZipDirectory(ByteBuffer.wrap(bytes.toByteArray()));
+		assertEquals(2, directory.getEntries().size());
+		for (ZipDirectory.Entry entry : directory.getEntries()) {
+			assertEquals(crc.getValue(), entry.getCrc());
+			assertEquals(content.length, entry.getSize());
+			assertArrayEquals(content, read(directory.openStream(entry)));
+		}
+	}
+
+	@Test(expected=ZipException.class)
+	public void testNotAZip() throws Exception {
+		new ZipDirectory(ByteBuffer.wrap("This is not a zip file at all.".getBytes("UTF-8")));
+	}
+
+	@Test(expected=ZipException.class)
+	public void testTruncatedName() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("entry.txt"));
+		zip.write("Some content".getBytes("UTF-8"));
+		zip.close();
+
+		// Claim a name running past the end of the central directory
+		ByteBuffer archive = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		int end = archive.limit() - 22;
+		int offset = archive.getInt(end + 16);
+		archive.putShort(offset + 28, (short) 0xFFFF);
+		new ZipDirectory(archive);
+	}
+
+	@Test(expected=ZipException.class)
+	public void testLocalOffsetOutOfRange() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.putNextEntry(new ZipEntry("entry.txt"));
+		zip.write("Some content".getBytes("UTF-8"));
+		zip.close();
+
+		// Point the entry at a local header past the end of a 32 bit int
+		ByteBuffer archive = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		int end = archive.limit() - 22;
+		int offset = archive.getInt(end + 16);
+		archive.putInt(offset + 42, 0x80000000);
+		ZipDirectory directory = new ZipDirectory(archive);
+		directory.openStream(directory.getEntry("entry.txt"));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int len;
+		while ((len = in.read(buf)) > 0)
+			out.write(buf, 0, len);
+		in.close();
+		return out.toByteArray();
+	}
+}